@@ -0,0 +1,440 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import sasc.archive.CardArchive;
+import sasc.emv.CA;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVSession;
+import sasc.export.CardExporter;
+import sasc.export.StructuredWriter;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.util.Util;
+
+/**
+ * Processes a corpus of card images (CardEmulator XML files) and recorded APDU
+ * traces (see TraceReplayConnection) on a pool of worker threads.
+ *
+ * Each input is processed like a card in the reader: the card is initialized, and the
+ * data of every EMV application is read. The worker threads are the readers of a CardPipeline,
+ * that verifies (offline data authentication), enriches and exports the cards on its own
+ * threads. One record per input is written to the exporter, in order of completion:
+ *
+ *   {"source":"cards/visa.xml","status":"OK","millis":12,"card":{...},"lookups":{"rid":{...},"iin":{...},"atr":{...}}}
+ *   {"source":"cards/bad.trace","status":"FAILED","millis":3,"error":"..."}
+ *
+ * The cards read can also be appended to a CardArchive (failures are not archived).
+ *
+ * A card that cannot be processed is counted as a failure, and does not stop
+ * the batch. An error writing the output does.
+ *
+ * @author sasc
+ */
+public class BatchProcessor {
+
+    public static final String CARD_IMAGE_SUFFIX = ".xml";
+    public static final String TRACE_SUFFIX = ".trace";
+
+    //The test CA used by the emulated cards. Does not clash with any real RID
+    private static final String MOCK_CA_FILE = "/certificationauthorities_mock.xml";
+    private static final byte[] MOCK_CA_RID = Util.fromHexString("a1 23 45 67 89");
+
+    private final CardExporter exporter;
+    private final CardArchive archive;
+    private final int threads;
+
+    public BatchProcessor(CardExporter exporter, int threads) {
+        this(exporter, null, threads);
+        if (exporter == null) {
+            throw new IllegalArgumentException("Param 'exporter' cannot be null");
+        }
+    }
+
+    /**
+     * @param exporter where to write the results, or null
+     * @param archive the archive to append the cards read to, or null
+     */
+    public BatchProcessor(CardExporter exporter, CardArchive archive, int threads) {
+        if (exporter == null && archive == null) {
+            throw new IllegalArgumentException("Params 'exporter' and 'archive' cannot both be null");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Param 'threads' must be >= 1: " + threads);
+        }
+        this.exporter = exporter;
+        this.archive = archive;
+        this.threads = threads;
+    }
+
+    /**
+     * Finds the inputs to process
+     *
+     * @param dirOrGlob a directory (searched recursively), a single file,
+     * or a glob pattern (eg "corpus/**&#47;*.xml")
+     * @return the card images and traces found, sorted by path
+     */
+    public static List<Path> findInputs(String dirOrGlob) throws IOException {
+        final List<Path> inputs = new ArrayList<Path>();
+        int globStart = indexOfGlobChar(dirOrGlob);
+        if (globStart < 0) {
+            Path path = Paths.get(dirOrGlob);
+            if (Files.isRegularFile(path)) {
+                inputs.add(path);
+                return inputs;
+            }
+            if (!Files.isDirectory(path)) {
+                throw new IOException("No such file or directory: " + dirOrGlob);
+            }
+            collect(path, null, inputs);
+        } else {
+            //Walk the directory part of the pattern, so the paths found have the same form as the pattern
+            int separator = Math.max(dirOrGlob.lastIndexOf('/', globStart), dirOrGlob.lastIndexOf(java.io.File.separatorChar, globStart));
+            Path baseDir = Paths.get(dirOrGlob.substring(0, separator + 1));
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + dirOrGlob);
+            if (Files.isDirectory(baseDir.toAbsolutePath())) {
+                collect(baseDir, matcher, inputs);
+            }
+        }
+        Collections.sort(inputs);
+        return inputs;
+    }
+
+    private static int indexOfGlobChar(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            switch (s.charAt(i)) {
+                case '*':
+                case '?':
+                case '[':
+                case '{':
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void collect(Path dir, final PathMatcher matcher, final List<Path> inputs) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isSupported(file) && (matcher == null || matcher.matches(file))) {
+                    inputs.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static boolean isTrace(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(TRACE_SUFFIX);
+    }
+
+    static boolean isCardImage(Path file) {
+        return file.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(CARD_IMAGE_SUFFIX);
+    }
+
+    private static boolean isSupported(Path file) {
+        return isCardImage(file) || isTrace(file);
+    }
+
+    /**
+     * Processes all the inputs, and flushes the exporter
+     *
+     * @return the statistics for the batch
+     * @throws IOException if the results could not be written
+     */
+    public Statistics process(List<Path> inputs) throws IOException, InterruptedException {
+        initContext();
+
+        final Statistics statistics = new Statistics();
+        final CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) throws IOException {
+                exportResult(result, statistics);
+            }
+        }, Runtime.getRuntime().availableProcessors(), 1, CardPipeline.DEFAULT_QUEUE_CAPACITY, false);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Batch Worker " + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(inputs.size());
+            for (final Path input : inputs) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                        pipeline.read(input.toString(), new Callable<SmartCard>() {
+                            @Override
+                            public SmartCard call() throws Exception {
+                                return readCard(input, false);
+                            }
+                        });
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    //Only output errors are propagated
+                    if (ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            pipeline.close();
+        }
+        statistics.elapsedNanos = System.nanoTime() - start;
+        statistics.stages = pipeline.getStatistics();
+        if (exporter != null) {
+            exporter.flush();
+        }
+        if (archive != null) {
+            archive.flush();
+        }
+        return statistics;
+    }
+
+    static synchronized void initContext() {
+        Context.init();
+        if (CA.getCA(MOCK_CA_RID) == null) {
+            CA.addFromXmlFile(MOCK_CA_FILE);
+        }
+    }
+
+    /**
+     * The EXPORT stage of the pipeline: called on a single thread
+     */
+    private void exportResult(CardPipeline.Result result, Statistics statistics) throws IOException {
+        Exception error = result.getError();
+        statistics.add(result.getReadMillis(), error);
+
+        if (archive != null && error == null) {
+            archive.append(result.getCard(), result.getSource(), System.currentTimeMillis());
+        }
+        if (exporter == null) {
+            return;
+        }
+        StructuredWriter writer = exporter.getWriter();
+        writer.beginObject();
+        writer.name("source").value(result.getSource());
+        writer.name("status").value(error == null ? "OK" : "FAILED");
+        writer.name("millis").value(result.getReadMillis());
+        if (error == null) {
+            writer.name("card");
+            exporter.writeCardObject(result.getCard());
+            writeLookups(writer, result);
+        } else {
+            writer.name("error").value(String.valueOf(error));
+        }
+        writer.endObject();
+        writer.endRecord();
+    }
+
+    private static void writeLookups(StructuredWriter writer, CardPipeline.Result result) throws IOException {
+        writer.name("lookups").beginObject();
+        writer.name("rid").beginObject();
+        for (Map.Entry<String, String> entry : result.getRIDApplicants().entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+        writer.name("iin").beginObject();
+        for (Map.Entry<String, String> entry : result.getIssuers().entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+        writer.name("atr").beginObject();
+        for (Map.Entry<String, List<String>> entry : result.getATRDescriptions().entrySet()) {
+            writer.name(entry.getKey()).beginArray();
+            for (String line : entry.getValue()) {
+                writer.value(line);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    static SmartCard readCard(Path input) throws Exception {
+        return readCard(input, true);
+    }
+
+    /**
+     * Reads the card image or trace. A trace replays the recorded responses in any order,
+     * so it can be read without performing the recorded transaction
+     */
+    static SmartCard readCard(Path input, boolean performTransaction) throws Exception {
+        InputStream in = new BufferedInputStream(Files.newInputStream(input));
+        try {
+            CardConnection conn = isTrace(input) ? new TraceReplayConnection(in, input.toString()) : new CardEmulator(in);
+            SessionProcessingEnv env = new SessionProcessingEnv();
+            env.setInitialPauseMillis(0); //No card to power up
+            return readCard(conn, env, performTransaction);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the card, and performs a transaction with each EMV application
+     */
+    static SmartCard readCard(CardConnection conn) throws Exception {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        env.setInitialPauseMillis(0); //No card to power up
+        return readCard(conn, env, true);
+    }
+
+    /**
+     * Reads the card (all the EMV applications' data), and optionally performs a transaction with each EMV application.
+     * If no transaction is performed, the certificates are not validated: this is left to the
+     * caller (eg the VERIFY stage of a CardPipeline)
+     */
+    static SmartCard readCard(CardConnection conn, SessionProcessingEnv env, boolean performTransaction) throws Exception {
+        SmartCard card = CardSession.createSession(conn, env).initCard();
+        EMVSession session = EMVSession.startSession(card, conn);
+        session.setRecoverCertificatesDuringRead(performTransaction);
+        session.initContext();
+        for (EMVApplication app : card.getEmvApplications()) {
+            session.selectApplication(app);
+            session.initiateApplicationProcessing();
+            if (!app.isInitializedOnICC() || !performTransaction) {
+                //Skip if GPO failed
+                continue;
+            }
+            if (session.completeQVSDCTransaction() != null) {
+                //Visa qVSDC: the transaction was completed by the card during GET PROCESSING OPTIONS
+                continue;
+            }
+            session.prepareTransactionProcessing();
+            session.performTransaction();
+        }
+        return card;
+    }
+
+    /**
+     * Throughput and failure statistics for a batch. Thread safe
+     */
+    public static class Statistics {
+
+        private int processed = 0;
+        private int failed = 0;
+        private long totalMillis = 0;
+        private long maxMillis = 0;
+        //Failure count by exception type
+        private final Map<String, Integer> failures = new TreeMap<String, Integer>();
+        private volatile long elapsedNanos = 0;
+        private volatile List<CardPipeline.StageStatistics> stages = Collections.emptyList();
+
+        synchronized void add(long millis, Exception error) {
+            processed++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            if (error != null) {
+                failed++;
+                String type = error.getClass().getName();
+                Integer count = failures.get(type);
+                failures.put(type, count == null ? 1 : count + 1);
+            }
+        }
+
+        public synchronized int getProcessed() {
+            return processed;
+        }
+
+        public synchronized int getFailed() {
+            return failed;
+        }
+
+        public synchronized Map<String, Integer> getFailures() {
+            return new TreeMap<String, Integer>(failures);
+        }
+
+        /**
+         * @return the statistics of each pipeline stage
+         */
+        public List<CardPipeline.StageStatistics> getStages() {
+            return stages;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public synchronized double getCardsPerSecond() {
+            return elapsedNanos == 0 ? 0 : processed * 1e9 / elapsedNanos;
+        }
+
+        public synchronized void print(PrintStream out) {
+            out.println(String.format(Locale.ENGLISH, "Processed %d cards in %.3f s (%.1f cards/s)",
+                    processed, elapsedNanos / 1e9, getCardsPerSecond()));
+            out.println(String.format(Locale.ENGLISH, "OK: %d, Failed: %d", processed - failed, failed));
+            if (processed > 0) {
+                out.println(String.format(Locale.ENGLISH, "Card processing time: avg %.1f ms, max %d ms",
+                        (double) totalMillis / processed, maxMillis));
+            }
+            for (Map.Entry<String, Integer> entry : failures.entrySet()) {
+                out.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+            if (!stages.isEmpty()) {
+                out.println("Pipeline stages:");
+                for (CardPipeline.StageStatistics stage : stages) {
+                    stage.print(out);
+                }
+            }
+        }
+    }
+}
@@ -15,15 +15,33 @@
  */
 package sasc;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.RSAPrivateKeySpec;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import nanoxml.XMLElement;
 import sasc.iso7816.AID;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.TLVWriter;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TagAndLength;
 import sasc.emv.EMVSession;
+import sasc.emv.EMVTags;
+import sasc.emv.SignedDataGenerator;
+import sasc.emv.system.visa.VISATags;
 import sasc.util.Log;
 import sasc.emv.SW;
 import sasc.smartcard.common.SessionProcessingEnv;
@@ -31,6 +49,7 @@ import sasc.terminal.CardResponse;
 import sasc.terminal.Terminal;
 import sasc.terminal.TerminalException;
 import sasc.terminal.CardConnection;
+import sasc.util.Hex;
 import sasc.util.Util;
 
 /**
@@ -44,12 +63,25 @@ public class CardEmulator implements CardConnection {
 
     private final static byte[] SELECT_DDF_PSE = Util.fromHexString("00 A4 04 00 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31");
     private final static byte[] SELECT_MASTER_FILE = Util.fromHexString("00 A4 00 00 00");
+    //Short R-APDU: up to 256 data bytes + SW1 SW2
+    private final static int MAX_RESPONSE_LENGTH = 256 + 2;
+    //Returned by GENERATE AC (TEST value)
+    private final static byte[] ISSUER_APPLICATION_DATA = Util.fromHexString("06 01 0A 03 A0 00 00");
     Card card = new Card();
+    //Reused for building all R-APDUs
+    private final TLVWriter responseWriter = new TLVWriter(new byte[MAX_RESPONSE_LENGTH]);
 
     public CardEmulator(String filename) throws TerminalException {
         _initFromFile(filename);
     }
 
+    /**
+     * @param in the card image (XML). The stream is not closed
+     */
+    public CardEmulator(InputStream in) throws TerminalException {
+        _initFromStream(in);
+    }
+
     @Override
     public void resetCard() throws TerminalException {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -87,6 +119,10 @@ public class CardEmulator implements CardConnection {
         byte[] getProcessingOpts = null;
         byte[] adf = null;
         Map<Integer, File> filesMap = null;
+        RSAPrivateKey iccPrivateKey = null;
+        //The PDOL data sent in the last GET PROCESSING OPTIONS command (part of the CDA transaction data)
+        byte[] pdolData = null;
+        List<TagAndLength> cdol1 = null;
     }
 
     private class File {
@@ -101,9 +137,13 @@ public class CardEmulator implements CardConnection {
     }
 
     private void _initFromFile(String filename) {
+        _initFromStream(Util.loadResource(CardEmulator.class, filename));
+    }
+
+    private void _initFromStream(InputStream in) {
         try {
             XMLElement emvCardElement = new XMLElement();
-            emvCardElement.parseFromReader(new InputStreamReader(Util.loadResource(CardEmulator.class, filename)));
+            emvCardElement.parseFromReader(new InputStreamReader(in));
 
             if (!"EMVCard".equalsIgnoreCase(emvCardElement.getName())) {
                 throw new RuntimeException("Unexpected Root Element: <" + emvCardElement.getName() + "> . Expected <EMVCard>");
@@ -182,6 +222,8 @@ public class CardEmulator implements CardConnection {
                         app.getProcessingOpts = Util.fromHexString(Util.removeCRLFTab(appChildElement.getContent().trim()));
                     } else if ("Files".equalsIgnoreCase(appChildElementName)) {
                         app.filesMap = parseFilesElement(appChildElement);
+                    } else if ("ICCPrivateKey".equalsIgnoreCase(appChildElementName)) {
+                        app.iccPrivateKey = parseICCPrivateKeyElement(appChildElement);
                     } else {
                         throw new RuntimeException("Unexpected XML Element: <" + appChildElementName + "> : " + appChildElement);
                     }
@@ -211,6 +253,31 @@ public class CardEmulator implements CardConnection {
         }
     }
 
+    private RSAPrivateKey parseICCPrivateKeyElement(XMLElement keyElement) {
+        byte[] modulus = null;
+        byte[] privateExponent = null;
+        for (Object keyChildObject : keyElement.getChildren()) {
+            XMLElement keyChildElement = (XMLElement) keyChildObject;
+            String keyChildElementName = keyChildElement.getName();
+            if ("Modulus".equalsIgnoreCase(keyChildElementName)) {
+                modulus = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else if ("PrivateExponent".equalsIgnoreCase(keyChildElementName)) {
+                privateExponent = Util.fromHexString(Util.removeCRLFTab(keyChildElement.getContent().trim()));
+            } else {
+                throw new RuntimeException("Unexpected XML Element: <" + keyChildElementName + "> : " + keyChildElement);
+            }
+        }
+        if (modulus == null || privateExponent == null) {
+            throw new RuntimeException("<ICCPrivateKey> must contain <Modulus> and <PrivateExponent>");
+        }
+        try {
+            return (RSAPrivateKey) KeyFactory.getInstance("RSA").generatePrivate(
+                    new RSAPrivateKeySpec(new BigInteger(1, modulus), new BigInteger(1, privateExponent)));
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     private static boolean hasLe(byte[] cmd){
         if(cmd.length < 5){
             return false;
@@ -240,7 +307,7 @@ public class CardEmulator implements CardConnection {
             cmd = tmp;
         }
 
-        String cmdStr = Util.byteArrayToHexString(cmd).trim().toUpperCase();
+        String cmdStr = Hex.encodeUpperCase(cmd);
 
         byte cls = cmd[0];
         byte ins = cmd[1];
@@ -263,6 +330,9 @@ public class CardEmulator implements CardConnection {
                     case (byte) 0x20: //VERIFY
                         responseBytes = processVerify(cmd);
                         break;
+                    case (byte) 0x88: //INTERNAL AUTHENTICATE
+                        responseBytes = processInternalAuthenticate(cmd);
+                        break;
                     default:
                         responseBytes = createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
                 }
@@ -275,6 +345,9 @@ public class CardEmulator implements CardConnection {
                     case (byte) 0xCA: //GET DATA
                         responseBytes = processGetData(cmd);
                         break;
+                    case (byte) 0xAE: //GENERATE AC
+                        responseBytes = processGenerateAC(cmd);
+                        break;
                     default:
                         responseBytes = createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
                 }
@@ -328,7 +401,7 @@ public class CardEmulator implements CardConnection {
     }
 
     private byte[] processReadRecord(byte[] cmd) {
-        int recordNumber = Integer.valueOf(cmd[2]);
+        int recordNumber = Util.byteToInt(cmd[2]);
         int sfi = cmd[3] >>> 3 & 0x1F;
         if (card.selectedApp != null) {
             if (card.selectedApp.filesMap.containsKey(sfi)) {
@@ -339,7 +412,7 @@ public class CardEmulator implements CardConnection {
                     return createResponse(null, SW.RECORD_NOT_FOUND);
                 }
             } else {
-                createResponse(null, SW.FILE_OR_APPLICATION_NOT_FOUND);
+                return createResponse(null, SW.FILE_OR_APPLICATION_NOT_FOUND);
             }
         } else {
             if (card.filesMap.containsKey(sfi)) {
@@ -350,11 +423,9 @@ public class CardEmulator implements CardConnection {
                     return createResponse(null, SW.RECORD_NOT_FOUND);
                 }
             } else {
-                createResponse(null, SW.FILE_OR_APPLICATION_NOT_FOUND);
+                return createResponse(null, SW.FILE_OR_APPLICATION_NOT_FOUND);
             }
         }
-
-        return null;
     }
 
     private byte[] processGetData(byte[] cmd) {
@@ -364,41 +435,26 @@ public class CardEmulator implements CardConnection {
         switch (cmd[3]) {
             case (byte) 0x36: //ATC
                 if (card.selectedApp.atc != -1) {
-                    byte[] responseBytes = new byte[5];
-                    responseBytes[0] = (byte) 0x9f;
-                    responseBytes[1] = (byte) 0x36;
-                    responseBytes[2] = (byte) 0x02;
-
-                    byte[] atcBytes = Util.intToByteArray4(card.selectedApp.atc); //Returns an array of length 4
-                    System.arraycopy(atcBytes, 2, responseBytes, 3, 2); //We only want the last 2 elements of the array
-
-                    return createResponse(responseBytes, SW.SUCCESS);
+                    responseWriter.reset();
+                    responseWriter.writeShort(EMVTags.APP_TRANSACTION_COUNTER, card.selectedApp.atc); //We only want the last 2 bytes
+                    return createResponse(SW.SUCCESS);
                 } else {
                     return createResponse(null, SW.FUNCTION_NOT_SUPPORTED);
                 }
             case (byte) 0x13: //Last Online ATC
                 if (card.selectedApp.lastOnlineATC != -1) {
-                    byte[] responseBytes = new byte[5];
-                    responseBytes[0] = (byte) 0x9f;
-                    responseBytes[1] = (byte) 0x13;
-                    responseBytes[2] = (byte) 0x02;
-
-                    byte[] lastOnlineATCBytes = Util.intToByteArray4(card.selectedApp.lastOnlineATC); //Returns an array of length 4
-                    System.arraycopy(lastOnlineATCBytes, 2, responseBytes, 3, 2); //We only want the last 2 elements of the array
-
-                    return createResponse(responseBytes, SW.SUCCESS);
+                    responseWriter.reset();
+                    responseWriter.writeShort(EMVTags.LAST_ONLINE_ATC_REGISTER, card.selectedApp.lastOnlineATC); //We only want the last 2 bytes
+                    return createResponse(SW.SUCCESS);
                 } else {
                     return createResponse(null, SW.FUNCTION_NOT_SUPPORTED);
                 }
 
             case (byte) 0x17: //PIN Try Counter
                 if (card.selectedApp.pinTryCounter != -1) {
-                    byte[] responseBytes = new byte[4];
-                    responseBytes[0] = (byte) 0x9f;
-                    responseBytes[1] = (byte) 0x17;
-                    responseBytes[2] = (byte) 0x01;
-                    responseBytes[3] = (byte) Util.intToByteArray(card.selectedApp.pinTryCounter)[0];
-                    return createResponse(responseBytes, SW.SUCCESS);
+                    responseWriter.reset();
+                    responseWriter.writeByte(EMVTags.PIN_TRY_COUNTER, card.selectedApp.pinTryCounter);
+                    return createResponse(SW.SUCCESS);
                 } else {
                     return createResponse(null, SW.FUNCTION_NOT_SUPPORTED);
                 }
@@ -420,9 +476,255 @@ public class CardEmulator implements CardConnection {
         if (card.selectedApp == null) {
             return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED); //TODO check correct SW
         }
+        //Command Template (83) with the PDOL data
+        byte[] commandTemplate = getDataBytes(cmd);
+        card.selectedApp.pdolData = commandTemplate.length < 2 ? new byte[0] 
+                : TLVUtil.getNextTLV(new ByteArrayInputStream(commandTemplate)).getValueBytes();
+        if (isQVSDC(card.selectedApp)) {
+            return processQVSDC(card.selectedApp);
+        }
         return createResponse(card.selectedApp.getProcessingOpts, SW.SUCCESS);
     }
 
+    //Visa qVSDC: the GET PROCESSING OPTIONS response in the card image (Format 2) has an Application Cryptogram
+    private static boolean isQVSDC(Application app) {
+        return app.getProcessingOpts != null && app.getProcessingOpts.length > 0 
+                && app.getProcessingOpts[0] == (byte) 0x77 && findValue(app.getProcessingOpts, EMVTags.APP_CRYPTOGRAM) != null;
+    }
+
+    /**
+     * The data objects in the GET PROCESSING OPTIONS response of the card image are returned, except that
+     * the ATC is incremented, and the Application Cryptogram (TEST value) and the fDDA signature are generated
+     * for this transaction. The card always returns the cryptogram type in the card image (CID, or the CVR in the IAD).
+     * fDDA version '01' if the card image has Card Authentication Related Data, otherwise version '00'.
+     * The ICC Dynamic Data is the ATC
+     */
+    private byte[] processQVSDC(Application app) {
+        app.atc = (Math.max(app.atc, 0) + 1) & 0xFFFF;
+        byte[] atc = new byte[]{(byte) (app.atc >>> 8), (byte) app.atc};
+        MessageDigest sha1 = newSHA1();
+        sha1.update(app.pdolData);
+        sha1.update(atc);
+        byte[] applicationCryptogram = Arrays.copyOf(sha1.digest(), 8);
+
+        responseWriter.reset();
+        responseWriter.startTemplate(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2);
+        ByteArrayInputStream stream = TLVUtil.getNextTLV(new ByteArrayInputStream(app.getProcessingOpts)).getValueStream();
+        while (stream.available() >= 2) {
+            BERTLV tlv = TLVUtil.getNextTLV(stream);
+            if (tlv.getTag().equals(EMVTags.APP_TRANSACTION_COUNTER)) {
+                responseWriter.write(EMVTags.APP_TRANSACTION_COUNTER, atc);
+            } else if (tlv.getTag().equals(EMVTags.APP_CRYPTOGRAM)) {
+                responseWriter.write(EMVTags.APP_CRYPTOGRAM, applicationCryptogram);
+            } else if (tlv.getTag().equals(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA) && app.iccPrivateKey != null) {
+                byte[] terminalDynamicData = getFDDATerminalDynamicData(app);
+                if (terminalDynamicData == null) {
+                    return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+                }
+                byte[] iccDynamicData = new byte[]{(byte) atc.length, atc[0], atc[1]};
+                responseWriter.write(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA,
+                        SignedDataGenerator.createSignedDynamicApplicationData(app.iccPrivateKey, iccDynamicData, terminalDynamicData));
+            } else {
+                responseWriter.write(tlv);
+            }
+        }
+        responseWriter.endTemplate();
+        return createResponse(SW.SUCCESS);
+    }
+
+    //Unpredictable Number || Amount, Authorised || Transaction Currency Code || Card Authentication Related Data
+    private static byte[] getFDDATerminalDynamicData(Application app) {
+        byte[] pdol = findValue(app.adf, EMVTags.PDOL);
+        if (pdol == null) {
+            return null;
+        }
+        byte[] cardAuthenticationRelatedData = findValue(app.getProcessingOpts, VISATags.CARD_AUTHENTICATION_RELATE_DATA);
+        if (cardAuthenticationRelatedData == null) {
+            cardAuthenticationRelatedData = findRecordValue(app, VISATags.CARD_AUTHENTICATION_RELATE_DATA);
+        }
+        Tag[] tags = cardAuthenticationRelatedData == null ? new Tag[]{EMVTags.UNPREDICTABLE_NUMBER}
+                : new Tag[]{EMVTags.UNPREDICTABLE_NUMBER, EMVTags.AMOUNT_AUTHORISED_NUMERIC, EMVTags.TRANSACTION_CURRENCY_CODE};
+        TLVWriter writer = new TLVWriter(new byte[MAX_RESPONSE_LENGTH]);
+        for (Tag tag : tags) {
+            int offset = 0;
+            boolean found = false;
+            for (TagAndLength tal : TLVUtil.parseTagAndLength(pdol)) {
+                if (tal.getTag().equals(tag)) {
+                    if (offset + tal.getLength() > app.pdolData.length) {
+                        return null;
+                    }
+                    writer.writeBytes(app.pdolData, offset, tal.getLength());
+                    found = true;
+                    break;
+                }
+                offset += tal.getLength();
+            }
+            if (!found) {
+                return null;
+            }
+        }
+        if (cardAuthenticationRelatedData != null) {
+            writer.writeBytes(cardAuthenticationRelatedData);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * The card accepts the cryptogram type requested by the terminal. The Application
+     * Cryptogram is a TEST value (there are no issuer keys in the card image).
+     * If a CDA signature is requested and the card image has an ICC Private Key, the response
+     * is in format 2, with the Signed Dynamic Application Data (EMV Book 2, 6.6.1)
+     */
+    private byte[] processGenerateAC(byte[] cmd) {
+        Application app = card.selectedApp;
+        if (app == null || app.pdolData == null) {
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        byte cid = (byte) (cmd[2] & 0xC0);
+        boolean cda = (cmd[2] & 0x10) != 0 && app.iccPrivateKey != null && cid != 0x00;
+        byte[] cdolData = getDataBytes(cmd);
+        app.atc = (Math.max(app.atc, 0) + 1) & 0xFFFF;
+        byte[] atc = new byte[]{(byte) (app.atc >>> 8), (byte) app.atc};
+        MessageDigest sha1 = newSHA1();
+        sha1.update(cdolData);
+        sha1.update(atc);
+        byte[] applicationCryptogram = Arrays.copyOf(sha1.digest(), 8);
+
+        responseWriter.reset();
+        if (!cda) {
+            //Format 1: CID, ATC, Application Cryptogram, Issuer Application Data
+            responseWriter.startTemplate(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1);
+            responseWriter.writeByte(cid);
+            responseWriter.writeBytes(atc);
+            responseWriter.writeBytes(applicationCryptogram);
+            responseWriter.writeBytes(ISSUER_APPLICATION_DATA);
+            responseWriter.endTemplate();
+            return createResponse(SW.SUCCESS);
+        }
+        int unpredictableNumberOffset = findUnpredictableNumberOffset(app);
+        if (unpredictableNumberOffset == -1 || unpredictableNumberOffset + 4 > cdolData.length) {
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        byte[] unpredictableNumber = Arrays.copyOfRange(cdolData, unpredictableNumberOffset, unpredictableNumberOffset + 4);
+
+        //Transaction Data Hash Code: PDOL data, CDOL1 data and the response data objects (except the SDAD)
+        BERTLV cidTLV = new BERTLV(EMVTags.CRYPTOGRAM_INFORMATION_DATA, new byte[]{cid});
+        BERTLV atcTLV = new BERTLV(EMVTags.APP_TRANSACTION_COUNTER, atc);
+        BERTLV iadTLV = new BERTLV(EMVTags.ISSUER_APPLICATION_DATA, ISSUER_APPLICATION_DATA);
+        sha1.update(app.pdolData);
+        sha1.update(cdolData);
+        sha1.update(cidTLV.toBERTLVByteArray());
+        sha1.update(atcTLV.toBERTLVByteArray());
+        sha1.update(iadTLV.toBERTLVByteArray());
+        byte[] transactionDataHashCode = sha1.digest();
+
+        //ICC Dynamic Data: ICC Dynamic Number (length and number), CID, Application Cryptogram, Transaction Data Hash Code
+        byte[] iccDynamicNumber = Util.generateRandomBytes(8);
+        byte[] iccDynamicData = new byte[1 + iccDynamicNumber.length + 1 + 8 + 20];
+        iccDynamicData[0] = (byte) iccDynamicNumber.length;
+        System.arraycopy(iccDynamicNumber, 0, iccDynamicData, 1, iccDynamicNumber.length);
+        iccDynamicData[1 + iccDynamicNumber.length] = cid;
+        System.arraycopy(applicationCryptogram, 0, iccDynamicData, 2 + iccDynamicNumber.length, 8);
+        System.arraycopy(transactionDataHashCode, 0, iccDynamicData, 10 + iccDynamicNumber.length, 20);
+        byte[] sdad = SignedDataGenerator.createSignedDynamicApplicationData(app.iccPrivateKey, iccDynamicData, unpredictableNumber);
+
+        //Format 2
+        responseWriter.startTemplate(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2);
+        responseWriter.write(cidTLV);
+        responseWriter.write(atcTLV);
+        responseWriter.write(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA, sdad);
+        responseWriter.write(iadTLV);
+        responseWriter.endTemplate();
+        return createResponse(SW.SUCCESS);
+    }
+
+    //The position of the Unpredictable Number in the CDOL1 data, or -1
+    private static int findUnpredictableNumberOffset(Application app) {
+        if (app.cdol1 == null) {
+            app.cdol1 = findCDOL1(app);
+        }
+        int offset = 0;
+        for (TagAndLength tal : app.cdol1) {
+            if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER) && tal.getLength() == 4) {
+                return offset;
+            }
+            offset += tal.getLength();
+        }
+        return -1;
+    }
+
+    private static List<TagAndLength> findCDOL1(Application app) {
+        byte[] cdol1 = findRecordValue(app, EMVTags.CDOL1);
+        if (cdol1 == null) {
+            return Collections.<TagAndLength>emptyList();
+        }
+        return TLVUtil.parseTagAndLength(cdol1);
+    }
+
+    private static byte[] findRecordValue(Application app, Tag tag) {
+        if (app.filesMap != null) {
+            for (File file : app.filesMap.values()) {
+                for (Record record : file.recordsMap.values()) {
+                    byte[] value = findValue(record.data, tag);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    //Searches the data objects, and the templates they contain
+    private static byte[] findValue(byte[] data, Tag tag) {
+        if (data == null) {
+            return null;
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(data);
+        while (stream.available() >= 2) {
+            BERTLV tlv = TLVUtil.getNextTLV(stream);
+            if (tlv.getTag().equals(tag)) {
+                return tlv.getValueBytes();
+            }
+            if (tlv.getTag().isConstructed()) {
+                byte[] value = findValue(tlv.getValueBytes(), tag);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static MessageDigest newSHA1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private byte[] processInternalAuthenticate(byte[] cmd) {
+        if (card.selectedApp == null) {
+            //No application selected: '6985' (Conditions of use not satisfied)
+            return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+        if (card.selectedApp.iccPrivateKey == null) {
+            //DDA not supported
+            return createResponse(null, SW.INSTRUCTION_CODE_NOT_SUPPORTED_OR_INVALID);
+        }
+        //ICC Dynamic Data: the length of the ICC Dynamic Number, followed by the number
+        byte[] iccDynamicNumber = Util.generateRandomBytes(8);
+        byte[] iccDynamicData = new byte[1 + iccDynamicNumber.length];
+        iccDynamicData[0] = (byte) iccDynamicNumber.length;
+        System.arraycopy(iccDynamicNumber, 0, iccDynamicData, 1, iccDynamicNumber.length);
+        byte[] sdad = SignedDataGenerator.createSignedDynamicApplicationData(card.selectedApp.iccPrivateKey, iccDynamicData, getDataBytes(cmd));
+        //Format 1
+        responseWriter.reset();
+        responseWriter.write(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1, sdad);
+        return createResponse(SW.SUCCESS);
+    }
+
     private byte[] processVerify(byte[] cmd) {
         if (card.selectedApp == null) {
             return createResponse(null, SW.COMMAND_NOT_ALLOWED_CONDITIONS_OF_USE_NOT_SATISFIED); //TODO check correct SW
@@ -479,14 +781,22 @@ public class CardEmulator implements CardConnection {
     }
 
     private byte[] createResponse(byte[] data, byte sw1, byte sw2) {
-        int length = data != null ? data.length + 2 : 2;
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(length);
+        responseWriter.reset();
         if (data != null) {
-            stream.write(data, 0, data.length);
+            responseWriter.writeBytes(data);
         }
-        stream.write(sw1);
-        stream.write(sw2);
-        return stream.toByteArray();
+        responseWriter.writeByte(sw1);
+        responseWriter.writeByte(sw2);
+        return responseWriter.toByteArray();
+    }
+
+    /**
+     * Appends SW1 SW2 to the response data already written to the responseWriter
+     */
+    private byte[] createResponse(SW sw) {
+        responseWriter.writeByte(sw.getSW1());
+        responseWriter.writeByte(sw.getSW2());
+        return responseWriter.toByteArray();
     }
 
     private byte[] createResponse(byte[] data, SW sw) {
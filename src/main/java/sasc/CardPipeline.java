@@ -0,0 +1,534 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import sasc.emv.EMVApplication;
+import sasc.emv.ICCPinEnciphermentPublicKeyCertificate;
+import sasc.emv.ICCPublicKeyCertificate;
+import sasc.emv.IssuerPublicKeyCertificate;
+import sasc.emv.SignedStaticApplicationData;
+import sasc.iso7816.ATR;
+import sasc.iso7816.RID;
+import sasc.lookup.ATR_DB;
+import sasc.lookup.IIN_DB;
+import sasc.lookup.RID_DB;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.util.Util;
+
+/**
+ * Processes cards in stages, so that a reader is only busy for the card dialogue:
+ *
+ *   READ    the card dialogue (APDUs and the parsing of the responses), on the reader's own thread
+ *   VERIFY  offline data authentication: the certificates and signed data not validated during the read
+ *   ENRICH  IIN, ATR and RID lookups
+ *   EXPORT  the results, one card at a time, in order of completion
+ *
+ * The stages are connected by bounded queues. When a stage falls behind, its queue fills up
+ * and the stage before it blocks (up to the readers, that then stop taking new cards),
+ * instead of the cards in progress piling up in memory. The VERIFY and ENRICH stages
+ * have their own thread pools, sized independently of the number of readers.
+ *
+ * The responses cannot be parsed after the dialogue, as the next command depends on the
+ * previous response (eg the AFL returned by GET PROCESSING OPTIONS), so the parsing is part
+ * of the READ stage. When a transaction is performed, the offline data authentication is
+ * also done during the READ stage (its outcome is sent to the card with GENERATE AC),
+ * and the VERIFY stage only finds the results: it is then run on a single thread.
+ * When the cards are only read, the RSA recovery of the certificates is left to the VERIFY stage.
+ *
+ * A card that fails in any stage is passed on to the EXPORT stage with the error. If the
+ * sink fails (IOException or RuntimeException), the next cards are discarded, and the
+ * failure is thrown by read(...) and close().
+ *
+ * @author sasc
+ */
+public class CardPipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    //Queued once per thread of a stage when closing
+    private static final Result END_OF_INPUT = new Result(null);
+
+    public enum Stage {
+
+        READ, VERIFY, ENRICH, EXPORT
+    }
+
+    /**
+     * The EXPORT stage. Called on a single thread
+     */
+    public interface Sink {
+
+        void write(Result result) throws IOException;
+    }
+
+    private final Sink sink;
+    private final boolean performTransaction;
+    private final StageStatistics readStatistics = new StageStatistics(Stage.READ, 0);
+    private final Worker verify;
+    private final Worker enrich;
+    private final Worker export;
+    private volatile IOException exportError = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the VERIFY, ENRICH and EXPORT threads
+     *
+     * @param verifyThreads the number of VERIFY threads. Only one is started if 'performTransaction' is true
+     * @param performTransaction whether to perform a transaction with each EMV application in read(...)
+     */
+    public CardPipeline(Sink sink, int verifyThreads, int enrichThreads, int queueCapacity, boolean performTransaction) {
+        if (sink == null) {
+            throw new IllegalArgumentException("Param 'sink' cannot be null");
+        }
+        if (verifyThreads < 1 || enrichThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("The number of threads and the queue capacity must be >= 1");
+        }
+        this.sink = sink;
+        this.performTransaction = performTransaction;
+        export = new Worker(Stage.EXPORT, 1, queueCapacity, null);
+        enrich = new Worker(Stage.ENRICH, enrichThreads, queueCapacity, export);
+        verify = new Worker(Stage.VERIFY, performTransaction ? 1 : verifyThreads, queueCapacity, enrich);
+    }
+
+    /**
+     * The READ stage: reads the card on the calling (reader) thread, and queues it for
+     * the next stages. The connection can be reused (or closed) when this method returns.
+     *
+     * Blocks while the VERIFY queue is full.
+     *
+     * @throws IOException if the EXPORT stage has failed: no more cards are accepted
+     */
+    public void read(String source, final CardConnection conn, final SessionProcessingEnv env) throws IOException, InterruptedException {
+        read(source, new Callable<SmartCard>() {
+            @Override
+            public SmartCard call() throws Exception {
+                return BatchProcessor.readCard(conn, env, performTransaction);
+            }
+        });
+    }
+
+    /**
+     * The READ stage, with the card dialogue performed by 'reader'
+     */
+    void read(String source, Callable<SmartCard> reader) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Pipeline closed");
+        }
+        checkExportError();
+        Result result = new Result(source);
+        long start = System.nanoTime();
+        try {
+            result.card = reader.call();
+        } catch (Exception ex) {
+            result.error = ex;
+        }
+        long end = System.nanoTime();
+        result.readNanos = end - start;
+        readStatistics.add(0, end - start);
+        verify.put(result, readStatistics);
+    }
+
+    /**
+     * Waits for the cards read to be exported, and stops the threads.
+     * The readers must have stopped calling read(...)
+     *
+     * @throws IOException if the EXPORT stage has failed
+     */
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        verify.close();
+        enrich.close();
+        export.close();
+        checkExportError();
+    }
+
+    private void checkExportError() throws IOException {
+        IOException error = exportError;
+        if (error != null) {
+            throw new IOException("Export failed", error);
+        }
+    }
+
+    /**
+     * @return the statistics of each stage, in stage order
+     */
+    public List<StageStatistics> getStatistics() {
+        List<StageStatistics> statistics = new ArrayList<StageStatistics>();
+        statistics.add(readStatistics.copy());
+        statistics.add(verify.statistics.copy());
+        statistics.add(enrich.statistics.copy());
+        statistics.add(export.statistics.copy());
+        return statistics;
+    }
+
+    private void process(Stage stage, Result result) {
+        switch (stage) {
+            case VERIFY:
+                if (result.error == null) {
+                    try {
+                        verify(result.card);
+                    } catch (RuntimeException ex) {
+                        result.error = ex;
+                    }
+                }
+                break;
+            case ENRICH:
+                if (result.error == null) {
+                    try {
+                        enrich(result);
+                    } catch (RuntimeException ex) {
+                        result.error = ex;
+                    }
+                }
+                break;
+            case EXPORT:
+                if (exportError != null) {
+                    return; //Discard, so the stages before do not block
+                }
+                try {
+                    sink.write(result);
+                } catch (IOException ex) {
+                    exportError = ex;
+                } catch (RuntimeException ex) {
+                    //The thread must keep taking cards, else the stages before block forever
+                    exportError = new IOException(ex);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Not a pipeline thread stage: " + stage);
+        }
+    }
+
+    /**
+     * Validates each certificate and signed data object (validation is only performed once)
+     */
+    private static void verify(SmartCard card) {
+        for (EMVApplication app : card.getEmvApplications()) {
+            IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+            if (issuerCert == null) {
+                continue;
+            }
+            issuerCert.validate();
+            ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+            if (iccCert != null) {
+                iccCert.validate();
+            }
+            ICCPinEnciphermentPublicKeyCertificate iccPinEnciphermentCert = app.getICCPinEnciphermentPublicKeyCertificate();
+            if (iccPinEnciphermentCert != null) {
+                iccPinEnciphermentCert.validate();
+            }
+            SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+            if (ssad != null) {
+                ssad.validate();
+            }
+        }
+    }
+
+    private static void enrich(Result result) {
+        for (ATR atr : result.card.getATRs()) {
+            List<String> description = ATR_DB.searchATR(atr.getBytes());
+            if (description != null) {
+                result.atrDescriptions.put(Util.byteArrayToHexString(atr.getBytes()).toLowerCase(Locale.ENGLISH), description);
+            }
+        }
+        for (EMVApplication app : result.card.getEmvApplications()) {
+            if (app.getAID() != null) {
+                byte[] ridBytes = app.getAID().getRIDBytes();
+                RID rid = RID_DB.searchRID(ridBytes);
+                if (rid != null) {
+                    result.ridApplicants.put(Util.byteArrayToHexString(ridBytes).toLowerCase(Locale.ENGLISH), rid.getApplicant());
+                }
+            }
+            if (app.getPAN() != null && app.getPAN().getIssuerIdentifierNumber() != null) {
+                int iin = app.getPAN().getIssuerIdentifierNumber().getValue();
+                IIN_DB.IIN issuer = IIN_DB.searchIIN(iin);
+                if (issuer != null) {
+                    result.issuers.put(String.valueOf(iin), issuer.getDescription());
+                }
+            }
+        }
+    }
+
+    /**
+     * A card in the pipeline. Each stage hands the result over to the next stage through
+     * a queue, so the fields are only accessed by one thread at a time
+     */
+    public static class Result {
+
+        private final String source;
+        private SmartCard card = null;
+        private Exception error = null;
+        private long readNanos = 0;
+        //Submission time to the current stage's queue (set before the result is queued)
+        private long queuedNanos = 0;
+        private final Map<String, List<String>> atrDescriptions = new TreeMap<String, List<String>>();
+        private final Map<String, String> ridApplicants = new TreeMap<String, String>();
+        private final Map<String, String> issuers = new TreeMap<String, String>();
+
+        private Result(String source) {
+            this.source = source;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return the card, or null if the card could not be read
+         */
+        public SmartCard getCard() {
+            return card;
+        }
+
+        /**
+         * @return the error, or null if the card was processed
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return the time of the READ stage (the card dialogue)
+         */
+        public long getReadMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(readNanos);
+        }
+
+        long getReadNanos() {
+            return readNanos;
+        }
+
+        /**
+         * @return the ATR descriptions by ATR (lower case hex)
+         */
+        public Map<String, List<String>> getATRDescriptions() {
+            return Collections.unmodifiableMap(atrDescriptions);
+        }
+
+        /**
+         * @return the application provider (RID applicant) by RID (lower case hex)
+         */
+        public Map<String, String> getRIDApplicants() {
+            return Collections.unmodifiableMap(ridApplicants);
+        }
+
+        /**
+         * @return the issuer description by IIN
+         */
+        public Map<String, String> getIssuers() {
+            return Collections.unmodifiableMap(issuers);
+        }
+    }
+
+    /**
+     * The threads and input queue of a stage
+     */
+    private class Worker {
+
+        private final StageStatistics statistics;
+        private final BlockingQueue<Result> queue;
+        private final Worker next;
+        private final List<Thread> threads = new ArrayList<Thread>();
+
+        Worker(final Stage stage, int numThreads, int queueCapacity, Worker next) {
+            this.statistics = new StageStatistics(stage, numThreads);
+            this.queue = new ArrayBlockingQueue<Result>(queueCapacity);
+            this.next = next;
+            for (int i = 0; i < numThreads; i++) {
+                String name = "Pipeline " + stage.name().toLowerCase(Locale.ENGLISH) + (numThreads == 1 ? "" : " " + (i + 1));
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processQueue(stage);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, name);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        private void processQueue(Stage stage) throws InterruptedException {
+            while (true) {
+                Result result = queue.take();
+                if (result == END_OF_INPUT) {
+                    return;
+                }
+                long start = System.nanoTime();
+                process(stage, result);
+                long end = System.nanoTime();
+                statistics.add(start - result.queuedNanos, end - start);
+                if (next != null) {
+                    next.put(result, statistics);
+                }
+            }
+        }
+
+        /**
+         * Queues the result for this stage, blocking while the queue is full
+         *
+         * @param producer the statistics of the stage that is waiting
+         */
+        void put(Result result, StageStatistics producer) throws InterruptedException {
+            //Written before the result is queued: once queued, it belongs to this stage's threads
+            long start = System.nanoTime();
+            result.queuedNanos = start;
+            if (!queue.offer(result)) {
+                queue.put(result);
+                producer.addBlocked(System.nanoTime() - start);
+            }
+            statistics.updateMaxQueued(queue.size());
+        }
+
+        /**
+         * Waits for the queued results to be processed, and stops the threads
+         */
+        void close() throws InterruptedException {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(END_OF_INPUT);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * The number of cards processed by a stage, the time spent processing them, the time they waited
+     * in the stage's queue, and the time the stage was blocked by the next stage's full queue
+     */
+    public static class StageStatistics {
+
+        private final Stage stage;
+        private final int threads;
+        private long processed = 0;
+        private long busyNanos = 0;
+        private long maxBusyNanos = 0;
+        private long queueNanos = 0;
+        private long blockedNanos = 0;
+        private int maxQueued = 0;
+
+        StageStatistics(Stage stage, int threads) {
+            this.stage = stage;
+            this.threads = threads;
+        }
+
+        synchronized void add(long queueNanos, long busyNanos) {
+            processed++;
+            this.queueNanos += queueNanos;
+            this.busyNanos += busyNanos;
+            maxBusyNanos = Math.max(maxBusyNanos, busyNanos);
+        }
+
+        synchronized void addBlocked(long nanos) {
+            blockedNanos += nanos;
+        }
+
+        synchronized void updateMaxQueued(int queued) {
+            maxQueued = Math.max(maxQueued, queued);
+        }
+
+        synchronized StageStatistics copy() {
+            StageStatistics copy = new StageStatistics(stage, threads);
+            copy.processed = processed;
+            copy.busyNanos = busyNanos;
+            copy.maxBusyNanos = maxBusyNanos;
+            copy.queueNanos = queueNanos;
+            copy.blockedNanos = blockedNanos;
+            copy.maxQueued = maxQueued;
+            return copy;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return the number of threads of the stage, or 0 for the READ stage (run by the readers)
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        public synchronized long getProcessed() {
+            return processed;
+        }
+
+        public synchronized long getBusyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(busyNanos);
+        }
+
+        /**
+         * @return the total time the cards waited in the stage's queue, including the time the stage
+         * before was blocked, waiting for space in the queue
+         */
+        public synchronized long getQueueMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(queueNanos);
+        }
+
+        /**
+         * @return the total time the stage waited for space in the next stage's queue
+         */
+        public synchronized long getBlockedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+        }
+
+        /**
+         * @return the maximum number of cards in the stage's queue
+         */
+        public synchronized int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public synchronized void print(PrintStream out) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ENGLISH, "  %-6s %s: %d cards, busy avg %.1f ms, max %.1f ms",
+                    stage.name().toLowerCase(Locale.ENGLISH), threads == 0 ? "(readers)" : "(" + threads + (threads == 1 ? " thread)" : " threads)"), processed,
+                    processed == 0 ? 0 : busyNanos / 1e6 / processed, maxBusyNanos / 1e6));
+            if (stage != Stage.READ) { //The readers have no queue
+                sb.append(String.format(Locale.ENGLISH, ", queue wait avg %.1f ms (max queued %d)",
+                        processed == 0 ? 0 : queueNanos / 1e6 / processed, maxQueued));
+            }
+            if (stage != Stage.EXPORT) {
+                sb.append(", blocked ").append(TimeUnit.NANOSECONDS.toMillis(blockedNanos)).append(" ms");
+            }
+            out.println(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/**
+ * Renders console output (Log, System.out, System.err) in a JTextArea
+ * without flooding the Event Dispatch Thread.
+ *
+ * Writers only copy bytes into a bounded buffer (and block while it is full).
+ * A background thread drains the buffer at a fixed frame rate, decodes it,
+ * appends it to the (optional) log file, and posts a single batch to the EDT.
+ * At most one batch is queued on the EDT at any time; output arriving while
+ * a batch is queued is coalesced into it.
+ *
+ * The text area is capped at a fixed number of lines. Older lines are
+ * removed from the top, so the complete output is only available in the log file.
+ *
+ * @author sasc
+ */
+class ConsoleRenderer {
+
+    static final int DEFAULT_FRAMES_PER_SECOND = 25;
+    static final int DEFAULT_MAX_LINES = 5000;
+    //Max bytes buffered before writers are blocked
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+    //The log files kept in the log directory (one per start)
+    static final int MAX_LOG_FILES = 10;
+    private static final String LOG_FILE_PREFIX = "JavaEMVReader-";
+    private static final String LOG_FILE_SUFFIX = ".log";
+
+    private final JTextArea textArea;
+    private final int maxLines;
+    private final ScheduledExecutorService executor;
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    //Guarded by 'this'
+    private ByteBuffer pending = ByteBuffer.allocate(8 * 1024);
+    private boolean closed = false;
+
+    //Confined to the render thread
+    private ByteBuffer undecoded = ByteBuffer.allocate(0);
+    private CharBuffer decoded = CharBuffer.allocate(8 * 1024);
+    private final StringBuilder currentLine = new StringBuilder();
+    private File logFile;
+    private Writer logWriter;
+
+    //Guarded by 'batchLock'. Text not yet picked up by the EDT
+    private final Object batchLock = new Object();
+    private StringBuilder batch = null;
+
+    private final Map<String, Boolean> watchedPhrases = new ConcurrentHashMap<String, Boolean>();
+
+    private final OutputStream outputStream = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            enqueue(b, off, len);
+        }
+    };
+
+    ConsoleRenderer(JTextArea textArea) {
+        this(textArea, DEFAULT_MAX_LINES, DEFAULT_FRAMES_PER_SECOND);
+    }
+
+    ConsoleRenderer(JTextArea textArea, int maxLines, int framesPerSecond) {
+        if (maxLines < 1 || framesPerSecond < 1) {
+            throw new IllegalArgumentException("maxLines and framesPerSecond must be > 0");
+        }
+        this.textArea = textArea;
+        this.maxLines = maxLines;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Console Renderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long periodMillis = 1000 / framesPerSecond;
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The stream to redirect the output to
+     */
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Creates a new log file in the directory (created if needed). The log holds card data
+     * (PAN, Track 2), so on POSIX file systems the directory and the file are only accessible
+     * by the user. The oldest log files are deleted, so that at most MAX_LOG_FILES are kept
+     */
+    static File createLogFile(File dir) throws IOException {
+        Path dirPath = dir.toPath();
+        Path file;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dirPath, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            deleteOldLogFiles(dirPath);
+            file = Files.createTempFile(dirPath, LOG_FILE_PREFIX, LOG_FILE_SUFFIX,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(dirPath);
+            deleteOldLogFiles(dirPath);
+            file = Files.createTempFile(dirPath, LOG_FILE_PREFIX, LOG_FILE_SUFFIX);
+        }
+        return file.toFile();
+    }
+
+    //Keeps the most recent MAX_LOG_FILES - 1 log files, to make room for a new one
+    private static void deleteOldLogFiles(Path dir) throws IOException {
+        List<Path> logFiles = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir, LOG_FILE_PREFIX + "*" + LOG_FILE_SUFFIX);
+        try {
+            for (Path logFile : stream) {
+                logFiles.add(logFile);
+            }
+        } finally {
+            stream.close();
+        }
+        if (logFiles.size() < MAX_LOG_FILES) {
+            return;
+        }
+        Collections.sort(logFiles, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return Long.compare(a.toFile().lastModified(), b.toFile().lastModified());
+            }
+        });
+        for (Path logFile : logFiles.subList(0, logFiles.size() - MAX_LOG_FILES + 1)) {
+            Files.deleteIfExists(logFile);
+        }
+    }
+
+    /**
+     * Writes the complete output to the file (in addition to the text area).
+     * The file must exist (see createLogFile), and must not be a symbolic link
+     */
+    void setLogFile(final File file) throws IOException {
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    if (logWriter != null) {
+                        logWriter.close();
+                    }
+                    logWriter = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, LinkOption.NOFOLLOW_LINKS), Charset.defaultCharset()));
+                    logFile = file;
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    File getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * Records whether a line containing the phrase has been output.
+     * Since the text area only contains the most recent lines, searching
+     * its text does not tell if a phrase was output earlier
+     */
+    void watchFor(String phrase) {
+        watchedPhrases.put(phrase, Boolean.FALSE);
+    }
+
+    boolean hasSeen(String phrase) {
+        return Boolean.TRUE.equals(watchedPhrases.get(phrase));
+    }
+
+    /**
+     * Renders everything written so far, and waits until the text area has been updated
+     */
+    void flush() {
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    render();
+                    if (currentLine.length() > 0) {
+                        //Check unterminated last line too
+                        checkWatchedPhrases(currentLine);
+                    }
+                }
+            }).get();
+            if (!SwingUtilities.isEventDispatchThread()) {
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    @Override
+                    public void run() {
+                        //Batches already posted run before this
+                    }
+                });
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        executor.shutdown();
+        if (logWriter != null) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+                logWriter.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ex) {
+                //Ignore
+            }
+        }
+    }
+
+    private synchronized void enqueue(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (closed) {
+                throw new IOException("Console closed");
+            }
+            if (pending.position() >= MAX_PENDING_BYTES) {
+                //Block the writer until the render thread catches up
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                continue;
+            }
+            int chunk = Math.min(len, MAX_PENDING_BYTES - pending.position());
+            if (pending.remaining() < chunk) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_PENDING_BYTES, Math.max(pending.capacity() * 2, pending.position() + chunk)));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    //Runs on the render thread
+    private void render() {
+        ByteBuffer bytes;
+        synchronized (this) {
+            if (pending.position() == 0) {
+                return;
+            }
+            pending.flip();
+            bytes = ByteBuffer.allocate(undecoded.remaining() + pending.remaining());
+            bytes.put(undecoded).put(pending).flip();
+            pending.clear();
+            notifyAll();
+        }
+        if (decoded.capacity() < bytes.remaining()) {
+            decoded = CharBuffer.allocate(bytes.remaining());
+        }
+        decoded.clear();
+        decoder.decode(bytes, decoded, false);
+        decoded.flip();
+        //Incomplete multi-byte sequences are decoded with the next frame
+        undecoded = bytes.slice();
+
+        String text = decoded.toString();
+        if (text.isEmpty()) {
+            return;
+        }
+        writeToLogFile(text);
+        if (!watchedPhrases.isEmpty()) {
+            scanLines(text);
+        }
+        post(text);
+    }
+
+    private void writeToLogFile(String text) {
+        if (logWriter == null) {
+            return;
+        }
+        try {
+            logWriter.write(text);
+            logWriter.flush();
+        } catch (IOException ex) {
+            //Stop writing, but keep rendering
+            try {
+                logWriter.close();
+            } catch (IOException ignore) {
+            }
+            logWriter = null;
+            post("\n[Unable to write to log file " + logFile + ": " + ex.getMessage() + "]\n");
+        }
+    }
+
+    private void scanLines(String text) {
+        int start = 0;
+        int newline;
+        while ((newline = text.indexOf('\n', start)) >= 0) {
+            currentLine.append(text, start, newline);
+            checkWatchedPhrases(currentLine);
+            currentLine.setLength(0);
+            start = newline + 1;
+        }
+        currentLine.append(text, start, text.length());
+    }
+
+    private void checkWatchedPhrases(CharSequence line) {
+        String lineStr = line.toString();
+        for (Map.Entry<String, Boolean> entry : watchedPhrases.entrySet()) {
+            if (!entry.getValue() && lineStr.contains(entry.getKey())) {
+                entry.setValue(Boolean.TRUE);
+            }
+        }
+    }
+
+    private void post(String text) {
+        synchronized (batchLock) {
+            if (batch != null) {
+                //A batch is already queued on the EDT. Coalesce
+                batch.append(text);
+                trimToMaxLines(batch);
+                return;
+            }
+            batch = new StringBuilder(text);
+            trimToMaxLines(batch);
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                String text;
+                synchronized (batchLock) {
+                    text = batch.toString();
+                    batch = null;
+                }
+                append(text);
+            }
+        });
+    }
+
+    //No point in sending more lines to the EDT than can be displayed
+    private void trimToMaxLines(StringBuilder sb) {
+        int lines = 0;
+        for (int i = sb.length() - 1; i >= 0; i--) {
+            if (sb.charAt(i) == '\n' && ++lines == maxLines) {
+                sb.delete(0, i + 1);
+                return;
+            }
+        }
+    }
+
+    //Runs on the EDT
+    private void append(String text) {
+        textArea.append(text);
+        Element root = textArea.getDocument().getDefaultRootElement();
+        int excessLines = root.getElementCount() - maxLines;
+        if (excessLines > 0) {
+            try {
+                textArea.getDocument().remove(0, root.getElement(excessLines - 1).getEndOffset());
+            } catch (BadLocationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -18,11 +18,11 @@ package sasc;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Toolkit;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.URI;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
@@ -33,7 +33,6 @@ import javax.swing.JOptionPane;
 import javax.swing.JPasswordField;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
 import org.jdesktop.application.SingleFrameApplication;
 import sasc.emv.EMVApplication;
 import sasc.smartcard.common.CardExplorer;
@@ -47,7 +46,11 @@ import sasc.util.Log;
  */
 public class GUI extends SingleFrameApplication {
 
+    private static final String FINISHED_PROCESSING = "Finished Processing card.";
+    private static final String ERROR_PROCESSING_APP = "Error processing app";
+
     JTextArea console;
+    private ConsoleRenderer consoleRenderer;
 
     @Override
     protected void startup() {
@@ -79,42 +82,29 @@ public class GUI extends SingleFrameApplication {
     }
 
     public void addText(String text) {
-        console.append(text);
-    }
-
-    private void updateTextArea(final String text) {
-        SwingUtilities.invokeLater(new Runnable() {
-
-            @Override
-            public void run() {
-                console.append(text);
-            }
-        });
+        System.out.print(text);
     }
 
     private void redirectSystemStreams() {
-        OutputStream out = new OutputStream() {
-
-            @Override
-            public void write(final int b) throws IOException {
-                updateTextArea(String.valueOf((char) b));
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                updateTextArea(new String(b, off, len));
-            }
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                write(b, 0, b.length);
-            }
-        };
+        //Output is rendered in batches off the EDT. Only the most recent lines are kept in the
+        //console; the complete output is written to a log file
+        consoleRenderer = new ConsoleRenderer(console);
+        consoleRenderer.watchFor(FINISHED_PROCESSING);
+        consoleRenderer.watchFor(ERROR_PROCESSING_APP);
+        OutputStream out = consoleRenderer.getOutputStream();
 
         Log.setPrintWriter(new PrintWriter(new PrintStream(out, true)));
         System.setOut(new PrintStream(out, true));
         System.setErr(new PrintStream(out, true));
 
+        try {
+            //In the user's own directory, not in the shared temp directory (the log holds card data)
+            File logFile = ConsoleRenderer.createLogFile(new File(System.getProperty("user.home"), ".javaemvreader" + File.separator + "logs"));
+            consoleRenderer.setLogFile(logFile);
+            System.out.println("Complete output is written to " + logFile.getAbsolutePath());
+        } catch (IOException ex) {
+            System.err.println("Unable to create log file: " + ex.getMessage());
+        }
     }
 
     private class ExplorerRunner implements Runnable {
@@ -126,10 +116,9 @@ public class GUI extends SingleFrameApplication {
             try {
                 explorer.start();
             } catch (Exception ex) {
-                StringWriter st = new StringWriter();
-                ex.printStackTrace(new PrintWriter(st));
-                console.append(st.toString());
+                ex.printStackTrace(System.err);
             } finally {
+                consoleRenderer.flush();
                 //Show submit feedback dialogue
                 boolean foundUnhandledRecords = false;
                 SmartCard card = explorer.getEMVCard();
@@ -144,8 +133,8 @@ public class GUI extends SingleFrameApplication {
                     }
                 }
 
-                if (!console.getText().contains("Finished Processing card.") 
-                        || console.getText().contains("Error processing app")) {
+                if (!consoleRenderer.hasSeen(FINISHED_PROCESSING) 
+                        || consoleRenderer.hasSeen(ERROR_PROCESSING_APP)) {
                     //Assume something failed. Show Popup with option to send email
                     submitFeedback("[JavaEMVReader-BUGREPORT]", "Error", "Something failed. Would you like to send an email report?");
                 }else if(foundUnhandledRecords){
@@ -168,9 +157,7 @@ public class GUI extends SingleFrameApplication {
                     try {
                         desktop.mail(new URI("mailto", getEAddr() + "?SUBJECT="+subject+"&BODY=(Please also include the complete output from JavaEMVReader, so we can understand what caused the problem)", null));
                     } catch (Exception ex) {
-                        StringWriter st = new StringWriter();
-                        ex.printStackTrace(new PrintWriter(st));
-                        console.append(st.toString());
+                        ex.printStackTrace(System.err);
                     }
                 }
 
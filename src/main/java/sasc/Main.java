@@ -15,6 +15,25 @@
  */
 package sasc;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import sasc.archive.ArchivedCard;
+import sasc.archive.CardArchive;
+import sasc.archive.CardQuery;
+import sasc.emv.EMVTerminal;
+import sasc.emv.TransactionJournal;
+import sasc.export.CardExporter;
 import sasc.smartcard.common.CardExplorer;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,6 +46,8 @@ import sasc.terminal.Terminal;
 import sasc.terminal.TerminalAPIManager;
 import sasc.terminal.TerminalException;
 import sasc.terminal.TerminalProvider;
+import sasc.util.Log;
+import sasc.util.RSAKeyPool;
 
 /**
  *
@@ -34,6 +55,9 @@ import sasc.terminal.TerminalProvider;
  */
 public class Main {
 
+    //The number of RSA keys of each size that -generate keeps ready
+    private static final int KEY_POOL_SIZE = 128;
+
     /**
      * @param args the command line arguments
      */
@@ -44,6 +68,16 @@ public class Main {
         boolean emulate = false;
         boolean listTerminals = false;
         boolean verbose = false;
+        String batch = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String out = null;
+        CardExporter.Format format = CardExporter.Format.JSON_LINES;
+        int generate = 0;
+        String keys = null;
+        String archive = null;
+        String query = null;
+        int daemonPort = -1;
+        String journal = null;
 
         //Commons CLI
         //http://commons.apache.org/cli/usage.html
@@ -54,6 +88,16 @@ public class Main {
         Option listTerminalsOption = new Option("listTerminals", "list all available terminals");
         Option terminalOption = new Option("terminal", "the name of the terminal to use");
         Option verboseOption = new Option("verbose", "print debug messages");
+        Option batchOption = new Option("batch", true, "process all card images (.xml) and APDU traces (.trace) in a directory or matching a glob pattern");
+        Option threadsOption = new Option("threads", true, "the number of worker threads used by -batch (default: number of processors)");
+        Option outOption = new Option("out", true, "the file to write the -batch results to (default: standard output)");
+        Option formatOption = new Option("format", true, "the format of the -batch results: jsonl (default) or cbor");
+        Option generateOption = new Option("generate", true, "create a number of synthetic TEST card images in the -out directory");
+        Option keysOption = new Option("keys", true, "the file to load and save the RSA keys used by -generate");
+        Option archiveOption = new Option("archive", true, "the card archive directory that -batch appends the cards read to, and -query searches");
+        Option queryOption = new Option("query", true, "find cards in the -archive, eg iin=476173,oda=sda_failed,since=7d (fields: iin, aid, rid, atr, expirymonth, oda, since, until, limit)");
+        Option daemonOption = new Option("daemon", true, "serve card read requests (JSON over HTTP) on a local port, using all the terminals (or the emulated card with -emulate)");
+        Option journalOption = new Option("journal", true, "the terminal transaction journal file, used to check the floor limit (9f1b) against the earlier approved amounts for the same PAN (created if needed)");
 
         Options options = new Options();
 
@@ -63,6 +107,16 @@ public class Main {
         options.addOption(listTerminalsOption);
         options.addOption(terminalOption);
         options.addOption(verboseOption);
+        options.addOption(batchOption);
+        options.addOption(threadsOption);
+        options.addOption(outOption);
+        options.addOption(formatOption);
+        options.addOption(generateOption);
+        options.addOption(keysOption);
+        options.addOption(archiveOption);
+        options.addOption(queryOption);
+        options.addOption(daemonOption);
+        options.addOption(journalOption);
 
         // create the cmd line parser
         CommandLineParser parser = new GnuParser();
@@ -89,6 +143,46 @@ public class Main {
             if (line.hasOption("verbose")) {
                 verbose = true;
             }
+            if (line.hasOption("batch")) {
+                batch = line.getOptionValue("batch");
+            }
+            if (line.hasOption("threads")) {
+                threads = Integer.parseInt(line.getOptionValue("threads"));
+            }
+            if (line.hasOption("out")) {
+                out = line.getOptionValue("out");
+            }
+            if (line.hasOption("generate")) {
+                generate = Integer.parseInt(line.getOptionValue("generate"));
+            }
+            if (line.hasOption("keys")) {
+                keys = line.getOptionValue("keys");
+            }
+            if (line.hasOption("archive")) {
+                archive = line.getOptionValue("archive");
+            }
+            if (line.hasOption("query")) {
+                query = line.getOptionValue("query");
+            }
+            if (line.hasOption("daemon")) {
+                daemonPort = Integer.parseInt(line.getOptionValue("daemon"));
+            }
+            if (line.hasOption("journal")) {
+                journal = line.getOptionValue("journal");
+            }
+            if (line.hasOption("format")) {
+                String formatName = line.getOptionValue("format");
+                if ("jsonl".equalsIgnoreCase(formatName)) {
+                    format = CardExporter.Format.JSON_LINES;
+                } else if ("cbor".equalsIgnoreCase(formatName)) {
+                    format = CardExporter.Format.CBOR;
+                } else {
+                    throw new ParseException("Unknown format: " + formatName + ". Expected jsonl or cbor");
+                }
+            }
+        } catch (NumberFormatException ex) {
+            System.err.println("Parsing failed.  Reason: Invalid number: " + ex.getMessage());
+            System.exit(-1);
         } catch (ParseException ex) {
             // oops, something went wrong
             System.err.println("Parsing failed.  Reason: " + ex.getMessage());
@@ -110,6 +204,27 @@ public class Main {
             }
         }
 
+        if (journal != null && !installTransactionJournal(new File(journal))) {
+            System.exit(-1);
+        }
+
+        if (batch != null) {
+            System.exit(runBatch(batch, threads, out, format, archive, verbose));
+        }
+
+        if (query != null) {
+            System.exit(runQuery(archive, query, out));
+        }
+
+        if (generate > 0) {
+            System.exit(runGenerate(generate, out, threads, keys));
+        }
+
+        if (daemonPort >= 0) {
+            runDaemon(daemonPort, emulate, verbose); //Returns if the daemon could not be started
+            System.exit(-1);
+        }
+
         if (emulate) {
             try{
                 CardEmulatorMain.main(null);
@@ -130,4 +245,206 @@ public class Main {
             org.jdesktop.application.Application.launch(GUI.class, args);
         }
     }
+
+    /**
+     * @return the exit code: 0 if all cards were processed, 1 if any failed, -1 on error
+     */
+    private static int runBatch(String batch, int threads, String out, CardExporter.Format format, String archiveDir, boolean verbose) {
+        //Keep the card processing log out of the results
+        Log.setPrintWriter(new PrintWriter(System.err, true));
+        if (!verbose) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        try {
+            CardExporter exporter = null;
+            //With an archive, the results are only written if -out is given
+            if (archiveDir == null || out != null) {
+                OutputStream outputStream = out == null ? System.out : new FileOutputStream(out);
+                exporter = CardExporter.create(outputStream, format);
+            }
+            CardArchive archive = archiveDir == null ? null : CardArchive.open(new File(archiveDir));
+            BatchProcessor.Statistics statistics;
+            try {
+                statistics = new BatchProcessor(exporter, archive, threads).process(BatchProcessor.findInputs(batch));
+            } finally {
+                if (exporter != null) {
+                    exporter.close();
+                }
+                if (archive != null) {
+                    archive.close();
+                }
+            }
+            statistics.print(System.err);
+            return statistics.getFailed() == 0 ? 0 : 1;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        } catch (InterruptedException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the matching cards as JSON Lines
+     *
+     * @return the exit code: 0 if any card was found, 1 if none, -1 on error
+     */
+    private static int runQuery(String archiveDir, String query, String out) {
+        if (archiveDir == null) {
+            System.err.println("-query requires -archive <directory>");
+            return -1;
+        }
+        CardQuery cardQuery;
+        try {
+            cardQuery = CardQuery.parse(query);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid query: " + ex.getMessage());
+            return -1;
+        }
+        try {
+            //Does not modify the archive, which may be written by a running -batch
+            CardArchive archive = CardArchive.openReadOnly(new File(archiveDir));
+            CardArchive.QueryResult result;
+            try {
+                long start = System.nanoTime();
+                result = archive.query(cardQuery);
+                long millis = (System.nanoTime() - start) / 1000000L;
+                System.err.println("Found " + result.getCards().size() + " cards in " + millis + "ms (read "
+                        + result.getNumSegmentsScanned() + " of " + result.getNumSegments() + " segments)");
+            } finally {
+                archive.close();
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out == null ? System.out : new FileOutputStream(out), StandardCharsets.UTF_8));
+            try {
+                for (ArchivedCard card : result.getCards()) {
+                    writer.write(card.getJson());
+                    writer.write('\n');
+                }
+            } finally {
+                if (out == null) {
+                    writer.flush();
+                } else {
+                    writer.close();
+                }
+            }
+            return result.getCards().isEmpty() ? 1 : 0;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    /**
+     * Starts the daemon and returns if it could not be started. The daemon is stopped by the shutdown hook
+     */
+    private static void runDaemon(int port, boolean emulate, boolean verbose) {
+        Log.setPrintWriter(new PrintWriter(System.err, true));
+        if (!verbose) {
+            Log.setLevel(Log.Level.OFF);
+        }
+        try {
+            List<Terminal> terminals = new ArrayList<Terminal>();
+            if (emulate) {
+                terminals.add(ReaderDaemon.emulatedTerminal("Emulator", readResource("/sdacardtransaction.xml")));
+            } else {
+                terminals.addAll(TerminalAPIManager.getProvider(TerminalAPIManager.SelectionPolicy.ANY_PROVIDER).listTerminals());
+            }
+            if (terminals.isEmpty()) {
+                System.err.println("No terminals found");
+                return;
+            }
+            final ReaderDaemon daemon = new ReaderDaemon(terminals, port, ReaderDaemon.DEFAULT_QUEUE_CAPACITY, ReaderDaemon.DEFAULT_TIMEOUT_MILLIS);
+            daemon.start();
+            Runtime.getRuntime().addShutdownHook(new Thread("Daemon Shutdown") {
+                @Override
+                public void run() {
+                    daemon.stop(1);
+                }
+            });
+            System.err.println("Listening on http://127.0.0.1:" + daemon.getPort() + "/ with " + terminals.size() + " reader(s)");
+            Thread.currentThread().join();
+        } catch (TerminalException ex) {
+            ex.printStackTrace(System.err);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Opens the journal and installs it in the terminal. The journal is closed by the shutdown hook
+     *
+     * @return false if the journal could not be opened
+     */
+    private static boolean installTransactionJournal(File file) {
+        try {
+            final TransactionJournal journal = TransactionJournal.open(file);
+            EMVTerminal.setTransactionJournal(journal);
+            Runtime.getRuntime().addShutdownHook(new Thread("Journal Shutdown") {
+                @Override
+                public void run() {
+                    try {
+                        journal.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace(System.err);
+                    }
+                }
+            });
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return false;
+        }
+    }
+
+    private static byte[] readResource(String path) throws IOException {
+        InputStream in = Main.class.getResourceAsStream(path);
+        if (in == null) {
+            throw new IOException("Resource not found: " + path);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int runGenerate(int numCards, String out, int threads, String keys) {
+        if (out == null) {
+            System.err.println("-generate requires -out <directory>");
+            return -1;
+        }
+        RSAKeyPool keyPool = new RSAKeyPool(3, KEY_POOL_SIZE, threads);
+        try {
+            File keyFile = keys == null ? null : new File(keys);
+            if (keyFile != null && keyFile.exists()) {
+                System.err.println("Loaded " + keyPool.load(keyFile) + " RSA keys from " + keyFile);
+            }
+            long start = System.nanoTime();
+            new SyntheticCardGenerator(keyPool).generate(new File(out), numCards, threads);
+            long millis = Math.max(1, (System.nanoTime() - start) / 1000000L);
+            System.err.println("Created " + numCards + " cards in " + millis + "ms (" + (numCards * 60000L / millis) + " cards/minute, "
+                    + keyPool.getNumGenerated() + " RSA keys generated)");
+            if (keyFile != null) {
+                System.err.println("Saved " + keyPool.save(keyFile) + " RSA keys to " + keyFile);
+            }
+            return 0;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        } catch (InterruptedException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        } finally {
+            keyPool.close();
+        }
+    }
 }
@@ -0,0 +1,738 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import sasc.emv.EMVTerminal;
+import sasc.export.CardExporter;
+import sasc.export.JsonLinesWriter;
+import sasc.export.StructuredWriter;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.terminal.Terminal;
+import sasc.terminal.TerminalException;
+
+/**
+ * A long running card reading service for local integrations (eg a POS), so that a card
+ * read costs only the card I/O: the reference data, the CA store and the readers are
+ * initialized once, when the daemon starts.
+ *
+ * Requests are sent over HTTP (on the loopback interface only, there is no authentication),
+ * with a JSON object as the body ("Content-Type: application/json"). Responses are JSON objects:
+ *
+ *   GET  /readers                          {"readers":[{"name":"...","queued":0}]}
+ *   POST /read         {"reader":"..."}    {"status":"OK","reader":"...","queueMillis":0,"millis":35,"card":{...}}
+ *   POST /transaction  {"reader":"..."}    as /read, and a transaction is performed with each EMV application
+ *   GET  /metrics                          request counts and latencies per reader
+ *
+ * "reader" can be omitted if there is only one reader. If the card cannot be read, the status
+ * is "FAILED" (HTTP 500), with an "error". Other errors have the status "ERROR": 400 for an
+ * invalid request, 404 for an unknown reader, 503 if the reader's queue is full and
+ * 504 if the card was not read in time. After a 504, a request still waiting in the queue
+ * is not started, but a card read already running is completed (its result is discarded).
+ *
+ * So that web pages opened in a browser on the same machine cannot use the daemon (cross-site
+ * requests, DNS rebinding), requests are rejected (403) if the Host header is not localhost or
+ * 127.0.0.1, or if they have an Origin header. A POST without "Content-Type: application/json"
+ * is rejected (415), as such a request cannot be sent cross-origin without a preflight.
+ *
+ * Each reader has its own queue and worker thread: requests for a reader are processed
+ * one at a time, in order, and requests for different readers in parallel. The worker thread
+ * is only busy for the card dialogue (the READ stage of a CardPipeline shared by all the readers):
+ * the offline data authentication of the cards read with /read is done by the VERIFY threads,
+ * while the reader starts on its next request.
+ *
+ * @author sasc
+ */
+public class ReaderDaemon {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+    //The latencies of the last requests per reader, for the percentiles
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final Map<String, Reader> readers = new LinkedHashMap<String, Reader>();
+    private final CardPipeline pipeline;
+    //The requests read (or waiting to be read), by pipeline source
+    private final Map<String, PendingRequest> pending = new ConcurrentHashMap<String, PendingRequest>();
+    private final AtomicLong requestNumber = new AtomicLong();
+    private final long timeoutMillis;
+    private final HttpServer server;
+    private final ExecutorService httpExecutor;
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * @param terminals the readers. Use emulatedTerminal(...) to serve card images
+     * @param port the port to listen on, or 0 for any free port
+     * @param queueCapacity the max number of requests waiting per reader
+     * @param timeoutMillis the max time a request waits for its card to be read
+     */
+    public ReaderDaemon(List<Terminal> terminals, int port, int queueCapacity, long timeoutMillis) throws IOException {
+        if (terminals == null || terminals.isEmpty()) {
+            throw new IllegalArgumentException("Param 'terminals' cannot be null or empty");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Param 'queueCapacity' must be >= 1: " + queueCapacity);
+        }
+        for (Terminal terminal : terminals) {
+            if (readers.containsKey(terminal.getName())) {
+                throw new IllegalArgumentException("Duplicate reader name: " + terminal.getName());
+            }
+            readers.put(terminal.getName(), new Reader(terminal, queueCapacity));
+        }
+        this.timeoutMillis = timeoutMillis;
+
+        BatchProcessor.initContext();
+        pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) {
+                completed(result);
+            }
+        }, Runtime.getRuntime().availableProcessors(), 1, CardPipeline.DEFAULT_QUEUE_CAPACITY, false);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        //The request threads only wait for the readers
+        httpExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Daemon Request " + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(httpExecutor);
+        server.createContext("/readers", new Handler("GET") {
+            @Override
+            int handle(Map<String, String> request, StructuredWriter writer) throws IOException {
+                writeReaders(writer);
+                return 200;
+            }
+        });
+        server.createContext("/read", new Handler("POST") {
+            @Override
+            int handle(Map<String, String> request, StructuredWriter writer) throws IOException {
+                return readCard(request, false, writer);
+            }
+        });
+        server.createContext("/transaction", new Handler("POST") {
+            @Override
+            int handle(Map<String, String> request, StructuredWriter writer) throws IOException {
+                return readCard(request, true, writer);
+            }
+        });
+        server.createContext("/metrics", new Handler("GET") {
+            @Override
+            int handle(Map<String, String> request, StructuredWriter writer) throws IOException {
+                writeMetrics(writer);
+                return 200;
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, and waits (up to 'delaySeconds') for the requests being processed
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        for (Reader reader : readers.values()) {
+            reader.executor.shutdownNow();
+        }
+        httpExecutor.shutdownNow();
+        try {
+            //A card read already running cannot be interrupted
+            for (Reader reader : readers.values()) {
+                reader.executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+            }
+            pipeline.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            //Not thrown: the sink does not fail
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return the port the daemon listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * A reader with a card image (CardEmulator XML) that is always present
+     */
+    public static Terminal emulatedTerminal(String name, byte[] cardImage) {
+        return new EmulatedTerminal(name, cardImage);
+    }
+
+    private int readCard(Map<String, String> request, final boolean performTransaction, StructuredWriter writer) throws IOException {
+        String readerName = request.get("reader");
+        if (readerName == null) {
+            if (readers.size() != 1) {
+                return error(writer, 400, "Parameter 'reader' is required. Readers: " + readers.keySet());
+            }
+            readerName = readers.keySet().iterator().next();
+        }
+        final Reader reader = readers.get(readerName);
+        if (reader == null) {
+            return error(writer, 404, "Unknown reader: " + readerName);
+        }
+        final String source = readerName + " #" + requestNumber.incrementAndGet();
+        final PendingRequest pendingRequest = new PendingRequest(reader, System.nanoTime());
+        pending.put(source, pendingRequest);
+        Future<Void> future;
+        try {
+            future = reader.executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    pendingRequest.queueNanos = System.nanoTime() - pendingRequest.submitted;
+                    try {
+                        reader.readCard(pipeline, source, performTransaction);
+                    } catch (Exception ex) {
+                        //Not queued for the next stages (the daemon is stopping)
+                        pending.remove(source);
+                        pendingRequest.result.completeExceptionally(ex);
+                    }
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pending.remove(source);
+            reader.metrics.rejected();
+            return error(writer, 503, "Queue full for reader: " + readerName);
+        }
+        CardPipeline.Result result;
+        try {
+            result = pendingRequest.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            //Not started if still queued. A card read already running cannot be interrupted:
+            //it is completed, but nobody waits for it
+            if (future.cancel(false)) {
+                pending.remove(source);
+            }
+            reader.executor.purge();
+            reader.metrics.timedOut();
+            return error(writer, 504, "Timeout waiting for reader: " + readerName);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return error(writer, 503, "Interrupted");
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+
+        writer.name("status").value(result.getError() == null ? "OK" : "FAILED");
+        writer.name("reader").value(readerName);
+        writer.name("queueMillis").value(TimeUnit.NANOSECONDS.toMillis(pendingRequest.queueNanos));
+        writer.name("millis").value(result.getReadMillis());
+        if (result.getError() == null) {
+            writer.name("card");
+            new CardExporter(writer).writeCardObject(result.getCard());
+            return 200;
+        }
+        writer.name("error").value(String.valueOf(result.getError()));
+        return 500;
+    }
+
+    /**
+     * The EXPORT stage of the pipeline: hands the card over to the request thread
+     */
+    private void completed(CardPipeline.Result result) {
+        PendingRequest request = pending.remove(result.getSource());
+        if (request == null) {
+            return;
+        }
+        request.reader.metrics.add(request.queueNanos, result.getReadNanos(), result.getError() != null);
+        request.result.complete(result);
+    }
+
+    private void writeReaders(StructuredWriter writer) throws IOException {
+        writer.name("readers").beginArray();
+        for (Reader reader : readers.values()) {
+            writer.beginObject();
+            writer.name("name").value(reader.terminal.getName());
+            writer.name("queued").value(reader.executor.getQueue().size());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private void writeMetrics(StructuredWriter writer) throws IOException {
+        writer.name("uptimeMillis").value(System.currentTimeMillis() - startMillis);
+        writer.name("readers").beginArray();
+        for (Reader reader : readers.values()) {
+            writer.beginObject();
+            writer.name("name").value(reader.terminal.getName());
+            writer.name("queued").value(reader.executor.getQueue().size());
+            reader.metrics.write(writer);
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static int error(StructuredWriter writer, int httpStatus, String message) throws IOException {
+        writer.name("status").value("ERROR");
+        writer.name("error").value(message);
+        return httpStatus;
+    }
+
+    /**
+     * Parses a flat JSON object (string, number, boolean and null values).
+     * An empty request is an empty object
+     *
+     * @return the values as Strings (null values are not included)
+     */
+    static Map<String, String> parseRequest(String json) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        JsonParser parser = new JsonParser(json);
+        if (!parser.skipWhitespace()) {
+            return values;
+        }
+        parser.expect('{');
+        if (!parser.consume('}')) {
+            do {
+                String name = parser.readString();
+                parser.expect(':');
+                String value = parser.readValue();
+                if (value != null) {
+                    values.put(name, value);
+                }
+            } while (parser.consume(','));
+            parser.expect('}');
+        }
+        if (parser.skipWhitespace()) {
+            throw parser.error("Unexpected data after the object");
+        }
+        return values;
+    }
+
+    private static class JsonParser {
+
+        private final String json;
+        private int pos = 0;
+
+        JsonParser(String json) {
+            this.json = json;
+        }
+
+        /**
+         * @return true if there is more data
+         */
+        boolean skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+            return pos < json.length();
+        }
+
+        boolean consume(char c) {
+            if (skipWhitespace() && json.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < json.length()) {
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= json.length()) {
+                    break;
+                }
+                char escaped = json.charAt(pos++);
+                switch (escaped) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > json.length()) {
+                            throw error("Invalid unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("Invalid unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(escaped);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        String readValue() {
+            if (!skipWhitespace()) {
+                throw error("Expected a value");
+            }
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return readString();
+            }
+            if (c == '{' || c == '[') {
+                throw error("Only string, number, boolean and null values are supported");
+            }
+            int start = pos;
+            while (pos < json.length() && ",}".indexOf(json.charAt(pos)) < 0 && !Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+            String literal = json.substring(start, pos);
+            if (literal.equals("null")) {
+                return null;
+            }
+            if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+                return literal;
+            }
+            throw error("Invalid value: " + literal);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+
+    /**
+     * Handles the HTTP protocol: the method, the request body and the JSON response object
+     */
+    private abstract static class Handler implements HttpHandler {
+
+        private final String method;
+
+        Handler(String method) {
+            this.method = method;
+        }
+
+        /**
+         * Writes the fields of the response object
+         *
+         * @return the HTTP status
+         */
+        abstract int handle(Map<String, String> request, StructuredWriter writer) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                StringWriter body = new StringWriter();
+                JsonLinesWriter writer = new JsonLinesWriter(body);
+                writer.beginObject();
+                int status;
+                if (!isLocalHost(exchange.getRequestHeaders().getFirst("Host"))) {
+                    status = error(writer, 403, "Host not allowed: " + exchange.getRequestHeaders().getFirst("Host"));
+                } else if (exchange.getRequestHeaders().containsKey("Origin")) {
+                    status = error(writer, 403, "Cross-origin requests are not allowed: " + exchange.getRequestHeaders().getFirst("Origin"));
+                } else if (!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+                    status = error(writer, 404, "Not found: " + exchange.getRequestURI().getPath());
+                } else if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    status = error(writer, 405, "Method not allowed: " + exchange.getRequestMethod());
+                } else if (method.equals("POST") && !isJson(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                    status = error(writer, 415, "Content-Type must be application/json");
+                } else {
+                    Map<String, String> request = null;
+                    try {
+                        request = parseRequest(readBody(exchange.getRequestBody()));
+                    } catch (IllegalArgumentException ex) {
+                        error(writer, 400, "Invalid request: " + ex.getMessage());
+                    }
+                    status = request == null ? 400 : handle(request, writer);
+                }
+                writer.endObject();
+                writer.endRecord();
+                writer.flush();
+                send(exchange, status, body.toString());
+            } catch (RuntimeException ex) {
+                send(exchange, 500, "{\"status\":\"ERROR\",\"error\":\"Internal error\"}\n");
+                throw ex;
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * @param host the Host header, with an optional port
+         */
+        private static boolean isLocalHost(String host) {
+            if (host == null) {
+                return false;
+            }
+            int portIndex = host.lastIndexOf(':');
+            if (portIndex != -1 && host.indexOf(']', portIndex) == -1) {
+                host = host.substring(0, portIndex);
+            }
+            return host.equalsIgnoreCase("localhost") || host.equals("127.0.0.1") || host.equals("[::1]");
+        }
+
+        private static boolean isJson(String contentType) {
+            if (contentType == null) {
+                return false;
+            }
+            int paramsIndex = contentType.indexOf(';');
+            String mediaType = paramsIndex == -1 ? contentType : contentType.substring(0, paramsIndex);
+            return mediaType.trim().equalsIgnoreCase("application/json");
+        }
+
+        private static String readBody(InputStream in) throws IOException {
+            byte[] buf = new byte[1024];
+            int length = 0;
+            int read;
+            while ((read = in.read(buf, length, buf.length - length)) != -1) {
+                length += read;
+                if (length == buf.length) {
+                    if (length >= 64 * 1024) {
+                        throw new IllegalArgumentException("Request too large");
+                    }
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            return new String(buf, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private static void send(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    /**
+     * A reader, with its request queue
+     */
+    private static class Reader {
+
+        private final Terminal terminal;
+        private final ThreadPoolExecutor executor;
+        private final Metrics metrics = new Metrics();
+
+        Reader(final Terminal terminal, int queueCapacity) {
+            this.terminal = terminal;
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Reader " + terminal.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * The READ stage: called on the reader's worker thread
+         */
+        void readCard(CardPipeline pipeline, String source, final boolean performTransaction) throws IOException, InterruptedException {
+            pipeline.read(source, new Callable<SmartCard>() {
+                @Override
+                public SmartCard call() throws Exception {
+                    SessionProcessingEnv env = new SessionProcessingEnv();
+                    if (terminal instanceof EmulatedTerminal) {
+                        env.setInitialPauseMillis(0); //No card to power up
+                    }
+                    EMVTerminal.resetTVR();
+                    CardConnection conn = terminal.connect();
+                    try {
+                        return BatchProcessor.readCard(conn, env, performTransaction);
+                    } finally {
+                        conn.disconnect(true);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A request, from its submission to the reader's queue until its card has been exported
+     */
+    private static class PendingRequest {
+
+        private final Reader reader;
+        private final long submitted;
+        private volatile long queueNanos = 0;
+        private final CompletableFuture<CardPipeline.Result> result = new CompletableFuture<CardPipeline.Result>();
+
+        PendingRequest(Reader reader, long submitted) {
+            this.reader = reader;
+            this.submitted = submitted;
+        }
+    }
+
+    /**
+     * Request counts and latencies of a reader. Thread safe
+     */
+    private static class Metrics {
+
+        private long requests = 0;
+        private long failed = 0;
+        private long rejected = 0;
+        private long timedOut = 0;
+        private long totalQueueNanos = 0;
+        private long maxQueueNanos = 0;
+        private long totalCardNanos = 0;
+        private long maxCardNanos = 0;
+        //Ring buffer with the card times of the last requests
+        private final long[] cardNanos = new long[LATENCY_SAMPLES];
+
+        synchronized void add(long queueNanos, long readNanos, boolean failure) {
+            cardNanos[(int) (requests % LATENCY_SAMPLES)] = readNanos;
+            requests++;
+            if (failure) {
+                failed++;
+            }
+            totalQueueNanos += queueNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+            totalCardNanos += readNanos;
+            maxCardNanos = Math.max(maxCardNanos, readNanos);
+        }
+
+        synchronized void rejected() {
+            rejected++;
+        }
+
+        synchronized void timedOut() {
+            timedOut++;
+        }
+
+        synchronized void write(StructuredWriter writer) throws IOException {
+            writer.name("requests").value(requests);
+            writer.name("failed").value(failed);
+            writer.name("rejected").value(rejected);
+            writer.name("timedOut").value(timedOut);
+            writer.name("queueMillis").beginObject();
+            writer.name("avg").value(requests == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalQueueNanos / requests));
+            writer.name("max").value(TimeUnit.NANOSECONDS.toMillis(maxQueueNanos));
+            writer.endObject();
+            long[] samples = Arrays.copyOf(cardNanos, (int) Math.min(requests, LATENCY_SAMPLES));
+            Arrays.sort(samples);
+            writer.name("millis").beginObject();
+            writer.name("avg").value(requests == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalCardNanos / requests));
+            writer.name("p50").value(percentileMillis(samples, 50));
+            writer.name("p95").value(percentileMillis(samples, 95));
+            writer.name("p99").value(percentileMillis(samples, 99));
+            writer.name("max").value(TimeUnit.NANOSECONDS.toMillis(maxCardNanos));
+            writer.endObject();
+        }
+
+        private static long percentileMillis(long[] sortedSamples, int percentile) {
+            if (sortedSamples.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+            return TimeUnit.NANOSECONDS.toMillis(sortedSamples[Math.max(0, index)]);
+        }
+    }
+
+    private static class EmulatedTerminal implements Terminal {
+
+        private final String name;
+        private final byte[] cardImage;
+
+        EmulatedTerminal(String name, byte[] cardImage) {
+            if (name == null || cardImage == null) {
+                throw new IllegalArgumentException("Params 'name' and 'cardImage' cannot be null");
+            }
+            this.name = name;
+            this.cardImage = cardImage.clone();
+        }
+
+        @Override
+        public CardConnection connect() throws TerminalException {
+            return new CardEmulator(new ByteArrayInputStream(cardImage));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getTerminalInfo() {
+            return "EMV Card Emulator";
+        }
+
+        @Override
+        public boolean isCardPresent() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import sasc.emv.EMVTags;
+import sasc.emv.PAN;
+import sasc.emv.SignedDataGenerator;
+import sasc.emv.system.visa.VISATags;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.TLVWriter;
+import sasc.util.GenerateIssuerAndICCCertsMain;
+import sasc.util.Hex;
+import sasc.util.RSAKeyGenerator;
+import sasc.util.RSAKeyPool;
+import sasc.util.Util;
+
+/**
+ * Creates CardEmulator card images (XML) for TEST cards, to build corpora for
+ * the -batch mode and for performance tests.
+ *
+ * Each card has one application with a distinct PAN, cardholder name, dates,
+ * counters and transaction log. The cards support either SDA or DDA (INTERNAL
+ * AUTHENTICATE is emulated using the ICC Private Key in the card image).
+ * DDA cards can also be set to support CDA (signature in the GENERATE AC response),
+ * or to be Visa contactless (qVSDC) cards, that return the Application Cryptogram and the
+ * fDDA signature in the GET PROCESSING OPTIONS response.
+ * The certificates chain up to the TEST CA in certificationauthorities_mock.xml
+ * (RID A1 23 45 67 89, index 7).
+ *
+ * The RSA keys are taken from an RSAKeyPool, so that key generation runs in the
+ * background (and can be skipped by loading a saved pool).
+ * The card contents (except the keys) are determined by the seed and the card number.
+ *
+ * @author sasc
+ */
+public class SyntheticCardGenerator {
+
+    public static final String AID = GenerateIssuerAndICCCertsMain.TEST_CA_RID + " 10 10";
+    public static final String FILE_NAME_FORMAT = "card-%06d" + BatchProcessor.CARD_IMAGE_SUFFIX;
+    private static final byte[] ATR = Util.fromHexString("3B 67 00 00 A6 40 40 00 09 90 00");
+    private static final byte[] PSE_NAME = Util.fromHexString("31 50 41 59 2E 53 59 53 2E 44 44 46 30 31"); //1PAY.SYS.DDF01
+    private static final int PSE_SFI = 1;
+    private static final int APP_SFI = 1;
+    private static final int LOG_SFI = 11;
+    private static final int MAX_LOG_RECORDS = 10;
+    //SFI 1: record 1, record 2 (offline data authentication), records 3-5
+    private static final byte[] AFL = Util.fromHexString("08 01 01 00 08 02 02 01 08 03 05 00");
+    private static final byte[] AIP_SDA = Util.fromHexString("5C 00");
+    private static final byte[] AIP_DDA = Util.fromHexString("3C 00");
+    private static final byte[] AIP_CDA = Util.fromHexString("3D 00");
+    private static final byte[] CVM_LIST = Util.fromHexString("00 00 00 00 00 00 00 00 42 01 41 03 5E 03 42 03 1F 00");
+    private static final byte[] CDOL1 = Util.fromHexString("9F 02 06 9F 03 06 9F 1A 02 95 05 5F 2A 02 9A 03 9C 01 9F 37 04");
+    private static final byte[] CDOL2 = Util.fromHexString("8A 02 9F 02 06 9F 03 06 9F 1A 02 95 05 5F 2A 02 9A 03 9C 01 9F 37 04");
+    private static final byte[] DDOL = Util.fromHexString("9F 37 04");
+    //qVSDC: TTQ, Amount Authorised, Amount Other, Country Code, TVR, Currency Code, Date, Transaction Type, Unpredictable Number
+    private static final byte[] PDOL = Util.fromHexString("9F 66 04 9F 02 06 9F 03 06 9F 1A 02 95 05 5F 2A 02 9A 03 9C 01 9F 37 04");
+    //Card Verification Results byte 2: TC (offline approval) returned
+    private static final byte[] QVSDC_ISSUER_APPLICATION_DATA = Util.fromHexString("06 01 12 03 10 00 00");
+    private static final byte[] CARD_TRANSACTION_QUALIFIERS = Util.fromHexString("00 00");
+    //Date, Time, Amount, Currency, Transaction Type
+    private static final byte[] LOG_FORMAT = Util.fromHexString("9A 03 9F 21 03 9F 02 06 5F 2A 02 9C 01");
+    private static final byte[] CURRENCY_EUR = Util.fromHexString("09 78");
+    private static final byte[] COUNTRY_NORWAY = Util.fromHexString("05 78");
+    private static final String PIN = "1234";
+    private static final String ISSUER_CERT_EXPIRATION_DATE = "1249";
+    //Response data is limited to 256 bytes
+    private static final int MAX_RECORD_LENGTH = 256;
+    private static final String[] FIRST_NAMES = {"JOHN", "JANE", "OLA", "KARI", "PER", "ANNE", "ALEX", "MARIA", "LARS", "INGRID"};
+    private static final String[] LAST_NAMES = {"SMITH", "NORDMANN", "HANSEN", "JOHANSEN", "OLSEN", "BERG", "DOE", "LARSEN", "BAKKEN", "HAUGEN"};
+
+    private final RSAKeyPool keyPool;
+    private final RSAPrivateKey caPrivateKey;
+    private int numIssuers = 4;
+    private int ddaPercentage = 50;
+    private boolean cda = false;
+    private boolean qVSDC = false;
+    private long seed = 0;
+    private int issuerKeyBits = 1152;
+    private int iccKeyBits = 1024;
+    private List<Issuer> issuers = null;
+
+    /**
+     * @param keyPool the pool to take the Issuer and ICC keys from. The public
+     * exponent must be 3 or 65537
+     */
+    public SyntheticCardGenerator(RSAKeyPool keyPool) {
+        if (keyPool.getExponent() != 3 && keyPool.getExponent() != 65537) {
+            throw new IllegalArgumentException("Public exponent must be 3 or 65537: " + keyPool.getExponent());
+        }
+        this.keyPool = keyPool;
+        this.caPrivateKey = getTestCAPrivateKey();
+    }
+
+    /**
+     * The cards are distributed evenly between the issuers. Each issuer has its own key
+     */
+    public synchronized void setNumIssuers(int numIssuers) {
+        if (numIssuers < 1 || numIssuers > 99) {
+            throw new IllegalArgumentException("Number of issuers must be 1-99: " + numIssuers);
+        }
+        checkNotStarted();
+        this.numIssuers = numIssuers;
+    }
+
+    /**
+     * @param ddaPercentage the percentage of cards that support DDA (the rest support SDA)
+     */
+    public synchronized void setDDAPercentage(int ddaPercentage) {
+        if (ddaPercentage < 0 || ddaPercentage > 100) {
+            throw new IllegalArgumentException("DDA percentage must be 0-100: " + ddaPercentage);
+        }
+        this.ddaPercentage = ddaPercentage;
+    }
+
+    /**
+     * @param cda true if the DDA cards also support CDA
+     */
+    public synchronized void setCDA(boolean cda) {
+        this.cda = cda;
+    }
+
+    /**
+     * @param qVSDC true if the DDA cards are Visa contactless (qVSDC with fDDA) cards. Takes precedence over CDA
+     */
+    public synchronized void setQVSDC(boolean qVSDC) {
+        this.qVSDC = qVSDC;
+    }
+
+    public synchronized void setSeed(long seed) {
+        checkNotStarted();
+        this.seed = seed;
+    }
+
+    /**
+     * Keys shorter than the CA key (1152 bits) minus 288 bits are padded in the certificate
+     */
+    public synchronized void setIssuerKeyBits(int issuerKeyBits) {
+        if (issuerKeyBits < 512 || issuerKeyBits > 1152 || issuerKeyBits % 8 != 0) {
+            throw new IllegalArgumentException("Issuer key length must be a multiple of 8 between 512 and 1152: " + issuerKeyBits);
+        }
+        checkNotStarted();
+        this.issuerKeyBits = issuerKeyBits;
+    }
+
+    public synchronized void setICCKeyBits(int iccKeyBits) {
+        if (iccKeyBits < 512 || iccKeyBits > 1152 || iccKeyBits % 8 != 0) {
+            throw new IllegalArgumentException("ICC key length must be a multiple of 8 between 512 and 1152: " + iccKeyBits);
+        }
+        this.iccKeyBits = iccKeyBits;
+    }
+
+    private void checkNotStarted() {
+        if (issuers != null) {
+            throw new IllegalStateException("Cards have already been generated");
+        }
+    }
+
+    /**
+     * Writes numCards card images (card-000001.xml ...) to the directory
+     *
+     * @param threads the number of threads creating cards (the key pool has its own threads)
+     */
+    public void generate(final File dir, int numCards, int threads) throws IOException, InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be >= 1: " + threads);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        getIssuers(); //Wait for the issuer keys before starting the workers
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Card Generator " + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 1; i <= numCards; i++) {
+                final int cardNumber = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        String xml = generate(cardNumber);
+                        Files.write(new File(dir, String.format(FILE_NAME_FORMAT, cardNumber)).toPath(), xml.getBytes(StandardCharsets.UTF_8));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param cardNumber 1-999999999
+     * @return the card image (XML)
+     */
+    public String generate(int cardNumber) throws InterruptedException {
+        if (cardNumber < 1 || cardNumber > 999999999) {
+            throw new IllegalArgumentException("Card number must be 1-999999999: " + cardNumber);
+        }
+        List<Issuer> issuerList = getIssuers();
+        Issuer issuer = issuerList.get((cardNumber - 1) % issuerList.size());
+        Random random = new Random(seed * 31 + cardNumber);
+        boolean dda;
+        boolean combinedDDAAC;
+        boolean contactless;
+        int iccBits;
+        synchronized (this) {
+            dda = random.nextInt(100) < ddaPercentage;
+            contactless = dda && qVSDC;
+            combinedDDAAC = dda && cda && !contactless;
+            iccBits = iccKeyBits;
+        }
+
+        String pan = createPAN(issuer.bin, cardNumber);
+        int expirationYear = 27 + random.nextInt(5);
+        int expirationMonth = 1 + random.nextInt(12);
+        String expirationDate = String.format("%02d%02d28", expirationYear, expirationMonth);
+        String effectiveDate = String.format("%02d%02d01", expirationYear - 4, expirationMonth);
+        String cardholderName = LAST_NAMES[random.nextInt(LAST_NAMES.length)] + "/" + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        int atc = 1 + random.nextInt(2000);
+        int lastOnlineATC = Math.max(0, atc - random.nextInt(20));
+        byte[] aip = combinedDDAAC ? AIP_CDA : (dda ? AIP_DDA : AIP_SDA);
+
+        TLVWriter writer = new TLVWriter(new byte[MAX_RECORD_LENGTH * 2]);
+
+        //Record 1
+        String track2 = pan + "D" + expirationDate.substring(0, 4) + "201" + String.format("%010d", cardNumber);
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.write(EMVTags.TRACK_2_EQV_DATA, toBCD(track2));
+        writer.write(EMVTags.CARDHOLDER_NAME, cardholderName.getBytes(StandardCharsets.US_ASCII));
+        writer.endTemplate();
+        byte[] record1 = toRecord(writer);
+
+        //Record 2 (offline data authentication)
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.write(EMVTags.APP_EXPIRATION_DATE, Util.fromHexString(expirationDate));
+        writer.write(EMVTags.APP_EFFECTIVE_DATE, Util.fromHexString(effectiveDate));
+        writer.write(EMVTags.PAN, toBCD(pan));
+        writer.writeByte(EMVTags.PAN_SEQUENCE_NUMBER, 0x01);
+        writer.writeShort(EMVTags.APP_USAGE_CONTROL, 0xFF00);
+        writer.write(EMVTags.CVM_LIST, CVM_LIST);
+        writer.write(EMVTags.ISSUER_ACTION_CODE_DEFAULT, Util.fromHexString("F0 20 24 28 00"));
+        writer.write(EMVTags.ISSUER_ACTION_CODE_DENIAL, Util.fromHexString("00 50 80 00 00"));
+        writer.write(EMVTags.ISSUER_ACTION_CODE_ONLINE, Util.fromHexString("F0 28 3C F8 00"));
+        writer.write(EMVTags.ISSUER_COUNTRY_CODE, COUNTRY_NORWAY);
+        writer.write(EMVTags.SDA_TAG_LIST, EMVTags.APPLICATION_INTERCHANGE_PROFILE.getTagBytes());
+        writer.endTemplate();
+        byte[] record2 = toRecord(writer);
+
+        //Record 3
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.write(EMVTags.APPLICATION_CURRENCY_CODE, CURRENCY_EUR);
+        writer.writeByte(EMVTags.APP_CURRENCY_EXPONENT, 0x02);
+        writer.writeShort(EMVTags.APP_VERSION_NUMBER_CARD, 0x008C);
+        writer.write(EMVTags.CDOL1, CDOL1);
+        writer.write(EMVTags.CDOL2, CDOL2);
+        writer.writeShort(EMVTags.SERVICE_CODE, 0x0201);
+        writer.endTemplate();
+        byte[] record3 = toRecord(writer);
+
+        //Record 4: Issuer Public Key
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.writeByte(EMVTags.CA_PUBLIC_KEY_INDEX_CARD, GenerateIssuerAndICCCertsMain.TEST_CA_PUBLIC_KEY_INDEX);
+        writer.write(EMVTags.ISSUER_PUBLIC_KEY_CERT, issuer.certificate);
+        writer.write(EMVTags.ISSUER_PUBLIC_KEY_EXP, SignedDataGenerator.getExponentBytes(issuer.keyPair.getPublicKey()));
+        if (issuer.remainder.length > 0) {
+            writer.write(EMVTags.ISSUER_PUBLIC_KEY_REMAINDER, issuer.remainder);
+        }
+        writer.endTemplate();
+        byte[] record4 = toRecord(writer);
+
+        //Record 5: SDA or DDA data
+        //The static data to be authenticated: record 2 (without tag and length) and the AIP
+        byte[] record2Value = TLVUtil.getNextTLV(new ByteArrayInputStream(record2)).getValueBytes();
+        byte[] staticData = concat(record2Value, aip);
+        RSAKeyGenerator.RSAKeyPair iccKeyPair = null;
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        if (dda) {
+            iccKeyPair = keyPool.take(iccBits);
+            RSAPublicKey iccPublicKey = iccKeyPair.getPublicKey();
+            byte[] certSerialNumber = Util.resizeArray(Util.intToByteArray4(cardNumber), 3);
+            writer.write(EMVTags.ICC_PUBLIC_KEY_CERT, SignedDataGenerator.createICCPublicKeyCertificate(issuer.keyPair.getPrivateKey(),
+                    pan, expirationDate.substring(2, 4) + expirationDate.substring(0, 2), certSerialNumber, iccPublicKey, staticData));
+            writer.write(EMVTags.ICC_PUBLIC_KEY_EXP, SignedDataGenerator.getExponentBytes(iccPublicKey));
+            byte[] iccRemainder = SignedDataGenerator.getICCPublicKeyRemainder(issuer.keyPair.getPublicKey(), iccPublicKey);
+            if (iccRemainder.length > 0) {
+                writer.write(EMVTags.ICC_PUBLIC_KEY_REMAINDER, iccRemainder);
+            }
+            writer.write(EMVTags.DDOL, DDOL);
+        } else {
+            byte[] dataAuthenticationCode = new byte[2];
+            random.nextBytes(dataAuthenticationCode);
+            writer.write(EMVTags.SIGNED_STATIC_APP_DATA, SignedDataGenerator.createSignedStaticApplicationData(
+                    issuer.keyPair.getPrivateKey(), dataAuthenticationCode, staticData));
+        }
+        writer.endTemplate();
+        byte[] record5 = toRecord(writer);
+
+        //Transaction log
+        List<byte[]> logRecords = new ArrayList<byte[]>();
+        int numLogRecords = random.nextInt(MAX_LOG_RECORDS + 1);
+        for (int i = 0; i < numLogRecords; i++) {
+            String date = String.format("%02d%02d%02d", expirationYear - 4 + random.nextInt(4), 1 + random.nextInt(12), 1 + random.nextInt(28));
+            String time = String.format("%02d%02d%02d", random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            String amount = String.format("%012d", 100 + random.nextInt(100000));
+            logRecords.add(Util.fromHexString(date + time + amount + "0978" + "00"));
+        }
+
+        //FCI of the PSE and the application
+        writer.startTemplate(EMVTags.FCI_TEMPLATE);
+        writer.write(EMVTags.DEDICATED_FILE_NAME, PSE_NAME);
+        writer.startTemplate(EMVTags.FCI_PROPRIETARY_TEMPLATE);
+        writer.writeByte(EMVTags.SFI, PSE_SFI);
+        writer.write(EMVTags.LANGUAGE_PREFERENCE, "en".getBytes(StandardCharsets.US_ASCII));
+        writer.endTemplate();
+        writer.endTemplate();
+        byte[] ddf = toRecord(writer);
+
+        byte[] aid = Util.fromHexString(AID);
+        byte[] label = "TEST".getBytes(StandardCharsets.US_ASCII);
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.startTemplate(EMVTags.APPLICATION_TEMPLATE);
+        writer.write(EMVTags.AID_CARD, aid);
+        writer.write(EMVTags.APPLICATION_LABEL, label);
+        writer.writeByte(EMVTags.APPLICATION_PRIORITY_INDICATOR, 0x01);
+        writer.endTemplate();
+        writer.endTemplate();
+        byte[] pseRecord = toRecord(writer);
+
+        writer.startTemplate(EMVTags.FCI_TEMPLATE);
+        writer.write(EMVTags.DEDICATED_FILE_NAME, aid);
+        writer.startTemplate(EMVTags.FCI_PROPRIETARY_TEMPLATE);
+        writer.write(EMVTags.APPLICATION_LABEL, label);
+        writer.writeByte(EMVTags.APPLICATION_PRIORITY_INDICATOR, 0x01);
+        writer.write(EMVTags.LANGUAGE_PREFERENCE, "en".getBytes(StandardCharsets.US_ASCII));
+        if (contactless) {
+            writer.write(EMVTags.PDOL, PDOL);
+        }
+        writer.startTemplate(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA);
+        writer.write(EMVTags.LOG_ENTRY, new byte[]{(byte) LOG_SFI, (byte) MAX_LOG_RECORDS});
+        writer.endTemplate();
+        writer.endTemplate();
+        writer.endTemplate();
+        byte[] adf = toRecord(writer);
+
+        if (contactless) {
+            //The ATC, the Application Cryptogram and the signature are generated by the CardEmulator
+            byte[] cardUnpredictableNumber = new byte[4];
+            random.nextBytes(cardUnpredictableNumber);
+            writer.startTemplate(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2);
+            writer.write(EMVTags.APPLICATION_INTERCHANGE_PROFILE, aip);
+            writer.write(EMVTags.APPLICATION_FILE_LOCATOR, AFL);
+            writer.writeShort(EMVTags.APP_TRANSACTION_COUNTER, atc);
+            writer.write(EMVTags.APP_CRYPTOGRAM, new byte[8]);
+            writer.write(EMVTags.ISSUER_APPLICATION_DATA, QVSDC_ISSUER_APPLICATION_DATA);
+            writer.write(VISATags.CARD_TRANSACTION_QUALIFIERS, CARD_TRANSACTION_QUALIFIERS);
+            //fDDA version 01, Card Unpredictable Number, CTQ
+            writer.write(VISATags.CARD_AUTHENTICATION_RELATE_DATA, concat(concat(new byte[]{0x01}, cardUnpredictableNumber), CARD_TRANSACTION_QUALIFIERS));
+            writer.write(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA, new byte[iccBits / 8]);
+            writer.endTemplate();
+        } else {
+            writer.write(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1, concat(aip, AFL));
+        }
+        byte[] gpoResponse = toRecord(writer);
+
+        writer.write(EMVTags.LOG_FORMAT, LOG_FORMAT);
+        byte[] logFormat = toRecord(writer);
+
+        StringBuilder xml = new StringBuilder(8192);
+        xml.append("<!-- Synthetic TEST card ").append(cardNumber).append(" (").append(contactless ? "qVSDC" : (combinedDDAAC ? "CDA" : (dda ? "DDA" : "SDA"))).append(")")
+                .append(" created by SyntheticCardGenerator -->\n");
+        xml.append("<EMVCard>\n");
+        appendHex(xml, 1, "ATR", ATR);
+        appendHex(xml, 1, "DirectoryDefinitionFile", ddf);
+        xml.append("    <Files>\n");
+        appendFile(xml, 2, PSE_SFI, pseRecord);
+        xml.append("    </Files>\n");
+        xml.append("    <Applications>\n");
+        xml.append("        <Application AID=\"").append(AID).append("\">\n");
+        xml.append("            <PIN>").append(PIN).append("</PIN>\n");
+        appendHex(xml, 3, "ApplicationDefinitionFile", adf);
+        xml.append("            <Files>\n");
+        appendFile(xml, 4, APP_SFI, record1, record2, record3, record4, record5);
+        appendFile(xml, 4, LOG_SFI, logRecords.toArray(new byte[logRecords.size()][]));
+        xml.append("            </Files>\n");
+        xml.append("            <GetDataElements>\n");
+        xml.append("                <ATC>").append(String.format("%04X", atc)).append("</ATC>\n");
+        xml.append("                <LastOnlineATC>").append(String.format("%04X", lastOnlineATC)).append("</LastOnlineATC>\n");
+        xml.append("                <PINTryCounter>03</PINTryCounter>\n");
+        xml.append("                <LogFormat>").append(Hex.Format.SPACED.format(logFormat)).append("</LogFormat>\n");
+        xml.append("            </GetDataElements>\n");
+        appendHex(xml, 3, "GetProcessingOptions", gpoResponse);
+        if (iccKeyPair != null) {
+            xml.append("            <ICCPrivateKey>\n");
+            appendHex(xml, 4, "Modulus", SignedDataGenerator.getModulusBytes(iccKeyPair.getPrivateKey()));
+            appendHex(xml, 4, "PrivateExponent", toUnsignedBytes(iccKeyPair.getPrivateKey().getPrivateExponent()));
+            xml.append("            </ICCPrivateKey>\n");
+        }
+        xml.append("        </Application>\n");
+        xml.append("    </Applications>\n");
+        xml.append("</EMVCard>\n");
+        return xml.toString();
+    }
+
+    private synchronized List<Issuer> getIssuers() throws InterruptedException {
+        if (issuers == null) {
+            if (ddaPercentage > 0) {
+                keyPool.prepare(iccKeyBits);
+            }
+            Random random = new Random(seed);
+            List<Issuer> list = new ArrayList<Issuer>();
+            for (int i = 0; i < numIssuers; i++) {
+                Issuer issuer = new Issuer();
+                issuer.bin = "4" + String.format("%05d", random.nextInt(100000));
+                issuer.keyPair = keyPool.take(issuerKeyBits);
+                byte[] certSerialNumber = Util.resizeArray(Util.intToByteArray4(i + 1), 3);
+                issuer.certificate = SignedDataGenerator.createIssuerPublicKeyCertificate(caPrivateKey, issuer.bin,
+                        ISSUER_CERT_EXPIRATION_DATE, certSerialNumber, issuer.keyPair.getPublicKey());
+                issuer.remainder = SignedDataGenerator.getIssuerPublicKeyRemainder(caPrivateKey, issuer.keyPair.getPublicKey());
+                list.add(issuer);
+            }
+            issuers = list;
+        }
+        return issuers;
+    }
+
+    /**
+     * The account number is the card number, so that the PANs are distinct
+     */
+    static String createPAN(String bin, int cardNumber) {
+        String panWithoutCheckDigit = bin + String.format("%09d", cardNumber);
+        for (int checkDigit = 0; checkDigit <= 9; checkDigit++) {
+            String pan = panWithoutCheckDigit + checkDigit;
+            if (PAN.isValidPAN(pan)) {
+                return pan;
+            }
+        }
+        throw new IllegalStateException("No check digit found for " + panWithoutCheckDigit);
+    }
+
+    private static byte[] toRecord(TLVWriter writer) {
+        if (writer.size() > MAX_RECORD_LENGTH) {
+            throw new IllegalStateException("Record too long: " + writer.size() + " bytes");
+        }
+        byte[] record = writer.toByteArray();
+        writer.reset();
+        return record;
+    }
+
+    /**
+     * Digits, padded with 'F' to a whole number of bytes
+     */
+    private static byte[] toBCD(String digits) {
+        return Util.fromHexString(digits.length() % 2 == 0 ? digits : digits + "F");
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0x00 && bytes.length > 1) {
+            return Util.resizeArray(bytes, bytes.length - 1);
+        }
+        return bytes;
+    }
+
+    private static void appendFile(StringBuilder xml, int level, int sfi, byte[]... records) {
+        String indent = Util.getSpaces(level * 4);
+        xml.append(indent).append("<ElementaryFile sfi=\"").append(sfi).append("\">\n");
+        for (int i = 0; i < records.length; i++) {
+            xml.append(indent).append("    <Record number=\"").append(i + 1).append("\">\n");
+            xml.append(indent).append("        ").append(Hex.Format.wrapped(indent.length() + 8).format(records[i])).append('\n');
+            xml.append(indent).append("    </Record>\n");
+        }
+        xml.append(indent).append("</ElementaryFile>\n");
+    }
+
+    private static void appendHex(StringBuilder xml, int level, String elementName, byte[] data) {
+        String indent = Util.getSpaces(level * 4);
+        xml.append(indent).append('<').append(elementName).append(">\n");
+        xml.append(indent).append("    ").append(Hex.Format.wrapped(indent.length() + 4).format(data)).append('\n');
+        xml.append(indent).append("</").append(elementName).append(">\n");
+    }
+
+    private static RSAPrivateKey getTestCAPrivateKey() {
+        BigInteger modulus = new BigInteger(1, Util.fromHexString(Util.removeCRLFTab(GenerateIssuerAndICCCertsMain.TEST_CA_MODULUS)));
+        BigInteger privateExponent = new BigInteger(1, Util.fromHexString(Util.removeCRLFTab(GenerateIssuerAndICCCertsMain.TEST_CA_PRIVATE_EXPONENT)));
+        try {
+            return (RSAPrivateKey) KeyFactory.getInstance("RSA").generatePrivate(new RSAPrivateKeySpec(modulus, privateExponent));
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static class Issuer {
+
+        String bin;
+        RSAKeyGenerator.RSAKeyPair keyPair;
+        byte[] certificate;
+        byte[] remainder;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.Terminal;
+import sasc.terminal.TerminalException;
+import sasc.util.Hex;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Replays a recorded APDU trace.
+ *
+ * The trace is a text file with one item per line:
+ *
+ *   # comment
+ *   ATR: 3B 6E 00 00 ...
+ *   C: 00 A4 04 00 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 00
+ *   R: 6F 1A 84 0E ... 90 00
+ *
+ * Every command (C) is followed by the response (R) that the card returned.
+ *
+ * Commands are matched exactly. Commands containing terminal generated data
+ * (unpredictable numbers, dates) differ between runs, so if there is no exact
+ * match the command is matched on its header (CLA INS P1 P2). When the same
+ * command has been recorded more than once, the responses are replayed in the
+ * recorded order, and the last one is repeated.
+ *
+ * @author sasc
+ */
+public class TraceReplayConnection implements CardConnection {
+
+    private final String name;
+    private byte[] atr = null;
+    private final Map<String, Deque<byte[]>> responsesByCommand = new HashMap<String, Deque<byte[]>>();
+    private final Map<String, Deque<byte[]>> responsesByHeader = new HashMap<String, Deque<byte[]>>();
+
+    /**
+     * @param in the trace. The stream is not closed
+     * @param name used in error messages (eg the file name)
+     */
+    public TraceReplayConnection(InputStream in, String name) throws TerminalException {
+        this.name = name;
+        try {
+            parse(new BufferedReader(new InputStreamReader(in, "US-ASCII")));
+        } catch (IOException ex) {
+            throw new TerminalException(ex);
+        }
+    }
+
+    private void parse(BufferedReader reader) throws IOException, TerminalException {
+        String command = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                throw new TerminalException(name + ":" + lineNumber + ": Expected 'ATR:', 'C:' or 'R:'. Found: " + line);
+            }
+            String type = line.substring(0, colon).trim();
+            String hex = Util.removeSpaces(line.substring(colon + 1));
+            if ("ATR".equalsIgnoreCase(type)) {
+                atr = Hex.decode(hex);
+            } else if ("C".equalsIgnoreCase(type)) {
+                if (command != null) {
+                    throw new TerminalException(name + ":" + lineNumber + ": Missing response for command " + command);
+                }
+                command = hex.toUpperCase();
+                if (command.length() < 8) {
+                    throw new TerminalException(name + ":" + lineNumber + ": Invalid command length: command must be at least 4 bytes");
+                }
+            } else if ("R".equalsIgnoreCase(type)) {
+                if (command == null) {
+                    throw new TerminalException(name + ":" + lineNumber + ": Response without command");
+                }
+                byte[] response = Hex.decode(hex);
+                if (response.length < 2) {
+                    throw new TerminalException(name + ":" + lineNumber + ": Response must contain at least SW1 SW2");
+                }
+                add(responsesByCommand, command, response);
+                add(responsesByHeader, command.substring(0, 8), response);
+                command = null;
+            } else {
+                throw new TerminalException(name + ":" + lineNumber + ": Unknown item type: " + type);
+            }
+        }
+        if (atr == null) {
+            throw new TerminalException(name + ": ATR not found in trace");
+        }
+    }
+
+    private static void add(Map<String, Deque<byte[]>> map, String key, byte[] response) {
+        Deque<byte[]> responses = map.get(key);
+        if (responses == null) {
+            responses = new ArrayDeque<byte[]>();
+            map.put(key, responses);
+        }
+        responses.addLast(response);
+    }
+
+    private static byte[] next(Deque<byte[]> responses) {
+        if (responses == null) {
+            return null;
+        }
+        return responses.size() > 1 ? responses.removeFirst() : responses.peekFirst();
+    }
+
+    @Override
+    public CardResponse transmit(byte[] cmd) throws TerminalException {
+        if (cmd == null || cmd.length < 4) {
+            throw new TerminalException("Invalid command length: command must be at least 4 bytes");
+        }
+        String cmdStr = Hex.encodeUpperCase(cmd);
+        byte[] response = next(responsesByCommand.get(cmdStr));
+        if (response == null) {
+            response = next(responsesByHeader.get(cmdStr.substring(0, 8)));
+        }
+        if (response == null) {
+            throw new TerminalException(name + ": No recorded response for command: " + cmdStr);
+        }
+        Log.debug("Trace response:: " + Util.prettyPrintHex(response));
+        return new CardResponseImpl(response);
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public byte[] getATR() {
+        return atr;
+    }
+
+    @Override
+    public Terminal getTerminal() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return "APDU Trace " + name;
+    }
+
+    @Override
+    public String getProtocol() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public void resetCard() throws TerminalException {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    @Override
+    public boolean disconnect(boolean attemptReset) throws TerminalException {
+        return false;
+    }
+
+    private static class CardResponseImpl implements CardResponse {
+
+        private final byte[] response;
+
+        CardResponseImpl(byte[] response) {
+            this.response = response;
+        }
+
+        @Override
+        public byte[] getData() {
+            byte[] data = new byte[response.length - 2];
+            System.arraycopy(response, 0, data, 0, data.length);
+            return data;
+        }
+
+        @Override
+        public byte getSW1() {
+            return response[response.length - 2];
+        }
+
+        @Override
+        public byte getSW2() {
+            return response[response.length - 1];
+        }
+
+        @Override
+        public short getSW() {
+            return Util.byte2Short(getSW1(), getSW2());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import sasc.archive.CardQuery.Field;
+
+/**
+ * A card read, as stored in a CardArchive.
+ *
+ * The card is kept in the JSON form written by CardExporter:
+ *   {"source":"cards/visa.xml","readAt":"2026-10-18T12:00:00Z","card":{...}}
+ *
+ * @author sasc
+ */
+public final class ArchivedCard {
+
+    private final long timestamp;
+    private final String source;
+    private final Map<Field, Set<String>> keys;
+    private final String json;
+
+    ArchivedCard(long timestamp, String source, Map<Field, Set<String>> keys, String json) {
+        this.timestamp = timestamp;
+        this.source = source;
+        this.keys = Collections.unmodifiableMap(keys);
+        this.json = json;
+    }
+
+    /**
+     * @return the time the card was read (millis since the epoch)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the values of the indexed fields
+     */
+    public Map<Field, Set<String>> getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the card as a JSON object (a single line)
+     */
+    public String getJson() {
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchivedCard[source=" + source + ", timestamp=" + timestamp + ", keys=" + keys + "]";
+    }
+}
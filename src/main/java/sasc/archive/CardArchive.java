@@ -0,0 +1,643 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import sasc.archive.CardQuery.Field;
+import sasc.export.CardExporter;
+import sasc.export.JsonLinesWriter;
+import sasc.export.StructuredWriter;
+import sasc.smartcard.common.SmartCard;
+
+/**
+ * An append-only archive of card reads, stored in a directory of segment files.
+ *
+ * Cards are appended to the current segment. When the segment is full (or the
+ * archive is closed), it is sealed: an index is written in its footer, and the
+ * segment is not modified again. The index has, for each indexed field (see
+ * CardQuery.Field), the entries with each value, and the read time of each entry.
+ *
+ * When the archive is opened, only a summary of each segment is kept in memory:
+ * the distinct values of the indexed fields, and the time range. A query reads
+ * the index and entries of the segments that may match, and skips the others.
+ *
+ * Segment file layout:
+ *   header:  "SASCARC1"
+ *   entries: [int length][int crc32][timestamp, source, index keys, card JSON (UTF-8)]
+ *   footer:  [index][long index offset][int index length][int index crc32]"SASCIDX1"
+ *
+ * A segment without a valid footer (eg the process was killed while writing)
+ * is recovered when the archive is opened: the entries are read up to the first
+ * incomplete one, and the segment is sealed.
+ *
+ * Only one CardArchive may write to a directory at a time: open() locks the file
+ * "archive.lock" in the directory until the archive is closed. An archive opened
+ * with openReadOnly() does not take the lock and never writes, so it can be queried
+ * while it is written to: the unsealed segments are read up to their last complete
+ * entry. This class is thread safe.
+ *
+ * @author sasc
+ */
+public class CardArchive implements Closeable {
+
+    public static final int DEFAULT_MAX_SEGMENT_ENTRIES = 16 * 1024;
+    public static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private static final byte[] SEGMENT_MAGIC = "SASCARC1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FOOTER_MAGIC = "SASCIDX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int TRAILER_LENGTH = 8 + 4 + 4 + 8;
+    private static final int ENTRY_HEADER_LENGTH = 4 + 4;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{8})\\.seg");
+    private static final String LOCK_FILE_NAME = "archive.lock";
+
+    private final File dir;
+    private final boolean readOnly;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int maxSegmentEntries = DEFAULT_MAX_SEGMENT_ENTRIES;
+    private int nextSegmentNumber = 1;
+    private long numCards = 0;
+
+    //The segment being written, if any
+    private Segment current = null;
+    private SegmentIndex currentIndex = null;
+    private FileOutputStream currentFile = null;
+    private DataOutputStream currentOut = null;
+    private long currentPosition = 0;
+    private boolean closed = false;
+
+    //Held by the writer until the archive is closed
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+
+    /**
+     * The summary of a segment: the distinct values of the indexed fields, and the time range
+     */
+    private static final class Segment {
+
+        private final File file;
+        private int numEntries;
+        private long minTimestamp;
+        private long maxTimestamp;
+        private Map<Field, String[]> values;
+        //The index of an unsealed segment in a read only archive (the others are in the footer)
+        private SegmentIndex unsealedIndex = null;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+
+        private void summarize(SegmentIndex index) {
+            numEntries = index.getNumEntries();
+            minTimestamp = index.getMinTimestamp();
+            maxTimestamp = index.getMaxTimestamp();
+            values = index.getValues();
+        }
+
+        private boolean mayMatch(CardQuery query) {
+            if (numEntries == 0 || maxTimestamp < query.getReadAfter() || minTimestamp >= query.getReadBefore()) {
+                return false;
+            }
+            for (Map.Entry<Field, Set<String>> condition : query.getConditions().entrySet()) {
+                String[] segmentValues = values.get(condition.getKey());
+                if (segmentValues == null) {
+                    return false;
+                }
+                boolean found = false;
+                for (String value : condition.getValue()) {
+                    if (Arrays.binarySearch(segmentValues, value) >= 0) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The cards found by a query, and the number of segments read
+     */
+    public static final class QueryResult {
+
+        private final List<ArchivedCard> cards;
+        private final int numSegments;
+        private final int numSegmentsScanned;
+
+        private QueryResult(List<ArchivedCard> cards, int numSegments, int numSegmentsScanned) {
+            this.cards = Collections.unmodifiableList(cards);
+            this.numSegments = numSegments;
+            this.numSegmentsScanned = numSegmentsScanned;
+        }
+
+        public List<ArchivedCard> getCards() {
+            return cards;
+        }
+
+        public int getNumSegments() {
+            return numSegments;
+        }
+
+        /**
+         * @return the number of segments whose index and entries were read
+         */
+        public int getNumSegmentsScanned() {
+            return numSegmentsScanned;
+        }
+    }
+
+    private CardArchive(File dir, boolean readOnly) {
+        this.dir = dir;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Opens the archive in the directory for writing, creating the directory if needed
+     *
+     * @throws IOException if the archive is already open for writing (by this or another process)
+     */
+    public static CardArchive open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create archive directory: " + dir);
+        }
+        CardArchive archive = new CardArchive(dir, false);
+        archive.lock();
+        try {
+            archive.readSegments();
+        } catch (IOException ex) {
+            archive.unlock();
+            throw ex;
+        }
+        return archive;
+    }
+
+    /**
+     * Opens the archive in the directory for queries. The files are not modified,
+     * and the archive may be written to (by another process) at the same time
+     */
+    public static CardArchive openReadOnly(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("Archive directory not found: " + dir);
+        }
+        CardArchive archive = new CardArchive(dir, true);
+        archive.readSegments();
+        return archive;
+    }
+
+    private void lock() throws IOException {
+        lockFile = new RandomAccessFile(new File(dir, LOCK_FILE_NAME), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            //Locked by this process
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            lockFile = null;
+            throw new IOException("Archive is already open for writing: " + dir);
+        }
+    }
+
+    private void unlock() throws IOException {
+        if (lockFile != null) {
+            //Closing the channel releases the lock
+            lockFile.close();
+            lockFile = null;
+            lock = null;
+        }
+    }
+
+    private void readSegments() throws IOException {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            Segment segment = new Segment(file);
+            SegmentIndex index = readIndex(file);
+            if (index == null) {
+                if (readOnly) {
+                    index = readUnsealed(file);
+                    segment.unsealedIndex = index;
+                } else {
+                    index = recover(file);
+                }
+            }
+            segment.summarize(index);
+            segments.add(segment);
+            numCards += index.getNumEntries();
+            nextSegmentNumber = Math.max(nextSegmentNumber, Integer.parseInt(matcher.group(1)) + 1);
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Sets the number of entries after which a segment is sealed
+     */
+    public synchronized void setMaxSegmentEntries(int maxSegmentEntries) {
+        if (maxSegmentEntries < 1) {
+            throw new IllegalArgumentException("Param 'maxSegmentEntries' must be >= 1: " + maxSegmentEntries);
+        }
+        this.maxSegmentEntries = maxSegmentEntries;
+    }
+
+    public synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    public synchronized long getNumCards() {
+        return numCards;
+    }
+
+    /**
+     * Appends a card read
+     *
+     * @param source where the card was read from (eg a file name or a terminal name)
+     * @param timestamp the time the card was read (millis since the epoch)
+     */
+    public void append(SmartCard card, String source, long timestamp) throws IOException {
+        if (card == null || source == null) {
+            throw new IllegalArgumentException("Arguments 'card' and 'source' cannot be null");
+        }
+        //Encode outside the lock
+        Map<Field, Set<String>> keys = IndexKeys.getKeys(card);
+        byte[] entry = encodeEntry(timestamp, source, keys, toJson(card, source, timestamp));
+        synchronized (this) {
+            checkNotClosed();
+            if (readOnly) {
+                throw new IOException("Archive opened read only: " + dir);
+            }
+            if (current == null) {
+                startSegment();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(entry);
+            long offset = currentPosition;
+            currentOut.writeInt(entry.length);
+            currentOut.writeInt((int) crc.getValue());
+            currentOut.write(entry);
+            currentPosition += ENTRY_HEADER_LENGTH + entry.length;
+            currentIndex.add(offset, timestamp, keys);
+            numCards++;
+            if (currentIndex.getNumEntries() >= maxSegmentEntries || currentPosition >= MAX_SEGMENT_BYTES) {
+                sealCurrentSegment();
+            }
+        }
+    }
+
+    /**
+     * Finds the cards matching the query, in the order they were appended
+     */
+    public synchronized QueryResult query(CardQuery query) throws IOException {
+        checkNotClosed();
+        if (currentOut != null) {
+            currentOut.flush();
+            current.summarize(currentIndex);
+        }
+        List<ArchivedCard> cards = new ArrayList<ArchivedCard>();
+        int numScanned = 0;
+        for (Segment segment : segments) {
+            if (cards.size() >= query.getLimit()) {
+                break;
+            }
+            if (!segment.mayMatch(query)) {
+                continue;
+            }
+            numScanned++;
+            SegmentIndex index = segment == current ? currentIndex
+                    : segment.unsealedIndex != null ? segment.unsealedIndex : readIndex(segment.file);
+            if (index == null) {
+                throw new IOException("Segment index missing: " + segment.file);
+            }
+            int[] entries = index.match(query);
+            if (entries.length == 0) {
+                continue;
+            }
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                for (int entry : entries) {
+                    if (cards.size() >= query.getLimit()) {
+                        break;
+                    }
+                    cards.add(readEntry(file, index.getOffset(entry)));
+                }
+            } finally {
+                file.close();
+            }
+        }
+        return new QueryResult(cards, segments.size(), numScanned);
+    }
+
+    public synchronized void flush() throws IOException {
+        if (currentOut != null) {
+            currentOut.flush();
+        }
+    }
+
+    /**
+     * Seals the current segment, and releases the lock
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (current != null) {
+                sealCurrentSegment();
+            }
+        } finally {
+            closed = true;
+            unlock();
+        }
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Archive closed: " + dir);
+        }
+    }
+
+    private void startSegment() throws IOException {
+        File file = new File(dir, String.format("segment-%08d.seg", nextSegmentNumber++));
+        if (file.exists()) {
+            throw new IOException("Segment already exists: " + file);
+        }
+        currentFile = new FileOutputStream(file);
+        currentOut = new DataOutputStream(new BufferedOutputStream(currentFile, 64 * 1024));
+        currentOut.write(SEGMENT_MAGIC);
+        currentPosition = SEGMENT_MAGIC.length;
+        currentIndex = new SegmentIndex();
+        current = new Segment(file);
+        current.summarize(currentIndex);
+        segments.add(current);
+    }
+
+    private void sealCurrentSegment() throws IOException {
+        try {
+            writeFooter(currentOut, currentIndex, currentPosition);
+            currentOut.flush();
+            currentFile.getChannel().force(true);
+        } finally {
+            currentOut.close();
+        }
+        current.summarize(currentIndex);
+        current = null;
+        currentIndex = null;
+        currentFile = null;
+        currentOut = null;
+    }
+
+    private static void writeFooter(DataOutputStream out, SegmentIndex index, long indexOffset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes));
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        bytes.writeTo(out);
+        out.writeLong(indexOffset);
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        out.write(FOOTER_MAGIC);
+    }
+
+    /**
+     * @return the index in the footer, or null if the segment has not been sealed
+     */
+    private static SegmentIndex readIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < SEGMENT_MAGIC.length + TRAILER_LENGTH) {
+                return null;
+            }
+            raf.seek(length - TRAILER_LENGTH);
+            long indexOffset = raf.readLong();
+            int indexLength = raf.readInt();
+            int indexCrc = raf.readInt();
+            byte[] magic = new byte[FOOTER_MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, FOOTER_MAGIC) || indexOffset < SEGMENT_MAGIC.length || indexOffset + indexLength != length - TRAILER_LENGTH) {
+                return null;
+            }
+            byte[] indexBytes = new byte[indexLength];
+            raf.seek(indexOffset);
+            raf.readFully(indexBytes);
+            CRC32 crc = new CRC32();
+            crc.update(indexBytes);
+            if ((int) crc.getValue() != indexCrc) {
+                throw new IOException("Corrupt segment index: " + file);
+            }
+            return SegmentIndex.read(new DataInputStream(new ByteArrayInputStream(indexBytes)));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Rebuilds the index of an unsealed segment, drops an incomplete last entry, and seals the segment
+     */
+    private static SegmentIndex recover(File file) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < SEGMENT_MAGIC.length) {
+                //Crashed before the header was written
+                raf.setLength(0);
+                raf.write(SEGMENT_MAGIC);
+            } else {
+                checkSegmentMagic(raf, file);
+            }
+            long position = readEntries(raf, index);
+            raf.setLength(position);
+            raf.seek(position);
+            ByteArrayOutputStream footer = new ByteArrayOutputStream();
+            writeFooter(new DataOutputStream(footer), index, position);
+            raf.write(footer.toByteArray());
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+        return index;
+    }
+
+    /**
+     * Rebuilds the index of an unsealed segment up to the last complete entry, without modifying the segment
+     */
+    private static SegmentIndex readUnsealed(File file) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() >= SEGMENT_MAGIC.length) {
+                //Else the writer has not written the header yet
+                checkSegmentMagic(raf, file);
+                readEntries(raf, index);
+            }
+        } finally {
+            raf.close();
+        }
+        return index;
+    }
+
+    private static void checkSegmentMagic(RandomAccessFile raf, File file) throws IOException {
+        byte[] magic = new byte[SEGMENT_MAGIC.length];
+        raf.seek(0);
+        raf.readFully(magic);
+        if (!Arrays.equals(magic, SEGMENT_MAGIC)) {
+            throw new IOException("Not an archive segment: " + file);
+        }
+    }
+
+    /**
+     * Adds the entries up to the first incomplete one to the index
+     *
+     * @return the position after the last complete entry
+     */
+    private static long readEntries(RandomAccessFile raf, SegmentIndex index) throws IOException {
+        long position = SEGMENT_MAGIC.length;
+        long length = raf.length();
+        while (position + ENTRY_HEADER_LENGTH <= length) {
+            raf.seek(position);
+            int entryLength = raf.readInt();
+            int entryCrc = raf.readInt();
+            if (entryLength < 0 || position + ENTRY_HEADER_LENGTH + entryLength > length) {
+                break;
+            }
+            byte[] entry = new byte[entryLength];
+            raf.readFully(entry);
+            CRC32 crc = new CRC32();
+            crc.update(entry);
+            if ((int) crc.getValue() != entryCrc) {
+                break;
+            }
+            ArchivedCard card = decodeEntry(entry);
+            index.add(position, card.getTimestamp(), card.getKeys());
+            position += ENTRY_HEADER_LENGTH + entryLength;
+        }
+        return position;
+    }
+
+    private static ArchivedCard readEntry(RandomAccessFile file, long offset) throws IOException {
+        file.seek(offset);
+        int entryLength = file.readInt();
+        int entryCrc = file.readInt();
+        byte[] entry = new byte[entryLength];
+        file.readFully(entry);
+        CRC32 crc = new CRC32();
+        crc.update(entry);
+        if ((int) crc.getValue() != entryCrc) {
+            throw new IOException("Corrupt entry at offset " + offset);
+        }
+        return decodeEntry(entry);
+    }
+
+    private static byte[] encodeEntry(long timestamp, String source, Map<Field, Set<String>> keys, String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(timestamp);
+        out.writeUTF(source);
+        out.writeByte(keys.size());
+        for (Map.Entry<Field, Set<String>> key : keys.entrySet()) {
+            out.writeByte(key.getKey().ordinal());
+            out.writeShort(key.getValue().size());
+            for (String value : key.getValue()) {
+                out.writeUTF(value);
+            }
+        }
+        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(jsonBytes.length);
+        out.write(jsonBytes);
+        return bytes.toByteArray();
+    }
+
+    private static ArchivedCard decodeEntry(byte[] entry) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        try {
+            long timestamp = in.readLong();
+            String source = in.readUTF();
+            Map<Field, Set<String>> keys = new EnumMap<Field, Set<String>>(Field.class);
+            int numFields = in.readUnsignedByte();
+            for (int f = 0; f < numFields; f++) {
+                int ordinal = in.readUnsignedByte();
+                if (ordinal >= Field.values().length) {
+                    throw new IOException("Unknown field in entry: " + ordinal);
+                }
+                Set<String> values = new TreeSet<String>();
+                int numValues = in.readUnsignedShort();
+                for (int v = 0; v < numValues; v++) {
+                    values.add(in.readUTF());
+                }
+                keys.put(Field.values()[ordinal], values);
+            }
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            return new ArchivedCard(timestamp, source, keys, new String(json, StandardCharsets.UTF_8));
+        } catch (EOFException ex) {
+            throw new IOException("Truncated entry", ex);
+        }
+    }
+
+    private static String toJson(SmartCard card, String source, long timestamp) throws IOException {
+        StringWriter json = new StringWriter(4096);
+        CardExporter exporter = new CardExporter(new JsonLinesWriter(json));
+        StructuredWriter writer = exporter.getWriter();
+        writer.beginObject();
+        writer.name("source").value(source);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        writer.name("readAt").value(format.format(new Date(timestamp)));
+        writer.name("card");
+        exporter.writeCardObject(card);
+        writer.endObject();
+        return json.toString();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * A query on a CardArchive.
+ *
+ * A card matches if, for every field in the query, one of the card's values
+ * for that field is one of the values in the query, and if it was read in
+ * the time range. Values of different fields may come from different
+ * applications on the card.
+ *
+ * Example: all cards from IIN 476173 with failed SDA, read in the last week
+ *
+ *   CardQuery query = new CardQuery()
+ *           .where(CardQuery.Field.IIN, "476173")
+ *           .where(CardQuery.Field.ODA, CardQuery.OdaOutcome.SDA_FAILED.name())
+ *           .readAfter(System.currentTimeMillis() - 7 * 24 * 3600 * 1000L);
+ *
+ * @author sasc
+ */
+public class CardQuery {
+
+    /**
+     * The indexed fields. The values are strings:
+     *
+     * IIN: the first 6 digits of the PAN
+     * AID, RID, ATR: hex, upper case, no spaces
+     * EXPIRY_MONTH: YYYY-MM
+     * ODA: the name of an OdaOutcome
+     */
+    public enum Field {
+        IIN, AID, RID, ATR, EXPIRY_MONTH, ODA;
+
+        public static Field fromName(String name) {
+            for (Field field : values()) {
+                if (field.name().equalsIgnoreCase(name) || field.name().replace("_", "").equalsIgnoreCase(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field: " + name);
+        }
+    }
+
+    /**
+     * The outcome of offline data authentication of an application, as performed
+     * when the card was read
+     */
+    public enum OdaOutcome {
+        NOT_PERFORMED, SDA_OK, SDA_FAILED, DDA_OK, DDA_FAILED
+    }
+
+    private final Map<Field, Set<String>> conditions = new EnumMap<Field, Set<String>>(Field.class);
+    private long readAfter = Long.MIN_VALUE;
+    private long readBefore = Long.MAX_VALUE;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * Adds a value for the field. Values for the same field are alternatives
+     */
+    public CardQuery where(Field field, String value) {
+        if (field == null || value == null) {
+            throw new IllegalArgumentException("Arguments 'field' and 'value' cannot be null");
+        }
+        Set<String> values = conditions.get(field);
+        if (values == null) {
+            values = new TreeSet<String>();
+            conditions.put(field, values);
+        }
+        values.add(normalize(field, value));
+        return this;
+    }
+
+    /**
+     * Only cards read at or after the time (millis since the epoch)
+     */
+    public CardQuery readAfter(long millis) {
+        this.readAfter = millis;
+        return this;
+    }
+
+    /**
+     * Only cards read before the time (millis since the epoch)
+     */
+    public CardQuery readBefore(long millis) {
+        this.readBefore = millis;
+        return this;
+    }
+
+    public CardQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must be >= 0: " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public Map<Field, Set<String>> getConditions() {
+        return Collections.unmodifiableMap(conditions);
+    }
+
+    public long getReadAfter() {
+        return readAfter;
+    }
+
+    public long getReadBefore() {
+        return readBefore;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    boolean matchesTime(long timestamp) {
+        return timestamp >= readAfter && timestamp < readBefore;
+    }
+
+    static String normalize(Field field, String value) {
+        switch (field) {
+            case AID:
+            case RID:
+            case ATR:
+                return value.replace(" ", "").replace(":", "").toUpperCase(Locale.ENGLISH);
+            case ODA:
+                return value.toUpperCase(Locale.ENGLISH);
+            default:
+                return value.trim();
+        }
+    }
+
+    /**
+     * Parses a query of the form "field=value,field=value,...", as used on the command line.
+     *
+     * The fields are the Field names (case insensitive, eg iin, aid, expirymonth, oda),
+     * and "since" and "until" with a date (YYYY-MM-DD, UTC) or a number of days ago (eg since=7d)
+     */
+    public static CardQuery parse(String expression) {
+        CardQuery query = new CardQuery();
+        if (expression == null || expression.trim().isEmpty()) {
+            return query;
+        }
+        for (String condition : expression.split(",")) {
+            int separator = condition.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid condition (expected field=value): " + condition);
+            }
+            String name = condition.substring(0, separator).trim();
+            String value = condition.substring(separator + 1).trim();
+            if ("since".equalsIgnoreCase(name)) {
+                query.readAfter(parseTime(value));
+            } else if ("until".equalsIgnoreCase(name)) {
+                query.readBefore(parseTime(value));
+            } else if ("limit".equalsIgnoreCase(name)) {
+                query.limit(Integer.parseInt(value));
+            } else {
+                query.where(Field.fromName(name), value);
+            }
+        }
+        return query;
+    }
+
+    private static long parseTime(String value) {
+        if (value.endsWith("d")) {
+            long days = Long.parseLong(value.substring(0, value.length() - 1));
+            return System.currentTimeMillis() - days * 24 * 60 * 60 * 1000L;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Invalid date (expected YYYY-MM-DD or <days>d): " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CardQuery[" + conditions + ", readAfter=" + readAfter + ", readBefore=" + readBefore + ", limit=" + limit + "]";
+    }
+}
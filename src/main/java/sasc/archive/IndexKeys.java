@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.util.Calendar;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import sasc.archive.CardQuery.Field;
+import sasc.archive.CardQuery.OdaOutcome;
+import sasc.emv.EMVApplication;
+import sasc.emv.ICCPublicKeyCertificate;
+import sasc.emv.SignedDynamicApplicationData;
+import sasc.emv.SignedStaticApplicationData;
+import sasc.iso7816.ATR;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Hex;
+
+/**
+ * Extracts the values of the indexed fields from a card
+ *
+ * @author sasc
+ */
+final class IndexKeys {
+
+    private IndexKeys() {
+        throw new UnsupportedOperationException("Not allowed to instantiate");
+    }
+
+    static Map<Field, Set<String>> getKeys(SmartCard card) {
+        Map<Field, Set<String>> keys = new EnumMap<Field, Set<String>>(Field.class);
+        for (ATR atr : card.getATRs()) {
+            add(keys, Field.ATR, Hex.encodeUpperCase(atr.getBytes()));
+        }
+        Calendar calendar = Calendar.getInstance();
+        for (EMVApplication app : card.getEmvApplications()) {
+            if (app.getAID() != null) {
+                add(keys, Field.AID, Hex.encodeUpperCase(app.getAID().getAIDBytes()));
+                add(keys, Field.RID, Hex.encodeUpperCase(app.getAID().getRIDBytes()));
+            }
+            if (app.getPAN() != null) {
+                String pan = app.getPAN().getPanAsString();
+                if (pan.length() >= 6) {
+                    add(keys, Field.IIN, pan.substring(0, 6));
+                }
+            }
+            if (app.getExpirationDate() != null) {
+                calendar.setTime(app.getExpirationDate());
+                add(keys, Field.EXPIRY_MONTH, String.format("%04d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1));
+            }
+            add(keys, Field.ODA, getOdaOutcome(app).name());
+        }
+        return keys;
+    }
+
+    /**
+     * Follows the order used by EMVSession: DDA if the card returned
+     * Signed Dynamic Application Data (or the ICC certificate failed), else SDA
+     */
+    static OdaOutcome getOdaOutcome(EMVApplication app) {
+        SignedDynamicApplicationData sdad = app.getSignedDynamicApplicationData();
+        if (sdad != null) {
+            return sdad.isValid() ? OdaOutcome.DDA_OK : OdaOutcome.DDA_FAILED;
+        }
+        ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+        boolean ddaSupported = app.getApplicationInterchangeProfile() != null && app.getApplicationInterchangeProfile().isDDASupported();
+        if (ddaSupported && iccCert != null && !iccCert.validate()) {
+            return OdaOutcome.DDA_FAILED;
+        }
+        SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+        if (ssad != null) {
+            return ssad.validate() ? OdaOutcome.SDA_OK : OdaOutcome.SDA_FAILED;
+        }
+        if (app.getApplicationInterchangeProfile() != null && app.getApplicationInterchangeProfile().isSDASupported()) {
+            //SDA supported, but the data is missing
+            return OdaOutcome.SDA_FAILED;
+        }
+        return OdaOutcome.NOT_PERFORMED;
+    }
+
+    private static void add(Map<Field, Set<String>> keys, Field field, String value) {
+        Set<String> values = keys.get(field);
+        if (values == null) {
+            values = new TreeSet<String>();
+            keys.put(field, values);
+        }
+        values.add(value);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import sasc.archive.CardQuery.Field;
+
+/**
+ * The index of a segment: the position and read time of each entry, and for each
+ * indexed field, the entries having each value (posting lists, in entry order).
+ *
+ * Written in the segment footer when the segment is sealed.
+ *
+ * @author sasc
+ */
+final class SegmentIndex {
+
+    private int numEntries = 0;
+    private long[] offsets = new long[64];
+    private long[] timestamps = new long[64];
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private final Map<Field, TreeMap<String, Postings>> postings = new EnumMap<Field, TreeMap<String, Postings>>(Field.class);
+
+    private static final class Postings {
+
+        private int[] entries = new int[4];
+        private int size = 0;
+
+        private void add(int entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+        }
+    }
+
+    void add(long offset, long timestamp, Map<Field, Set<String>> keys) {
+        if (numEntries == offsets.length) {
+            offsets = Arrays.copyOf(offsets, numEntries * 2);
+            timestamps = Arrays.copyOf(timestamps, numEntries * 2);
+        }
+        int entry = numEntries++;
+        offsets[entry] = offset;
+        timestamps[entry] = timestamp;
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        for (Map.Entry<Field, Set<String>> key : keys.entrySet()) {
+            TreeMap<String, Postings> values = getValues(key.getKey());
+            for (String value : key.getValue()) {
+                Postings entries = values.get(value);
+                if (entries == null) {
+                    entries = new Postings();
+                    values.put(value, entries);
+                }
+                entries.add(entry);
+            }
+        }
+    }
+
+    private TreeMap<String, Postings> getValues(Field field) {
+        TreeMap<String, Postings> values = postings.get(field);
+        if (values == null) {
+            values = new TreeMap<String, Postings>();
+            postings.put(field, values);
+        }
+        return values;
+    }
+
+    int getNumEntries() {
+        return numEntries;
+    }
+
+    long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * @return the distinct values of each field, for the segment summary
+     */
+    Map<Field, String[]> getValues() {
+        Map<Field, String[]> values = new EnumMap<Field, String[]>(Field.class);
+        for (Map.Entry<Field, TreeMap<String, Postings>> entry : postings.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().keySet().toArray(new String[entry.getValue().size()]));
+        }
+        return values;
+    }
+
+    /**
+     * @return the matching entries, in entry order
+     */
+    int[] match(CardQuery query) {
+        BitSet result = new BitSet(numEntries);
+        result.set(0, numEntries);
+        for (Map.Entry<Field, Set<String>> condition : query.getConditions().entrySet()) {
+            TreeMap<String, Postings> values = postings.get(condition.getKey());
+            BitSet matching = new BitSet(numEntries);
+            if (values != null) {
+                for (String value : condition.getValue()) {
+                    Postings entries = values.get(value);
+                    if (entries != null) {
+                        for (int i = 0; i < entries.size; i++) {
+                            matching.set(entries.entries[i]);
+                        }
+                    }
+                }
+            }
+            result.and(matching);
+        }
+        int[] entries = new int[result.cardinality()];
+        int n = 0;
+        for (int entry = result.nextSetBit(0); entry >= 0; entry = result.nextSetBit(entry + 1)) {
+            if (query.matchesTime(timestamps[entry])) {
+                entries[n++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, n);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(numEntries);
+        for (int i = 0; i < numEntries; i++) {
+            out.writeLong(offsets[i]);
+            out.writeLong(timestamps[i]);
+        }
+        out.writeByte(postings.size());
+        for (Map.Entry<Field, TreeMap<String, Postings>> field : postings.entrySet()) {
+            out.writeByte(field.getKey().ordinal());
+            out.writeInt(field.getValue().size());
+            for (Map.Entry<String, Postings> value : field.getValue().entrySet()) {
+                out.writeUTF(value.getKey());
+                Postings entries = value.getValue();
+                out.writeInt(entries.size);
+                for (int i = 0; i < entries.size; i++) {
+                    out.writeInt(entries.entries[i]);
+                }
+            }
+        }
+    }
+
+    static SegmentIndex read(DataInput in) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        int numEntries = in.readInt();
+        index.offsets = new long[Math.max(numEntries, 1)];
+        index.timestamps = new long[Math.max(numEntries, 1)];
+        for (int i = 0; i < numEntries; i++) {
+            index.offsets[i] = in.readLong();
+            long timestamp = in.readLong();
+            index.timestamps[i] = timestamp;
+            index.minTimestamp = Math.min(index.minTimestamp, timestamp);
+            index.maxTimestamp = Math.max(index.maxTimestamp, timestamp);
+        }
+        index.numEntries = numEntries;
+        int numFields = in.readUnsignedByte();
+        for (int f = 0; f < numFields; f++) {
+            int ordinal = in.readUnsignedByte();
+            if (ordinal >= Field.values().length) {
+                throw new IOException("Unknown field in segment index: " + ordinal);
+            }
+            TreeMap<String, Postings> values = index.getValues(Field.values()[ordinal]);
+            int numValues = in.readInt();
+            for (int v = 0; v < numValues; v++) {
+                String value = in.readUTF();
+                Postings entries = new Postings();
+                entries.size = in.readInt();
+                entries.entries = new int[Math.max(entries.size, 1)];
+                for (int i = 0; i < entries.size; i++) {
+                    int entry = in.readInt();
+                    if (entry < 0 || entry >= numEntries) {
+                        throw new IOException("Invalid entry in segment index: " + entry);
+                    }
+                    entries.entries[i] = entry;
+                }
+                values.put(value, entries);
+            }
+        }
+        return index;
+    }
+}
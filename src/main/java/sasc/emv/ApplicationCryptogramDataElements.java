@@ -15,10 +15,87 @@
  */
 package sasc.emv;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import sasc.util.Log;
+import sasc.util.Util;
+
 /**
+ * The data returned by the GENERATE AC command (EMV Book 3, 6.5.5.4):
+ * Cryptogram Information Data, Application Transaction Counter,
+ * Application Cryptogram and (optionally) Issuer Application Data.
+ *
+ * If CDA was performed, the Application Cryptogram is the one recovered
+ * from the Signed Dynamic Application Data.
  *
  * @author sasc
  */
 public class ApplicationCryptogramDataElements {
-    
+
+    private final CryptogramInformationData cryptogramInformationData;
+    private final int atc;
+    private final byte[] applicationCryptogram;
+    private final byte[] issuerApplicationData;
+    private final SignedDynamicApplicationData signedDynamicApplicationData;
+
+    ApplicationCryptogramDataElements(CryptogramInformationData cryptogramInformationData, int atc, byte[] applicationCryptogram,
+            byte[] issuerApplicationData, SignedDynamicApplicationData signedDynamicApplicationData) {
+        this.cryptogramInformationData = cryptogramInformationData;
+        this.atc = atc;
+        this.applicationCryptogram = applicationCryptogram;
+        this.issuerApplicationData = issuerApplicationData;
+        this.signedDynamicApplicationData = signedDynamicApplicationData;
+    }
+
+    public CryptogramInformationData getCryptogramInformationData() {
+        return cryptogramInformationData;
+    }
+
+    public int getATC() {
+        return atc;
+    }
+
+    /**
+     * @return the Application Cryptogram, or null if it was only returned in signed data that could not be verified
+     */
+    public byte[] getApplicationCryptogram() {
+        return applicationCryptogram == null ? null : Util.copyByteArray(applicationCryptogram);
+    }
+
+    /**
+     * @return the Issuer Application Data, or null if not returned by the card
+     */
+    public byte[] getIssuerApplicationData() {
+        return issuerApplicationData == null ? null : Util.copyByteArray(issuerApplicationData);
+    }
+
+    /**
+     * @return the Signed Dynamic Application Data, or null if CDA was not performed
+     */
+    public SignedDynamicApplicationData getSignedDynamicApplicationData() {
+        return signedDynamicApplicationData;
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        dump(new PrintWriter(sw), 0);
+        return sw.toString();
+    }
+
+    public void dump(PrintWriter pw, int indent) {
+        pw.println(Util.getSpaces(indent) + "Application Cryptogram");
+        String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+        pw.println(indentStr + "Cryptogram Information Data: " + cryptogramInformationData);
+        pw.println(indentStr + "Application Transaction Counter: " + atc);
+        if (applicationCryptogram != null) {
+            pw.println(indentStr + "Application Cryptogram: " + Util.byteArrayToHexString(applicationCryptogram));
+        }
+        if (issuerApplicationData != null) {
+            pw.println(indentStr + "Issuer Application Data: " + Util.byteArrayToHexString(issuerApplicationData));
+        }
+        if (signedDynamicApplicationData != null) {
+            signedDynamicApplicationData.dump(pw, indent + Log.INDENT_SIZE);
+        }
+    }
 }
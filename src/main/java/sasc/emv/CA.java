@@ -18,11 +18,19 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.AID;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -65,26 +73,44 @@ import sasc.util.Util;
  */
 public class CA {
 
-    private static final Map<ByteArrayWrapper, CA> certificationAuthorities = new LinkedHashMap<ByteArrayWrapper, CA>();
+    //Replaced (never modified) when keys are loaded, so the sessions read it without locking
+    private static volatile CAStore store = new CAStore(0, new LinkedHashMap<ByteArrayWrapper, CA>(), CertificateRevocationList.EMPTY);
+    private static final Object STORE_LOCK = new Object();
     private byte[] rid;
     private String name;
     private String description;
-    private Map<Integer, CAPublicKey> publicKeys = publicKeys = new LinkedHashMap<Integer, CAPublicKey>();
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy", Locale.ENGLISH);
+    private Map<Integer, CAPublicKey> publicKeys = new LinkedHashMap<Integer, CAPublicKey>();
+    //Immutable and thread safe. Both "31 Dec 2015" and "31 December 2015" are accepted
+    private static final DateTimeFormatter DATE_PARSER = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive().appendPattern("dd [MMMM][MMM] yyyy").toFormatter(Locale.ENGLISH);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy", Locale.ENGLISH);
 
     static {
         _initFromFile("/certificationauthorities.xml");
     }
 
     private static void _initFromFile(String filename) {
-        certificationAuthorities.clear();
-        addFromXmlFile(filename);
+        synchronized (STORE_LOCK) {
+            Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+            parseXml(openResource(filename), cas);
+            publish(cas, store.getRevocationList());
+        }
     }
 
     private CA() {
         //Private constructor
     }
 
+    //A published CA is not modified. Keys are added to a copy
+    private CA copy() {
+        CA copy = new CA();
+        copy.rid = rid;
+        copy.name = name;
+        copy.description = description;
+        copy.publicKeys.putAll(publicKeys);
+        return copy;
+    }
+
     public static byte[] calculateCAPublicKeyCheckSum(byte[] rid, byte[] caPublicKeyIndex, byte[] caPublicKeyMod, byte[] caPublicKeyExp) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream(rid.length + caPublicKeyIndex.length + caPublicKeyMod.length + caPublicKeyExp.length);
         stream.write(rid, 0, rid.length);
@@ -148,15 +174,26 @@ public class CA {
     }
 
     public static CA getCA(byte[] rid) {
-        return certificationAuthorities.get(ByteArrayWrapper.wrapperAround(rid));
+        return store.getCA(rid);
     }
 
     public static CA getCA(AID aid) {
-        return certificationAuthorities.get(ByteArrayWrapper.wrapperAround(aid.getRIDBytes()));
+        return store.getCA(aid.getRIDBytes());
     }
 
     public static Collection<CA> getCAs() {
-        return Collections.unmodifiableCollection(certificationAuthorities.values());
+        return store.getCAs();
+    }
+
+    /**
+     * @return the current version of the CA Public Keys and the revocation list
+     */
+    public static CAStore getStore() {
+        return store;
+    }
+
+    public static CertificateRevocationList getRevocationList() {
+        return store.getRevocationList();
     }
 
     public static void initFromFile(String fileName) {
@@ -164,10 +201,81 @@ public class CA {
     }
 
     public static void addFromXmlFile(String fileName) {
+        synchronized (STORE_LOCK) {
+            Map<ByteArrayWrapper, CA> cas = copyOf(store);
+            parseXml(openResource(fileName), cas);
+            publish(cas, store.getRevocationList());
+        }
+    }
+
+    /**
+     * Replaces all the CA Public Keys with the keys in the files (key rotation).
+     * If a file can not be read, or is not valid, the current keys are kept.
+     *
+     * @return the new store
+     * @throws IllegalArgumentException if no files are given, or the files contain no CA Public Keys
+     * (the current keys are kept)
+     */
+    public static CAStore reload(File... xmlFiles) throws IOException {
+        if (xmlFiles == null || xmlFiles.length == 0) {
+            throw new IllegalArgumentException("Param xmlFiles cannot be null or empty");
+        }
+        synchronized (STORE_LOCK) {
+            Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+            for (File xmlFile : xmlFiles) {
+                parseXml(new InputStreamReader(new FileInputStream(xmlFile), StandardCharsets.UTF_8), cas);
+            }
+            if (cas.isEmpty()) {
+                throw new IllegalArgumentException("No CA Public Keys found in " + Arrays.toString(xmlFiles));
+            }
+            return publish(cas, store.getRevocationList());
+        }
+    }
+
+    /**
+     * Installs a new Issuer Public Key Certificate revocation list
+     *
+     * @return the new store
+     */
+    public static CAStore setRevocationList(CertificateRevocationList revocationList) {
+        if (revocationList == null) {
+            throw new IllegalArgumentException("Param revocationList cannot be null");
+        }
+        synchronized (STORE_LOCK) {
+            return publish(new LinkedHashMap<ByteArrayWrapper, CA>(store.getCAMap()), revocationList);
+        }
+    }
+
+    private static CAStore publish(Map<ByteArrayWrapper, CA> cas, CertificateRevocationList revocationList) {
+        store = new CAStore(store.getVersion() + 1, cas, revocationList);
+        return store;
+    }
+
+    private static Map<ByteArrayWrapper, CA> copyOf(CAStore current) {
+        Map<ByteArrayWrapper, CA> cas = new LinkedHashMap<ByteArrayWrapper, CA>();
+        for (Map.Entry<ByteArrayWrapper, CA> entry : current.getCAMap().entrySet()) {
+            cas.put(entry.getKey(), entry.getValue().copy());
+        }
+        return cas;
+    }
+
+    private static Reader openResource(String fileName) {
+        InputStream is = Util.loadResource(CA.class, fileName);
+        if (is == null) {
+            throw new RuntimeException("Resource not found: " + fileName);
+        }
+        return new InputStreamReader(is, StandardCharsets.UTF_8);
+    }
+
+    private static void parseXml(Reader reader, Map<ByteArrayWrapper, CA> certificationAuthorities) {
         try {
             XMLElement certificationAuthoritiesElement = new XMLElement();
-            certificationAuthoritiesElement.parseFromReader(new InputStreamReader(Util.loadResource(CA.class, fileName), "UTF-8"));
-            
+            try {
+                certificationAuthoritiesElement.parseFromReader(reader);
+            } finally {
+                reader.close();
+            }
+
             if (!"CertificationAuthorities".equalsIgnoreCase(certificationAuthoritiesElement.getName())) {
                 throw new RuntimeException("Unexpected Root Element: <" + certificationAuthoritiesElement.getName() + "> . Expected <CertificationAuthorities>");
             }
@@ -178,7 +286,7 @@ public class CA {
                     throw new SmartCardException("Unexpected RID length: " + rid.length + ". Length must be 5 bytes. RID=" + Util.prettyPrintHexNoWrap(rid));
                 }
 
-                CA ca = CA.getCA(rid);
+                CA ca = certificationAuthorities.get(ByteArrayWrapper.wrapperAround(rid));
                 if(ca == null){
                     ca = new CA();
                     ca.setRID(rid);
@@ -230,8 +338,8 @@ public class CA {
                             }
                             Date expirationDate = null;
                             try {
-                                expirationDate = DATE_FORMAT.parse(expirationDateStr);
-                            } catch (ParseException ex) {
+                                expirationDate = Date.from(LocalDate.parse(expirationDateStr, DATE_PARSER).atStartOfDay(ZoneId.systemDefault()).toInstant());
+                            } catch (DateTimeParseException ex) {
                                 throw new SmartCardException("Expiration date not valid. Must be in the format dd MMM yyyy, (where MMM is the english name of the month), but was: "+expirationDateStr);
                             }
                             CAPublicKey pk = new CAPublicKey(index, exp, mod, sha1ChecksumResult, publicKeyAlgorithmIndicator, hashAlgorithmIndicator, description, expirationDate);
@@ -275,7 +383,7 @@ public class CA {
             for(CAPublicKey caPublicKey : ca.getCAPublicKeys()) {
                 sb.append("            ").append("<PublicKey index=\"").append(caPublicKey.getIndex()).append("\"> <!-- 0x").append(Util.int2Hex(caPublicKey.getIndex())).append(" -->\n");
                 sb.append("                ").append("<Description>").append(caPublicKey.getDescription()).append("</Description>\n");
-                sb.append("                ").append("<ExpirationDate>").append(DATE_FORMAT.format(caPublicKey.getExpirationDate())).append("</ExpirationDate>\n");
+                sb.append("                ").append("<ExpirationDate>").append(DATE_FORMAT.format(caPublicKey.getExpirationDate().toInstant().atZone(ZoneId.systemDefault()))).append("</ExpirationDate>\n");
                 sb.append("                ").append("<Exponent>").append(Util.prettyPrintHexNoWrap(caPublicKey.getExponent())).append("</Exponent>\n");
                 sb.append("                ").append("<Modulus>\n");
                 sb.append("                    ").append(Util.prettyPrintHex(caPublicKey.getModulus(), 20)).append("\n");   
@@ -108,11 +108,11 @@ public class CAPublicKey {
 
         pw.println(indentStr + "Size: "+getKeyLengthInBytes()*8+"-bit");
         pw.println(indentStr + "Exponent:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(exponent), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + "   " + Util.prettyPrintHex(exponent, indent+Log.INDENT_SIZE*2));
         pw.println(indentStr + "Modulus:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(modulus), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + "   " + Util.prettyPrintHex(modulus, indent+Log.INDENT_SIZE*2));
         pw.println(indentStr + "Checksum:");
-        pw.println(indentStr + "   " + Util.prettyPrintHex(Util.byteArrayToHexString(sha1CheckSum), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + "   " + Util.prettyPrintHex(sha1CheckSum, indent+Log.INDENT_SIZE*2));
     }
 
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import sasc.util.ByteArrayWrapper;
+
+/**
+ * A version of the terminal's Certification Authority Public Keys (RID -> CA Public
+ * Key Index -> CAPublicKey) and the Issuer Public Key Certificate revocation list.
+ *
+ * A store is never modified once published. Loading keys, or installing a new revocation
+ * list, builds a new store with the next version, which replaces the current one
+ * (see CA.getStore()). A session running while the keys are replaced keeps
+ * verifying with the keys it has already looked up.
+ *
+ * @author sasc
+ */
+public final class CAStore {
+
+    private final long version;
+    private final Map<ByteArrayWrapper, CA> certificationAuthorities;
+    private final CertificateRevocationList revocationList;
+
+    CAStore(long version, Map<ByteArrayWrapper, CA> certificationAuthorities, CertificateRevocationList revocationList) {
+        this.version = version;
+        this.certificationAuthorities = Collections.unmodifiableMap(certificationAuthorities);
+        this.revocationList = revocationList;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public CA getCA(byte[] rid) {
+        return certificationAuthorities.get(ByteArrayWrapper.wrapperAround(rid));
+    }
+
+    public Collection<CA> getCAs() {
+        return certificationAuthorities.values();
+    }
+
+    public CertificateRevocationList getRevocationList() {
+        return revocationList;
+    }
+
+    Map<ByteArrayWrapper, CA> getCAMap() {
+        return certificationAuthorities;
+    }
+
+    @Override
+    public String toString() {
+        return "CAStore[version=" + version + ", CAs=" + certificationAuthorities.size() + ", " + revocationList + "]";
+    }
+}
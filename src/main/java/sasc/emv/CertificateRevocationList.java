@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import sasc.util.ByteArrayWrapper;
+import sasc.util.Util;
+
+/**
+ * Issuer Public Key Certificate revocation list.
+ *
+ * EMV Book 2, 5.3 (step 10): Verify that the concatenation of RID, Certification
+ * Authority Public Key Index, and Certificate Serial Number is valid. If not,
+ * SDA (or DDA/CDA) has failed.
+ *
+ * The list is read from a text file with one entry per line (hex):
+ *
+ *   # RID,CA Public Key Index,Certificate Serial Number
+ *   A000000003,95,1A2B3C
+ *
+ * An instance is immutable. It is installed with CA.setRevocationList().
+ *
+ * @author sasc
+ */
+public final class CertificateRevocationList {
+
+    public static final CertificateRevocationList EMPTY = new CertificateRevocationList(Collections.<ByteArrayWrapper>emptySet());
+
+    private static final int RID_LENGTH = 5;
+    private static final int SERIAL_NUMBER_LENGTH = 3;
+
+    //RID || CA Public Key Index || Certificate Serial Number
+    private final Set<ByteArrayWrapper> entries;
+
+    private CertificateRevocationList(Set<ByteArrayWrapper> entries) {
+        this.entries = entries;
+    }
+
+    public static CertificateRevocationList fromFile(File file) throws IOException {
+        Set<ByteArrayWrapper> entries = new HashSet<ByteArrayWrapper>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                try {
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException("Expected RID,CA Public Key Index,Certificate Serial Number");
+                    }
+                    entries.add(ByteArrayWrapper.wrapperAround(key(Util.fromHexString(fields[0].trim()),
+                            Integer.parseInt(fields[1].trim(), 16), Util.fromHexString(fields[2].trim()))));
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(file + ", line " + lineNumber + ": " + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new CertificateRevocationList(Collections.unmodifiableSet(entries));
+    }
+
+    /**
+     * @return true if the Issuer Public Key Certificate has been revoked
+     */
+    public boolean isRevoked(byte[] rid, int caPublicKeyIndex, byte[] certSerialNumber) {
+        if (entries.isEmpty()) {
+            return false;
+        }
+        return entries.contains(ByteArrayWrapper.wrapperAround(key(rid, caPublicKeyIndex, certSerialNumber)));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static byte[] key(byte[] rid, int caPublicKeyIndex, byte[] certSerialNumber) {
+        if (rid == null || rid.length != RID_LENGTH) {
+            throw new IllegalArgumentException("Invalid RID: " + (rid == null ? null : Util.prettyPrintHexNoWrap(rid)));
+        }
+        if (caPublicKeyIndex < 0 || caPublicKeyIndex > 0xFF) {
+            throw new IllegalArgumentException("Invalid CA Public Key Index: " + caPublicKeyIndex);
+        }
+        if (certSerialNumber == null || certSerialNumber.length != SERIAL_NUMBER_LENGTH) {
+            throw new IllegalArgumentException("Invalid Certificate Serial Number: " + (certSerialNumber == null ? null : Util.prettyPrintHexNoWrap(certSerialNumber)));
+        }
+        byte[] key = new byte[RID_LENGTH + 1 + SERIAL_NUMBER_LENGTH];
+        System.arraycopy(rid, 0, key, 0, RID_LENGTH);
+        key[RID_LENGTH] = (byte) caPublicKeyIndex;
+        System.arraycopy(certSerialNumber, 0, key, RID_LENGTH + 1, SERIAL_NUMBER_LENGTH);
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "CertificateRevocationList[entries=" + entries.size() + "]";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.util.List;
+import sasc.iso7816.TLVWriter;
+import sasc.iso7816.TagAndLength;
+import sasc.util.BCD;
+
+/**
+ * A DOL response plan, compiled by the terminal.
+ *
+ * The response to a DOL has a fixed layout: every element is found at a fixed offset.
+ * Most elements are terminal resident data that do not change between transactions.
+ * These are encoded once (into 'template'), so that constructing the response is a
+ * copy of the template, interleaved with the few elements that must be computed for
+ * each transaction (such as the Unpredictable Number, the Transaction Date or the TVR).
+ *
+ * Instances are immutable, and are shared between all DOLs with the same bytes
+ * (issuers reuse the same PDOL/CDOL/DDOL across their cards)
+ *
+ * @author sasc
+ */
+class CompiledDOL {
+
+    enum Field {
+        UNPREDICTABLE_NUMBER,
+        TRANSACTION_DATE,
+        TERMINAL_VERIFICATION_RESULTS,
+        //Application dependent
+        TERMINAL_COUNTRY_CODE,
+        TRANSACTION_CURRENCY_CODE
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final byte[] template;
+    private final Field[] fields;
+    private final TagAndLength[] fieldTagAndLengths;
+    private final int[] fieldOffsets;
+    private final int generation;
+
+    /**
+     * @param template the response, with the constant elements encoded (and the dynamic elements zeroed)
+     * @param fields the dynamic elements, in DOL order
+     * @param fieldTagAndLengths the DOL entry of each dynamic element
+     * @param fieldOffsets the offset in the template of each dynamic element
+     * @param generation the terminal configuration generation the template was encoded from
+     */
+    CompiledDOL(byte[] template, List<Field> fields, List<TagAndLength> fieldTagAndLengths, List<Integer> fieldOffsets, int generation) {
+        this.template = template;
+        this.fields = fields.toArray(new Field[fields.size()]);
+        this.fieldTagAndLengths = fieldTagAndLengths.toArray(new TagAndLength[fieldTagAndLengths.size()]);
+        this.fieldOffsets = new int[fieldOffsets.size()];
+        for (int i = 0; i < this.fieldOffsets.length; i++) {
+            this.fieldOffsets[i] = fieldOffsets.get(i);
+        }
+        this.generation = generation;
+    }
+
+    int getResponseLength() {
+        return template.length;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    int getNumDynamicFields() {
+        return fields.length;
+    }
+
+    void writeResponse(EMVApplication app, TLVWriter out) {
+        int templatePos = 0;
+        for (int i = 0; i < fields.length; i++) {
+            out.writeBytes(template, templatePos, fieldOffsets[i] - templatePos);
+            int length = fieldTagAndLengths[i].getLength();
+            switch (fields[i]) {
+                case UNPREDICTABLE_NUMBER:
+                    writeRandom(out, length);
+                    break;
+                case TRANSACTION_DATE:
+                    //YYMMDD (n 6)
+                    out.writeBytes(BCD.encodeDate(LocalDate.now()));
+                    break;
+                default:
+                    EMVTerminal.writeFitted(fieldTagAndLengths[i], EMVTerminal.getDynamicTerminalData(fields[i], app), out);
+                    break;
+            }
+            templatePos = fieldOffsets[i] + length;
+        }
+        out.writeBytes(template, templatePos, template.length - templatePos);
+    }
+
+    private static void writeRandom(TLVWriter out, int length) {
+        int rnd = 0;
+        for (int i = 0; i < length; i++) {
+            if ((i & 3) == 0) {
+                rnd = random.nextInt();
+            }
+            out.writeByte(rnd);
+            rnd >>>= 8;
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package sasc.emv;
 
+import sasc.util.Util;
+
 /**
  * Cryptogram Information Data
  * Indicates the type of cryptogram and the actions to be performed by the terminal
@@ -27,11 +29,24 @@ package sasc.emv;
  * @author sasc
  */
 public class CryptogramInformationData {
+    //Cryptogram types (bits 8-7). Also used in P1 of the GENERATE AC command
+    public static final byte AAC = (byte) 0x00;
+    public static final byte TC = (byte) 0x40;
+    public static final byte ARQC = (byte) 0x80;
+
     private byte cidByte;
     
     public CryptogramInformationData(byte cid){
         this.cidByte = cid;
     }
+
+    public byte getByte(){
+        return cidByte;
+    }
+
+    public byte getCryptogramType(){
+        return (byte) (cidByte & 0xC0);
+    }
     
     public String getTEXT(){
         switch(cidByte & 0xC0) {
@@ -45,4 +60,9 @@ public class CryptogramInformationData {
                 return "RFU";                
         }
     }
+
+    @Override
+    public String toString(){
+        return getTEXT() + " (" + Util.byte2Hex(cidByte) + ")";
+    }
 }
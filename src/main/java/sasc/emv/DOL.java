@@ -22,6 +22,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import sasc.iso7816.TLVUtil;
+import sasc.util.ByteArrayInterner;
+import sasc.util.ByteArrayWrapper;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -81,17 +83,56 @@ public class DOL {
 
     private Type type;
     private List<TagAndLength> tagAndLengthList = new ArrayList<TagAndLength>();
+    private final byte[] dolBytes;
+    //The response plan compiled by the terminal (see EMVTerminal.constructDOLResponse)
+    private volatile CompiledDOL compiledDOL = null;
 
     public DOL(Type type, byte[] data){
         //Parse tags and lengths
         this.type = type;
         this.tagAndLengthList = TLVUtil.parseTagAndLength(data);
+        //Issuers reuse the same DOLs across their cards
+        this.dolBytes = ByteArrayInterner.intern(data);
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * @return the raw (tag and length) bytes of this DOL
+     */
+    public byte[] getBytes(){
+        return Util.copyByteArray(dolBytes);
+    }
+
+    ByteArrayWrapper getKey(){
+        return ByteArrayWrapper.wrapperAround(dolBytes);
+    }
+
+    CompiledDOL getCompiledDOL(){
+        return compiledDOL;
+    }
+
+    void setCompiledDOL(CompiledDOL compiledDOL){
+        this.compiledDOL = compiledDOL;
     }
 
     public List<TagAndLength> getTagAndLengthList(){
         return Collections.unmodifiableList(tagAndLengthList);
     }
 
+    /**
+     * @return the length of the (constructed) field the terminal builds according to this DOL
+     */
+    public int getResponseLength(){
+        int length = 0;
+        for(TagAndLength tagAndLength : tagAndLengthList){
+            length += tagAndLength.getLength();
+        }
+        return length;
+    }
+
     @Override
     public String toString(){
         StringWriter sw = new StringWriter();
@@ -18,6 +18,7 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import java.util.Arrays;
 import sasc.iso7816.Iso7816Commands;
+import sasc.iso7816.TLVWriter;
 import sasc.util.Util;
 
 /**
@@ -75,17 +76,23 @@ public class EMVAPDUCommands {
      * Case 4s C-APDU
      */
     public static byte[] getProcessingOpts(DOL pdol, EMVApplication app) {
-        String command;
-        if (pdol != null && pdol.getTagAndLengthList().size() > 0) {
-            byte[] pdolResponseData = EMVTerminal.constructDOLResponse(pdol, app);
-            command = "80 A8 00 00";
-            command += " " + Util.int2Hex(pdolResponseData.length + 2) + " 83 " + Util.int2Hex(pdolResponseData.length);
-            command += " " + Util.prettyPrintHexNoWrap(pdolResponseData);
-            command += " 00"; // Le
-        } else {
-            command = "80 A8 00 00 02 83 00 00"; //Last 00 is Le
+        TLVWriter writer = new TLVWriter(new byte[Iso7816Commands.MAX_SHORT_COMMAND_APDU_LENGTH]);
+        getProcessingOpts(pdol, app, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes the GET PROCESSING OPTIONS command to a (reusable) writer
+     */
+    public static void getProcessingOpts(DOL pdol, EMVApplication app, TLVWriter out) {
+        int lcPosition = Iso7816Commands.startCommand(out, (byte)0x80, (byte)0xA8, (byte)0x00, (byte)0x00);
+        //If the PDOL does not exist, the command data field is '8300'
+        out.startTemplate(EMVTags.COMMAND_TEMPLATE);
+        if (pdol != null) {
+            EMVTerminal.constructDOLResponse(pdol, app, out);
         }
-        return Util.fromHexString(command);
+        out.endTemplate();
+        Iso7816Commands.endCommand(out, lcPosition, true);
     }
 
     public static byte[] getApplicationTransactionCounter() {
@@ -131,15 +138,22 @@ public class EMVAPDUCommands {
         if(transactionRelatedData == null) {
             throw new IllegalArgumentException("Param 'transactionRelatedData' cannot be null");
         }
-        byte[] cmd = new byte[5+transactionRelatedData.length+1];
-        cmd[0] = (byte)0x80;
-        cmd[1] = (byte)0xAE;
-        cmd[2] = referenceControlParameterP1;
-        cmd[3] = 0x00;
-        cmd[4] = (byte)transactionRelatedData.length;
-        System.arraycopy(transactionRelatedData, 0, cmd, 5, transactionRelatedData.length);
-        cmd[cmd.length-1] = 0x00; //Le
-        return cmd;
+        TLVWriter writer = new TLVWriter(new byte[5+transactionRelatedData.length+1]);
+        int lcPosition = startGenerateAC(referenceControlParameterP1, writer);
+        writer.writeBytes(transactionRelatedData);
+        Iso7816Commands.endCommand(writer, lcPosition, true);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes the header of the GENERATE AC command to a (reusable) writer.
+     * The transaction related data (according to CDOL1 or CDOL2) is then written directly
+     * to the writer, followed by a call to Iso7816Commands.endCommand(out, lcPosition, true)
+     *
+     * @return the position of the Lc byte
+     */
+    public static int startGenerateAC(byte referenceControlParameterP1, TLVWriter out) {
+        return Iso7816Commands.startCommand(out, (byte)0x80, (byte)0xAE, referenceControlParameterP1, (byte)0x00);
     }
 
     /**
@@ -24,9 +24,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -34,6 +34,7 @@ import sasc.smartcard.common.SmartCard;
 import sasc.iso7816.Application;
 import sasc.iso7816.TLVUtil;
 import sasc.lookup.IIN_DB;
+import sasc.util.BCD;
 import sasc.util.ISO3166_1;
 import sasc.util.ISO4217_Numeric;
 import sasc.util.Log;
@@ -109,8 +110,15 @@ public class EMVApplication implements Application {
     //entirety in offline data authentication, depending upon the coding of the AFL.
     private List<BERTLV> unknownRecords = new ArrayList<BERTLV>();
     private List<BERTLV> unprocessedRecords = new ArrayList<BERTLV>();
+    //The data objects returned in a Format 2 GET PROCESSING OPTIONS response (other than the AIP and AFL)
+    private List<BERTLV> processingOptionsDataObjects = new ArrayList<BERTLV>();
     private SmartCard card = null;
 
+    //The data objects read from the application records. Most of the fields above are
+    //decoded from the index the first time they are asked for (and then kept), unless
+    //they have already been set explicitly
+    private final RecordTagIndex recordTagIndex = new RecordTagIndex();
+
     public EMVApplication() {
     }
 
@@ -156,7 +164,32 @@ public class EMVApplication implements Application {
         return Collections.unmodifiableList(unprocessedRecords);
     }
 
+    public void addProcessingOptionsDataObject(BERTLV bertlv) {
+        processingOptionsDataObjects.add(bertlv);
+    }
+
+    /**
+     * Looks up a data object returned by the card during application processing:
+     * first in the GET PROCESSING OPTIONS response, then in the application records
+     * 
+     * @return the value, or null if the card did not return the data object
+     */
+    public byte[] findDataObjectValue(Tag tag) {
+        for (BERTLV tlv : processingOptionsDataObjects) {
+            if (tlv.getTag().equals(tag)) {
+                return tlv.getValueBytes();
+            }
+        }
+        return recordTagIndex.getValue(tag);
+    }
+
     public ApplicationUsageControl getApplicationUsageControl() {
+        if (auc == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APP_USAGE_CONTROL);
+            if (value != null) {
+                auc = new ApplicationUsageControl(value[0], value[1]);
+            }
+        }
         return auc;
     }
 
@@ -198,11 +231,18 @@ public class EMVApplication implements Application {
     }
 
     public PAN getPAN() {
+        if (pan == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.PAN);
+            if (value != null) {
+                pan = new PAN(value);
+            }
+        }
         return pan;
     }
 
     public void setLabel(String label) {
-        this.label = label;
+        //The same few labels are found on all cards
+        this.label = label == null ? null : label.intern();
     }
 
     public String getLabel() {
@@ -210,7 +250,7 @@ public class EMVApplication implements Application {
     }
 
     public void setPreferredName(String preferredName) {
-        this.preferredName = preferredName;
+        this.preferredName = preferredName == null ? null : preferredName.intern();
     }
 
     public String getPreferredName() {
@@ -238,6 +278,12 @@ public class EMVApplication implements Application {
     }
 
     public int getApplicationCurrencyCode() {
+        if (applicationCurrencyCode == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APPLICATION_CURRENCY_CODE);
+            if (value != null) {
+                applicationCurrencyCode = BCD.decodeInt(value, 0, value.length);
+            }
+        }
         return applicationCurrencyCode;
     }
 
@@ -246,6 +292,12 @@ public class EMVApplication implements Application {
     }
 
     public int getApplicationCurrencyExponent() {
+        if (applicationCurrencyExponent == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APP_CURRENCY_EXPONENT);
+            if (value != null) {
+                applicationCurrencyExponent = BCD.decodeInt(value, 0, value.length);
+            }
+        }
         return applicationCurrencyExponent;
     }
 
@@ -254,6 +306,12 @@ public class EMVApplication implements Application {
     }
 
     public int getIssuerCountryCode() {
+        if (issuerCountryCode == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.ISSUER_COUNTRY_CODE);
+            if (value != null) {
+                issuerCountryCode = BCD.decodeInt(value, 0, value.length);
+            }
+        }
         return issuerCountryCode;
     }
 
@@ -327,6 +385,12 @@ public class EMVApplication implements Application {
     }
 
     public DOL getDDOL() {
+        if (ddol == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.DDOL);
+            if (value != null) {
+                setDDOL(new DOL(DOL.Type.DDOL, value));
+            }
+        }
         return ddol;
     }
 
@@ -351,10 +415,22 @@ public class EMVApplication implements Application {
     }
 
     public String getCardholderName() {
+        if (cardholderName == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.CARDHOLDER_NAME);
+            if (value != null) {
+                cardholderName = Util.getSafePrintChars(value);
+            }
+        }
         return cardholderName;
     }
     
     public IBAN getIBAN() {
+        if (iban == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.IBAN);
+            if (value != null) {
+                iban = new IBAN(value);
+            }
+        }
         return iban;
     }
     
@@ -363,6 +439,12 @@ public class EMVApplication implements Application {
     }
     
     public BankIdentifierCode getBIC() {
+        if (bic == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.BANK_IDENTIFIER_CODE);
+            if (value != null) {
+                bic = new BankIdentifierCode(value);
+            }
+        }
         return bic;
     }
     
@@ -371,7 +453,10 @@ public class EMVApplication implements Application {
     }
     
     public byte[] getDiscretionaryData() {
-        return Util.copyByteArray(discretionaryData);
+        if (discretionaryData == null) {
+            discretionaryData = recordTagIndex.getInternedValue(EMVTags.APP_DISCRETIONARY_DATA);
+        }
+        return discretionaryData == null ? null : Util.copyByteArray(discretionaryData);
     }
     
     public void setDiscretionaryData(byte[] discretionaryData) {
@@ -422,46 +507,63 @@ public class EMVApplication implements Application {
         this.cdol1 = cdol1;
     }
 
+    public DOL getCDOL1() {
+        if (cdol1 == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.CDOL1);
+            if (value != null) {
+                cdol1 = new DOL(DOL.Type.CDOL1, value);
+            }
+        }
+        return cdol1;
+    }
+
     public void setCDOL2(DOL cdol2) {
         this.cdol2 = cdol2;
     }
 
-    public void setExpirationDate(byte[] dateBytes) {
+    public DOL getCDOL2() {
+        if (cdol2 == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.CDOL2);
+            if (value != null) {
+                cdol2 = new DOL(DOL.Type.CDOL2, value);
+            }
+        }
+        return cdol2;
+    }
+
+    private static Date decodeDate(byte[] dateBytes) {
         if (dateBytes.length != 3) {
             throw new SmartCardException("Byte array length must be 3. Length=" + dateBytes.length);
         }
-        int YY = Util.binaryCodedDecimalToInt(dateBytes[0]);
-        int MM = Util.binaryCodedDecimalToInt(dateBytes[1]);
-        int DD = Util.binaryCodedDecimalToInt(dateBytes[2]);
-        Calendar cal = Calendar.getInstance();
-        cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        this.applicationExpirationDate = cal.getTime();
+        return Date.from(BCD.decodeDate(dateBytes, 0).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    public void setExpirationDate(byte[] dateBytes) {
+        this.applicationExpirationDate = decodeDate(dateBytes);
     }
 
     public Date getExpirationDate() {
-        if (applicationExpirationDate==null) {
-            return null;
+        if (applicationExpirationDate == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APP_EXPIRATION_DATE);
+            if (value == null) {
+                return null;
+            }
+            applicationExpirationDate = decodeDate(value);
         }
         return (Date) applicationExpirationDate.clone();
     }
 
     public void setEffectiveDate(byte[] dateBytes) {
-        if (dateBytes.length != 3) {
-            throw new SmartCardException("Byte array length must be 3. Length=" + dateBytes.length);
-        }
-        int YY = Util.binaryCodedDecimalToInt(dateBytes[0]);
-        int MM = Util.binaryCodedDecimalToInt(dateBytes[1]);
-        int DD = Util.binaryCodedDecimalToInt(dateBytes[2]);
-        Calendar cal = Calendar.getInstance();
-        cal.set(2000 + YY, MM - 1, DD, 0, 0, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        this.applicationEffectiveDate = cal.getTime();
+        this.applicationEffectiveDate = decodeDate(dateBytes);
     }
 
     public Date getEffectiveDate() {
-        if(applicationEffectiveDate == null) {
-            return null;
+        if (applicationEffectiveDate == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APP_EFFECTIVE_DATE);
+            if (value == null) {
+                return null;
+            }
+            applicationEffectiveDate = decodeDate(value);
         }
         return (Date) applicationEffectiveDate.clone();
     }
@@ -471,6 +573,12 @@ public class EMVApplication implements Application {
     }
 
     public int getApplicationVersionNumber() {
+        if (applicationVersionNumber == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.APP_VERSION_NUMBER_CARD);
+            if (value != null) {
+                applicationVersionNumber = Util.byteArrayToInt(value);
+            }
+        }
         return applicationVersionNumber;
     }
 
@@ -479,7 +587,10 @@ public class EMVApplication implements Application {
     }
 
     public byte[] getTrack1DiscretionaryData() {
-        return Util.copyByteArray(track1DiscretionaryData);
+        if (track1DiscretionaryData == null) {
+            track1DiscretionaryData = recordTagIndex.getInternedValue(EMVTags.TRACK1_DISCRETIONARY_DATA);
+        }
+        return track1DiscretionaryData == null ? null : Util.copyByteArray(track1DiscretionaryData);
     }
 
     void setTrack2DiscretionaryData(byte[] valueBytes) {
@@ -487,7 +598,10 @@ public class EMVApplication implements Application {
     }
 
     public byte[] getTrack2DiscretionaryData() {
-        return Util.copyByteArray(track2DiscretionaryData);
+        if (track2DiscretionaryData == null) {
+            track2DiscretionaryData = recordTagIndex.getInternedValue(EMVTags.TRACK2_DISCRETIONARY_DATA);
+        }
+        return track2DiscretionaryData == null ? null : Util.copyByteArray(track2DiscretionaryData);
     }
 
     void setTrack2EquivalentData(Track2EquivalentData track2EquivalentData) {
@@ -495,6 +609,12 @@ public class EMVApplication implements Application {
     }
 
     public Track2EquivalentData getTrack2EquivalentData() {
+        if (track2EquivalentData == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.TRACK_2_EQV_DATA);
+            if (value != null) {
+                track2EquivalentData = new Track2EquivalentData(value);
+            }
+        }
         return track2EquivalentData;
     }
 
@@ -503,6 +623,12 @@ public class EMVApplication implements Application {
     }
 
     public ServiceCode getServiceCode() {
+        if (serviceCode == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.SERVICE_CODE);
+            if (value != null) {
+                setServiceCode(BCD.decodeInt(value, 0, value.length));
+            }
+        }
         return serviceCode;
     }
 
@@ -511,6 +637,12 @@ public class EMVApplication implements Application {
     }
 
     public CVMList getCVMList() {
+        if (cvmList == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.CVM_LIST);
+            if (value != null) {
+                cvmList = new CVMList(value);
+            }
+        }
         return cvmList;
     }
 
@@ -519,14 +651,26 @@ public class EMVApplication implements Application {
     }
 
     public StaticDataAuthenticationTagList getStaticDataAuthenticationTagList() {
+        if (staticDataAuthTagList == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.SDA_TAG_LIST);
+            if (value != null) {
+                staticDataAuthTagList = new StaticDataAuthenticationTagList(value);
+            }
+        }
         return staticDataAuthTagList;
     }
 
     void setPANSequenceNumber(byte value) {
-        this.panSequenceNumber = Util.binaryCodedDecimalToInt(value);
+        this.panSequenceNumber = BCD.decode(value);
     }
 
     public int getPANSequenceNumber() {
+        if (panSequenceNumber == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.PAN_SEQUENCE_NUMBER);
+            if (value != null) {
+                setPANSequenceNumber(value[0]);
+            }
+        }
         return this.panSequenceNumber;
     }
 
@@ -538,6 +682,12 @@ public class EMVApplication implements Application {
     }
 
     public LanguagePreference getLanguagePreference() {
+        if (languagePreference == null) {
+            byte[] value = recordTagIndex.getValue(EMVTags.LANGUAGE_PREFERENCE);
+            if (value != null) {
+                languagePreference = new LanguagePreference(value);
+            }
+        }
         return this.languagePreference;
     }
 
@@ -558,6 +708,12 @@ public class EMVApplication implements Application {
     }
 
     public int getLowerConsecutiveOfflineLimit() {
+        if (lowerConsecutiveOfflineLimit == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.LOWER_CONSEC_OFFLINE_LIMIT);
+            if (value != null) {
+                lowerConsecutiveOfflineLimit = Util.byteArrayToInt(value);
+            }
+        }
         return lowerConsecutiveOfflineLimit;
     }
 
@@ -566,6 +722,12 @@ public class EMVApplication implements Application {
     }
 
     public int getUpperConsecutiveOfflineLimit() {
+        if (upperConsecutiveOfflineLimit == -1) {
+            byte[] value = recordTagIndex.getValue(EMVTags.UPPER_CONSEC_OFFLINE_LIMIT);
+            if (value != null) {
+                upperConsecutiveOfflineLimit = Util.byteArrayToInt(value);
+            }
+        }
         return upperConsecutiveOfflineLimit;
     }
 
@@ -581,6 +743,31 @@ public class EMVApplication implements Application {
         issuerActionCodeOnline = data;
     }
 
+    public byte[] getIssuerActionCodeDefault() {
+        if (issuerActionCodeDefault == null) {
+            issuerActionCodeDefault = recordTagIndex.getInternedValue(EMVTags.ISSUER_ACTION_CODE_DEFAULT);
+        }
+        return issuerActionCodeDefault == null ? null : Util.copyByteArray(issuerActionCodeDefault);
+    }
+
+    public byte[] getIssuerActionCodeDenial() {
+        if (issuerActionCodeDenial == null) {
+            issuerActionCodeDenial = recordTagIndex.getInternedValue(EMVTags.ISSUER_ACTION_CODE_DENIAL);
+        }
+        return issuerActionCodeDenial == null ? null : Util.copyByteArray(issuerActionCodeDenial);
+    }
+
+    public byte[] getIssuerActionCodeOnline() {
+        if (issuerActionCodeOnline == null) {
+            issuerActionCodeOnline = recordTagIndex.getInternedValue(EMVTags.ISSUER_ACTION_CODE_ONLINE);
+        }
+        return issuerActionCodeOnline == null ? null : Util.copyByteArray(issuerActionCodeOnline);
+    }
+
+    RecordTagIndex getRecordTagIndex() {
+        return recordTagIndex;
+    }
+
     public TransactionStatusInformation getTransactionStatusInformation() {
         return transactionStatusInformation;
     }
@@ -600,42 +787,59 @@ public class EMVApplication implements Application {
                     continue;
                 }
 
-                byte[] fileRawData = record.getRawData();
-                if (fileRawData == null || fileRawData.length < 2) {
-                    //The records read for offline data authentication shall be TLV-coded with tag equal to '70'
-                    throw new SignedDataException("File Raw Data was null or invalid length (less than 2): " + fileRawData == null ? "null" : String.valueOf(fileRawData.length));
-                }
-                //The records read for offline data authentication shall be TLV-coded with tag equal to '70'
-                if (fileRawData[0] != (byte) 0x70) {
-                    //If the records read for offline data authentication are not TLV-coded with tag equal to '70'
-                    //then offline data authentication shall be considered to have been performed and to have failed;
-                    //that is, the terminal shall set the 'Offline data authentication was performed' bit in the TSI to 1,
-                    //and shall set the appropriate 'SDA failed' or 'DDA failed' or 'CDA failed' bit in the TVR.
-                    //TODO
-                }
-
-                //The data from each record to be included in the offline data authentication input
-                //depends upon the SFI of the file from which the record was read.
-                int sfi = aef.getSFI().getValue();
-                if (sfi >= 1 && sfi <= 10) {
-                    //For files with SFI in the range 1 to 10, the record tag ('70') and the record length
-                    //are excluded from the offline data authentication process. All other data in the
-                    //data field of the response to the READ RECORD command (excluding SW1 SW2) is included.
-
-                    //Get the 'valueBytes'
-                    BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(fileRawData));
-                    stream.write(tlv.getValueBytes(), 0, tlv.getValueBytes().length);
-                } else {
-                    //For files with SFI in the range 11 to 30, the record tag ('70') and the record length
-                    //are not excluded from the offline data authentication process. Thus all data in the
-                    //data field of the response to the READ RECORD command (excluding SW1 SW2) is included
-                    stream.write(fileRawData, 0, fileRawData.length);
-                }
+                byte[] recordInput = getOfflineDataAuthenticationInput(aef.getSFI().getValue(), record);
+                stream.write(recordInput, 0, recordInput.length);
             }
 
 
         }
 
+        byte[] sdaTagListInput = getStaticDataAuthenticationTagListInput();
+        stream.write(sdaTagListInput, 0, sdaTagListInput.length);
+
+        return stream.toByteArray();
+    }
+
+    /**
+     * Returns the part of the offline data authentication input contributed by a single record
+     */
+    static byte[] getOfflineDataAuthenticationInput(int sfi, Record record) {
+        byte[] fileRawData = record.getRawData();
+        if (fileRawData == null || fileRawData.length < 2) {
+            //The records read for offline data authentication shall be TLV-coded with tag equal to '70'
+            throw new SignedDataException("File Raw Data was null or invalid length (less than 2): " + fileRawData == null ? "null" : String.valueOf(fileRawData.length));
+        }
+        //The records read for offline data authentication shall be TLV-coded with tag equal to '70'
+        if (fileRawData[0] != (byte) 0x70) {
+            //If the records read for offline data authentication are not TLV-coded with tag equal to '70'
+            //then offline data authentication shall be considered to have been performed and to have failed;
+            //that is, the terminal shall set the 'Offline data authentication was performed' bit in the TSI to 1,
+            //and shall set the appropriate 'SDA failed' or 'DDA failed' or 'CDA failed' bit in the TVR.
+            //TODO
+        }
+
+        //The data from each record to be included in the offline data authentication input
+        //depends upon the SFI of the file from which the record was read.
+        if (sfi >= 1 && sfi <= 10) {
+            //For files with SFI in the range 1 to 10, the record tag ('70') and the record length
+            //are excluded from the offline data authentication process. All other data in the
+            //data field of the response to the READ RECORD command (excluding SW1 SW2) is included.
+
+            //Get the 'valueBytes'
+            BERTLV tlv = TLVUtil.getNextTLV(new ByteArrayInputStream(fileRawData));
+            return tlv.getValueBytes();
+        } else {
+            //For files with SFI in the range 11 to 30, the record tag ('70') and the record length
+            //are not excluded from the offline data authentication process. Thus all data in the
+            //data field of the response to the READ RECORD command (excluding SW1 SW2) is included
+            return fileRawData;
+        }
+    }
+
+    /**
+     * Returns the part of the offline data authentication input that follows the records
+     */
+    byte[] getStaticDataAuthenticationTagListInput() {
         //After all records identified by the AFL have been processed, the Static Data Authentication Tag List is processed,
         //if it exists. If the Static Data Authentication Tag List exists, it shall contain only the tag for the
         //Application Interchange Profile. The tag must represent the AIP available in the current application.
@@ -648,13 +852,11 @@ public class EMVApplication implements Application {
                 if (sdaTagList.size() > 1 || sdaTagList.get(0) != EMVTags.APPLICATION_INTERCHANGE_PROFILE) {
                     throw new SmartCardException("SDA Tag list must contain only the 'Application Interchange Profile' tag: " + sdaTagList);
                 } else {
-                    byte[] aipBytes = this.getApplicationInterchangeProfile().getBytes();
-                    stream.write(aipBytes, 0, aipBytes.length);
+                    return this.getApplicationInterchangeProfile().getBytes();
                 }
             }
         }
-
-        return stream.toByteArray();
+        return new byte[0];
     }
 
     //The initializedOnICC methods are only used to indicate that the
@@ -706,16 +908,16 @@ public class EMVApplication implements Application {
         if (issuerUrl != null){
             pw.println(indentStr + "Issuer URL: " + issuerUrl);
         }
-        if (applicationEffectiveDate != null) {
+        if (getEffectiveDate() != null) {
             pw.println(indentStr + "Application Effective Date: " + applicationEffectiveDate);
         }
-        if (applicationExpirationDate != null) {
+        if (getExpirationDate() != null) {
             pw.println(indentStr + "Application Expiration Date: " + applicationExpirationDate);
         }
-        if (applicationVersionNumber != -1) {
+        if (getApplicationVersionNumber() != -1) {
             pw.println(indentStr + "Application Version Number: " + applicationVersionNumber);
         }
-        if (applicationCurrencyCode != -1) {
+        if (getApplicationCurrencyCode() != -1) {
             String description = "";
             ISO4217_Numeric.Currency currency = ISO4217_Numeric.getCurrencyForCode(applicationCurrencyCode);
             if (currency != null) {
@@ -723,10 +925,10 @@ public class EMVApplication implements Application {
             }
             pw.println(indentStr + "Application Currency Code (ISO 4217): " + applicationCurrencyCode + description);
         }
-        if (applicationCurrencyExponent != -1) {
+        if (getApplicationCurrencyExponent() != -1) {
             pw.println(indentStr + "Application Currency Exponent: " + applicationCurrencyExponent + " (Position of the decimal point from the right)");
         }
-        if (issuerCountryCode != -1) {
+        if (getIssuerCountryCode() != -1) {
             String description = "";
             String countryStr = ISO3166_1.getCountryForCode(issuerCountryCode);
             if (countryStr != null && countryStr.trim().length() > 0) {
@@ -745,13 +947,13 @@ public class EMVApplication implements Application {
             }
             pw.println(indentStr + "Issuer Identification Number : " + issuerIdentificationNumber + description);
         }
-        if (discretionaryData != null) {
+        if (getDiscretionaryData() != null) {
             pw.println(indentStr + "Discretionary Data: " + Util.byteArrayToHexString(discretionaryData) + " (ASCII: " + Util.getSafePrintChars(discretionaryData) + ")");
         }
-        if (lowerConsecutiveOfflineLimit != -1) {
+        if (getLowerConsecutiveOfflineLimit() != -1) {
             pw.println(indentStr + "Lower Consecutive Offline Limit: " + lowerConsecutiveOfflineLimit);
         }
-        if (upperConsecutiveOfflineLimit != -1) {
+        if (getUpperConsecutiveOfflineLimit() != -1) {
             pw.println(indentStr + "Upper Consecutive Offline Limit: " + upperConsecutiveOfflineLimit);
         }
         if (applicationTransactionCounter != -1) {
@@ -763,13 +965,13 @@ public class EMVApplication implements Application {
         if (pinTryCounter >= 0) {
             pw.println(indentStr + "PIN Try Counter: " + pinTryCounter + " (Number of PIN tries remaining)");
         }
-        if (cardholderName != null) {
+        if (getCardholderName() != null) {
             pw.println(indentStr + "Cardholder Name: " + cardholderName);
         }
-        if (pan != null) {
+        if (getPAN() != null) {
             pan.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (panSequenceNumber != -1) {
+        if (getPANSequenceNumber() != -1) {
             pw.println(indentStr + "PAN Sequence Number: " + panSequenceNumber);
         }
         if (api != null) {
@@ -781,7 +983,7 @@ public class EMVApplication implements Application {
         if (afl != null) {
             afl.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (auc != null) {
+        if (getApplicationUsageControl() != null) {
             auc.dump(pw, indent + Log.INDENT_SIZE);
         }
         if (transactionLog != null) {
@@ -790,7 +992,7 @@ public class EMVApplication implements Application {
         if (pdol != null) {
             pdol.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (ddol != null) {
+        if (getDDOL() != null) {
             ddol.dump(pw, indent + Log.INDENT_SIZE);
         }
         if (issuerCert != null) {
@@ -802,10 +1004,10 @@ public class EMVApplication implements Application {
         if (iccPinEnciphermentCert != null) {
             iccPinEnciphermentCert.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cdol1 != null) {
+        if (getCDOL1() != null) {
             cdol1.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cdol2 != null) {
+        if (getCDOL2() != null) {
             cdol2.dump(pw, indent + Log.INDENT_SIZE);
         }
         if (signedStaticAppData != null) {
@@ -814,51 +1016,51 @@ public class EMVApplication implements Application {
         if (signedDynamicAppData != null) {
             signedDynamicAppData.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (cvmList != null) {
+        if (getCVMList() != null) {
             cvmList.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (staticDataAuthTagList != null) {
+        if (getStaticDataAuthenticationTagList() != null) {
             staticDataAuthTagList.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (track1DiscretionaryData != null) {
+        if (getTrack1DiscretionaryData() != null) {
             pw.println(indentStr + "Track 1 Discretionary Data:");
             pw.println(indentStr + "   " + Util.byteArrayToHexString(track1DiscretionaryData) + " (ASCII: " + Util.getSafePrintChars(track1DiscretionaryData) + ")");
         }
-        if (track2DiscretionaryData != null) {
+        if (getTrack2DiscretionaryData() != null) {
             pw.println(indentStr + "Track 2 Discretionary Data:");
             pw.println(indentStr + "   " + Util.byteArrayToHexString(track2DiscretionaryData) + " (ASCII: " + Util.getSafePrintChars(track2DiscretionaryData) + ")");
         }
-        if (track2EquivalentData != null) {
+        if (getTrack2EquivalentData() != null) {
             track2EquivalentData.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (iban != null) {
+        if (getIBAN() != null) {
             iban.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (bic != null) {
+        if (getBIC() != null) {
             bic.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (serviceCode != null) {
+        if (getServiceCode() != null) {
             serviceCode.dump(pw, indent + Log.INDENT_SIZE);
         }
-        if (languagePreference != null) {
+        if (getLanguagePreference() != null) {
             languagePreference.dump(pw, indent + Log.INDENT_SIZE);
         }
         if (issuerCodeTableIndex != -1) {
             pw.println(indentStr + "Issuer Code Table Index: " + issuerCodeTableIndex + " (ISO-8859-" + issuerCodeTableIndex + ")");
         }
-        if (issuerActionCodeDefault != null) {
+        if (getIssuerActionCodeDefault() != null) {
             pw.println(indentStr + "Issuer Action Code - Default:");
             for (byte b : issuerActionCodeDefault) {
                 pw.println(indentStr + "   " + Util.byte2BinaryLiteral(b));
             }
         }
-        if (issuerActionCodeDenial != null) {
+        if (getIssuerActionCodeDenial() != null) {
             pw.println(indentStr + "Issuer Action Code - Denial:");
             for (byte b : issuerActionCodeDenial) {
                 pw.println(indentStr + "   " + Util.byte2BinaryLiteral(b));
             }
         }
-        if (issuerActionCodeOnline != null) {
+        if (getIssuerActionCodeOnline() != null) {
             pw.println(indentStr + "Issuer Action Code - Online:");
             for (byte b : issuerActionCodeOnline) {
                 pw.println(indentStr + "   " + Util.byte2BinaryLiteral(b));
@@ -17,24 +17,34 @@ package sasc.emv;
 
 import sasc.smartcard.common.SessionProcessingEnv;
 import sasc.smartcard.common.SmartCard;
+import sasc.util.ByteArrayInterner;
 import sasc.util.Log;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.BERTLV;
 import sasc.iso7816.AID;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.security.auth.callback.PasswordCallback;
+import sasc.emv.system.visa.QVSDCKernel;
+import sasc.emv.system.visa.QVSDCTransaction;
 import sasc.smartcard.common.CardScanner;
 import sasc.iso7816.ShortFileIdentifier;
+import sasc.iso7816.Iso7816Commands;
 import sasc.iso7816.TLVException;
 import sasc.iso7816.TLVUtil;
+import sasc.iso7816.TLVWriter;
+import sasc.iso7816.TagAndLength;
 import sasc.terminal.CardResponse;
 import sasc.terminal.TerminalException;
 import sasc.terminal.CardConnection;
 import sasc.util.Util;
+import sasc.jfr.SessionPhaseEvent;
 
 /**
  * Holds EMV session related information
@@ -46,6 +56,19 @@ public class EMVSession {
     private SmartCard card = null;
     private CardConnection terminal;
     private boolean contextInitialized = false;
+    private OfflineDataAuthenticationPipeline offlineDataAuthenticationPipeline = null;
+    private boolean recoverCertificatesDuringRead = true;
+    //CDA: the Transaction Data Hash Code is computed as the data is sent and received
+    //(PDOL data, CDOL1 data, GENERATE AC response)
+    private MessageDigest transactionDataHash = null;
+    private boolean performCDA = false;
+    //The PDOL data sent in the GET PROCESSING OPTIONS command
+    private byte[] pdolData = null;
+    //Contactless tap time: from the first EMV command until the last record has been read (System.nanoTime())
+    private long tapStartNanos = 0;
+    private long cardReadNanos = 0;
+    //Reused for building the C-APDUs with command data
+    private final TLVWriter commandWriter = new TLVWriter(new byte[Iso7816Commands.MAX_SHORT_COMMAND_APDU_LENGTH]);
 
     public static EMVSession startSession(SmartCard card, CardConnection terminal) {
         if (card == null || terminal == null) {
@@ -63,15 +86,41 @@ public class EMVSession {
         return card;
     }
 
+    /**
+     * If the certificates are recovered in the background while the records are read (the default).
+     * This only pays off when a transaction follows. If the card is only read, the certificates are
+     * recovered when they are validated, eg by the VERIFY stage of a CardPipeline
+     */
+    public void setRecoverCertificatesDuringRead(boolean value) {
+        recoverCertificatesDuringRead = value;
+    }
+
+    private AID selectedAID() {
+        EMVApplication app = card.getSelectedApplication();
+        return app == null ? null : app.getAID();
+    }
+
     /**
      * Initializes the card by reading all Global data and FCI/DDF
      * "1PAY.SYS.DDF01" (and some other data outside of the EMV spec)
      */
     public void initContext() throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.INIT_CONTEXT);
+        boolean completed = false;
+        try {
+            initContextInternal();
+            completed = true;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private void initContextInternal() throws TerminalException {
 
         if (contextInitialized) {
             throw new SmartCardException("EMV context already initalized.");
         }
+        tapStartNanos = System.nanoTime();
 
         byte[] command;
         int SW1;
@@ -232,6 +281,17 @@ public class EMVSession {
     }
 
     public void selectApplication(EMVApplication app) throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.SELECT_APPLICATION);
+        boolean completed = false;
+        try {
+            selectApplicationInternal(app);
+            completed = true;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private void selectApplicationInternal(EMVApplication app) throws TerminalException {
 
         if (app == null) {
             throw new IllegalArgumentException("Parameter 'app' cannot be null");
@@ -300,6 +360,17 @@ public class EMVSession {
     }
 
     public void initiateApplicationProcessing() throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.INITIATE_APPLICATION_PROCESSING);
+        boolean completed = false;
+        try {
+            initiateApplicationProcessingInternal();
+            completed = true;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private void initiateApplicationProcessingInternal() throws TerminalException {
 
         EMVApplication app = card.getSelectedApplication();
 
@@ -328,7 +399,15 @@ public class EMVSession {
 
         DOL pdol = app.getPDOL();
 
-        command = EMVAPDUCommands.getProcessingOpts(pdol, app);
+        commandWriter.reset();
+        EMVAPDUCommands.getProcessingOpts(pdol, app, commandWriter);
+        command = commandWriter.toByteArray();
+
+        //The PDOL data (the value of the Command Template) is the first part of the transaction data hashed for CDA
+        performCDA = false;
+        pdolData = TLVUtil.getNextTLV(new ByteArrayInputStream(command, 5, command[4] & 0xFF)).getValueBytes();
+        transactionDataHash = newTransactionDataHash();
+        transactionDataHash.update(pdolData);
 
         CardResponse getProcessingOptsResponse = EMVUtil.sendCmd(terminal, command);
 
@@ -359,36 +438,59 @@ public class EMVSession {
             
             app.setInitializedOnICC();
 
-            //read all the records indicated in the AFL
-            for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
-                int startRecordNumber = aef.getStartRecordNumber();
-                int endRecordNumber = aef.getEndRecordNumber();
-
-                for (int recordNum = startRecordNumber; recordNum <= endRecordNumber; recordNum++) {
-                    Log.commandHeader("Send READ RECORD to read SFI " + aef.getSFI().getValue() + " record " + recordNum);
-
-                    command = EMVAPDUCommands.readRecord(recordNum, aef.getSFI().getValue());
-
-                    CardResponse readAppDataResponse = EMVUtil.sendCmd(terminal, command);
-
-                    SW1 = (byte) readAppDataResponse.getSW1();
-                    SW2 = (byte) readAppDataResponse.getSW2();
+            //Unless the card is only read, the certificates are recovered in the background while the records are being read
+            offlineDataAuthenticationPipeline = recoverCertificatesDuringRead ? new OfflineDataAuthenticationPipeline(app) : null;
 
-                    if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
-
-                        EMVUtil.parseAppRecord(readAppDataResponse.getData(), app);
-                        boolean isInvolvedInOfflineDataAuthentication = (recordNum - startRecordNumber + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
-                        Record record = new Record(readAppDataResponse.getData(), recordNum, isInvolvedInOfflineDataAuthentication);
-                        aef.setRecord(recordNum, record);
-                    } else {
-                        //Any SW1 SW2 other than '9000' passed to the application layer as a result
-                        //of reading any record shall cause the transaction to be terminated [spec]
-                        throw new SmartCardException("Reading application data failed for SFI " + aef.getSFI().getValue() + " Record Number: " + recordNum);
+            //read all the records indicated in the AFL
+            boolean allRecordsRead = false;
+            try {
+                for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
+                    int startRecordNumber = aef.getStartRecordNumber();
+                    int endRecordNumber = aef.getEndRecordNumber();
+
+                    for (int recordNum = startRecordNumber; recordNum <= endRecordNumber; recordNum++) {
+                        Log.commandHeader("Send READ RECORD to read SFI " + aef.getSFI().getValue() + " record " + recordNum);
+
+                        command = EMVAPDUCommands.readRecord(recordNum, aef.getSFI().getValue());
+
+                        CardResponse readAppDataResponse = EMVUtil.sendCmd(terminal, command);
+
+                        SW1 = (byte) readAppDataResponse.getSW1();
+                        SW2 = (byte) readAppDataResponse.getSW2();
+
+                        if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
+
+                            //The record buffer is shared by the Record and the application's record index.
+                            //Records holding certificates are identical on all the cards of an issuer.
+                            //The response data is not used elsewhere, so it is not copied again
+                            byte[] recordData = ByteArrayInterner.internNoCopy(readAppDataResponse.getData());
+                            EMVUtil.parseAppRecord(recordData, app);
+                            boolean isInvolvedInOfflineDataAuthentication = (recordNum - startRecordNumber + 1) <= aef.getNumRecordsInvolvedInOfflineDataAuthentication();
+                            Record record = new Record(recordData, recordNum, isInvolvedInOfflineDataAuthentication);
+                            aef.setRecord(recordNum, record);
+                            if (offlineDataAuthenticationPipeline != null) {
+                                offlineDataAuthenticationPipeline.recordRead(aef.getSFI().getValue(), record);
+                            }
+                        } else {
+                            //Any SW1 SW2 other than '9000' passed to the application layer as a result
+                            //of reading any record shall cause the transaction to be terminated [spec]
+                            throw new SmartCardException("Reading application data failed for SFI " + aef.getSFI().getValue() + " Record Number: " + recordNum);
+                        }
                     }
-                }
 
+                }
+                allRecordsRead = true;
+            } finally {
+                if (!allRecordsRead && offlineDataAuthenticationPipeline != null) {
+                    //The transaction is terminated: the work queued for the records read is not needed
+                    offlineDataAuthenticationPipeline.cancel();
+                }
             }
             app.setAllAppRecordsInAFLRead();
+            cardReadNanos = System.nanoTime();
+            if (offlineDataAuthenticationPipeline != null) {
+                offlineDataAuthenticationPipeline.allRecordsRead();
+            }
 
 
 
@@ -403,6 +505,45 @@ public class EMVSession {
         }
     }
     
+    /**
+     * Visa qVSDC (EMV Contactless Book C-3). The card returns the Application Cryptogram and the
+     * fDDA signature in the GET PROCESSING OPTIONS response, so no more commands are needed after
+     * the last READ RECORD, and the card may already have been removed from the field.
+     * fDDA is performed here, using the certificates recovered while the records were read.
+     * 
+     * Call after initiateApplicationProcessing(). If the result is not null, the transaction
+     * is complete, and prepareTransactionProcessing() must not be called.
+     * 
+     * @return the qVSDC transaction, or null if the card did not use qVSDC (continue with the contact flow)
+     */
+    public QVSDCTransaction completeQVSDCTransaction() {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.COMPLETE_QVSDC_TRANSACTION);
+        boolean completed = false;
+        try {
+            QVSDCTransaction result = completeQVSDCTransactionInternal();
+            completed = true;
+            return result;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private QVSDCTransaction completeQVSDCTransactionInternal() {
+        EMVApplication app = card.getSelectedApplication();
+        verifyAppInitialized(app);
+        verifyAllAppRecordsInAFLRead(app);
+        if (!QVSDCKernel.isQVSDC(app)) {
+            return null;
+        }
+        if (offlineDataAuthenticationPipeline != null) {
+            offlineDataAuthenticationPipeline.awaitCompletion();
+        }
+        QVSDCTransaction transaction = QVSDCKernel.process(app, pdolData, tapStartNanos == 0 ? cardReadNanos : tapStartNanos, cardReadNanos);
+        transactionDataHash = null;
+        Log.info(transaction.toString());
+        return transaction;
+    }
+
     private enum State {
         SELECTED, APPLICATION_PROCESSING_INITIATED, TRANSACTION_PROCESSING_PREPARED, GENERATE_AC_PERFORMED, TRANSACTION_POST_PROCESSING_PERFORMED
     }
@@ -420,6 +561,17 @@ public class EMVSession {
     //TODO
     //figure 6 transaction flow example
     public void prepareTransactionProcessing() throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.PREPARE_TRANSACTION_PROCESSING);
+        boolean completed = false;
+        try {
+            prepareTransactionProcessingInternal();
+            completed = true;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private void prepareTransactionProcessingInternal() throws TerminalException {
         
         EMVApplication app = card.getSelectedApplication();
         
@@ -494,9 +646,12 @@ public class EMVSession {
         //bit in the TSI to 1 and shall set the appropriate "SDA failed" or 
         //"DDA failed" or "CDA failed" bit in the TVR.
         
+        //Any RSA recovery still running in the background must be completed first
+        if(offlineDataAuthenticationPipeline != null) {
+            offlineDataAuthenticationPipeline.awaitCompletion();
+        }
+        
         if(app.getApplicationInterchangeProfile().isCDASupported() && EMVTerminal.isCDASupported(app)) {
-            //TODO we (the terminal) do not support CDA yet
-            
             //Note: 
             //Although the terminal shall commence performing CDA before completion 
             //of Terminal Action Analysis, the terminal will not normally finish 
@@ -523,10 +678,37 @@ public class EMVSession {
  
     }
     
+    /**
+     * EMV Book 2, 6.6: The ICC Public Key is retrieved now. The signature is generated by the card
+     * together with the Application Cryptogram, and is verified in generateAC() (no INTERNAL AUTHENTICATE)
+     */
     private void processCDA(EMVApplication app) throws TerminalException {
-        //Check if records read for offline data authentication are TLV-coded
+        //The records read for offline data authentication are TLV-coded with tag '70':
+        //any other record is rejected when it is read (see RecordTagIndex.add())
         
-        //TODO
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+        boolean iccPublicKeyRetrieved = false;
+        try {
+            iccPublicKeyRetrieved = issuerCert != null && iccCert != null && issuerCert.validate() && iccCert.validate();
+        } catch (SmartCardException ex) {
+            Log.debug(ex.getMessage());
+        }
+        if(!iccPublicKeyRetrieved || app.getCDOL1() == null) {
+            //CDA fails before the GENERATE AC command. The signature is not requested
+            EMVTerminal.getTerminalVerificationResults().setCDAFailed(true);
+        } else {
+            performCDA = true;
+        }
+        app.getTransactionStatusInformation().setOfflineDataAuthenticationWasPerformed(true);
+    }
+    
+    private static MessageDigest newTransactionDataHash() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SmartCardException("SHA-1 hash algorithm not available", ex);
+        }
     }
     
     /**
@@ -781,6 +963,17 @@ public class EMVSession {
     }
     
     public void performTransaction() throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.PERFORM_TRANSACTION);
+        boolean completed = false;
+        try {
+            performTransactionInternal();
+            completed = true;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
+
+    private void performTransactionInternal() throws TerminalException {
         EMVApplication app = card.getSelectedApplication();
         //verifyPrepareTransactionProcessingPerformed()
         verifyProcessingStateMinimum(app, State.TRANSACTION_PROCESSING_PREPARED);
@@ -807,11 +1000,14 @@ public class EMVSession {
     private void performTerminalRiskManagement(EMVApplication app) throws TerminalException {
        
         //10.6 Terminal Risk Management
+        //  Exception file checking
         //  10.6.1 Floor Limits
         //  10.6.2 Random Transaction Selection
         //  10.6.3 Velocity Checking
         
         try {
+            checkExceptionFile(app);
+            
             checkFloorLimits(app);
         
             checkForRandomTransactionSelection(app);
@@ -831,6 +1027,25 @@ public class EMVSession {
 
     }
     
+    /**
+     * If a terminal exception file is present, the terminal shall check for the 
+     * Application PAN (and optionally the PAN Sequence Number) in the exception file.
+     * If a match is found, the terminal shall set the 
+     * "Card appears on terminal exception file" bit in the TVR to 1
+     * 
+     * @param app 
+     */
+    private void checkExceptionFile(EMVApplication app) {
+        //Read once: a new version may be installed at any time
+        TerminalExceptionFile exceptionFile = EMVTerminal.getExceptionFile();
+        if(exceptionFile == null || app.getPAN() == null) {
+            return;
+        }
+        if(exceptionFile.contains(app.getPAN().getPanAsString(), app.getPANSequenceNumber())) {
+            EMVTerminal.getTerminalVerificationResults().setCardAppearsOnTerminalExceptionFile(true);
+        }
+    }
+    
     /**
      * 10.6.1 Floor Limits
      * To prevent split sales, the terminal may have a transaction log of approved 
@@ -852,47 +1067,53 @@ public class EMVSession {
         //greater than or equal to the Terminal Floor Limit, the terminal shall 
         //set the "Transaction exceeds floor limit" bit in the TVR to 1
         
+        //The log on the card is not the terminal transaction log, but is read here (for the dump)
         if(!app.isTransactionLogProcessed()) {
             checkForTransactionLogRecords();
         }
-        
-        TransactionLog transactionLog = app.getTransactionLog();
-        
-        boolean panFound = false;
-        if(transactionLog != null && !transactionLog.isEmpty()) {
-            List<TransactionLog.Record> logRecords = transactionLog.getRecords();
-            for(int i = logRecords.size()-1; i >= 0; i--) {
-                TransactionLog.Record logRecord = logRecords.get(i);
-                //TODO 
-//                if(logRecord.getPAN().equals(app.getPAN()) {
-//                    panFound = true;
-//                    //add the Amount, Authorised for the current transaction to 
-//                    //the amount stored in the log for that PAN to determine if 
-//                    //the sum exceeds the Terminal Floor Limit. 
-//                    if(sum >= terminalFloorLimit) {
-//                        EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
-//                    }
-//                    
-//                    break;
-//                }
-                
-            }
-        } 
-        if(!panFound){
-            //If the terminal does not have a transaction log available or if there 
-            //is no log entry with the same PAN, the Amount, Authorised is compared 
-            //to the appropriate floor limit. If the amount authorised is equal to 
-            //or greater than the floor limit, the terminal sets the 
-            //"Transaction exceeds floor limit" bit to 1 in the TVR
 
-            //TODO
-//            if(transactionAmount > floorLimit) {
-//                EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
-//            }
+        long floorLimit = EMVTerminal.getFloorLimit();
+        if(floorLimit == -1) {
+            //No floor limit configured
+            return;
+        }
+        long amount = EMVTerminal.getAmountAuthorised();
+        
+        TransactionJournal journal = EMVTerminal.getTransactionJournal();
+        if(journal != null && app.getPAN() != null) {
+            TransactionJournal.Entry entry = journal.findLatest(app.getPAN().getPanAsString());
+            if(entry != null) {
+                //add the Amount, Authorised for the current transaction to 
+                //the amount stored in the log for that PAN
+                amount += entry.getAmount();
+            }
+        }
+        
+        //If the terminal does not have a transaction log available or if there 
+        //is no log entry with the same PAN, the Amount, Authorised is compared 
+        //to the appropriate floor limit. If the amount authorised is equal to 
+        //or greater than the floor limit, the terminal sets the 
+        //"Transaction exceeds floor limit" bit to 1 in the TVR
+        if(amount >= floorLimit) {
+            EMVTerminal.getTerminalVerificationResults().setTransactionExceedsFloorLimit(true);
         }
         
     }
     
+    /**
+     * Adds the current transaction to the terminal transaction log (if there is one).
+     * Called by generateAC() when the card approves the transaction offline (TC).
+     * To be called when a transaction sent online (ARQC) is approved by the issuer
+     */
+    public void recordApprovedTransaction() {
+        EMVApplication app = card.getSelectedApplication();
+        verifyAppInitialized(app);
+        TransactionJournal journal = EMVTerminal.getTransactionJournal();
+        if(journal != null && app.getPAN() != null) {
+            journal.record(app.getPAN().getPanAsString(), app.getPANSequenceNumber(), EMVTerminal.getAmountAuthorised(), System.currentTimeMillis());
+        }
+    }
+    
     /**
      * 10.6.2 Random Transaction Selection
      * 
@@ -1303,58 +1524,189 @@ public class EMVSession {
 //      53 41 D1 18 4D EF 41 A2
 //      06 10 0A 03 60 00 00
 
-    public void generateAC(byte[] iccDynamicNumber) throws TerminalException {
-        /**
-         * p1 &= 0b00111111 = AAC = reject transaction (EMVApplication Authentication Cryptogram)
-         * p1 &= 0b10111111 = TC = proceed offline (Transaction Certificate)
-         * p1 &= 0b01111111 = ARQC = go online (Authorization Request Cryptogram                                                                            ) +
-         * 0x00 = CDA signature not requested
-         * 0x10 = CDA signature requested
-         */
+    /**
+     * Sends the first GENERATE AC command, with the data requested by CDOL1.
+     * 
+     * If CDA is performed (decided during offline data authentication, see prepareTransactionProcessing()),
+     * the CDA signature is requested for a TC or ARQC, and verified against the transaction data
+     * hashed since the GET PROCESSING OPTIONS command. If CDA fails, the "CDA failed" bit is set in the TVR.
+     * 
+     * @param cryptogramType CryptogramInformationData.AAC, TC or ARQC
+     * @return the cryptogram returned by the card
+     */
+    public ApplicationCryptogramDataElements generateAC(byte cryptogramType) throws TerminalException {
+        SessionPhaseEvent event = SessionPhaseEvent.start(SessionPhaseEvent.GENERATE_AC);
+        boolean completed = false;
+        try {
+            ApplicationCryptogramDataElements result = generateACInternal(cryptogramType);
+            completed = true;
+            return result;
+        } finally {
+            event.end(selectedAID(), completed);
+        }
+    }
 
+    private ApplicationCryptogramDataElements generateACInternal(byte cryptogramType) throws TerminalException {
+        if (cryptogramType != CryptogramInformationData.AAC && cryptogramType != CryptogramInformationData.TC
+                && cryptogramType != CryptogramInformationData.ARQC) {
+            throw new IllegalArgumentException("Invalid cryptogram type: " + Util.byte2Hex(cryptogramType));
+        }
         EMVApplication app = card.getSelectedApplication();
 
         verifyAppInitialized(app);
+        
+        DOL cdol1 = app.getCDOL1();
+        if (cdol1 == null) {
+            throw new SmartCardException("CDOL1 not present. Unable to perform GENERATE AC");
+        }
 
-        byte[] command;
+        //The Unpredictable Number is part of the CDA signature, so it must be requested by CDOL1
+        int unpredictableNumberOffset = -1;
+        int unpredictableNumberLength = 0;
+        int offset = 0;
+        for (TagAndLength tal : cdol1.getTagAndLengthList()) {
+            if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
+                unpredictableNumberOffset = offset;
+                unpredictableNumberLength = tal.getLength();
+            }
+            offset += tal.getLength();
+        }
+        
+        //A CDA signature is not requested for an AAC
+        boolean cda = performCDA && cryptogramType != CryptogramInformationData.AAC;
+        if (cda && unpredictableNumberOffset == -1) {
+            EMVTerminal.getTerminalVerificationResults().setCDAFailed(true);
+            cda = false;
+        }
+        //Only the first GENERATE AC is supported
+        performCDA = false;
 
         Log.commandHeader("Send GENERATE APPLICATION CRYPTOGRAM command");
 
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte[] authorizedAmount = Util.fromHexString("00 00 00 00 00 01");
-        byte[] secondaryAmount = Util.fromHexString("00 00 00 00 00 00");
-        byte[] tvr = Util.fromHexString("00 00 00 00 00");
-        byte[] transactionCurrencyCode = Util.fromHexString("09 78");
-        byte[] transactionDate = Util.fromHexString("09 07 30");
-        byte[] transactionType = Util.fromHexString("21");
-        byte[] terminalUnpredictableNumber = Util.generateRandomBytes(4);
-        //iccDynamicNumber
-        byte[] dataAuthCode = app.getSignedStaticApplicationData().getDataAuthenticationCode();
-
-        buf.write(authorizedAmount, 0, authorizedAmount.length);
-        buf.write(secondaryAmount, 0, secondaryAmount.length);
-        buf.write(tvr, 0, tvr.length);
-        buf.write(transactionCurrencyCode, 0, transactionCurrencyCode.length);
-        buf.write(transactionDate, 0, transactionDate.length);
-        buf.write(transactionType, 0, transactionType.length);
-        buf.write(terminalUnpredictableNumber, 0, terminalUnpredictableNumber.length);
-        buf.write(iccDynamicNumber, 0, iccDynamicNumber.length);
-        buf.write(dataAuthCode, 0, dataAuthCode.length);
-
-        //0x40 = TC
-        //0x80 = ARQC
-        command = EMVAPDUCommands.generateAC((byte) 0x40, buf.toByteArray());
+        //P1 b5: CDA signature requested
+        commandWriter.reset();
+        int lcPosition = EMVAPDUCommands.startGenerateAC((byte) (cryptogramType | (cda ? 0x10 : 0x00)), commandWriter);
+        int cdolDataOffset = commandWriter.size();
+        EMVTerminal.constructDOLResponse(cdol1, app, commandWriter);
+        int cdolDataLength = commandWriter.size() - cdolDataOffset;
+        Iso7816Commands.endCommand(commandWriter, lcPosition, true);
+        byte[] command = commandWriter.toByteArray();
+        
+        byte[] unpredictableNumber = null;
+        if (cda) {
+            transactionDataHash.update(command, cdolDataOffset, cdolDataLength);
+            unpredictableNumber = Arrays.copyOfRange(command, cdolDataOffset + unpredictableNumberOffset, 
+                    cdolDataOffset + unpredictableNumberOffset + unpredictableNumberLength);
+        }
+        
         CardResponse generateACResponse = EMVUtil.sendCmd(terminal, command);
         //'9000' indicates a successful execution of the command.
 
         if (generateACResponse.getSW() != SW.SUCCESS.getSW()) {
             throw new SmartCardException("Unexpected response: " + Util.short2Hex(generateACResponse.getSW()));
+        }
+        
+        byte[] data = generateACResponse.getData();
+        BERTLV responseTLV = TLVUtil.getNextTLV(new ByteArrayInputStream(data));
+        byte[] cid = null;
+        byte[] atc = null;
+        byte[] applicationCryptogram = null;
+        byte[] issuerApplicationData = null;
+        byte[] signedDynamicApplicationData = null;
+        if (responseTLV.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_1)) {
+            //CID (1), ATC (2), Application Cryptogram (8), Issuer Application Data (optional)
+            byte[] value = responseTLV.getValueBytes();
+            if (value.length < 11) {
+                throw new SmartCardException("Invalid GENERATE AC response: " + Util.byteArrayToHexString(data));
+            }
+            cid = Arrays.copyOfRange(value, 0, 1);
+            atc = Arrays.copyOfRange(value, 1, 3);
+            applicationCryptogram = Arrays.copyOfRange(value, 3, 11);
+            if (value.length > 11) {
+                issuerApplicationData = Arrays.copyOfRange(value, 11, value.length);
+            }
+        } else if (responseTLV.getTag().equals(EMVTags.RESPONSE_MESSAGE_TEMPLATE_2)) {
+            ByteArrayInputStream stream = responseTLV.getValueStream();
+            while (stream.available() >= 2) {
+                BERTLV tlv = TLVUtil.getNextTLV(stream);
+                if (tlv.getTag().equals(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA)) {
+                    signedDynamicApplicationData = tlv.getValueBytes();
+                    continue;
+                }
+                //All the data objects in the response (in the order returned) except the SDAD are hashed
+                if (cda) {
+                    transactionDataHash.update(tlv.toBERTLVByteArray());
+                }
+                if (tlv.getTag().equals(EMVTags.CRYPTOGRAM_INFORMATION_DATA)) {
+                    cid = tlv.getValueBytes();
+                } else if (tlv.getTag().equals(EMVTags.APP_TRANSACTION_COUNTER)) {
+                    atc = tlv.getValueBytes();
+                } else if (tlv.getTag().equals(EMVTags.APP_CRYPTOGRAM)) {
+                    applicationCryptogram = tlv.getValueBytes();
+                } else if (tlv.getTag().equals(EMVTags.ISSUER_APPLICATION_DATA)) {
+                    issuerApplicationData = tlv.getValueBytes();
+                } else {
+                    EMVUtil.checkForProprietaryTagOrAddToUnhandled(app, tlv);
+                }
+            }
         } else {
-            //TODO
-            Log.info("TODO GenerateAC success");
-
-            //80 response message template 1 contatenated values
-            //77 BER-TLV encoded
+            throw new SmartCardException("Unexpected GENERATE AC response: " + Util.byteArrayToHexString(data));
+        }
+        if (cid == null || cid.length != 1 || atc == null || atc.length != 2) {
+            throw new SmartCardException("GENERATE AC response did not contain CID and ATC: " + Util.byteArrayToHexString(data));
+        }
+        
+        SignedDynamicApplicationData sdad = null;
+        if (cda && (cid[0] & 0xC0) != CryptogramInformationData.AAC) {
+            sdad = verifyCDA(app, signedDynamicApplicationData, cid[0], unpredictableNumber);
+            if (sdad == null) {
+                EMVTerminal.getTerminalVerificationResults().setCDAFailed(true);
+            } else {
+                //The Application Cryptogram is only returned in the signed data
+                applicationCryptogram = sdad.getApplicationCryptogram();
+                app.setSignedDynamicApplicationData(sdad);
+            }
+        }
+        transactionDataHash = null;
+        
+        //Approved offline, unless the CDA signature could not be verified
+        if ((cid[0] & 0xC0) == CryptogramInformationData.TC && !(cda && sdad == null)) {
+            recordApprovedTransaction();
+        }
+        
+        return new ApplicationCryptogramDataElements(new CryptogramInformationData(cid[0]), 
+                Util.byteToInt(atc[0], atc[1]), applicationCryptogram, issuerApplicationData, sdad);
+    }
+    
+    /**
+     * EMV Book 2, 6.6.2
+     * 
+     * @return the valid Signed Dynamic Application Data, or null if CDA failed
+     */
+    private SignedDynamicApplicationData verifyCDA(EMVApplication app, byte[] signedData, byte cid, byte[] unpredictableNumber) {
+        if (signedData == null) {
+            Log.debug("CDA failed: Signed Dynamic Application Data not returned");
+            return null;
+        }
+        try {
+            SignedDynamicApplicationData sdad = SignedDynamicApplicationData.parseSignedData(signedData, 
+                    app.getICCPublicKeyCertificate().getICCPublicKey(), unpredictableNumber);
+            if (!sdad.validate() || !sdad.isCombinedDDAAC()) {
+                Log.debug("CDA failed: ICC Dynamic Data not valid");
+                return null;
+            }
+            if (sdad.getCryptogramInformationData() != cid) {
+                Log.debug("CDA failed: Cryptogram Information Data does not match");
+                return null;
+            }
+            if (!Arrays.equals(sdad.getTransactionDataHashCode(), transactionDataHash.digest())) {
+                Log.debug("CDA failed: Transaction Data Hash Code not valid");
+                return null;
+            }
+            return sdad;
+        } catch (SignedDataException ex) {
+            Log.debug("CDA failed: " + ex.getMessage());
+            return null;
         }
     }
 
@@ -1489,7 +1841,50 @@ public class EMVSession {
         }
         System.out.println("Number of Records found: " + numRecordsFound);
     }
-    
+
+    /**
+     * Searches the card for records, starting with the files referenced by the
+     * AFL, the PSE and the Log Entry of the selected application.
+     * Much faster than testBruteForceRecords(), see RecordDiscovery.
+     *
+     * The records found are not parsed, only reported in the result.
+     *
+     * @param discovery the gap and budget settings
+     * @throws TerminalException
+     */
+    public RecordDiscovery.Result discoverRecords(RecordDiscovery discovery) throws TerminalException {
+
+        EMVApplication app = card.getSelectedApplication();
+
+        if (app == null) {
+            throw new SmartCardException("No application selected. Call selectApplication(Application) and initializeApplicationProcessing() first");
+        }
+
+        Log.commandHeader("Discover SFI & Record numbers (Send READ RECORD)");
+
+        Map<Integer, Integer> knownFiles = new LinkedHashMap<Integer, Integer>();
+        if (app.getApplicationFileLocator() != null) {
+            for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
+                addKnownFile(knownFiles, aef.getSFI().getValue(), aef.getEndRecordNumber());
+            }
+        }
+        if (card.getPSE() != null && card.getPSE().getSFI() != null) {
+            addKnownFile(knownFiles, card.getPSE().getSFI().getValue(), 1);
+        }
+        if (app.getLogEntry() != null) {
+            addKnownFile(knownFiles, app.getLogEntry().getSFI().getValue(), app.getLogEntry().getNumberOfRecords());
+        }
+
+        return discovery.discover(terminal, knownFiles);
+    }
+
+    private static void addKnownFile(Map<Integer, Integer> knownFiles, int sfi, int lastRecord) {
+        Integer current = knownFiles.get(sfi);
+        if (current == null || current < lastRecord) {
+            knownFiles.put(sfi, lastRecord);
+        }
+    }
+
     /**
      * This method is only for debugging. Not to be used in normal processing
      * 
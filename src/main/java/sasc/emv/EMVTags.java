@@ -19,6 +19,7 @@ import sasc.iso7816.TagValueType;
 import sasc.iso7816.TagImpl;
 import sasc.iso7816.Tag;
 import java.lang.reflect.Field;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import sasc.emv.system.mastercard.MCTags;
@@ -37,10 +38,11 @@ import sasc.util.Util;
  */
 public class EMVTags {
 
-    private static LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>> issuerToTagsMap = new LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>>();
-    private static LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>> paymentSystemToTagsMap = new LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>>();
+    //Only modified by the static initializer, and then read-only. Safe to read from any thread
+    private static final LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>> issuerToTagsMap = new LinkedHashMap<IssuerIdentificationNumber, LinkedHashMap<ByteArrayWrapper, Tag>>();
+    private static final LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>> paymentSystemToTagsMap = new LinkedHashMap<ByteArrayWrapper, LinkedHashMap<ByteArrayWrapper, Tag>>();
 
-    private static LinkedHashMap<ByteArrayWrapper, Tag> tags = new LinkedHashMap<ByteArrayWrapper, Tag>();
+    private static final LinkedHashMap<ByteArrayWrapper, Tag> tags = new LinkedHashMap<ByteArrayWrapper, Tag>();
     //One byte tags
     //7816-4 Interindustry data object for tag allocation authority
     public static final Tag UNIVERSAL_TAG_FOR_OID                   = new TagImpl("06", TagValueType.BINARY, "Object Identifier (OID)", "Universal tag for OID");
@@ -358,7 +360,7 @@ public class EMVTags {
     }
 
     public static Iterator iterator() {
-        return tags.values().iterator();
+        return Collections.unmodifiableCollection(tags.values()).iterator();
     }
 
     private EMVTags() {
@@ -15,23 +15,28 @@
  */
 package sasc.emv;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.PasswordCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 import sasc.iso7816.Tag;
 import sasc.iso7816.TagAndLength;
+import sasc.iso7816.TLVWriter;
 import sasc.iso7816.TagImpl;
 import sasc.iso7816.TagValueType;
+import sasc.util.ByteArrayWrapper;
 import sasc.util.ISO4217_Numeric;
+import sasc.util.LRUCache;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -40,44 +45,51 @@ import sasc.util.Util;
  * 
  * There is only 1 Terminal
  * 
+ * Sessions may be processed concurrently (one thread per session). The terminal
+ * resident data is shared, but the Terminal Verification Results belong to the
+ * transaction, and are therefore kept per thread.
+ * 
  * @author sasc
  */
 public class EMVTerminal {
 
-    private final static Properties defaultTerminalProperties = new Properties();
-    private final static Properties runtimeTerminalProperties = new Properties();
-    private final static TerminalVerificationResults terminalVerificationResults = new TerminalVerificationResults();
+    //The current terminal resident data. Replaced (never modified) when the configuration changes
+    private final static AtomicReference<TerminalConfiguration> configuration = new AtomicReference<TerminalConfiguration>();
+    //The TVR of the transaction being processed by the current thread
+    private final static ThreadLocal<TerminalVerificationResults> terminalVerificationResults = new ThreadLocal<TerminalVerificationResults>() {
+        @Override
+        protected TerminalVerificationResults initialValue() {
+            return new TerminalVerificationResults();
+        }
+    };
     
-    private static CallbackHandler pinCallbackHandler;
+    private static volatile CallbackHandler pinCallbackHandler;
     
-    private static boolean doVerifyPinIfRequired = false;
-    private static boolean isOnline = true;
+    //Compiled DOL response plans, keyed by the DOL bytes
+    private final static int COMPILED_DOL_CACHE_SIZE = 256;
+    private final static LRUCache<ByteArrayWrapper, CompiledDOL> compiledDOLCache = new LRUCache<ByteArrayWrapper, CompiledDOL>(COMPILED_DOL_CACHE_SIZE);
+    
+    private static volatile boolean doVerifyPinIfRequired = false;
+    private static volatile boolean isOnline = true;
+    //The terminal transaction log of approved transactions, if any
+    private static volatile TransactionJournal transactionJournal = null;
+    //The current version of the exception file (hot list), if any. Replaced when a new version is loaded
+    private final static AtomicReference<TerminalExceptionFile> exceptionFile = new AtomicReference<TerminalExceptionFile>();
     
     static {
         
         try {
             //Default properties
-            defaultTerminalProperties.load(EMVTerminal.class.getResourceAsStream("/terminal.properties"));
-            for (String key : defaultTerminalProperties.stringPropertyNames()) {
-                //Sanitize
-                String sanitizedKey = Util.byteArrayToHexString(Util.fromHexString(key)).toLowerCase();
-                String sanitizedValue = Util.byteArrayToHexString(Util.fromHexString(defaultTerminalProperties.getProperty(key))).toLowerCase();
-                defaultTerminalProperties.setProperty(sanitizedKey, sanitizedValue);
-            }
+            Properties defaultTerminalProperties = TerminalConfiguration.loadProperties(EMVTerminal.class.getResourceAsStream("/terminal.properties"));
             //Runtime/overridden properties
+            Properties runtimeTerminalProperties = null;
             String runtimeTerminalPropertiesFile = System.getProperty("terminal.properties");
             if (runtimeTerminalPropertiesFile != null) {
-                runtimeTerminalProperties.load(new FileInputStream(runtimeTerminalPropertiesFile));
-                for(String key : runtimeTerminalProperties.stringPropertyNames()) {
-                    //Sanitize
-                    String sanitizedKey   = Util.byteArrayToHexString(Util.fromHexString(key)).toLowerCase();
-                    String sanitizedValue = Util.byteArrayToHexString(Util.fromHexString(runtimeTerminalProperties.getProperty(key))).toLowerCase();
-                    if(defaultTerminalProperties.contains(sanitizedKey) && sanitizedValue.length() != defaultTerminalProperties.getProperty(key).length()) {
-                        //Attempt to set different length for a default value
-                        throw new RuntimeException("Attempted to set a value with unsupported length for key: "+sanitizedKey + " (value: "+sanitizedValue+")");
-                    }
-                    runtimeTerminalProperties.setProperty(sanitizedKey, sanitizedValue);
-                }
+                runtimeTerminalProperties = TerminalConfiguration.loadProperties(new FileInputStream(runtimeTerminalPropertiesFile));
+            }
+            configuration.set(TerminalConfiguration.create(defaultTerminalProperties, runtimeTerminalProperties));
+            if (runtimeTerminalPropertiesFile != null && Boolean.getBoolean("terminal.properties.watch")) {
+                watchConfiguration(new File(runtimeTerminalPropertiesFile));
             }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
@@ -102,48 +114,63 @@ public class EMVTerminal {
 //         9a 03 -- Transaction Date
 //         9c 01 -- Transaction Type
 //         9f 37 04 -- Unpredictable Number
-    private static byte[] getTerminalResidentData(TagAndLength tal, EMVApplication app) {
-        //Check if the value is specified in the runtime properties file
-        String propertyValueStr = runtimeTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
-
-        if(propertyValueStr != null) {
-            byte[] propertyValue = Util.fromHexString(propertyValueStr);
+    //Returns the value, if it has the length specified by the DOL entry
+    private static byte[] matchLength(byte[] value, TagAndLength tal) {
+        if (value != null && value.length == tal.getLength()) {
+            return value;
+        }
+        return null;
+    }
 
-            if (propertyValue.length == tal.getLength()) {
-                return propertyValue;
-            }
+    /**
+     * Classifies a DOL entry. The precedence is: the value specified in the runtime properties file,
+     * the country and currency of the application, the default value, and then the data that
+     * changes with each transaction
+     *
+     * @return the element computed for each transaction, or null if the value is constant (see getTerminalResidentData)
+     */
+    private static CompiledDOL.Field getDynamicField(TerminalConfiguration config, TagAndLength tal) {
+        if (matchLength(config.getOverriddenValueNoCopy(tal.getTag()), tal) != null) {
+            return null;
         }
-        
         if (tal.getTag().equals(EMVTags.TERMINAL_COUNTRY_CODE) && tal.getLength() == 2) {
-            return findCountryCode(app);
+            return CompiledDOL.Field.TERMINAL_COUNTRY_CODE;
         } else if (tal.getTag().equals(EMVTags.TRANSACTION_CURRENCY_CODE) && tal.getLength() == 2) {
-            return findCurrencyCode(app);
+            return CompiledDOL.Field.TRANSACTION_CURRENCY_CODE;
         }
-        
-        //Now check for default values
-        propertyValueStr = defaultTerminalProperties.getProperty(Util.byteArrayToHexString(tal.getTag().getTagBytes()).toLowerCase());
-
-        if(propertyValueStr != null) {
-            byte[] propertyValue = Util.fromHexString(propertyValueStr);
+        if (matchLength(config.getDefaultValueNoCopy(tal.getTag()), tal) != null) {
+            return null;
+        }
+        if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
+            return CompiledDOL.Field.UNPREDICTABLE_NUMBER;
+        } else if (tal.getTag().equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && tal.getLength() == 5) {
+            //All bits set to '0' until the terminal has performed its checks
+            return CompiledDOL.Field.TERMINAL_VERIFICATION_RESULTS;
+        } else if (tal.getTag().equals(EMVTags.TRANSACTION_DATE) && tal.getLength() == 3) {
+            return CompiledDOL.Field.TRANSACTION_DATE;
+        }
+        return null;
+    }
 
-            if (propertyValue.length == tal.getLength()) {
-                return propertyValue;
-            }
+    /**
+     * @return the value of a DOL entry that getDynamicField classified as constant
+     */
+    private static byte[] getTerminalResidentData(TerminalConfiguration config, TagAndLength tal) {
+        //The value specified in the runtime properties file, else the default value
+        byte[] propertyValue = matchLength(config.getOverriddenValueNoCopy(tal.getTag()), tal);
+        if (propertyValue == null) {
+            propertyValue = matchLength(config.getDefaultValueNoCopy(tal.getTag()), tal);
+        }
+        if (propertyValue != null) {
+            return propertyValue;
         }
 
-        if (tal.getTag().equals(EMVTags.UNPREDICTABLE_NUMBER)) {
-            return Util.generateRandomBytes(tal.getLength());
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && tal.getLength() == 4) {
+        if (tal.getTag().equals(EMVTags.TERMINAL_TRANSACTION_QUALIFIERS) && tal.getLength() == 4) {
             //This seems only to be used in contactless mode. Construct accordingly
             TerminalTransactionQualifiers ttq = new TerminalTransactionQualifiers();
             ttq.setContactlessEMVmodeSupported(true);
             ttq.setReaderIsOfflineOnly(true);
             return ttq.getBytes();
-        } else if (tal.getTag().equals(EMVTags.TERMINAL_VERIFICATION_RESULTS) && tal.getLength() == 5) {
-            //All bits set to '0'
-            return terminalVerificationResults.toByteArray();
-        } else if (tal.getTag().equals(EMVTags.TRANSACTION_DATE) && tal.getLength() == 3) {
-            return Util.getCurrentDateAsNumericEncodedByteArray();
         } else if (tal.getTag().equals(EMVTags.TRANSACTION_TYPE) && tal.getLength() == 1) {
             //transactionTypes = {     0:  "Payment",     1:  "Withdrawal", } 
             //http://www.codeproject.com/Articles/100084/Introduction-to-ISO-8583
@@ -156,24 +183,83 @@ public class EMVTerminal {
         return defaultResponse;
     }
 
+    /**
+     * @return the Terminal Verification Results of the transaction processed by the current thread
+     */
     public static TerminalVerificationResults getTerminalVerificationResults() {
-        return terminalVerificationResults;
+        return terminalVerificationResults.get();
     }
     
     public static void resetTVR(){
-        terminalVerificationResults.reset();
+        terminalVerificationResults.get().reset();
     }
     
+    /**
+     * Overrides a terminal resident data element for the following transactions
+     *
+     * @throws IllegalArgumentException if the length of the value differs from the length of the default value
+     */
     public static void setProperty(String tagHex, String valueHex) {
         setProperty(new TagImpl(tagHex, TagValueType.BINARY, "", ""), Util.fromHexString(valueHex));
     }
     
+    /**
+     * @see #setProperty(String, String)
+     */
     public static void setProperty(Tag tag, byte[] value){
-        runtimeTerminalProperties.setProperty(Util.byteArrayToHexString(tag.getTagBytes()).toLowerCase(Locale.US), Util.byteArrayToHexString(value));
+        while (true) {
+            TerminalConfiguration current = configuration.get();
+            if (configuration.compareAndSet(current, current.withOverride(tag, value))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the current terminal configuration snapshot
+     */
+    public static TerminalConfiguration getConfiguration() {
+        return configuration.get();
+    }
+
+    /**
+     * Atomically replaces the terminal configuration.
+     * Sessions pick up the new configuration the next time they construct a DOL response
+     */
+    public static void setConfiguration(TerminalConfiguration newConfiguration) {
+        if (newConfiguration == null) {
+            throw new IllegalArgumentException("Param 'newConfiguration' cannot be null");
+        }
+        configuration.set(newConfiguration);
+    }
+
+    //Keeps the defaults, but replaces all the overridden values
+    static void setOverriddenConfiguration(Properties overrides) {
+        while (true) {
+            TerminalConfiguration current = configuration.get();
+            if (configuration.compareAndSet(current, current.withOverrides(overrides))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reloads the overridden values from the file whenever it changes.
+     * Values set using setProperty() are discarded when the file is reloaded.
+     * 
+     * Watching is also enabled on startup by setting the system properties
+     * -Dterminal.properties=/path/to/overridden/terminal.properties -Dterminal.properties.watch=true
+     */
+    public static TerminalConfigurationWatcher watchConfiguration(File file) throws IOException {
+        return new TerminalConfigurationWatcher(file);
     }
     
+    /**
+     * CDA is performed if the Terminal Capabilities (9F33) byte 3 (Security Capability) has the CDA bit (b4) set
+     */
     public static boolean isCDASupported(EMVApplication app) {
-        return false;
+        byte[] terminalCapabilities = configuration.get().getValue(EMVTags.TERMINAL_CAPABILITIES);
+        return terminalCapabilities != null && terminalCapabilities.length == 3 && (terminalCapabilities[2] & 0x08) != 0;
     }
     
     public static boolean isDDASupported(EMVApplication app) {
@@ -317,13 +403,175 @@ public class EMVTerminal {
         return false;
     }
 
+    /**
+     * @return the terminal transaction log used for floor limit checking, or null if there is none
+     */
+    public static TransactionJournal getTransactionJournal() {
+        return transactionJournal;
+    }
+
+    public static void setTransactionJournal(TransactionJournal journal) {
+        transactionJournal = journal;
+    }
+
+    /**
+     * @return the terminal exception file, or null if there is none
+     */
+    public static TerminalExceptionFile getExceptionFile() {
+        return exceptionFile.get();
+    }
+
+    /**
+     * Installs a new version of the exception file (or removes it, if null).
+     * Sessions checking the card against the previous version are not affected
+     *
+     * @return the previous version
+     */
+    public static TerminalExceptionFile setExceptionFile(TerminalExceptionFile newExceptionFile) {
+        return exceptionFile.getAndSet(newExceptionFile);
+    }
+
+    /**
+     * Maps a compiled exception file (see TerminalExceptionFile.compile()) and installs it
+     *
+     * @return the previous version
+     */
+    public static TerminalExceptionFile loadExceptionFile(File compiledFile) throws IOException {
+        return setExceptionFile(TerminalExceptionFile.open(compiledFile));
+    }
+
+    /**
+     * @return the Amount, Authorised (9F02) of the current transaction, in the minor unit of the currency
+     */
+    public static long getAmountAuthorised() {
+        byte[] amount = configuration.get().getValue(EMVTags.AMOUNT_AUTHORISED_NUMERIC);
+        if (amount == null) {
+            return 0;
+        }
+        //n 12 (BCD)
+        long value = 0;
+        for (byte b : amount) {
+            value = value * 100 + ((b >>> 4) & 0x0F) * 10 + (b & 0x0F);
+        }
+        return value;
+    }
+
+    /**
+     * @return the Terminal Floor Limit (9F1B), or -1 if not configured
+     */
+    public static long getFloorLimit() {
+        byte[] floorLimit = configuration.get().getValue(EMVTags.TERMINAL_FLOOR_LIMIT);
+        if (floorLimit == null) {
+            return -1;
+        }
+        //b 4
+        long value = 0;
+        for (byte b : floorLimit) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
     public static byte[] constructDOLResponse(DOL dol, EMVApplication app) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CompiledDOL compiledDOL = getCompiledDOL(dol);
+        TLVWriter writer = new TLVWriter(new byte[compiledDOL.getResponseLength()]);
+        compiledDOL.writeResponse(app, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes the values (without tags and lengths) requested by the DOL to the writer
+     */
+    public static void constructDOLResponse(DOL dol, EMVApplication app, TLVWriter out) {
+        getCompiledDOL(dol).writeResponse(app, out);
+    }
+
+    /**
+     * Returns the response plan for the DOL. Plans are cached per DOL byte pattern,
+     * and recompiled if the terminal resident data has been changed since.
+     */
+    static CompiledDOL getCompiledDOL(DOL dol) {
+        TerminalConfiguration config = configuration.get();
+        CompiledDOL compiledDOL = dol.getCompiledDOL();
+        if (compiledDOL != null && compiledDOL.getGeneration() == config.getGeneration()) {
+            return compiledDOL;
+        }
+        ByteArrayWrapper key = dol.getKey();
+        compiledDOL = compiledDOLCache.get(key);
+        if (compiledDOL == null || compiledDOL.getGeneration() != config.getGeneration()) {
+            compiledDOL = compileDOL(config, dol);
+            compiledDOLCache.put(key, compiledDOL);
+        }
+        dol.setCompiledDOL(compiledDOL);
+        return compiledDOL;
+    }
+
+    private static CompiledDOL compileDOL(TerminalConfiguration config, DOL dol) {
+        TLVWriter template = new TLVWriter(new byte[dol.getResponseLength()]);
+        List<CompiledDOL.Field> fields = new ArrayList<CompiledDOL.Field>();
+        List<TagAndLength> fieldTagAndLengths = new ArrayList<TagAndLength>();
+        List<Integer> fieldOffsets = new ArrayList<Integer>();
         for (TagAndLength tagAndLength : dol.getTagAndLengthList()) {
-            byte[] data = getTerminalResidentData(tagAndLength, app);
-            stream.write(data, 0, data.length);
+            CompiledDOL.Field field = getDynamicField(config, tagAndLength);
+            if (field != null) {
+                fields.add(field);
+                fieldTagAndLengths.add(tagAndLength);
+                fieldOffsets.add(template.size());
+                writeZeroes(template, tagAndLength.getLength());
+            } else {
+                //Constant for all transactions (until the terminal properties are changed)
+                writeFitted(tagAndLength, getTerminalResidentData(config, tagAndLength), template);
+            }
+        }
+        return new CompiledDOL(template.toByteArray(), fields, fieldTagAndLengths, fieldOffsets, config.getGeneration());
+    }
+
+    /**
+     * @return the value of a dynamic element that depends on the application or on the terminal state.
+     * The Unpredictable Number and the Transaction Date are written by CompiledDOL
+     */
+    static byte[] getDynamicTerminalData(CompiledDOL.Field field, EMVApplication app) {
+        switch (field) {
+            case TERMINAL_COUNTRY_CODE:
+                return findCountryCode(app);
+            case TRANSACTION_CURRENCY_CODE:
+                return findCurrencyCode(app);
+            case TERMINAL_VERIFICATION_RESULTS:
+                return terminalVerificationResults.get().toByteArray();
+        }
+        throw new IllegalArgumentException("Not an application or terminal state field: " + field);
+    }
+
+    /**
+     * Writes exactly the number of bytes specified by the DOL entry
+     */
+    static void writeFitted(TagAndLength tagAndLength, byte[] data, TLVWriter out) {
+        int length = tagAndLength.getLength();
+        if (data.length == length) {
+            out.writeBytes(data);
+        } else if (tagAndLength.getTag().getTagValueType() == TagValueType.NUMERIC) {
+            //EMV Book 3, 5.4: numeric data is truncated/padded with hexadecimal zeroes on the left
+            if (data.length > length) {
+                out.writeBytes(data, data.length - length, length);
+            } else {
+                writeZeroes(out, length - data.length);
+                out.writeBytes(data);
+            }
+        } else {
+            //Other data is truncated/padded with hexadecimal zeroes on the right
+            if (data.length > length) {
+                out.writeBytes(data, 0, length);
+            } else {
+                out.writeBytes(data);
+                writeZeroes(out, length - data.length);
+            }
+        }
+    }
+
+    private static void writeZeroes(TLVWriter out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.writeByte(0x00);
         }
-        return stream.toByteArray();
     }
 
     //The ICC may contain the DDOL, but there shall be a default DDOL in the terminal, 
@@ -349,9 +597,9 @@ public class EMVTerminal {
 
         Log.debug("No Issuer Country Code found in app. Using default Terminal Country Code");
 
-        String countryCode = defaultTerminalProperties.getProperty(Util.byteArrayToHexString(EMVTags.TERMINAL_COUNTRY_CODE.getTagBytes()));
+        byte[] countryCode = configuration.get().getDefaultValue(EMVTags.TERMINAL_COUNTRY_CODE);
         if(countryCode != null){
-            return Util.fromHexString(countryCode);
+            return countryCode;
         }
         
         return new byte[]{0x08, 0x26};
@@ -386,17 +634,15 @@ public class EMVTerminal {
             }
             
         }
-        String currencyCode = defaultTerminalProperties.getProperty(Util.byteArrayToHexString(EMVTags.TRANSACTION_CURRENCY_CODE.getTagBytes()));
+        byte[] currencyCode = configuration.get().getDefaultValue(EMVTags.TRANSACTION_CURRENCY_CODE);
         if(currencyCode != null){
-            return Util.fromHexString(currencyCode);
+            return currencyCode;
         }
         return new byte[]{0x08, 0x26};
     }
 
     public static void main(String[] args) {
-        for(String key : defaultTerminalProperties.stringPropertyNames()){
-            System.out.println(key+"="+defaultTerminalProperties.getProperty(key));
-        }
+        System.out.println(configuration.get());
         
         {
             TagAndLength tagAndLength = new TagAndLength(EMVTags.AMOUNT_AUTHORISED_NUMERIC, 6);
@@ -27,11 +27,13 @@ import sasc.iso7816.AID;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import sasc.emv.system.visa.VISATags;
 import sasc.iso7816.ATR;
 import sasc.iso7816.TLVException;
 import sasc.iso7816.TLVUtil;
+import sasc.jfr.ApduEvent;
 import sasc.terminal.CardResponse;
 import sasc.terminal.TerminalException;
 import sasc.terminal.CardConnection;
@@ -72,6 +74,10 @@ public class EMVUtil {
     private static CardResponse sendCmdInternal(CardConnection terminal, byte[] cmd, boolean doParseTLVData) throws TerminalException {
         byte[] cmdBytes = checkAndAddLeIfMissing(cmd);
         Log.command(Util.prettyPrintHex(cmdBytes));
+        byte[] sentBytes = cmdBytes;
+        int transmissions = 1;
+        ApduEvent event = new ApduEvent();
+        event.begin();
         long startTime = System.nanoTime();
         CardResponse response = terminal.transmit(cmdBytes);
 
@@ -88,6 +94,7 @@ public class EMVUtil {
             cmdBytes[4] = sw2;
             Log.procedureByte("Received procedure byte SW1=0x6c. Re-issuing command with correct length (" + Util.byte2Hex(sw2)+"): "+ Util.byteArrayToHexString(cmdBytes));
             response = terminal.transmit(cmdBytes);
+            transmissions++;
             sw1 = (byte) response.getSW1();
             sw2 = (byte) response.getSW2();
             data = response.getData(); //Copy
@@ -105,6 +112,7 @@ public class EMVUtil {
             }
             Log.procedureByte("Received procedure byte SW1=0x61. Sending GET RESPONSE command: " + Util.byteArrayToHexString(cmdBytes));
             response = terminal.transmit(cmdBytes);
+            transmissions++;
             byte[] newData = response.getData();
             byte[] tmpData = new byte[data.length + newData.length];
             System.arraycopy(data, 0, tmpData, 0, data.length);
@@ -117,6 +125,7 @@ public class EMVUtil {
 
 
         long endTime = System.nanoTime();
+        event.end(sentBytes, Util.byteToInt(sw1, sw2), data.length, transmissions);
         printResponse(response, doParseTLVData);
         Log.debug("Time: " + Util.getFormattedNanoTime(endTime - startTime));
         return response;
@@ -425,7 +434,7 @@ public class EMVUtil {
         }
     }
     
-    private static void checkForProprietaryTagOrAddToUnhandled(EMVApplication app, BERTLV tlv) {
+    static void checkForProprietaryTagOrAddToUnhandled(EMVApplication app, BERTLV tlv) {
         Tag tagFound = EMVTags.get(app, tlv.getTag());
         if(tagFound != null) {
             app.addUnprocessedRecord(tlv);
@@ -496,6 +505,8 @@ public class EMVUtil {
                     ApplicationFileLocator afl = new ApplicationFileLocator(aflBytes);
                     app.setApplicationFileLocator(afl);
                 } else {
+                    //Contactless kernels (eg. Visa qVSDC) return the Application Cryptogram here
+                    app.addProcessingOptionsDataObject(tlv);
                     checkForProprietaryTagOrAddToUnhandled(app, tlv);
                 }
             }
@@ -504,83 +515,51 @@ public class EMVUtil {
         }
     }
 
-    public static void parseAppRecord(byte[] data, EMVApplication app) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-
-        if (bis.available() < 2) {
-            throw new SmartCardException("Error parsing Application Record. Data: " + Util.byteArrayToHexString(data));
-        }
-        BERTLV tlv = TLVUtil.getNextTLV(bis);
-
-        if (!tlv.getTag().equals(EMVTags.RECORD_TEMPLATE)) {
-            throw new SmartCardException("Error parsing Application Record: No Response Template found. Data=" + Util.byteArrayToHexString(tlv.getValueBytes()));
-        }
+    //The data objects in the application records that are decoded by the getters of EMVApplication
+    private static final int[] LAZILY_DECODED_RECORD_TAGS = RecordTagIndex.toSortedArray(
+            EMVTags.CARDHOLDER_NAME,
+            EMVTags.TRACK1_DISCRETIONARY_DATA,
+            EMVTags.TRACK2_DISCRETIONARY_DATA,
+            EMVTags.TRACK_2_EQV_DATA,
+            EMVTags.APP_EXPIRATION_DATE,
+            EMVTags.APP_EFFECTIVE_DATE,
+            EMVTags.PAN,
+            EMVTags.PAN_SEQUENCE_NUMBER,
+            EMVTags.APP_USAGE_CONTROL,
+            EMVTags.CVM_LIST,
+            EMVTags.LANGUAGE_PREFERENCE,
+            EMVTags.ISSUER_ACTION_CODE_DEFAULT,
+            EMVTags.ISSUER_ACTION_CODE_DENIAL,
+            EMVTags.ISSUER_ACTION_CODE_ONLINE,
+            EMVTags.ISSUER_COUNTRY_CODE,
+            EMVTags.APPLICATION_CURRENCY_CODE,
+            EMVTags.APP_CURRENCY_EXPONENT,
+            EMVTags.APP_VERSION_NUMBER_CARD,
+            EMVTags.CDOL1,
+            EMVTags.CDOL2,
+            EMVTags.LOWER_CONSEC_OFFLINE_LIMIT,
+            EMVTags.UPPER_CONSEC_OFFLINE_LIMIT,
+            EMVTags.SERVICE_CODE,
+            EMVTags.SDA_TAG_LIST,
+            EMVTags.DDOL,
+            EMVTags.IBAN,
+            EMVTags.BANK_IDENTIFIER_CODE,
+            EMVTags.APP_DISCRETIONARY_DATA);
 
-        bis = new ByteArrayInputStream(tlv.getValueBytes());
+    /**
+     * Indexes the data objects in the record. Most data objects are decoded lazily,
+     * by the getters of EMVApplication. The data objects needed for offline data
+     * authentication, and those not recognised, are processed immediately.
+     */
+    public static void parseAppRecord(byte[] data, EMVApplication app) {
+        RecordTagIndex recordTagIndex = app.getRecordTagIndex();
 
-        while (bis.available() >= 2) {
-            tlv = TLVUtil.getNextTLV(bis);
-            if (tlv.getTag().equals(EMVTags.CARDHOLDER_NAME)) {
-                app.setCardholderName(Util.getSafePrintChars(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.TRACK1_DISCRETIONARY_DATA)) {
-                app.setTrack1DiscretionaryData(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.TRACK2_DISCRETIONARY_DATA)) {
-                app.setTrack2DiscretionaryData(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.TRACK_2_EQV_DATA)) {
-                Track2EquivalentData t2Data = new Track2EquivalentData(tlv.getValueBytes());
-                app.setTrack2EquivalentData(t2Data);
-            } else if (tlv.getTag().equals(EMVTags.APP_EXPIRATION_DATE)) {
-                app.setExpirationDate(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.APP_EFFECTIVE_DATE)) {
-                app.setEffectiveDate(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.PAN)) {
-                PAN pan = new PAN(tlv.getValueBytes());
-                app.setPAN(pan);
-            } else if (tlv.getTag().equals(EMVTags.PAN_SEQUENCE_NUMBER)) {
-                app.setPANSequenceNumber(tlv.getValueBytes()[0]);
-            } else if (tlv.getTag().equals(EMVTags.APP_USAGE_CONTROL)) {
-                ApplicationUsageControl auc = new ApplicationUsageControl(tlv.getValueBytes()[0], tlv.getValueBytes()[1]);
-                app.setApplicationUsageControl(auc);
-            } else if (tlv.getTag().equals(EMVTags.CVM_LIST)) {
-                CVMList cvmList = new CVMList(tlv.getValueBytes());
-                app.setCVMList(cvmList);
-            } else if (tlv.getTag().equals(EMVTags.LANGUAGE_PREFERENCE)) {
-                LanguagePreference languagePreference = new LanguagePreference(tlv.getValueBytes());
-                app.setLanguagePreference(languagePreference);
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_DEFAULT)) {
-                app.setIssuerActionCodeDefault(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_DENIAL)) {
-                app.setIssuerActionCodeDenial(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_ACTION_CODE_ONLINE)) {
-                app.setIssuerActionCodeOnline(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.ISSUER_COUNTRY_CODE)) {
-                int issuerCountryCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setIssuerCountryCode(issuerCountryCode);
-            } else if (tlv.getTag().equals(EMVTags.APPLICATION_CURRENCY_CODE)) {
-                int currencyCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setApplicationCurrencyCode(currencyCode);
-            } else if (tlv.getTag().equals(EMVTags.APP_CURRENCY_EXPONENT)) {
-                int applicationCurrencyExponent = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setApplicationCurrencyExponent(applicationCurrencyExponent);
-            } else if (tlv.getTag().equals(EMVTags.APP_VERSION_NUMBER_CARD)) {
-                app.setApplicationVersionNumber(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.CDOL1)) {
-                DOL cdol1 = new DOL(DOL.Type.CDOL1, tlv.getValueBytes());
-                app.setCDOL1(cdol1);
-            } else if (tlv.getTag().equals(EMVTags.CDOL2)) {
-                DOL cdol2 = new DOL(DOL.Type.CDOL2, tlv.getValueBytes());
-                app.setCDOL2(cdol2);
-            } else if (tlv.getTag().equals(EMVTags.LOWER_CONSEC_OFFLINE_LIMIT)) {
-                app.setLowerConsecutiveOfflineLimit(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.UPPER_CONSEC_OFFLINE_LIMIT)) {
-                app.setUpperConsecutiveOfflineLimit(Util.byteArrayToInt(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.SERVICE_CODE)) {
-                int serviceCode = Util.binaryHexCodedDecimalToInt(Util.byteArrayToHexString(tlv.getValueBytes()));
-                app.setServiceCode(serviceCode);
-            } else if (tlv.getTag().equals(EMVTags.SDA_TAG_LIST)) {
-                StaticDataAuthenticationTagList staticDataAuthTagList = new StaticDataAuthenticationTagList(tlv.getValueBytes());
-                app.setStaticDataAuthenticationTagList(staticDataAuthTagList);
-            } else if (tlv.getTag().equals(EMVTags.CA_PUBLIC_KEY_INDEX_CARD)) {
+        for (int i = recordTagIndex.add(data); i < recordTagIndex.size(); i++) {
+            if (Arrays.binarySearch(LAZILY_DECODED_RECORD_TAGS, recordTagIndex.getTag(i)) >= 0) {
+                continue;
+            }
+            BERTLV tlv = recordTagIndex.getTLV(i);
+            if (tlv.getTag().equals(EMVTags.CA_PUBLIC_KEY_INDEX_CARD)) {
                 IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
                 if (issuerCert == null) {
                     CA ca = CA.getCA(app.getAID());
@@ -664,19 +643,9 @@ public class EMVUtil {
                     app.setICCPinEnciphermentPublicKeyCertificate(iccPinEnciphermentCert);
                 }
                 iccPinEnciphermentCert.getICCPublicKey().setRemainder(tlv.getValueBytes());
-            } else if (tlv.getTag().equals(EMVTags.DDOL)) {
-                DOL ddol = new DOL(DOL.Type.DDOL, tlv.getValueBytes());
-                app.setDDOL(ddol);
-            } else if (tlv.getTag().equals(EMVTags.IBAN)) {
-                app.setIBAN(new IBAN(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.BANK_IDENTIFIER_CODE)) {
-                app.setBIC(new BankIdentifierCode(tlv.getValueBytes()));
-            } else if (tlv.getTag().equals(EMVTags.APP_DISCRETIONARY_DATA)) {
-                app.setDiscretionaryData(tlv.getValueBytes());
             } else {
                 checkForProprietaryTagOrAddToUnhandled(app, tlv);
             }
-
         }
     }
 
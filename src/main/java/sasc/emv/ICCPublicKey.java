@@ -25,9 +25,10 @@ import sasc.util.Util;
  * @author sasc
  */
 public class ICCPublicKey {
-    private byte[] exponent = new byte[0];
-    private byte[] modulus = new byte[0];
-    private byte[] remainder = new byte[0];
+    //Set by the session thread, and read by the offline data authentication pipeline
+    private volatile byte[] exponent = new byte[0];
+    private volatile byte[] modulus = new byte[0];
+    private volatile byte[] remainder = new byte[0];
 
     public ICCPublicKey(){
     }
@@ -44,6 +45,14 @@ public class ICCPublicKey {
         this.remainder = remainder;
     }
 
+    boolean hasExponent(){
+        return exponent.length > 0;
+    }
+
+    boolean hasRemainder(){
+        return remainder.length > 0;
+    }
+
     public int getKeyLengthInBytes(){
         return modulus.length+remainder.length;
     }
@@ -74,9 +83,9 @@ public class ICCPublicKey {
 
         pw.println(indentStr + "Length: "+getKeyLengthInBytes()*8+"bit");
         pw.println(indentStr + "Exponent:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getExponent()), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(getExponent(), indent+Log.INDENT_SIZE*2));
         pw.println(indentStr + "Modulus:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getModulus()), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(getModulus(), indent+Log.INDENT_SIZE*2));
 
     }
 }
@@ -24,6 +24,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Log;
 import sasc.util.Util;
+import sasc.jfr.CertificateValidationEvent;
 
 /**
  *
@@ -44,6 +45,9 @@ public class ICCPublicKeyCertificate {
     private int iccPublicKeyAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private byte[] recoveredBytes;
+    //SHA-1 over the hash input, if it has already been computed incrementally while reading the records
+    private byte[] offlineDataAuthenticationHash;
 
     public ICCPublicKeyCertificate(EMVApplication application, IssuerPublicKeyCertificate issuerPublicKeyCert) {
         this.application = application;
@@ -51,7 +55,7 @@ public class ICCPublicKeyCertificate {
         this.iccPublicKey = new ICCPublicKey();
     }
 
-    public void setSignedBytes(byte[] signedBytes) {
+    public synchronized void setSignedBytes(byte[] signedBytes) {
         this.signedBytes = signedBytes;
     }
 
@@ -67,32 +71,38 @@ public class ICCPublicKeyCertificate {
         return iccPublicKey; //never null
     }
 
-    //This method must only be called after ALL application records have been read
-    public boolean validate() {
-        if (validationPerformed) { //Validation already run
-            return isValid();
-        }
-        validationPerformed = true;
+    synchronized void setOfflineDataAuthenticationHash(byte[] offlineDataAuthenticationHash) {
+        this.offlineDataAuthenticationHash = offlineDataAuthenticationHash;
+    }
 
-        if (issuerPublicKeyCert == null) {
-			issuerPublicKeyCert = application.getIssuerPublicKeyCertificate();
-		}
+    synchronized boolean canRecover() {
+        return signedBytes != null;
+    }
 
-        if (issuerPublicKeyCert == null){
-            //No isser public key cert found
-            return isValid();
+    synchronized byte[] recover(IssuerPublicKey issuerPublicKey) {
+        if (recoveredBytes == null && signedBytes != null) {
+            recoveredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
         }
+        return recoveredBytes;
+    }
 
-        if(!issuerPublicKeyCert.validate()){ //Init the cert
-            isValid = false;
-            return isValid();
+    //The ICC Public Key Remainder is only present if the key does not fit in the certificate
+    //(NIC > NI - 42). Must only be called after recover()
+    synchronized boolean isRemainderRequired() {
+        if (recoveredBytes == null || recoveredBytes.length < 42) {
+            return true;
         }
+        int iccPublicKeyModLengthTotal = recoveredBytes[19] & 0xFF;
+        return iccPublicKeyModLengthTotal > recoveredBytes.length - 42;
+    }
 
-        IssuerPublicKey issuerPublicKey = issuerPublicKeyCert.getIssuerPublicKey();
-
-        byte[] recoveredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
+    //Parses the recovered certificate up to (and including) the hash, and returns the data
+    //that precedes the offline data authentication records in the hash input
+    synchronized byte[] getHashPrefix(IssuerPublicKey issuerPublicKey) {
+        return parseRecoveredBytes(new ByteArrayInputStream(recover(issuerPublicKey)), issuerPublicKey);
+    }
 
-        ByteArrayInputStream bis = new ByteArrayInputStream(recoveredBytes);
+    private byte[] parseRecoveredBytes(ByteArrayInputStream bis, IssuerPublicKey issuerPublicKey) {
 
         if (bis.read() != 0x6a) { //Header
             throw new SmartCardException("Header != 0x6a");
@@ -173,17 +183,62 @@ public class ICCPublicKeyCertificate {
         byte[] ipkExponent = iccPublicKey.getExponent();
         hashStream.write(ipkExponent, 0, ipkExponent.length);
 
-        byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
-        hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
-        //Trailer not included in hash
-
-        Log.debug("HashStream:\n"+Util.prettyPrintHex(hashStream.toByteArray()));
+        return hashStream.toByteArray();
+    }
 
-        byte[] sha1Result = null;
+    //This method must only be called after ALL application records have been read
+    public synchronized boolean validate() {
+        if (validationPerformed) { //Validation already run
+            return isValid();
+        }
+        CertificateValidationEvent event = CertificateValidationEvent.start(CertificateValidationEvent.ICC_PUBLIC_KEY_CERTIFICATE);
         try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+            return validateInternal();
+        } finally {
+            event.end(isValid);
+        }
+    }
+
+    private boolean validateInternal() {
+        validationPerformed = true;
+
+        if (issuerPublicKeyCert == null) {
+			issuerPublicKeyCert = application.getIssuerPublicKeyCertificate();
+		}
+
+        if (issuerPublicKeyCert == null){
+            //No isser public key cert found
+            return isValid();
+        }
+
+        if(!issuerPublicKeyCert.validate()){ //Init the cert
+            isValid = false;
+            return isValid();
+        }
+
+        IssuerPublicKey issuerPublicKey = issuerPublicKeyCert.getIssuerPublicKey();
+
+        //Reuses the recovered bytes if the RSA recovery has already been performed
+        ByteArrayInputStream bis = new ByteArrayInputStream(recover(issuerPublicKey));
+
+        byte[] hashPrefix = parseRecoveredBytes(bis, issuerPublicKey);
+
+        byte[] sha1Result = offlineDataAuthenticationHash;
+        if (sha1Result == null) {
+            ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+            hashStream.write(hashPrefix, 0, hashPrefix.length);
+
+            byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
+            hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
+            //Trailer not included in hash
+
+            Log.debug("HashStream:\n"+Util.prettyPrintHex(hashStream.toByteArray()));
+
+            try {
+                sha1Result = Util.calculateSHA1(hashStream.toByteArray());
+            } catch (NoSuchAlgorithmException ex) {
+                throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+            }
         }
 
         if (!Arrays.equals(sha1Result, hash)) {
@@ -204,7 +259,7 @@ public class ICCPublicKeyCertificate {
         return true;
     }
 
-    public boolean isValid() {
+    public synchronized boolean isValid() {
         return isValid;
     }
 
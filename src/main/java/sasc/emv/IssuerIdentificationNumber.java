@@ -16,6 +16,7 @@
 package sasc.emv;
 
 import java.util.Arrays;
+import sasc.util.BCD;
 import sasc.util.Util;
 
 /**
@@ -53,7 +54,7 @@ public class IssuerIdentificationNumber {
     }
     
     public int getValue(){
-        return Util.binaryHexCodedDecimalToInt(iinBytes);
+        return BCD.decodeInt(iinBytes, 0, iinBytes.length);
     }
     
     public byte[] getBytes(){
@@ -17,6 +17,7 @@ package sasc.emv;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import sasc.util.ByteArrayInterner;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -25,23 +26,32 @@ import sasc.util.Util;
  * @author sasc
  */
 public class IssuerPublicKey {
-    private byte[] exponent = new byte[0];
-    private byte[] modulus = new byte[0];
-    private byte[] remainder = new byte[0];
+    //Set by the session thread, and read by the offline data authentication pipeline
+    private volatile byte[] exponent = new byte[0];
+    private volatile byte[] modulus = new byte[0];
+    private volatile byte[] remainder = new byte[0];
 
     public IssuerPublicKey(){
     }
 
     public void setExponent(byte[] exp){
-        this.exponent = exp;
+        this.exponent = ByteArrayInterner.intern(exp);
     }
 
     public void setModulus(byte[] mod){
-        this.modulus = mod;
+        this.modulus = ByteArrayInterner.intern(mod);
     }
 
     public void setRemainder(byte[] remainder){
-        this.remainder = remainder;
+        this.remainder = ByteArrayInterner.intern(remainder);
+    }
+
+    boolean hasExponent(){
+        return exponent.length > 0;
+    }
+
+    boolean hasRemainder(){
+        return remainder.length > 0;
     }
 
     public int getKeyLengthInBytes(){
@@ -74,9 +84,9 @@ public class IssuerPublicKey {
 
         pw.println(indentStr + "Length: "+getKeyLengthInBytes()*8+"bit");
         pw.println(indentStr + "Exponent:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getExponent()), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(getExponent(), indent+Log.INDENT_SIZE*2));
         pw.println(indentStr + "Modulus:");
-        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(getModulus()), indent+Log.INDENT_SIZE*2));
+        pw.println(indentStr + Util.getSpaces(Log.INDENT_SIZE) + Util.prettyPrintHex(getModulus(), indent+Log.INDENT_SIZE*2));
 
     }
 }
@@ -23,7 +23,10 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import sasc.util.BCD;
+import sasc.util.ByteArrayInterner;
 import sasc.util.Util;
+import sasc.jfr.CertificateValidationEvent;
 
 /**
  *
@@ -44,6 +47,8 @@ public class IssuerPublicKeyCertificate {
     private int issuerPublicKeyAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private boolean revoked = false;
+    private byte[] recoveredBytes;
 
     public IssuerPublicKeyCertificate(CA ca) {
         //ca == null is permitted
@@ -51,24 +56,64 @@ public class IssuerPublicKeyCertificate {
         issuerPublicKey = new IssuerPublicKey();
     }
 
-    public void setCAPublicKeyIndex(int index) {
+    public synchronized void setCAPublicKeyIndex(int index) {
         this.caPublicKeyIndex = index;
     }
 
-    public void setSignedBytes(byte[] signedBytes) {
-        this.signedBytes = signedBytes;
+    public synchronized int getCAPublicKeyIndex() {
+        return caPublicKeyIndex;
+    }
+
+    public synchronized void setSignedBytes(byte[] signedBytes) {
+        //The same certificate is found on every card of the issuer
+        this.signedBytes = ByteArrayInterner.intern(signedBytes);
     }
 
     public IssuerPublicKey getIssuerPublicKey() {
         return issuerPublicKey;
     }
 
+    //The RSA recovery only depends on the CA Public Key Index and the certificate itself,
+    //so it may be performed before the Issuer Public Key Exponent and Remainder have been read
+    synchronized boolean canRecover() {
+        return ca != null && caPublicKeyIndex != -1 && signedBytes != null;
+    }
+
+    synchronized byte[] recover() {
+        if (recoveredBytes == null && canRecover()) {
+            CAPublicKey caPublicKey = ca.getPublicKey(caPublicKeyIndex);
+            if (caPublicKey != null) {
+                recoveredBytes = Util.performRSA(signedBytes, caPublicKey.getExponent(), caPublicKey.getModulus());
+            }
+        }
+        return recoveredBytes;
+    }
+
+    //The Issuer Public Key Remainder is only present if the key does not fit in the certificate
+    //(NI > NCA - 36). Must only be called after recover()
+    synchronized boolean isRemainderRequired() {
+        if (recoveredBytes == null || recoveredBytes.length < 36) {
+            return true;
+        }
+        int issuerPublicKeyModLengthTotal = recoveredBytes[13] & 0xFF;
+        return issuerPublicKeyModLengthTotal > recoveredBytes.length - 36;
+    }
+
     //Perform lazy validation, since we might not have all the data elements initially
     //This method must only be called after ALL application records have been read
-    public boolean validate() {
+    public synchronized boolean validate() {
         if (validationPerformed) { //Validation already run
             return isValid();
         }
+        CertificateValidationEvent event = CertificateValidationEvent.start(CertificateValidationEvent.ISSUER_PUBLIC_KEY_CERTIFICATE);
+        try {
+            return validateInternal();
+        } finally {
+            event.end(isValid);
+        }
+    }
+
+    private boolean validateInternal() {
         validationPerformed = true;
         if(this.ca == null){
             isValid = false;
@@ -81,8 +126,8 @@ public class IssuerPublicKeyCertificate {
             return isValid();
 //            throw new SmartCardException("No suitable CA Public Key found");
         }
-        //Decipher data using RSA
-        byte[] recoveredBytes = Util.performRSA(signedBytes, caPublicKey.getExponent(), caPublicKey.getModulus());
+        //Decipher data using RSA (or reuse the result if the recovery has already been performed)
+        byte[] recoveredBytes = recover();
 
         Log.debug("IssuerPKCert recoveredBytes="+Util.prettyPrintHex(recoveredBytes));
 
@@ -102,13 +147,8 @@ public class IssuerPublicKeyCertificate {
 
         bis.read(issuerIdentifierPaddedBytes, 0, issuerIdentifierPaddedBytes.length);
 
-        //Remove padding (if any) from issuerIdentifier
-        String iiStr = Util.byteArrayToHexString(issuerIdentifierPaddedBytes);
-        int padStartIndex = iiStr.toUpperCase().indexOf('F');
-        if(padStartIndex != -1){
-            iiStr = iiStr.substring(0, padStartIndex);
-        }
-        issuerIdentifier = Util.binaryHexCodedDecimalToInt(iiStr);
+        //Leftmost 3-8 digits from the PAN, padded with hex 'F's
+        issuerIdentifier = (int) BCD.decodeCompressedNumeric(issuerIdentifierPaddedBytes, 0, issuerIdentifierPaddedBytes.length);
 
         bis.read(certExpirationDate, 0, certExpirationDate.length);
 
@@ -137,7 +177,7 @@ public class IssuerPublicKeyCertificate {
         issuerPublicKey.setModulus(modtmp);
 
         //Now read padding bytes (0xbb), if available
-        //The padding bytes are not used
+        //The padding bytes are not part of the key, but they are part of the hash
         byte[] padding = new byte[bis.available()-21];
         bis.read(padding, 0, padding.length);
 
@@ -155,6 +195,7 @@ public class IssuerPublicKeyCertificate {
         hashStream.write((byte)issuerPublicKeyExpLengthTotal);
         byte[] ipkModulus = issuerPublicKey.getModulus();
         hashStream.write(ipkModulus, 0, ipkModulus.length);
+        hashStream.write(padding, 0, padding.length);
         byte[] ipkExponent = issuerPublicKey.getExponent();
         hashStream.write(ipkExponent, 0, ipkExponent.length);
 
@@ -179,14 +220,32 @@ public class IssuerPublicKeyCertificate {
         if (bis.available() > 0) {
             throw new SmartCardException("Error parsing certificate. Bytes left=" + bis.available());
         }
+
+        //Verify that the concatenation of RID, CA Public Key Index and Certificate Serial Number
+        //has not been revoked (EMV Book 2, 5.3 step 10). The current list is used, even if it
+        //was replaced after this session looked up the CA
+        if (CA.getRevocationList().isRevoked(ca.getRID(), caPublicKeyIndex, certSerialNumber)) {
+            revoked = true;
+            isValid = false;
+            return isValid();
+        }
         isValid = true;
         return true;
     }
 
-    public boolean isValid() {
+    public synchronized boolean isValid() {
         return isValid;
     }
 
+    //Only set after validation
+    public synchronized byte[] getCertSerialNumber() {
+        return Util.copyByteArray(certSerialNumber);
+    }
+
+    public synchronized boolean isRevoked() {
+        return revoked;
+    }
+
     @Override
     public String toString() {
         StringWriter sw = new StringWriter();
@@ -218,6 +277,8 @@ public class IssuerPublicKeyCertificate {
         } else {
             if(this.ca == null){
                 pw.println(indentStr + "NO CA CONFIGURED FOR THIS RID. UNABLE TO VALIDATE CERTIFICATE");
+            }else if(revoked){
+                pw.println(indentStr + "CERTIFICATE REVOKED (Serial Number: " + Util.byteArrayToHexString(certSerialNumber) + ")");
             }else{
                 pw.println(indentStr + "CERTIFICATE NOT VALID");
             }
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import sasc.util.Log;
+
+/**
+ * Overlaps the offline data authentication work with the reading of the application records.
+ *
+ * The CA Public Key Index and the Issuer Public Key Certificate are usually found
+ * in the first records indicated by the AFL. As soon as the data needed for each step
+ * has been parsed, the RSA recovery of the Issuer Public Key Certificate, the ICC Public Key
+ * Certificate and the Signed Static Application Data is performed on a worker thread,
+ * while the terminal continues to read the remaining records.
+ *
+ * The SHA-1 hash over the offline data authentication records is fed one record
+ * at a time, so that only the Static Data Authentication Tag List remains to be hashed
+ * when the last record has been read. The final comparison of the hashes is still
+ * performed by the validate() method of each certificate.
+ *
+ * The work is done on a thread pool shared by all the sessions. The tasks of a session
+ * are run one at a time, in order (a serial chain on the shared pool), so the worker state
+ * in this class is only accessed by one thread at a time. When the pool is saturated,
+ * the session thread runs its tasks itself.
+ *
+ * For each record, the session thread passes a snapshot of which data elements have been
+ * parsed so far. The certificate and key objects in the snapshot are not copies: the session
+ * thread keeps setting data elements on them while the worker recovers and validates.
+ * They are safe to share because the certificates' setters and the recovery/validation
+ * methods are synchronized, and the key fields are volatile (and the arrays are never
+ * modified once set). The worker only acts on what the snapshot says has been read,
+ * and may only see more of a key than that, never less.
+ *
+ * @author sasc
+ */
+class OfflineDataAuthenticationPipeline {
+
+    //The pending chains (at most one entry per session)
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        //The threads are allowed to time out when no card is being read
+        EXECUTOR = new ThreadPoolExecutor(numThreads, numThreads, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Offline Data Authentication " + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final EMVApplication app;
+    private FutureTask<Void> completion = null;
+
+    //The session's tasks not yet run. Guarded by 'this'
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean chainScheduled = false;
+    private boolean cancelled = false;
+    private final Runnable chain = new Runnable() {
+        @Override
+        public void run() {
+            runTasks();
+        }
+    };
+
+    //Worker state
+    private final List<byte[]> offlineDataAuthenticationInput = new ArrayList<byte[]>();
+    private MessageDigest iccCertDigest = null;
+    private MessageDigest ssadDigest = null;
+    private boolean issuerCertValidated = false;
+    private boolean issuerCertValid = false;
+    private boolean failed = false;
+
+    OfflineDataAuthenticationPipeline(EMVApplication app) {
+        this.app = app;
+    }
+
+    /**
+     * Must be called (by the session thread) after each record has been parsed
+     */
+    void recordRead(int sfi, Record record) {
+        byte[] input = null;
+        boolean inputValid = true;
+        if (record.isInvolvedInOfflineDataAuthentication()) {
+            try {
+                input = EMVApplication.getOfflineDataAuthenticationInput(sfi, record);
+            } catch (RuntimeException ex) {
+                //The hash input cannot be built. Leave it to validate() to report the error
+                inputValid = false;
+            }
+        }
+        final byte[] recordInput = input;
+        final boolean recordInputValid = inputValid;
+        final Snapshot snapshot = new Snapshot(app);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failed) {
+                    return;
+                }
+                if (!recordInputValid) {
+                    failed = true;
+                    return;
+                }
+                try {
+                    if (recordInput != null) {
+                        if (iccCertDigest != null) {
+                            iccCertDigest.update(recordInput);
+                        }
+                        if (ssadDigest != null) {
+                            ssadDigest.update(recordInput);
+                        }
+                        offlineDataAuthenticationInput.add(recordInput);
+                    }
+                    advance(snapshot);
+                } catch (RuntimeException ex) {
+                    Log.debug("Offline data authentication pipeline stopped: " + ex.getMessage());
+                    failed = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Must be called (by the session thread) after all records indicated in the AFL have been read
+     */
+    void allRecordsRead() {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+        }
+        byte[] sdaTagListInput = null;
+        try {
+            sdaTagListInput = app.getStaticDataAuthenticationTagListInput();
+        } catch (RuntimeException ex) {
+            //Leave it to validate() to report the error
+        }
+        final byte[] staticDataAuthenticationTagListInput = sdaTagListInput;
+        final Snapshot snapshot = new Snapshot(app);
+        completion = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                if (failed || staticDataAuthenticationTagListInput == null) {
+                    return;
+                }
+                try {
+                    advance(snapshot);
+                    if (iccCertDigest != null) {
+                        iccCertDigest.update(staticDataAuthenticationTagListInput);
+                        snapshot.iccCert.setOfflineDataAuthenticationHash(iccCertDigest.digest());
+                    }
+                    if (ssadDigest != null) {
+                        ssadDigest.update(staticDataAuthenticationTagListInput);
+                        snapshot.ssad.setOfflineDataAuthenticationHash(ssadDigest.digest());
+                    }
+                } catch (RuntimeException ex) {
+                    Log.debug("Offline data authentication pipeline stopped: " + ex.getMessage());
+                }
+            }
+        }, null);
+        execute(completion);
+    }
+
+    /**
+     * Must be called (by the session thread) if the records cannot all be read,
+     * so that the work not yet started is discarded
+     */
+    void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            tasks.clear();
+        }
+        if (completion != null) {
+            completion.cancel(false);
+        }
+    }
+
+    /**
+     * Waits for the background work to finish. The certificates may then be validated
+     * without any further RSA operations
+     */
+    void awaitCompletion() {
+        if (completion == null) {
+            return;
+        }
+        try {
+            completion.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (CancellationException ex) {
+            Log.debug("Offline data authentication pipeline cancelled");
+        } catch (ExecutionException ex) {
+            Log.debug("Offline data authentication pipeline failed: " + ex.getCause());
+        }
+    }
+
+    /**
+     * Appends the task to the session's chain, and schedules the chain if it is not running
+     */
+    private void execute(Runnable task) {
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            tasks.add(task);
+            if (chainScheduled) {
+                return;
+            }
+            chainScheduled = true;
+        }
+        EXECUTOR.execute(chain);
+    }
+
+    /**
+     * Runs the session's tasks until there are none left. The lock taken for each task
+     * publishes the worker state to the thread running the next task
+     */
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    chainScheduled = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+
+    private void advance(Snapshot snapshot) {
+        IssuerPublicKeyCertificate issuerCert = snapshot.issuerCert;
+        if (!issuerCertValidated && snapshot.issuerCertRecoverable) {
+            issuerCert.recover();
+            if (snapshot.issuerExponentRead && (snapshot.issuerRemainderRead || !issuerCert.isRemainderRequired())) {
+                issuerCertValidated = true;
+                issuerCertValid = issuerCert.validate();
+            }
+        }
+        if (!issuerCertValid) {
+            return;
+        }
+        IssuerPublicKey issuerPublicKey = issuerCert.getIssuerPublicKey();
+
+        if (iccCertDigest == null && snapshot.iccCertRecoverable) {
+            snapshot.iccCert.recover(issuerPublicKey);
+            if (snapshot.iccExponentRead && (snapshot.iccRemainderRead || !snapshot.iccCert.isRemainderRequired())) {
+                iccCertDigest = startDigest(snapshot.iccCert.getHashPrefix(issuerPublicKey));
+            }
+        }
+        if (ssadDigest == null && snapshot.ssadRecoverable) {
+            ssadDigest = startDigest(snapshot.ssad.getHashPrefix(issuerPublicKey));
+        }
+    }
+
+    private MessageDigest startDigest(byte[] hashPrefix) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
+        digest.update(hashPrefix);
+        for (byte[] recordInput : offlineDataAuthenticationInput) {
+            digest.update(recordInput);
+        }
+        return digest;
+    }
+
+    /**
+     * What the session thread has parsed when a record has been read. The flags are
+     * immutable; the certificates are the live (shared) objects
+     */
+    private static class Snapshot {
+
+        private final IssuerPublicKeyCertificate issuerCert;
+        private final boolean issuerCertRecoverable;
+        private final boolean issuerExponentRead;
+        private final boolean issuerRemainderRead;
+        private final ICCPublicKeyCertificate iccCert;
+        private final boolean iccCertRecoverable;
+        private final boolean iccExponentRead;
+        private final boolean iccRemainderRead;
+        private final SignedStaticApplicationData ssad;
+        private final boolean ssadRecoverable;
+
+        private Snapshot(EMVApplication app) {
+            issuerCert = app.getIssuerPublicKeyCertificate();
+            issuerCertRecoverable = issuerCert != null && issuerCert.canRecover();
+            issuerExponentRead = issuerCert != null && issuerCert.getIssuerPublicKey().hasExponent();
+            issuerRemainderRead = issuerCert != null && issuerCert.getIssuerPublicKey().hasRemainder();
+            iccCert = app.getICCPublicKeyCertificate();
+            iccCertRecoverable = iccCert != null && iccCert.canRecover();
+            iccExponentRead = iccCert != null && iccCert.getICCPublicKey().hasExponent();
+            iccRemainderRead = iccCert != null && iccCert.getICCPublicKey().hasRemainder();
+            ssad = app.getSignedStaticApplicationData();
+            ssadRecoverable = ssad != null && ssad.canRecover();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Searches a card for records, for forensic reads of unknown cards.
+ *
+ * Instead of sending READ RECORD for every SFI (1-30) and record number (1-255),
+ * the responses are used to decide what to read next:
+ *
+ *   6A82 (file not found): the rest of the SFI is skipped
+ *   6A83 (record not found): the SFI is read until maxRecordGap consecutive
+ *        records have not been found
+ *   any other error: the rest of the SFI is skipped, and the SW is reported
+ *
+ * The files known to exist (from the AFL, the PSE and the Log Entry) are read
+ * first, and at least up to the last known record. The search stops when the
+ * command or time budget is used up, and the result reports which files
+ * were covered.
+ *
+ * @author sasc
+ */
+public class RecordDiscovery {
+
+    public static final int MIN_SFI = 1;
+    public static final int MAX_SFI = 30;
+    public static final int MAX_RECORD_NUMBER = 255;
+
+    private int maxRecordGap = 4;
+    private int maxCommands = Integer.MAX_VALUE;
+    private long maxMillis = Long.MAX_VALUE;
+
+    public RecordDiscovery() {
+    }
+
+    public int getMaxRecordGap() {
+        return maxRecordGap;
+    }
+
+    /**
+     * @param gap the number of consecutive records not found (after the last
+     * known or found record) before the rest of the SFI is skipped.
+     * Use MAX_RECORD_NUMBER to read every record of the files that exist
+     */
+    public void setMaxRecordGap(int gap) {
+        if (gap < 1) {
+            throw new IllegalArgumentException("Record gap must be >= 1: " + gap);
+        }
+        this.maxRecordGap = gap;
+    }
+
+    public int getMaxCommands() {
+        return maxCommands;
+    }
+
+    /**
+     * Set the maximum number of READ RECORD commands to send
+     */
+    public void setMaxCommands(int maxCommands) {
+        if (maxCommands < 1) {
+            throw new IllegalArgumentException("Max commands must be >= 1: " + maxCommands);
+        }
+        this.maxCommands = maxCommands;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * Set the maximum time to spend, in milliseconds
+     */
+    public void setMaxMillis(long maxMillis) {
+        if (maxMillis < 1) {
+            throw new IllegalArgumentException("Max millis must be >= 1: " + maxMillis);
+        }
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param terminal the connection to the card
+     * @param knownFiles SFI -> the last record number known to exist in the file.
+     * These files are read first, in iteration order
+     */
+    public Result discover(CardConnection terminal, Map<Integer, Integer> knownFiles) throws TerminalException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        long deadline = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE : start + maxMillis * 1000000L;
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (Integer sfi : knownFiles.keySet()) {
+            if (sfi >= MIN_SFI && sfi <= MAX_SFI && !order.contains(sfi)) {
+                order.add(sfi);
+            }
+        }
+        for (int sfi = MIN_SFI; sfi <= MAX_SFI; sfi++) {
+            if (!order.contains(sfi)) {
+                order.add(sfi);
+            }
+        }
+
+        for (int sfi : order) {
+            DiscoveredFile file = new DiscoveredFile(sfi);
+            result.files.put(sfi, file);
+            Integer lastKnown = knownFiles.get(sfi);
+            int lastRecord = lastKnown != null ? lastKnown : 0;
+            for (int recordNum = 1; recordNum <= MAX_RECORD_NUMBER; recordNum++) {
+                if (recordNum - lastRecord > maxRecordGap) {
+                    file.status = Status.SCANNED;
+                    break;
+                }
+                if (result.numCommands >= maxCommands || System.nanoTime() > deadline) {
+                    result.budgetExhausted = true;
+                    break;
+                }
+                CardResponse response = EMVUtil.sendCmdNoParse(terminal, EMVAPDUCommands.readRecord(recordNum, sfi));
+                result.numCommands++;
+                file.lastRecordRead = recordNum;
+                short sw = response.getSW();
+                if (sw == SW.SUCCESS.getSW()) {
+                    file.records.put(recordNum, response.getData());
+                    lastRecord = recordNum;
+                } else if (sw == SW.FILE_OR_APPLICATION_NOT_FOUND.getSW()) {
+                    file.status = Status.NOT_FOUND;
+                    break;
+                } else if (sw != SW.RECORD_NOT_FOUND.getSW()) {
+                    file.status = Status.STOPPED;
+                    file.sw = sw;
+                    break;
+                }
+            }
+            if (file.status == Status.NOT_SCANNED) {
+                if (file.lastRecordRead == MAX_RECORD_NUMBER) {
+                    file.status = Status.SCANNED;
+                } else if (file.lastRecordRead > 0) {
+                    //Interrupted by the budget
+                    file.status = Status.PARTIALLY_SCANNED;
+                }
+            }
+            if (result.budgetExhausted) {
+                break;
+            }
+        }
+        //Report the files not reached
+        for (int sfi : order) {
+            if (!result.files.containsKey(sfi)) {
+                result.files.put(sfi, new DiscoveredFile(sfi));
+            }
+        }
+        result.elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        Log.info("Record discovery: " + result.getNumRecords() + " records found using " + result.numCommands + " commands");
+        return result;
+    }
+
+    public enum Status {
+
+        /**
+         * Not read, because the budget was used up
+         */
+        NOT_SCANNED,
+        /**
+         * Read until the budget was used up
+         */
+        PARTIALLY_SCANNED,
+        /**
+         * Read until maxRecordGap records were not found
+         */
+        SCANNED,
+        /**
+         * 6A82: File not found
+         */
+        NOT_FOUND,
+        /**
+         * Some other error. See getSW()
+         */
+        STOPPED
+    }
+
+    public static class DiscoveredFile {
+
+        private final int sfi;
+        private Status status = Status.NOT_SCANNED;
+        private short sw = 0;
+        private int lastRecordRead = 0;
+        private final Map<Integer, byte[]> records = new LinkedHashMap<Integer, byte[]>();
+
+        DiscoveredFile(int sfi) {
+            this.sfi = sfi;
+        }
+
+        public int getSFI() {
+            return sfi;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the SW that stopped the read (status STOPPED), or 0
+         */
+        public short getSW() {
+            return sw;
+        }
+
+        public int getLastRecordRead() {
+            return lastRecordRead;
+        }
+
+        /**
+         * @return record number -> record data
+         */
+        public Map<Integer, byte[]> getRecords() {
+            return Collections.unmodifiableMap(records);
+        }
+    }
+
+    public static class Result {
+
+        private final Map<Integer, DiscoveredFile> files = new TreeMap<Integer, DiscoveredFile>();
+        private int numCommands = 0;
+        private long elapsedMillis = 0;
+        private boolean budgetExhausted = false;
+
+        Result() {
+        }
+
+        /**
+         * @return one entry for each SFI, ordered by SFI
+         */
+        public Collection<DiscoveredFile> getFiles() {
+            return Collections.unmodifiableCollection(files.values());
+        }
+
+        public DiscoveredFile getFile(int sfi) {
+            return files.get(sfi);
+        }
+
+        public int getNumCommands() {
+            return numCommands;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return true if the search was stopped by the command or time budget
+         */
+        public boolean isBudgetExhausted() {
+            return budgetExhausted;
+        }
+
+        public int getNumRecords() {
+            int numRecords = 0;
+            for (DiscoveredFile file : files.values()) {
+                numRecords += file.records.size();
+            }
+            return numRecords;
+        }
+
+        /**
+         * @return the number of SFIs that have been fully searched
+         */
+        public int getNumFilesCovered() {
+            int covered = 0;
+            for (DiscoveredFile file : files.values()) {
+                if (file.status != Status.NOT_SCANNED && file.status != Status.PARTIALLY_SCANNED) {
+                    covered++;
+                }
+            }
+            return covered;
+        }
+
+        @Override
+        public String toString() {
+            StringWriter sw = new StringWriter();
+            dump(new PrintWriter(sw), 0);
+            return sw.toString();
+        }
+
+        public void dump(PrintWriter pw, int indent) {
+            pw.println(Util.getSpaces(indent) + "Record Discovery");
+            String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+            pw.println(indentStr + "Files covered: " + getNumFilesCovered() + "/" + files.size()
+                    + (budgetExhausted ? " (budget exhausted)" : ""));
+            pw.println(indentStr + "Records found: " + getNumRecords());
+            pw.println(indentStr + "Commands sent: " + numCommands + " in " + elapsedMillis + "ms");
+            String fileIndentStr = Util.getSpaces(indent + Log.INDENT_SIZE * 2);
+            for (DiscoveredFile file : files.values()) {
+                if (file.status == Status.NOT_FOUND && file.records.isEmpty()) {
+                    continue;
+                }
+                StringBuilder line = new StringBuilder();
+                line.append("SFI ").append(file.sfi).append(": ").append(file.status);
+                if (file.status == Status.STOPPED) {
+                    line.append(" (SW=").append(Util.short2Hex(file.sw)).append(" ").append(SW.getSWDescription(file.sw)).append(")");
+                }
+                if (!file.records.isEmpty()) {
+                    line.append(" records ").append(file.records.keySet());
+                }
+                pw.println(indentStr + line);
+                for (Map.Entry<Integer, byte[]> record : file.records.entrySet()) {
+                    pw.println(fileIndentStr + "Record " + record.getKey() + ": " + Util.prettyPrintHexNoWrap(record.getValue()));
+                }
+            }
+            pw.flush();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.TLVException;
+import sasc.iso7816.TLVUtil;
+import sasc.iso7816.Tag;
+import sasc.util.ByteArrayInterner;
+import sasc.util.Util;
+
+/**
+ * An index of the data objects found in the application records (Record Template '70').
+ *
+ * The raw record buffers are kept as they were read from the card (they are the same
+ * arrays that are kept by the Records for offline data authentication), and each data
+ * object is located with a single pass over the tag and length fields.
+ * No value bytes are copied when a record is added: the values are copied (and decoded
+ * by EMVApplication) only when they are asked for.
+ *
+ * The index is appended to by the session thread while the records are read,
+ * but may be read by the offline data authentication worker thread.
+ *
+ * @author sasc
+ */
+class RecordTagIndex {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final List<byte[]> records = new ArrayList<byte[]>();
+
+    //One entry per data object, in the order read
+    private int size = 0;
+    private int[] tags = new int[INITIAL_CAPACITY];
+    private short[] recordIndexes = new short[INITIAL_CAPACITY];
+    private int[] tlvOffsets = new int[INITIAL_CAPACITY];
+    private int[] valueOffsets = new int[INITIAL_CAPACITY];
+    private int[] valueLengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * Indexes the data objects found in the record
+     *
+     * @return the index of the first data object found in the record
+     * @throws SmartCardException if the record is not a Record Template
+     * @throws TLVException if the record is not correctly TLV-coded
+     */
+    synchronized int add(byte[] record) {
+        if (record.length < 2) {
+            throw new SmartCardException("Error parsing Application Record. Data: " + Util.byteArrayToHexString(record));
+        }
+        ByteArrayInputStream stream = new ByteArrayInputStream(record);
+        int recordTag = toInt(TLVUtil.readTagIdBytes(stream));
+        int recordLength = TLVUtil.readTagLength(stream);
+        int start = record.length - stream.available();
+        if (recordTag != 0x70) {
+            throw new SmartCardException("Error parsing Application Record: No Response Template found. Data=" + Util.byteArrayToHexString(record));
+        }
+        if (recordLength > stream.available()) {
+            throw new TLVException("Length byte(s) indicated " + recordLength + " value bytes, but only " + stream.available() + " available");
+        }
+        if (records.size() > Short.MAX_VALUE) {
+            throw new SmartCardException("Too many records: " + records.size());
+        }
+        int first = size;
+        short recordIndex = (short) records.size();
+        records.add(record);
+
+        int end = start + recordLength;
+        int pos = start;
+        while (pos < end) {
+            //'00' or 'FF' bytes without any meaning may occur between data objects
+            if (record[pos] == (byte) 0x00 || record[pos] == (byte) 0xFF) {
+                pos++;
+                continue;
+            }
+            if (end - pos < 2) {
+                break;
+            }
+            int tlvOffset = pos;
+            stream = new ByteArrayInputStream(record, pos, end - pos);
+            byte[] tagBytes = TLVUtil.readTagIdBytes(stream);
+            int tag = toInt(tagBytes);
+            int length = TLVUtil.readTagLength(stream);
+            int valueOffset = end - stream.available();
+            if (record[tlvOffset + tagBytes.length] == (byte) 0x80) {
+                //Indefinite form: the value ends with '00 00'
+                length = 0;
+                while (valueOffset + length + 1 < end && (record[valueOffset + length] != 0 || record[valueOffset + length + 1] != 0)) {
+                    length++;
+                }
+                if (valueOffset + length + 1 >= end) {
+                    throw new TLVException("Error parsing data. TLV length byte indicated indefinite length, but EOS was reached before 0x0000 was found");
+                }
+                pos = valueOffset + length + 2;
+            } else {
+                if (length > end - valueOffset) {
+                    throw new TLVException("Length byte(s) indicated " + length + " value bytes, but only " + (end - valueOffset) + " available");
+                }
+                pos = valueOffset + length;
+            }
+            append(tag, recordIndex, tlvOffset, valueOffset, length);
+        }
+        return first;
+    }
+
+    private void append(int tag, short recordIndex, int tlvOffset, int valueOffset, int valueLength) {
+        if (size == tags.length) {
+            int capacity = size * 2;
+            tags = Arrays.copyOf(tags, capacity);
+            recordIndexes = Arrays.copyOf(recordIndexes, capacity);
+            tlvOffsets = Arrays.copyOf(tlvOffsets, capacity);
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+            valueLengths = Arrays.copyOf(valueLengths, capacity);
+        }
+        tags[size] = tag;
+        recordIndexes[size] = recordIndex;
+        tlvOffsets[size] = tlvOffset;
+        valueOffsets[size] = valueOffset;
+        valueLengths[size] = valueLength;
+        size++;
+    }
+
+    /**
+     * @return the number of data objects indexed
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized int getTag(int index) {
+        checkIndex(index);
+        return tags[index];
+    }
+
+    /**
+     * Decodes the data object at the index
+     */
+    synchronized BERTLV getTLV(int index) {
+        checkIndex(index);
+        byte[] record = records.get(recordIndexes[index]);
+        int tlvOffset = tlvOffsets[index];
+        return TLVUtil.getNextTLV(new ByteArrayInputStream(record, tlvOffset, record.length - tlvOffset));
+    }
+
+    synchronized boolean contains(Tag tag) {
+        return lastIndexOf(toInt(tag.getTagBytes())) >= 0;
+    }
+
+    /**
+     * If the tag occurs in several records, the last occurrence is returned
+     * (as if each record overwrites the data objects of the previous records)
+     *
+     * @return a copy of the value of the data object, or null if the tag was not found
+     */
+    synchronized byte[] getValue(Tag tag) {
+        int index = lastIndexOf(toInt(tag.getTagBytes()));
+        if (index < 0) {
+            return null;
+        }
+        byte[] record = records.get(recordIndexes[index]);
+        return Arrays.copyOfRange(record, valueOffsets[index], valueOffsets[index] + valueLengths[index]);
+    }
+
+    /**
+     * @return the canonical instance of the value (see ByteArrayInterner), or null if the tag was not found.
+     *         The array is shared, and must not be modified
+     */
+    synchronized byte[] getInternedValue(Tag tag) {
+        int index = lastIndexOf(toInt(tag.getTagBytes()));
+        if (index < 0) {
+            return null;
+        }
+        return ByteArrayInterner.intern(records.get(recordIndexes[index]), valueOffsets[index], valueLengths[index]);
+    }
+
+    private int lastIndexOf(int tag) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * @return the tags as ints, sorted (for Arrays.binarySearch)
+     */
+    static int[] toSortedArray(Tag... tags) {
+        int[] values = new int[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            values[i] = toInt(tags[i].getTagBytes());
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Tags longer than 4 bytes are not used by EMV. These are indexed as 0 ('00' is never a tag),
+     * and can only be found with getTLV()
+     */
+    static int toInt(byte[] tagBytes) {
+        if (tagBytes.length > 4) {
+            return 0;
+        }
+        int value = 0;
+        for (byte b : tagBytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import sasc.util.Util;
+
+/**
+ * Creates the signed data objects verified during offline data authentication:
+ * certificates, Signed Static Application Data and Signed Dynamic Application Data
+ * (EMV Book 2, sections 5 and 6).
+ *
+ * This is the counterpart of IssuerPublicKeyCertificate, ICCPublicKeyCertificate,
+ * SignedStaticApplicationData and SignedDynamicApplicationData, and is used to
+ * create TEST cards. See also GenerateIssuerAndICCCertsMain
+ *
+ * @author sasc
+ */
+public final class SignedDataGenerator {
+
+    private static final byte HEADER = (byte) 0x6a;
+    private static final byte TRAILER = (byte) 0xbc;
+    private static final byte PADDING = (byte) 0xbb;
+    private static final byte FORMAT_ISSUER_PK_CERT = 0x02;
+    private static final byte FORMAT_SSAD = 0x03;
+    private static final byte FORMAT_ICC_PK_CERT = 0x04;
+    private static final byte FORMAT_SDAD = 0x05;
+    private static final byte HASH_ALGORITHM_SHA1 = 0x01;
+    private static final byte PK_ALGORITHM_RSA = 0x01;
+    private static final int HASH_LENGTH = 20;
+
+    private SignedDataGenerator() {
+        throw new UnsupportedOperationException("Not allowed to instantiate");
+    }
+
+    /**
+     * EMV Book 2, Table 6
+     *
+     * @param caPrivateKey the Certification Authority Private Key
+     * @param issuerIdentifier the leftmost 3-8 digits of the PAN
+     * @param expirationDateMMYY 4 digits
+     * @param serialNumber 3 bytes
+     */
+    public static byte[] createIssuerPublicKeyCertificate(RSAPrivateKey caPrivateKey, String issuerIdentifier,
+            String expirationDateMMYY, byte[] serialNumber, RSAPublicKey issuerPublicKey) {
+        if (issuerIdentifier.length() < 3 || issuerIdentifier.length() > 8) {
+            throw new IllegalArgumentException("Issuer Identifier must be 3-8 digits: " + issuerIdentifier);
+        }
+        int caModulusLength = getModulusLength(caPrivateKey);
+        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        hashStream.write(FORMAT_ISSUER_PK_CERT);
+        write(hashStream, padDigits(issuerIdentifier, 4));
+        writeDateAndSerialNumber(hashStream, expirationDateMMYY, serialNumber);
+        int keyFieldLength = caModulusLength - 36;
+        byte[] keyField = writeKey(hashStream, issuerPublicKey, keyFieldLength);
+        //The hash covers the remainder (if any) and the exponent, which are not part of the certificate
+        return sign(caPrivateKey, hashStream.toByteArray(), keyField.length - keyFieldLength, getExponentBytes(issuerPublicKey));
+    }
+
+    /**
+     * @return the Issuer Public Key Remainder (tag 92), or an empty array if the whole key fits in the certificate
+     */
+    public static byte[] getIssuerPublicKeyRemainder(RSAKey caKey, RSAPublicKey issuerPublicKey) {
+        return getRemainder(issuerPublicKey, getModulusLength(caKey) - 36);
+    }
+
+    /**
+     * EMV Book 2, Table 14
+     *
+     * @param issuerPrivateKey the Issuer Private Key
+     * @param pan the PAN (up to 19 digits)
+     * @param expirationDateMMYY 4 digits
+     * @param serialNumber 3 bytes
+     * @param staticData the static data to be authenticated (see EMVApplication.getOfflineDataAuthenticationRecords())
+     */
+    public static byte[] createICCPublicKeyCertificate(RSAPrivateKey issuerPrivateKey, String pan,
+            String expirationDateMMYY, byte[] serialNumber, RSAPublicKey iccPublicKey, byte[] staticData) {
+        int issuerModulusLength = getModulusLength(issuerPrivateKey);
+        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        hashStream.write(FORMAT_ICC_PK_CERT);
+        write(hashStream, padDigits(pan, 10));
+        writeDateAndSerialNumber(hashStream, expirationDateMMYY, serialNumber);
+        int keyFieldLength = issuerModulusLength - 42;
+        byte[] keyField = writeKey(hashStream, iccPublicKey, keyFieldLength);
+        ByteArrayOutputStream hashSuffix = new ByteArrayOutputStream();
+        write(hashSuffix, getExponentBytes(iccPublicKey));
+        write(hashSuffix, staticData);
+        return sign(issuerPrivateKey, hashStream.toByteArray(), keyField.length - keyFieldLength, hashSuffix.toByteArray());
+    }
+
+    /**
+     * @return the ICC Public Key Remainder (tag 9F48), or an empty array if the whole key fits in the certificate
+     */
+    public static byte[] getICCPublicKeyRemainder(RSAKey issuerKey, RSAPublicKey iccPublicKey) {
+        return getRemainder(iccPublicKey, getModulusLength(issuerKey) - 42);
+    }
+
+    /**
+     * EMV Book 2, Table 7
+     *
+     * @param dataAuthenticationCode 2 bytes
+     * @param staticData the static data to be authenticated (see EMVApplication.getOfflineDataAuthenticationRecords())
+     */
+    public static byte[] createSignedStaticApplicationData(RSAPrivateKey issuerPrivateKey, byte[] dataAuthenticationCode, byte[] staticData) {
+        if (dataAuthenticationCode.length != 2) {
+            throw new IllegalArgumentException("Data Authentication Code must be 2 bytes: " + dataAuthenticationCode.length);
+        }
+        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        hashStream.write(FORMAT_SSAD);
+        hashStream.write(HASH_ALGORITHM_SHA1);
+        write(hashStream, dataAuthenticationCode);
+        writePadding(hashStream, getModulusLength(issuerPrivateKey) - 26);
+        return sign(issuerPrivateKey, hashStream.toByteArray(), 0, staticData);
+    }
+
+    /**
+     * EMV Book 2, Table 17
+     *
+     * @param iccDynamicData the ICC Dynamic Data (starting with the length of the ICC Dynamic Number)
+     * @param terminalDynamicData the data sent in the INTERNAL AUTHENTICATE command (according to the DDOL)
+     */
+    public static byte[] createSignedDynamicApplicationData(RSAPrivateKey iccPrivateKey, byte[] iccDynamicData, byte[] terminalDynamicData) {
+        int iccModulusLength = getModulusLength(iccPrivateKey);
+        if (iccDynamicData.length > iccModulusLength - 25) {
+            throw new IllegalArgumentException("ICC Dynamic Data too long: " + iccDynamicData.length);
+        }
+        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        hashStream.write(FORMAT_SDAD);
+        hashStream.write(HASH_ALGORITHM_SHA1);
+        hashStream.write(iccDynamicData.length);
+        write(hashStream, iccDynamicData);
+        writePadding(hashStream, iccModulusLength - iccDynamicData.length - 25);
+        return sign(iccPrivateKey, hashStream.toByteArray(), 0, terminalDynamicData);
+    }
+
+    /**
+     * Performs the RSA private key operation. The result has the same length as the modulus
+     */
+    public static byte[] sign(byte[] data, RSAPrivateKey privateKey) {
+        BigInteger message = new BigInteger(1, data);
+        BigInteger modulus = privateKey.getModulus();
+        if (message.compareTo(modulus) >= 0) {
+            throw new IllegalArgumentException("Data too large for the modulus");
+        }
+        BigInteger signature;
+        if (privateKey instanceof RSAPrivateCrtKey) {
+            //Chinese Remainder Theorem: about 3 times faster
+            RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) privateKey;
+            BigInteger p = crtKey.getPrimeP();
+            BigInteger q = crtKey.getPrimeQ();
+            BigInteger m1 = message.modPow(crtKey.getPrimeExponentP(), p);
+            BigInteger m2 = message.modPow(crtKey.getPrimeExponentQ(), q);
+            BigInteger h = crtKey.getCrtCoefficient().multiply(m1.subtract(m2)).mod(p);
+            signature = m2.add(h.multiply(q));
+        } else {
+            signature = message.modPow(privateKey.getPrivateExponent(), modulus);
+        }
+        return toUnsignedBytes(signature, getModulusLength(privateKey));
+    }
+
+    public static byte[] getModulusBytes(RSAKey key) {
+        return toUnsignedBytes(key.getModulus(), getModulusLength(key));
+    }
+
+    public static byte[] getExponentBytes(RSAPublicKey key) {
+        BigInteger exponent = key.getPublicExponent();
+        return toUnsignedBytes(exponent, (exponent.bitLength() + 7) / 8);
+    }
+
+    static int getModulusLength(RSAKey key) {
+        return (key.getModulus().bitLength() + 7) / 8;
+    }
+
+    /**
+     * Builds the data to be signed: header, hashed fields, hash, trailer
+     *
+     * @param hashedFields the fields that are part of both the signed data and the hash
+     * @param extraLength the number of bytes of hashedFields that are not part of the signed data (must be >= 0)
+     * @param hashSuffix data that is only part of the hash
+     */
+    private static byte[] sign(RSAPrivateKey privateKey, byte[] hashedFields, int extraLength, byte[] hashSuffix) {
+        ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+        write(hashStream, hashedFields);
+        write(hashStream, hashSuffix);
+        byte[] hash;
+        try {
+            hash = Util.calculateSHA1(hashStream.toByteArray());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        }
+        int fieldsLength = hashedFields.length - extraLength;
+        byte[] data = new byte[1 + fieldsLength + HASH_LENGTH + 1];
+        if (data.length != getModulusLength(privateKey)) {
+            throw new SignedDataException("Signed data length (" + data.length + ") does not equal key length (" + getModulusLength(privateKey) + ")");
+        }
+        data[0] = HEADER;
+        System.arraycopy(hashedFields, 0, data, 1, fieldsLength);
+        System.arraycopy(hash, 0, data, 1 + fieldsLength, HASH_LENGTH);
+        data[data.length - 1] = TRAILER;
+        return sign(data, privateKey);
+    }
+
+    private static void writeDateAndSerialNumber(ByteArrayOutputStream stream, String expirationDateMMYY, byte[] serialNumber) {
+        if (expirationDateMMYY.length() != 4) {
+            throw new IllegalArgumentException("Expiration Date must be MMYY: " + expirationDateMMYY);
+        }
+        if (serialNumber.length != 3) {
+            throw new IllegalArgumentException("Certificate Serial Number must be 3 bytes: " + serialNumber.length);
+        }
+        write(stream, Util.fromHexString(expirationDateMMYY));
+        write(stream, serialNumber);
+        stream.write(HASH_ALGORITHM_SHA1);
+        stream.write(PK_ALGORITHM_RSA);
+    }
+
+    /**
+     * Writes the key lengths and the key field: the whole key padded with 'BB',
+     * or the leftmost keyFieldLength bytes
+     *
+     * @return the key field, or the whole key if it does not fit (the remainder
+     * is hashed, but not part of the certificate)
+     */
+    private static byte[] writeKey(ByteArrayOutputStream stream, RSAPublicKey publicKey, int keyFieldLength) {
+        byte[] modulus = getModulusBytes(publicKey);
+        byte[] exponent = getExponentBytes(publicKey);
+        if (modulus.length > 248) {
+            throw new IllegalArgumentException("Public Key too long: " + modulus.length + " bytes");
+        }
+        stream.write(modulus.length);
+        stream.write(exponent.length);
+        if (modulus.length <= keyFieldLength) {
+            ByteArrayOutputStream keyField = new ByteArrayOutputStream();
+            write(keyField, modulus);
+            writePadding(keyField, keyFieldLength - modulus.length);
+            write(stream, keyField.toByteArray());
+            return keyField.toByteArray();
+        }
+        write(stream, modulus);
+        return modulus;
+    }
+
+    private static byte[] getRemainder(RSAPublicKey publicKey, int keyFieldLength) {
+        byte[] modulus = getModulusBytes(publicKey);
+        if (modulus.length <= keyFieldLength) {
+            return new byte[0];
+        }
+        byte[] remainder = new byte[modulus.length - keyFieldLength];
+        System.arraycopy(modulus, keyFieldLength, remainder, 0, remainder.length);
+        return remainder;
+    }
+
+    private static byte[] padDigits(String digits, int length) {
+        StringBuilder buf = new StringBuilder(digits);
+        if (buf.length() > length * 2) {
+            throw new IllegalArgumentException("Too many digits: " + digits);
+        }
+        while (buf.length() < length * 2) {
+            buf.append('F');
+        }
+        return Util.fromHexString(buf.toString());
+    }
+
+    private static void writePadding(ByteArrayOutputStream stream, int length) {
+        for (int i = 0; i < length; i++) {
+            stream.write(PADDING);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream stream, byte[] bytes) {
+        stream.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] toUnsignedBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length == length) {
+            return bytes;
+        }
+        byte[] result = new byte[length];
+        if (bytes.length > length) {
+            //Remove the sign byte
+            System.arraycopy(bytes, bytes.length - length, result, 0, length);
+        } else {
+            System.arraycopy(bytes, 0, result, length - bytes.length, bytes.length);
+        }
+        return result;
+    }
+}
@@ -23,6 +23,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Log;
 import sasc.util.Util;
+import sasc.jfr.CertificateValidationEvent;
 
 /**
  *
@@ -30,6 +31,10 @@ import sasc.util.Util;
  */
 public class SignedDynamicApplicationData {
 
+    //CDA (EMV Book 2, Table 19): the ICC Dynamic Data holds the ICC Dynamic Number Length and ICC Dynamic Number,
+    //followed by the Cryptogram Information Data (1), Application Cryptogram (8) and Transaction Data Hash Code (20)
+    private static final int CDA_FIXED_LENGTH = 1 + 1 + 8 + 20;
+
     private byte header;
     private byte signedDataFormat;
     private byte hashAlgorithmIndicator;
@@ -52,6 +57,15 @@ public class SignedDynamicApplicationData {
         if (validationPerformed) { //Validation already run
             return isValid();
         }
+        CertificateValidationEvent event = CertificateValidationEvent.start(CertificateValidationEvent.SIGNED_DYNAMIC_APPLICATION_DATA);
+        try {
+            return validateInternal();
+        } finally {
+            event.end(isValid);
+        }
+    }
+
+    private boolean validateInternal() {
         validationPerformed = true; //'isValid' flag set further down
 
         ByteArrayInputStream stream = new ByteArrayInputStream(decipheredData);
@@ -121,6 +135,47 @@ public class SignedDynamicApplicationData {
         return isValid;
     }
 
+    /**
+     * @return true if the ICC Dynamic Data is that of CDA. Only after validation
+     */
+    public boolean isCombinedDDAAC() {
+        return getCDAOffset() != -1;
+    }
+
+    public byte getCryptogramInformationData() {
+        return iccDynamicNumber[getRequiredCDAOffset()];
+    }
+
+    public byte[] getApplicationCryptogram() {
+        int offset = getRequiredCDAOffset() + 1;
+        return Arrays.copyOfRange(iccDynamicNumber, offset, offset + 8);
+    }
+
+    public byte[] getTransactionDataHashCode() {
+        int offset = getRequiredCDAOffset() + 1 + 8;
+        return Arrays.copyOfRange(iccDynamicNumber, offset, offset + 20);
+    }
+
+    //The offset of the Cryptogram Information Data in the ICC Dynamic Data, or -1
+    private int getCDAOffset() {
+        if (!isValid || iccDynamicNumber.length < CDA_FIXED_LENGTH) {
+            return -1;
+        }
+        int numberLength = iccDynamicNumber[0] & 0xFF;
+        if (numberLength < 2 || numberLength > 8 || iccDynamicNumber.length != CDA_FIXED_LENGTH + numberLength) {
+            return -1;
+        }
+        return 1 + numberLength;
+    }
+
+    private int getRequiredCDAOffset() {
+        int offset = getCDAOffset();
+        if (offset == -1) {
+            throw new IllegalStateException("Not valid CDA Signed Dynamic Application Data");
+        }
+        return offset;
+    }
+
     public static SignedDynamicApplicationData parseSignedData(byte[] data, ICCPublicKey iccPublicKey, byte[] terminalDynamicData) {
 
         byte[] expBytesICC = iccPublicKey.getExponent();
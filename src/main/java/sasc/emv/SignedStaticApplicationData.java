@@ -24,6 +24,7 @@ import java.io.StringWriter;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import sasc.util.Util;
+import sasc.jfr.CertificateValidationEvent;
 
 /**
  * Signed Static Application Data
@@ -43,12 +44,15 @@ public class SignedStaticApplicationData {
     private int hashAlgorithmIndicator;
     private byte[] hash = new byte[20];
     private boolean validationPerformed = false;
+    private byte[] recoveredBytes;
+    //SHA-1 over the hash input, if it has already been computed incrementally while reading the records
+    private byte[] offlineDataAuthenticationHash;
 
     public SignedStaticApplicationData(EMVApplication app) {
         this.application = app;
     }
 
-    public void setSignedBytes(byte[] signedBytes) {
+    public synchronized void setSignedBytes(byte[] signedBytes) {
         this.signedBytes = signedBytes;
     }
 
@@ -60,28 +64,33 @@ public class SignedStaticApplicationData {
         return Arrays.copyOf(dataAuthenticationCode, dataAuthenticationCode.length);
     }
 
-    public boolean validate() {
-        if (validationPerformed) { //Validation already run
-            return isValid();
-        }
-        validationPerformed = true; //'isValid' flag set further down
-
-        if(!application.getIssuerPublicKeyCertificate().validate()){ //Make sure the cert has been initialized
-            isValid = false;
-            return isValid();
-        }
+    synchronized void setOfflineDataAuthenticationHash(byte[] offlineDataAuthenticationHash) {
+        this.offlineDataAuthenticationHash = offlineDataAuthenticationHash;
+    }
 
-        IssuerPublicKey issuerPublicKey = application.getIssuerPublicKeyCertificate().getIssuerPublicKey();
+    synchronized boolean canRecover() {
+        return signedBytes != null;
+    }
 
-        //If the Signed Static Application Data has a length different from
-        //the length of the Issuer Public Key Modulus, SDA has failed.
-        if (signedBytes.length != issuerPublicKey.getModulus().length) {
-            throw new SmartCardException("Invalid Signed Data: Signed data length (" + signedBytes.length + ") != Issuer Public Key Modulus length(" + issuerPublicKey.getModulus().length + ")");
+    synchronized byte[] recover(IssuerPublicKey issuerPublicKey) {
+        if (recoveredBytes == null && signedBytes != null) {
+            //If the Signed Static Application Data has a length different from
+            //the length of the Issuer Public Key Modulus, SDA has failed.
+            if (signedBytes.length != issuerPublicKey.getModulus().length) {
+                throw new SmartCardException("Invalid Signed Data: Signed data length (" + signedBytes.length + ") != Issuer Public Key Modulus length(" + issuerPublicKey.getModulus().length + ")");
+            }
+            recoveredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
         }
+        return recoveredBytes;
+    }
 
-        byte[] decipheredBytes = Util.performRSA(signedBytes, issuerPublicKey.getExponent(), issuerPublicKey.getModulus());
+    //Parses the recovered data up to (and including) the hash, and returns the data
+    //that precedes the offline data authentication records in the hash input
+    synchronized byte[] getHashPrefix(IssuerPublicKey issuerPublicKey) {
+        return parseRecoveredBytes(new ByteArrayInputStream(recover(issuerPublicKey)));
+    }
 
-        ByteArrayInputStream stream = new ByteArrayInputStream(decipheredBytes);
+    private byte[] parseRecoveredBytes(ByteArrayInputStream stream) {
 
         if (stream.read() != 0x6a) { //Header
             throw new SmartCardException("Header != 0x6a");
@@ -115,17 +124,52 @@ public class SignedStaticApplicationData {
         hashStream.write(dataAuthenticationCode, 0, dataAuthenticationCode.length);
         hashStream.write(padding, 0, padding.length);
 
-        byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
+        return hashStream.toByteArray();
+    }
+
+    public synchronized boolean validate() {
+        if (validationPerformed) { //Validation already run
+            return isValid();
+        }
+        CertificateValidationEvent event = CertificateValidationEvent.start(CertificateValidationEvent.SIGNED_STATIC_APPLICATION_DATA);
+        try {
+            return validateInternal();
+        } finally {
+            event.end(isValid);
+        }
+    }
+
+    private boolean validateInternal() {
+        validationPerformed = true; //'isValid' flag set further down
 
-        Log.debug("OfflineDataAuthenticationRecords: "+Util.prettyPrintHex(offlineAuthenticationRecords));
+        if(!application.getIssuerPublicKeyCertificate().validate()){ //Make sure the cert has been initialized
+            isValid = false;
+            return isValid();
+        }
 
-        hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
+        IssuerPublicKey issuerPublicKey = application.getIssuerPublicKeyCertificate().getIssuerPublicKey();
 
-        byte[] sha1Result = null;
-        try {
-            sha1Result = Util.calculateSHA1(hashStream.toByteArray());
-        } catch (NoSuchAlgorithmException ex) {
-            throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+        //Reuses the recovered bytes if the RSA recovery has already been performed
+        ByteArrayInputStream stream = new ByteArrayInputStream(recover(issuerPublicKey));
+
+        byte[] hashPrefix = parseRecoveredBytes(stream);
+
+        byte[] sha1Result = offlineDataAuthenticationHash;
+        if (sha1Result == null) {
+            ByteArrayOutputStream hashStream = new ByteArrayOutputStream();
+            hashStream.write(hashPrefix, 0, hashPrefix.length);
+
+            byte[] offlineAuthenticationRecords = application.getOfflineDataAuthenticationRecords();
+
+            Log.debug("OfflineDataAuthenticationRecords: "+Util.prettyPrintHex(offlineAuthenticationRecords));
+
+            hashStream.write(offlineAuthenticationRecords, 0, offlineAuthenticationRecords.length);
+
+            try {
+                sha1Result = Util.calculateSHA1(hashStream.toByteArray());
+            } catch (NoSuchAlgorithmException ex) {
+                throw new SignedDataException("SHA-1 hash algorithm not available", ex);
+            }
         }
 
         if (!Arrays.equals(sha1Result, hash)) {
@@ -148,7 +192,7 @@ public class SignedStaticApplicationData {
         return true;
     }
 
-    public boolean isValid() {
+    public synchronized boolean isValid() {
         return isValid;
     }
 
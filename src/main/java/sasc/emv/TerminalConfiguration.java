@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import sasc.iso7816.Tag;
+import sasc.util.Util;
+
+/**
+ * An immutable snapshot of the terminal resident data (terminal.properties).
+ *
+ * Values are keyed by the tag bytes packed into an int, and held in sorted arrays,
+ * so that a lookup is a binary search without any String conversion or locking.
+ * The terminal swaps in a new snapshot when the configuration changes;
+ * sessions holding a reference to the old snapshot are not affected.
+ *
+ * The default values (from the bundled terminal.properties) and the overridden values
+ * (from -Dterminal.properties or set at runtime) are kept apart, since the terminal
+ * gives the application dependent country/currency codes precedence over the defaults,
+ * but not over the overridden values.
+ *
+ * @author sasc
+ */
+public final class TerminalConfiguration {
+
+    private static final AtomicInteger generationCounter = new AtomicInteger(0);
+
+    private final Table defaults;
+    private final Table overrides;
+    private final int generation;
+
+    private TerminalConfiguration(Table defaults, Table overrides) {
+        this.defaults = defaults;
+        this.overrides = overrides;
+        this.generation = generationCounter.incrementAndGet();
+    }
+
+    /**
+     * @param defaults the default properties. Keys are tag bytes and values are the value bytes (hex encoded)
+     * @param overrides the overridden properties (may be null). A value cannot change the length of a default value
+     * @throws IllegalArgumentException if a key or value is not valid
+     */
+    public static TerminalConfiguration create(Properties defaults, Properties overrides) {
+        Table defaultTable = Table.fromProperties(defaults);
+        Table overrideTable = overrides != null ? Table.fromProperties(overrides) : Table.EMPTY;
+        checkLengths(defaultTable, overrideTable);
+        return new TerminalConfiguration(defaultTable, overrideTable);
+    }
+
+    /**
+     * Returns a new snapshot with the same defaults, but with the overrides replaced
+     */
+    public TerminalConfiguration withOverrides(Properties overrides) {
+        Table overrideTable = Table.fromProperties(overrides);
+        checkLengths(defaults, overrideTable);
+        return new TerminalConfiguration(defaults, overrideTable);
+    }
+
+    /**
+     * Returns a new snapshot with a single value overridden
+     */
+    public TerminalConfiguration withOverride(Tag tag, byte[] value) {
+        int key = toKey(tag.getTagBytes());
+        checkLength(defaults, key, value);
+        return new TerminalConfiguration(defaults, overrides.with(key, value.clone()));
+    }
+
+    /**
+     * Reads a properties file, as specified in terminal.properties
+     */
+    public static Properties loadProperties(InputStream is) throws IOException {
+        Properties properties = new Properties();
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Each snapshot has a unique generation, so that data derived from a snapshot
+     * (such as compiled DOLs) can be checked for staleness
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the overridden value if present, else the default value, else null
+     */
+    public byte[] getValue(Tag tag) {
+        byte[] value = getOverriddenValueNoCopy(tag);
+        if (value == null) {
+            value = getDefaultValueNoCopy(tag);
+        }
+        return value != null ? value.clone() : null;
+    }
+
+    public byte[] getDefaultValue(Tag tag) {
+        byte[] value = getDefaultValueNoCopy(tag);
+        return value != null ? value.clone() : null;
+    }
+
+    public byte[] getOverriddenValue(Tag tag) {
+        byte[] value = getOverriddenValueNoCopy(tag);
+        return value != null ? value.clone() : null;
+    }
+
+    //The arrays returned must not be modified
+    byte[] getDefaultValueNoCopy(Tag tag) {
+        return defaults.get(toKey(tag.getTagBytes()));
+    }
+
+    byte[] getOverriddenValueNoCopy(Tag tag) {
+        return overrides.get(toKey(tag.getTagBytes()));
+    }
+
+    private static void checkLengths(Table defaults, Table overrides) {
+        for (int i = 0; i < overrides.keys.length; i++) {
+            checkLength(defaults, overrides.keys[i], overrides.values[i]);
+        }
+    }
+
+    private static void checkLength(Table defaults, int key, byte[] value) {
+        byte[] defaultValue = defaults.get(key);
+        if (defaultValue != null && defaultValue.length != value.length) {
+            //Attempt to set different length for a default value
+            throw new IllegalArgumentException("Attempted to set a value with unsupported length for key: "
+                    + Integer.toHexString(key) + " (value: " + Util.byteArrayToHexString(value) + ")");
+        }
+    }
+
+    static int toKey(byte[] tagBytes) {
+        if (tagBytes.length == 0 || tagBytes.length > 4) {
+            throw new IllegalArgumentException("Unsupported tag length: " + Util.byteArrayToHexString(tagBytes));
+        }
+        int key = 0;
+        for (byte b : tagBytes) {
+            key = (key << 8) | (b & 0xFF);
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("TerminalConfiguration (generation ").append(generation).append(")\n");
+        defaults.appendTo(sb, "  ");
+        if (overrides.keys.length > 0) {
+            sb.append("Overridden:\n");
+            overrides.appendTo(sb, "  ");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sorted keys, with the values at the same indexes
+     */
+    private static final class Table {
+
+        private static final Table EMPTY = new Table(new int[0], new byte[0][]);
+
+        private final int[] keys;
+        private final byte[][] values;
+
+        private Table(int[] keys, byte[][] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        static Table fromProperties(Properties properties) {
+            Table table = EMPTY;
+            for (String key : properties.stringPropertyNames()) {
+                table = table.with(toKey(Util.fromHexString(key)), Util.fromHexString(properties.getProperty(key)));
+            }
+            return table;
+        }
+
+        byte[] get(int key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? values[index] : null;
+        }
+
+        Table with(int key, byte[] value) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                byte[][] newValues = values.clone();
+                newValues[index] = value;
+                return new Table(keys, newValues);
+            }
+            int insertAt = -(index + 1);
+            int[] newKeys = new int[keys.length + 1];
+            byte[][] newValues = new byte[values.length + 1][];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(values, 0, newValues, 0, insertAt);
+            newKeys[insertAt] = key;
+            newValues[insertAt] = value;
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(values, insertAt, newValues, insertAt + 1, values.length - insertAt);
+            return new Table(newKeys, newValues);
+        }
+
+        void appendTo(StringBuilder sb, String indent) {
+            for (int i = 0; i < keys.length; i++) {
+                sb.append(indent).append(Integer.toHexString(keys[i])).append("=").append(Util.byteArrayToHexString(values[i])).append("\n");
+            }
+        }
+    }
+}
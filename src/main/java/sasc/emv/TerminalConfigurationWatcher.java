@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import sasc.util.Log;
+
+/**
+ * Watches the overridden terminal.properties file, and reloads the terminal
+ * configuration when the file changes.
+ *
+ * Editors and deployment tools usually truncate and then write the file, which is
+ * reported as several events. The file is reloaded once no further events have been
+ * reported for QUIET_PERIOD_MILLIS. A file that still cannot be read or parsed
+ * is ignored, and the current configuration stays in effect until the next change.
+ *
+ * @author sasc
+ */
+public final class TerminalConfigurationWatcher implements Closeable {
+
+    private static final long QUIET_PERIOD_MILLIS = 200;
+
+    private final File file;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    TerminalConfigurationWatcher(File file) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParentFile().toPath().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "Terminal Configuration Watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void watch() {
+        Path fileName = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                while (key != null) {
+                    changed |= isFileChanged(key, fileName);
+                    if (!key.reset()) {
+                        Log.info("Terminal configuration directory no longer accessible. Stopped watching " + file);
+                        return;
+                    }
+                    //Wait for the writes to settle
+                    key = changed ? watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS) : null;
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException ex) {
+            //Closed
+        } catch (ClosedWatchServiceException ex) {
+            //Closed
+        }
+    }
+
+    private static boolean isFileChanged(WatchKey key, Path fileName) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (fileName.equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the configuration was replaced
+     */
+    boolean reload() {
+        try {
+            EMVTerminal.setOverriddenConfiguration(TerminalConfiguration.loadProperties(new FileInputStream(file)));
+            Log.info("Reloaded terminal configuration from " + file);
+            return true;
+        } catch (IOException ex) {
+            Log.info("Unable to reload terminal configuration from " + file + ": " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            Log.info("Invalid terminal configuration in " + file + ": " + ex.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The terminal exception file (hot list): the cards that must not be accepted
+ * offline. If the card appears on the exception file, the terminal sets the
+ * "Card appears on terminal exception file" bit in the TVR.
+ *
+ * A list is compiled (see compile()) from a text file with one entry per line:
+ *
+ *   # comment
+ *   5411118888888882        all the cards with this PAN
+ *   4761739001010010,01     only PAN Sequence Number 01
+ *
+ * The compiled file is memory mapped (off heap): a Bloom filter, followed by the
+ * sorted 64 bit hashes of the entries. A lookup hashes the PAN, probes the Bloom
+ * filter, and only for a probable hit, binary searches the hashes. An instance is
+ * immutable; a new version of the list is installed by replacing the instance
+ * (EMVTerminal.setExceptionFile()), without affecting running sessions.
+ *
+ * Compiled file layout (big endian):
+ *   header (32 bytes): "SASCEXF1", long list version, int number of hashes, int Bloom filter words (power of 2), int probes, int 0
+ *   Bloom filter: long words
+ *   hashes: sorted longs
+ *
+ * @author sasc
+ */
+public final class TerminalExceptionFile {
+
+    private static final byte[] MAGIC = "SASCEXF1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int NUM_PROBES = 7;
+    private static final int MAX_BLOOM_WORDS = 1 << 25;
+    private static final int ANY_SEQUENCE_NUMBER = -1;
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long version;
+    private final int numHashes;
+    private final int bloomMask;
+    private final int numProbes;
+    private final int hashesOffset;
+
+    private TerminalExceptionFile(File file, ByteBuffer buffer, long version, int numHashes, int bloomWords, int numProbes) {
+        this.file = file;
+        this.buffer = buffer;
+        this.version = version;
+        this.numHashes = numHashes;
+        this.bloomMask = bloomWords * 64 - 1;
+        this.numProbes = numProbes;
+        this.hashesOffset = HEADER_SIZE + bloomWords * 8;
+    }
+
+    /**
+     * Compiles a list of PANs. The target file is replaced atomically
+     *
+     * @param list the text file with one entry per line (PAN, or PAN,PAN Sequence Number)
+     * @param target the compiled file
+     * @param version the version of the list
+     * @return the number of entries
+     * @throws IllegalArgumentException if an entry is not valid
+     */
+    public static int compile(File list, File target, long version) throws IOException {
+        long[] hashes = new long[1024];
+        int numHashes = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), StandardCharsets.US_ASCII));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (numHashes == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, numHashes * 2);
+                }
+                try {
+                    int separator = line.indexOf(',');
+                    if (separator < 0) {
+                        hashes[numHashes++] = hash(line, ANY_SEQUENCE_NUMBER);
+                    } else {
+                        int panSequenceNumber = Integer.parseInt(line.substring(separator + 1).trim());
+                        if (panSequenceNumber < 0 || panSequenceNumber > 99) {
+                            throw new IllegalArgumentException("Invalid PAN Sequence Number: " + panSequenceNumber);
+                        }
+                        hashes[numHashes++] = hash(line.substring(0, separator).trim(), panSequenceNumber);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException(list + ", line " + lineNumber + ": " + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Arrays.sort(hashes, 0, numHashes);
+        int distinct = 0;
+        for (int i = 0; i < numHashes; i++) {
+            if (distinct == 0 || hashes[distinct - 1] != hashes[i]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+
+        //A power of 2, so the bit index is a mask. At most 2^31 bits
+        int bloomWords = 1;
+        while (bloomWords < MAX_BLOOM_WORDS && bloomWords * 64L < (long) distinct * BITS_PER_ENTRY) {
+            bloomWords *= 2;
+        }
+        long[] bloom = new long[bloomWords];
+        int bloomMask = bloomWords * 64 - 1;
+        for (int i = 0; i < distinct; i++) {
+            long hash = hashes[i];
+            long step = probeStep(hash);
+            for (int probe = 0; probe < NUM_PROBES; probe++) {
+                int bit = (int) (hash + probe * step) & bloomMask;
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        File tmp = new File(target.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.write(MAGIC);
+            out.writeLong(version);
+            out.writeInt(distinct);
+            out.writeInt(bloomWords);
+            out.writeInt(NUM_PROBES);
+            out.writeInt(0);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            for (int i = 0; i < distinct; i++) {
+                out.writeLong(hashes[i]);
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return distinct;
+    }
+
+    /**
+     * Maps a compiled file
+     */
+    public static TerminalExceptionFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a compiled exception file: " + file);
+            }
+            //The mapping stays valid after the channel is closed
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            long version = buffer.getLong(8);
+            int numHashes = buffer.getInt(16);
+            int bloomWords = buffer.getInt(20);
+            int numProbes = buffer.getInt(24);
+            if (!Arrays.equals(magic, MAGIC) || numHashes < 0 || bloomWords < 1 || Integer.bitCount(bloomWords) != 1
+                    || bloomWords > MAX_BLOOM_WORDS || numProbes < 1 || length != HEADER_SIZE + 8L * bloomWords + 8L * numHashes) {
+                throw new IOException("Not a compiled exception file, or corrupt: " + file);
+            }
+            return new TerminalExceptionFile(file, buffer, version, numHashes, bloomWords, numProbes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return numHashes;
+    }
+
+    /**
+     * @param pan the Application PAN (digits)
+     * @param panSequenceNumber the PAN Sequence Number, or -1 if not present
+     * @return true if the PAN (or the PAN with this sequence number) is on the list
+     */
+    public boolean contains(String pan, int panSequenceNumber) {
+        if (!isDecimal(pan)) {
+            //Can not be on the list
+            return false;
+        }
+        if (containsHash(hash(pan, ANY_SEQUENCE_NUMBER))) {
+            return true;
+        }
+        return panSequenceNumber != ANY_SEQUENCE_NUMBER && containsHash(hash(pan, panSequenceNumber));
+    }
+
+    private boolean containsHash(long hash) {
+        long step = probeStep(hash);
+        for (int probe = 0; probe < numProbes; probe++) {
+            int bit = (int) (hash + probe * step) & bloomMask;
+            if ((buffer.getLong(HEADER_SIZE + (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        int low = 0;
+        int high = numHashes - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = buffer.getLong(hashesOffset + mid * 8);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDecimal(String pan) {
+        if (pan == null || pan.isEmpty() || pan.length() > 19) {
+            return false;
+        }
+        for (int i = 0; i < pan.length(); i++) {
+            if (pan.charAt(i) < '0' || pan.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs the PAN digits (up to 19, into an unsigned long), the length and the
+     * sequence number, and mixes the bits (MurmurHash3 finalizer)
+     */
+    static long hash(String pan, int panSequenceNumber) {
+        int length = pan.length();
+        if (length == 0 || length > 19) {
+            throw new IllegalArgumentException("Invalid PAN length: " + length);
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid PAN digit: " + c);
+            }
+            value = value * 10 + (c - '0');
+        }
+        long hash = mix(value + length * 0x9E3779B97F4A7C15L);
+        return mix(hash ^ (panSequenceNumber + 1));
+    }
+
+    private static long probeStep(long hash) {
+        return mix(hash) | 1;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "TerminalExceptionFile[" + file + ", version=" + version + ", entries=" + numHashes + "]";
+    }
+}
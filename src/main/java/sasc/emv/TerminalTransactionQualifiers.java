@@ -41,6 +41,13 @@ public class TerminalTransactionQualifiers {
     public TerminalTransactionQualifiers() {
     }
 
+    public TerminalTransactionQualifiers(byte[] data) {
+        if (data == null || data.length != 4) {
+            throw new IllegalArgumentException("Terminal Transaction Qualifiers must be 4 bytes: " + (data == null ? null : Util.prettyPrintHexNoWrap(data)));
+        }
+        this.data = Arrays.copyOf(data, data.length);
+    }
+
     public boolean contactlessMagneticStripeSupported() {
         return Util.isBitSet(data[0], 8);
     }
@@ -18,9 +18,12 @@ package sasc.emv;
 import sasc.iso7816.SmartCardException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Calendar;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.Date;
+import sasc.util.BCD;
 import sasc.util.Log;
+import sasc.util.Hex;
 import sasc.util.Util;
 
 /**
@@ -44,17 +47,14 @@ public class Track2EquivalentData {
         if (data.length > 19) {
             throw new SmartCardException("Invalid Track2EquivalentData length: " + data.length);
         }
-        String str = Util.byteArrayToHexString(data).toUpperCase();
+        String str = Hex.encodeUpperCase(data);
         //Field Separator (Hex 'D')
         int fieldSepIndex = str.indexOf('D');
         pan = new PAN(str.substring(0, fieldSepIndex));
         //Skip Field Separator
-        int YY = Util.binaryHexCodedDecimalToInt(str.substring(fieldSepIndex + 1, fieldSepIndex + 3));
-        int MM = Util.binaryHexCodedDecimalToInt(str.substring(fieldSepIndex + 3, fieldSepIndex + 5));
-        Calendar cal = Calendar.getInstance();
-        cal.set(2000 + YY, MM - 1, 0, 0, 0, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        this.expirationDate = cal.getTime();
+        YearMonth expiration = BCD.decodeYearMonthNibbles(data, fieldSepIndex + 1);
+        //Day 0 of the month (the last day of the previous month)
+        this.expirationDate = Date.from(expiration.atDay(1).minusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant());
         serviceCode = new ServiceCode(str.substring(fieldSepIndex + 5, fieldSepIndex + 8).toCharArray());
         int padIndex = str.indexOf('F', fieldSepIndex + 8);
         if (padIndex != -1) {
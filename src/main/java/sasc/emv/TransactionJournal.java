@@ -0,0 +1,376 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The terminal transaction log of approved transactions (EMV Book 3, 10.6.1),
+ * used to prevent split sales when checking the floor limit.
+ *
+ * The journal is a ring of fixed size entries in a memory mapped file: when it is
+ * full, the oldest entry is overwritten. An entry holds the Application PAN (as a
+ * salted hash, the PAN itself is not stored), the PAN Sequence Number, the
+ * Amount, Authorised and the time of the transaction.
+ *
+ * The most recent entry for each PAN is found in O(1), using an in-memory open
+ * addressing hash table from the PAN hash to the ring slot. The table is rebuilt
+ * from the file when the journal is opened.
+ *
+ * File layout (big endian):
+ *   header (64 bytes): "SASCTJ01", int entry size, int capacity, long next sequence, 16 bytes salt
+ *   entries (32 bytes): long PAN hash, long amount, long timestamp, int sequence (0 = empty), short PAN Sequence Number, short 0
+ *
+ * This class is thread safe.
+ *
+ * @author sasc
+ */
+public class TransactionJournal implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    private static final byte[] MAGIC = "SASCTJ01".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 32;
+    private static final int SALT_LENGTH = 16;
+    private static final int NEXT_SEQUENCE_OFFSET = 16;
+    private static final int SALT_OFFSET = 24;
+
+    private static final int HASH = 0;
+    private static final int AMOUNT = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int SEQUENCE = 24;
+    private static final int PAN_SEQUENCE_NUMBER = 28;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final MessageDigest saltedDigest;
+    private int nextSequence;
+
+    //Open addressing (linear probing) hash table: PAN hash -> slot of the most recent entry
+    private final long[] indexKeys;
+    private final int[] indexSlots;
+    private final int indexMask;
+    private int indexSize = 0;
+    private boolean closed = false;
+
+    /**
+     * An entry of the journal
+     */
+    public static final class Entry {
+
+        private final long amount;
+        private final long timestamp;
+        private final int panSequenceNumber;
+
+        private Entry(long amount, long timestamp, int panSequenceNumber) {
+            this.amount = amount;
+            this.timestamp = timestamp;
+            this.panSequenceNumber = panSequenceNumber;
+        }
+
+        /**
+         * @return the Amount, Authorised (in the minor unit of the currency)
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the PAN Sequence Number, or -1 if not present
+         */
+        public int getPANSequenceNumber() {
+            return panSequenceNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[amount=" + amount + ", timestamp=" + timestamp + ", panSequenceNumber=" + panSequenceNumber + "]";
+        }
+    }
+
+    private TransactionJournal(File file, RandomAccessFile raf, MappedByteBuffer buffer, int capacity, byte[] salt) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        try {
+            saltedDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        saltedDigest.update(salt);
+        int indexCapacity = Integer.highestOneBit(capacity) * 4;
+        indexKeys = new long[indexCapacity];
+        indexSlots = new int[indexCapacity];
+        indexMask = indexCapacity - 1;
+    }
+
+    /**
+     * Opens the journal, or creates it with DEFAULT_CAPACITY entries
+     */
+    public static TransactionJournal open(File file) throws IOException {
+        return open(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the journal, or creates it with the given number of entries.
+     * The capacity of an existing journal is not changed
+     */
+    public static TransactionJournal open(File file, int capacity) throws IOException {
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        boolean exists = file.exists() && file.length() > 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] salt = new byte[SALT_LENGTH];
+            if (exists) {
+                if (raf.length() < HEADER_SIZE) {
+                    throw new IOException("Not a transaction journal: " + file);
+                }
+                byte[] magic = new byte[MAGIC.length];
+                raf.readFully(magic);
+                int entrySize = raf.readInt();
+                capacity = raf.readInt();
+                if (!Arrays.equals(magic, MAGIC) || entrySize != ENTRY_SIZE || capacity < 1
+                        || raf.length() != HEADER_SIZE + (long) capacity * ENTRY_SIZE) {
+                    throw new IOException("Not a transaction journal, or corrupt: " + file);
+                }
+                raf.seek(SALT_OFFSET);
+                raf.readFully(salt);
+            } else {
+                new SecureRandom().nextBytes(salt);
+                raf.setLength(HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+                raf.write(MAGIC);
+                raf.writeInt(ENTRY_SIZE);
+                raf.writeInt(capacity);
+                raf.writeLong(1);
+                raf.write(salt);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            TransactionJournal journal = new TransactionJournal(file, raf, buffer, capacity, salt);
+            journal.rebuildIndex();
+            return journal;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of distinct PANs in the journal
+     */
+    public synchronized int getNumPANs() {
+        return indexSize;
+    }
+
+    /**
+     * Adds an approved transaction
+     *
+     * @param pan the Application PAN (digits)
+     * @param panSequenceNumber the PAN Sequence Number, or -1 if not present
+     * @param amount the Amount, Authorised (in the minor unit of the currency)
+     * @param timestamp the time of the transaction (millis since the epoch)
+     */
+    public void record(String pan, int panSequenceNumber, long amount, long timestamp) {
+        long hash = hash(pan);
+        synchronized (this) {
+            checkNotClosed();
+            if (nextSequence == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Transaction journal sequence exhausted: " + file);
+            }
+            int sequence = nextSequence++;
+            int slot = (sequence - 1) % capacity;
+            int position = position(slot);
+            if (buffer.getInt(position + SEQUENCE) != 0) {
+                //Overwriting the oldest entry
+                long oldHash = buffer.getLong(position + HASH);
+                int index = find(oldHash);
+                if (index >= 0 && indexSlots[index] == slot) {
+                    remove(index);
+                }
+            }
+            //The sequence is written last: an entry with sequence 0 is not used
+            buffer.putInt(position + SEQUENCE, 0);
+            buffer.putLong(position + HASH, hash);
+            buffer.putLong(position + AMOUNT, amount);
+            buffer.putLong(position + TIMESTAMP, timestamp);
+            buffer.putShort(position + PAN_SEQUENCE_NUMBER, (short) panSequenceNumber);
+            buffer.putInt(position + SEQUENCE, sequence);
+            buffer.putLong(NEXT_SEQUENCE_OFFSET, nextSequence);
+            put(hash, slot);
+        }
+    }
+
+    /**
+     * @return the most recent entry for the PAN, or null if there is none
+     */
+    public Entry findLatest(String pan) {
+        long hash = hash(pan);
+        synchronized (this) {
+            checkNotClosed();
+            int index = find(hash);
+            if (index < 0) {
+                return null;
+            }
+            int position = position(indexSlots[index]);
+            return new Entry(buffer.getLong(position + AMOUNT), buffer.getLong(position + TIMESTAMP), buffer.getShort(position + PAN_SEQUENCE_NUMBER));
+        }
+    }
+
+    /**
+     * Writes the changes to the file
+     */
+    public synchronized void flush() {
+        checkNotClosed();
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer.force();
+        raf.close();
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Transaction journal closed: " + file);
+        }
+    }
+
+    private static int position(int slot) {
+        return HEADER_SIZE + slot * ENTRY_SIZE;
+    }
+
+    /**
+     * The first 8 bytes of SHA-256(salt | PAN). Never 0, which marks the empty index slots
+     */
+    long hash(String pan) {
+        if (pan == null) {
+            throw new IllegalArgumentException("Param 'pan' cannot be null");
+        }
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) saltedDigest.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] value = digest.digest(pan.getBytes(StandardCharsets.US_ASCII));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (value[i] & 0xFF);
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Inserts the entries in sequence order, so the index points to the most recent entry for each PAN
+     */
+    private void rebuildIndex() {
+        int maxSequence = 0;
+        int[] sequences = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            sequences[slot] = buffer.getInt(position(slot) + SEQUENCE);
+            maxSequence = Math.max(maxSequence, sequences[slot]);
+        }
+        nextSequence = maxSequence + 1;
+        if (maxSequence == 0) {
+            return;
+        }
+        //The slot after the most recent entry holds the oldest entry
+        int newest = (maxSequence - 1) % capacity;
+        for (int i = 1; i <= capacity; i++) {
+            int slot = (newest + i) % capacity;
+            if (sequences[slot] != 0) {
+                put(buffer.getLong(position(slot) + HASH), slot);
+            }
+        }
+    }
+
+    private int find(long hash) {
+        for (int index = (int) mix(hash) & indexMask; indexKeys[index] != 0; index = (index + 1) & indexMask) {
+            if (indexKeys[index] == hash) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void put(long hash, int slot) {
+        int index = (int) mix(hash) & indexMask;
+        while (indexKeys[index] != 0 && indexKeys[index] != hash) {
+            index = (index + 1) & indexMask;
+        }
+        if (indexKeys[index] == 0) {
+            indexKeys[index] = hash;
+            indexSize++;
+        }
+        indexSlots[index] = slot;
+    }
+
+    //Backward shift deletion, so no tombstones are needed
+    private void remove(int index) {
+        indexKeys[index] = 0;
+        indexSize--;
+        int hole = index;
+        for (int i = (index + 1) & indexMask; indexKeys[i] != 0; i = (i + 1) & indexMask) {
+            int home = (int) mix(indexKeys[i]) & indexMask;
+            //Move the entry into the hole if its home is not between the hole and its position
+            if (((i - home) & indexMask) >= ((i - hole) & indexMask)) {
+                indexKeys[hole] = indexKeys[i];
+                indexSlots[hole] = indexSlots[i];
+                indexKeys[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    private static long mix(long hash) {
+        return hash ^ (hash >>> 32);
+    }
+}
@@ -101,6 +101,10 @@ public class TransactionLog {
             this.recordData = recordData;
         }
 
+        public byte[] getRawData() {
+            return recordData;
+        }
+
         @Override
         public String toString() {
             StringWriter sw = new StringWriter();
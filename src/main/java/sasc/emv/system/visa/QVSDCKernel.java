@@ -0,0 +1,232 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv.system.visa;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import sasc.emv.CryptogramInformationData;
+import sasc.emv.DOL;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVTags;
+import sasc.emv.EMVTerminal;
+import sasc.emv.ICCPublicKeyCertificate;
+import sasc.emv.IssuerPublicKeyCertificate;
+import sasc.emv.SignedDynamicApplicationData;
+import sasc.emv.TerminalTransactionQualifiers;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.Tag;
+import sasc.iso7816.TagAndLength;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * Visa contactless kernel (EMV Contactless Book C-3): the qVSDC path.
+ *
+ * A qVSDC card generates the Application Cryptogram while processing the GET PROCESSING
+ * OPTIONS command, and returns it (together with the fDDA signature, the Signed Dynamic
+ * Application Data) in the Format 2 response. The reader then only reads the records
+ * indicated in the AFL, and the card may be removed from the field after the last READ RECORD.
+ * Everything here is performed afterwards, without sending any commands to the card.
+ *
+ * fDDA (fast DDA) verifies the signature the same way as DDA, but the signed terminal
+ * dynamic data is taken from the PDOL data sent in the GET PROCESSING OPTIONS command.
+ * fDDA version '01' (indicated in the Card Authentication Related Data, tag '9F69'):
+ *   Unpredictable Number || Amount, Authorised || Transaction Currency Code || Card Authentication Related Data
+ * fDDA version '00' (no Card Authentication Related Data): the Unpredictable Number only.
+ *
+ * @author sasc
+ */
+public final class QVSDCKernel {
+
+    /**
+     * Maximum time the card should be held in the field (EMV Contactless Book A, 500 ms)
+     */
+    public static final long TAP_TIME_LIMIT_MILLIS = 500;
+
+    private static final byte FDDA_VERSION_01 = 0x01;
+
+    private QVSDCKernel() {
+    }
+
+    /**
+     * @return true if the card processed the transaction using qVSDC
+     * (the Application Cryptogram was returned during application processing)
+     */
+    public static boolean isQVSDC(EMVApplication app) {
+        return app.isInitializedOnICC() && app.findDataObjectValue(EMVTags.APP_CRYPTOGRAM) != null;
+    }
+
+    /**
+     * Performs fDDA (if supported by the card and a TC was returned) and determines the outcome
+     *
+     * @param pdolData the PDOL data sent in the GET PROCESSING OPTIONS command
+     * @param tapStartNanos System.nanoTime() when the first command was sent to the card
+     * @param cardReadNanos System.nanoTime() when the last record had been read
+     */
+    public static QVSDCTransaction process(EMVApplication app, byte[] pdolData, long tapStartNanos, long cardReadNanos) {
+        if (!isQVSDC(app)) {
+            throw new SmartCardException("The card did not return an Application Cryptogram in the GET PROCESSING OPTIONS response");
+        }
+        byte[] applicationCryptogram = app.findDataObjectValue(EMVTags.APP_CRYPTOGRAM);
+        byte[] atc = app.findDataObjectValue(EMVTags.APP_TRANSACTION_COUNTER);
+        byte[] issuerApplicationData = app.findDataObjectValue(EMVTags.ISSUER_APPLICATION_DATA);
+        if (atc == null || atc.length != 2) {
+            throw new SmartCardException("qVSDC: Application Transaction Counter not returned");
+        }
+        CryptogramInformationData cid = new CryptogramInformationData(getCryptogramInformationData(
+                app.findDataObjectValue(EMVTags.CRYPTOGRAM_INFORMATION_DATA), issuerApplicationData));
+
+        boolean fDDAPerformed = false;
+        boolean fDDAFailed = false;
+        //fDDA is only required for offline approvals
+        byte[] signedData = app.findDataObjectValue(EMVTags.SIGNED_DYNAMIC_APPLICATION_DATA);
+        if (cid.getCryptogramType() == CryptogramInformationData.TC) {
+            if (signedData != null && app.getApplicationInterchangeProfile().isDDASupported()) {
+                fDDAPerformed = true;
+                fDDAFailed = !performFDDA(app, signedData, app.getPDOL(), pdolData);
+                app.getTransactionStatusInformation().setOfflineDataAuthenticationWasPerformed(true);
+                if (fDDAFailed) {
+                    EMVTerminal.getTerminalVerificationResults().setDDAFailed(true);
+                }
+            } else {
+                EMVTerminal.getTerminalVerificationResults().setOfflineDataAuthenticationWasNotPerformed(true);
+            }
+        }
+
+        QVSDCTransaction.Outcome outcome;
+        switch (cid.getCryptogramType()) {
+            case CryptogramInformationData.TC:
+                if (fDDAPerformed && !fDDAFailed) {
+                    outcome = QVSDCTransaction.Outcome.APPROVED;
+                } else if (isReaderOfflineOnly(app.getPDOL(), pdolData)) {
+                    outcome = QVSDCTransaction.Outcome.DECLINED;
+                } else {
+                    outcome = QVSDCTransaction.Outcome.ONLINE_REQUEST;
+                }
+                break;
+            case CryptogramInformationData.ARQC:
+                outcome = QVSDCTransaction.Outcome.ONLINE_REQUEST;
+                break;
+            default:
+                outcome = QVSDCTransaction.Outcome.DECLINED;
+        }
+        return new QVSDCTransaction(outcome, cid, Util.byteToInt(atc[0], atc[1]), applicationCryptogram, issuerApplicationData,
+                fDDAPerformed, fDDAFailed, cardReadNanos - tapStartNanos, System.nanoTime() - tapStartNanos);
+    }
+
+    /**
+     * The Cryptogram Information Data is optional in the qVSDC response. If it is not present,
+     * the cryptogram type is found in the Card Verification Results (byte 2, bits 6-5)
+     * in the Issuer Application Data
+     */
+    static byte getCryptogramInformationData(byte[] cid, byte[] issuerApplicationData) {
+        if (cid != null && cid.length == 1) {
+            return cid[0];
+        }
+        //Length (1), Derivation Key Index (1), Cryptogram Version Number (1), CVR (4: Length, byte 1, byte 2, byte 3)
+        if (issuerApplicationData == null || issuerApplicationData.length < 5) {
+            throw new SmartCardException("qVSDC: Unable to determine the cryptogram type");
+        }
+        switch ((issuerApplicationData[4] >> 4) & 0x03) {
+            case 0x00:
+                return CryptogramInformationData.AAC;
+            case 0x01:
+                return CryptogramInformationData.TC;
+            case 0x02:
+                return CryptogramInformationData.ARQC;
+            default:
+                throw new SmartCardException("qVSDC: Invalid cryptogram type in the Issuer Application Data: "
+                        + Util.prettyPrintHexNoWrap(issuerApplicationData));
+        }
+    }
+
+    private static boolean performFDDA(EMVApplication app, byte[] signedData, DOL pdol, byte[] pdolData) {
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        ICCPublicKeyCertificate iccCert = app.getICCPublicKeyCertificate();
+        try {
+            if (issuerCert == null || iccCert == null || !issuerCert.validate() || !iccCert.validate()) {
+                Log.debug("fDDA failed: ICC Public Key not retrieved");
+                return false;
+            }
+            byte[] terminalDynamicData = getTerminalDynamicData(pdol, pdolData,
+                    app.findDataObjectValue(VISATags.CARD_AUTHENTICATION_RELATE_DATA));
+            if (terminalDynamicData == null) {
+                Log.debug("fDDA failed: Terminal dynamic data not found in the PDOL data");
+                return false;
+            }
+            SignedDynamicApplicationData sdad = SignedDynamicApplicationData.parseSignedData(signedData,
+                    iccCert.getICCPublicKey(), terminalDynamicData);
+            if (!sdad.validate()) {
+                return false;
+            }
+            app.setSignedDynamicApplicationData(sdad);
+            return true;
+        } catch (SmartCardException ex) {
+            Log.debug("fDDA failed: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the data signed by the card, or null if the PDOL did not request it
+     */
+    static byte[] getTerminalDynamicData(DOL pdol, byte[] pdolData, byte[] cardAuthenticationRelatedData) {
+        byte[] unpredictableNumber = findPDOLValue(pdol, pdolData, EMVTags.UNPREDICTABLE_NUMBER);
+        if (unpredictableNumber == null) {
+            return null;
+        }
+        if (cardAuthenticationRelatedData == null) {
+            //fDDA version '00'
+            return unpredictableNumber;
+        }
+        if (cardAuthenticationRelatedData.length == 0 || cardAuthenticationRelatedData[0] != FDDA_VERSION_01) {
+            throw new SmartCardException("Unsupported fDDA version: " + Util.prettyPrintHexNoWrap(cardAuthenticationRelatedData));
+        }
+        byte[] amountAuthorised = findPDOLValue(pdol, pdolData, EMVTags.AMOUNT_AUTHORISED_NUMERIC);
+        byte[] transactionCurrencyCode = findPDOLValue(pdol, pdolData, EMVTags.TRANSACTION_CURRENCY_CODE);
+        if (amountAuthorised == null || transactionCurrencyCode == null) {
+            return null;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(unpredictableNumber, 0, unpredictableNumber.length);
+        stream.write(amountAuthorised, 0, amountAuthorised.length);
+        stream.write(transactionCurrencyCode, 0, transactionCurrencyCode.length);
+        stream.write(cardAuthenticationRelatedData, 0, cardAuthenticationRelatedData.length);
+        return stream.toByteArray();
+    }
+
+    private static boolean isReaderOfflineOnly(DOL pdol, byte[] pdolData) {
+        byte[] ttq = findPDOLValue(pdol, pdolData, EMVTags.TERMINAL_TRANSACTION_QUALIFIERS);
+        return ttq != null && ttq.length == 4 && new TerminalTransactionQualifiers(ttq).readerIsOfflineOnly();
+    }
+
+    private static byte[] findPDOLValue(DOL pdol, byte[] pdolData, Tag tag) {
+        if (pdol == null || pdolData == null) {
+            return null;
+        }
+        int offset = 0;
+        for (TagAndLength tal : pdol.getTagAndLengthList()) {
+            if (offset + tal.getLength() > pdolData.length) {
+                return null;
+            }
+            if (tal.getTag().equals(tag)) {
+                return Arrays.copyOfRange(pdolData, offset, offset + tal.getLength());
+            }
+            offset += tal.getLength();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv.system.visa;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import sasc.emv.CryptogramInformationData;
+import sasc.util.Log;
+import sasc.util.Util;
+
+/**
+ * The result of a Visa qVSDC transaction (EMV Contactless Book C-3), as returned in
+ * the GET PROCESSING OPTIONS response and verified by the reader after the card
+ * has left the field.
+ *
+ * The tap time is measured from the first command sent to the card until the response
+ * to the last READ RECORD command (the time the card must be held in the field).
+ * The result time also includes the offline data authentication (fDDA).
+ *
+ * @author sasc
+ */
+public class QVSDCTransaction {
+
+    public enum Outcome {
+        APPROVED, ONLINE_REQUEST, DECLINED
+    }
+
+    private final Outcome outcome;
+    private final CryptogramInformationData cid;
+    private final int atc;
+    private final byte[] applicationCryptogram;
+    private final byte[] issuerApplicationData;
+    private final boolean fDDAPerformed;
+    private final boolean fDDAFailed;
+    private final long tapTimeNanos;
+    private final long resultTimeNanos;
+
+    QVSDCTransaction(Outcome outcome, CryptogramInformationData cid, int atc, byte[] applicationCryptogram,
+            byte[] issuerApplicationData, boolean fDDAPerformed, boolean fDDAFailed, long tapTimeNanos, long resultTimeNanos) {
+        this.outcome = outcome;
+        this.cid = cid;
+        this.atc = atc;
+        this.applicationCryptogram = applicationCryptogram;
+        this.issuerApplicationData = issuerApplicationData;
+        this.fDDAPerformed = fDDAPerformed;
+        this.fDDAFailed = fDDAFailed;
+        this.tapTimeNanos = tapTimeNanos;
+        this.resultTimeNanos = resultTimeNanos;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public CryptogramInformationData getCryptogramInformationData() {
+        return cid;
+    }
+
+    public int getATC() {
+        return atc;
+    }
+
+    public byte[] getApplicationCryptogram() {
+        return Util.copyByteArray(applicationCryptogram);
+    }
+
+    /**
+     * @return the Issuer Application Data, or null if not returned by the card
+     */
+    public byte[] getIssuerApplicationData() {
+        return issuerApplicationData == null ? null : Util.copyByteArray(issuerApplicationData);
+    }
+
+    public boolean isFDDAPerformed() {
+        return fDDAPerformed;
+    }
+
+    public boolean isFDDAFailed() {
+        return fDDAFailed;
+    }
+
+    public long getTapTimeMillis() {
+        return tapTimeNanos / 1000000;
+    }
+
+    public long getResultTimeMillis() {
+        return resultTimeNanos / 1000000;
+    }
+
+    /**
+     * @return true if the card could be removed within QVSDCKernel.TAP_TIME_LIMIT_MILLIS
+     */
+    public boolean isTapTimeWithinLimit() {
+        return getTapTimeMillis() <= QVSDCKernel.TAP_TIME_LIMIT_MILLIS;
+    }
+
+    @Override
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        dump(new PrintWriter(sw), 0);
+        return sw.toString();
+    }
+
+    public void dump(PrintWriter pw, int indent) {
+        pw.println(Util.getSpaces(indent) + "qVSDC Transaction");
+        String indentStr = Util.getSpaces(indent + Log.INDENT_SIZE);
+
+        pw.println(indentStr + "Outcome: " + outcome);
+        pw.println(indentStr + "Cryptogram Information Data: " + cid);
+        pw.println(indentStr + "Application Transaction Counter: " + atc);
+        pw.println(indentStr + "Application Cryptogram: " + Util.prettyPrintHexNoWrap(applicationCryptogram));
+        if (issuerApplicationData != null) {
+            pw.println(indentStr + "Issuer Application Data: " + Util.prettyPrintHexNoWrap(issuerApplicationData));
+        }
+        if (fDDAPerformed) {
+            pw.println(indentStr + "fDDA: " + (fDDAFailed ? "FAILED" : "Valid"));
+        } else {
+            pw.println(indentStr + "fDDA: Not performed");
+        }
+        pw.println(indentStr + "Tap time: " + getTapTimeMillis() + " ms" + (isTapTimeWithinLimit() ? "" : " (LIMIT EXCEEDED)"));
+        pw.println(indentStr + "Result time: " + getResultTimeMillis() + " ms");
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.export;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import sasc.emv.DDF;
+import sasc.emv.EMVApplication;
+import sasc.emv.ICCPublicKey;
+import sasc.emv.ICCPublicKeyCertificate;
+import sasc.emv.IssuerPublicKey;
+import sasc.emv.IssuerPublicKeyCertificate;
+import sasc.emv.LanguagePreference;
+import sasc.emv.SignedStaticApplicationData;
+import sasc.emv.TransactionLog;
+import sasc.iso7816.ATR;
+import sasc.iso7816.Application;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TagAndLength;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Hex;
+
+/**
+ * Serializes the data read from cards to a StructuredWriter, one card per record.
+ *
+ * The structure follows the text dump: a card has its ATRs, the PSE, the EMV
+ * applications (with certificates and transaction log), other applications and
+ * the unhandled records. Binary data is written as is (hex in JSON Lines),
+ * and elements not present on the card are omitted.
+ *
+ * Usage:
+ *   CardExporter exporter = CardExporter.jsonLines(new FileOutputStream("cards.jsonl", true));
+ *   exporter.writeCard(card);
+ *   exporter.close();
+ *
+ * @author sasc
+ */
+public class CardExporter {
+
+    public enum Format {
+        JSON_LINES, CBOR
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StructuredWriter writer;
+    private final Calendar calendar = Calendar.getInstance();
+
+    public CardExporter(StructuredWriter writer) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Param 'writer' cannot be null");
+        }
+        this.writer = writer;
+    }
+
+    public static CardExporter create(OutputStream out, Format format) {
+        switch (format) {
+            case JSON_LINES:
+                return new CardExporter(new JsonLinesWriter(new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE)));
+            case CBOR:
+                return new CardExporter(new CborWriter(new BufferedOutputStream(out, BUFFER_SIZE)));
+            default:
+                throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    public static CardExporter jsonLines(OutputStream out) {
+        return create(out, Format.JSON_LINES);
+    }
+
+    public static CardExporter cbor(OutputStream out) {
+        return create(out, Format.CBOR);
+    }
+
+    public StructuredWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Writes the card as a single record
+     */
+    public void writeCard(SmartCard card) throws IOException {
+        writeCardObject(card);
+        writer.endRecord();
+    }
+
+    /**
+     * Writes the card as an object, eg as a field of a larger record
+     */
+    public void writeCardObject(SmartCard card) throws IOException {
+        writer.beginObject();
+        writer.name("type").value(card.getType().name());
+        writer.name("atrs").beginArray();
+        for (ATR atr : card.getATRs()) {
+            writeBytes(atr.getBytes());
+        }
+        writer.endArray();
+        if (card.getPSE() != null) {
+            writer.name("pse");
+            writeDDF(card.getPSE());
+        }
+        writer.name("applications").beginArray();
+        for (EMVApplication app : card.getEmvApplications()) {
+            writeApplication(app);
+        }
+        writer.endArray();
+        if (!card.getOtherApplications().isEmpty()) {
+            writer.name("otherApplications").beginArray();
+            for (Application app : card.getOtherApplications()) {
+                writer.beginObject();
+                if (app.getAID() != null) {
+                    writer.name("aid");
+                    writeBytes(app.getAID().getAIDBytes());
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writeTLVs("unhandledRecords", card.getUnhandledRecords());
+        writer.endObject();
+    }
+
+    public void writeDDF(DDF ddf) throws IOException {
+        writer.beginObject();
+        writeBytes("name", ddf.getName());
+        if (ddf.getSFI() != null) {
+            writer.name("sfi").value(ddf.getSFI().getValue());
+        }
+        writeLanguagePreference(ddf.getLanguagePreference());
+        writeInt("issuerCodeTableIndex", ddf.getIssuerCodeTableIndex());
+        writer.endObject();
+    }
+
+    public void writeApplication(EMVApplication app) throws IOException {
+        writer.beginObject();
+        if (app.getAID() != null) {
+            writer.name("aid");
+            writeBytes(app.getAID().getAIDBytes());
+        }
+        writeString("label", app.getLabel());
+        writeString("preferredName", app.getPreferredName());
+        writeString("issuerUrl", app.getIssuerUrl());
+        if (app.getPAN() != null) {
+            writer.name("pan").value(app.getPAN().getPanAsString());
+        }
+        writeInt("panSequenceNumber", app.getPANSequenceNumber());
+        writeString("cardholderName", app.getCardholderName());
+        writeDate("effectiveDate", app.getEffectiveDate());
+        writeDate("expirationDate", app.getExpirationDate());
+        writeInt("issuerCountryCode", app.getIssuerCountryCode());
+        writeInt("applicationCurrencyCode", app.getApplicationCurrencyCode());
+        writeInt("applicationVersionNumber", app.getApplicationVersionNumber());
+        writeInt("atc", app.getATC());
+        writeInt("lastOnlineATC", app.getLastOnlineATC());
+        writeInt("pinTryCounter", app.getPINTryCounter());
+        writeInt("lowerConsecutiveOfflineLimit", app.getLowerConsecutiveOfflineLimit());
+        writeInt("upperConsecutiveOfflineLimit", app.getUpperConsecutiveOfflineLimit());
+        if (app.getApplicationInterchangeProfile() != null) {
+            writeBytes("aip", app.getApplicationInterchangeProfile().getBytes());
+        }
+        if (app.getPDOL() != null) {
+            writeBytes("pdol", app.getPDOL().getBytes());
+        }
+        if (app.getDDOL() != null) {
+            writeBytes("ddol", app.getDDOL().getBytes());
+        }
+        writeLanguagePreference(app.getLanguagePreference());
+        if (app.getIssuerPublicKeyCertificate() != null) {
+            writer.name("issuerPublicKeyCertificate");
+            writeCertificate(app.getIssuerPublicKeyCertificate());
+        }
+        if (app.getICCPublicKeyCertificate() != null) {
+            writer.name("iccPublicKeyCertificate");
+            writeCertificate(app.getICCPublicKeyCertificate());
+        }
+        if (app.getSignedStaticApplicationData() != null) {
+            SignedStaticApplicationData ssad = app.getSignedStaticApplicationData();
+            writer.name("signedStaticApplicationData").beginObject();
+            writer.name("valid").value(ssad.isValid());
+            writeBytes("dataAuthenticationCode", ssad.getDataAuthenticationCode());
+            writer.endObject();
+        }
+        if (app.getTransactionLog() != null) {
+            writer.name("transactionLog");
+            writeTransactionLog(app.getTransactionLog());
+        }
+        writeTLVs("unknownRecords", app.getUnknownRecords());
+        writer.endObject();
+    }
+
+    public void writeCertificate(IssuerPublicKeyCertificate cert) throws IOException {
+        writer.beginObject();
+        writeInt("caPublicKeyIndex", cert.getCAPublicKeyIndex());
+        writer.name("valid").value(cert.isValid());
+        IssuerPublicKey key = cert.getIssuerPublicKey();
+        if (key != null) {
+            writeBytes("exponent", key.getExponent());
+            writeBytes("modulus", key.getModulus());
+        }
+        writer.endObject();
+    }
+
+    public void writeCertificate(ICCPublicKeyCertificate cert) throws IOException {
+        writer.beginObject();
+        writer.name("valid").value(cert.isValid());
+        ICCPublicKey key = cert.getICCPublicKey();
+        if (key != null) {
+            writeBytes("exponent", key.getExponent());
+            writeBytes("modulus", key.getModulus());
+        }
+        writer.endObject();
+    }
+
+    public void writeTransactionLog(TransactionLog log) throws IOException {
+        writer.beginObject();
+        writer.name("records").beginArray();
+        for (TransactionLog.Record record : log.getRecords()) {
+            //Keyed by tag, as specified by the Log Format
+            byte[] data = record.getRawData();
+            int offset = 0;
+            writer.beginObject();
+            for (TagAndLength tagAndLength : log.getLogFormat().getTagAndLengthList()) {
+                if (offset + tagAndLength.getLength() > data.length) {
+                    //Short record: the remaining bytes are written as they are
+                    break;
+                }
+                writer.name(Hex.encode(tagAndLength.getTag().getTagBytes()));
+                writer.value(data, offset, tagAndLength.getLength());
+                offset += tagAndLength.getLength();
+            }
+            if (offset < data.length) {
+                writer.name("raw").value(data, offset, data.length - offset);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    public void writeTLV(BERTLV tlv) throws IOException {
+        writer.beginObject();
+        writeBytes("tag", tlv.getTagBytes());
+        writeBytes("value", tlv.getValueBytes());
+        writer.endObject();
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void writeTLVs(String name, List<BERTLV> tlvs) throws IOException {
+        if (tlvs == null || tlvs.isEmpty()) {
+            return;
+        }
+        writer.name(name).beginArray();
+        for (BERTLV tlv : tlvs) {
+            writeTLV(tlv);
+        }
+        writer.endArray();
+    }
+
+    private void writeLanguagePreference(LanguagePreference languagePreference) throws IOException {
+        if (languagePreference == null) {
+            return;
+        }
+        writer.name("languagePreference").beginArray();
+        for (Locale locale : languagePreference.getLocales()) {
+            writer.value(locale.getLanguage());
+        }
+        writer.endArray();
+    }
+
+    private void writeBytes(byte[] value) throws IOException {
+        writer.value(value, 0, value.length);
+    }
+
+    private void writeBytes(String name, byte[] value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(value, 0, value.length);
+        }
+    }
+
+    private void writeString(String name, String value) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            writer.name(name).value(value);
+        }
+    }
+
+    //-1 is used for 'not present' throughout
+    private void writeInt(String name, int value) throws IOException {
+        if (value != -1) {
+            writer.name(name).value(value);
+        }
+    }
+
+    //YYYY-MM-DD (ISO 8601)
+    private void writeDate(String name, Date date) throws IOException {
+        if (date == null) {
+            return;
+        }
+        calendar.setTime(date);
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        char[] chars = {
+            (char) ('0' + year / 1000 % 10), (char) ('0' + year / 100 % 10), (char) ('0' + year / 10 % 10), (char) ('0' + year % 10),
+            '-', (char) ('0' + month / 10), (char) ('0' + month % 10),
+            '-', (char) ('0' + day / 10), (char) ('0' + day % 10)};
+        writer.name(name).value(new String(chars));
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a CBOR sequence (RFC 7049, RFC 8742): the records are concatenated
+ * CBOR data items.
+ *
+ * Objects and arrays are written with indefinite lengths, so that nothing
+ * needs to be buffered. Text is encoded as UTF-8 directly to the stream.
+ *
+ * @author sasc
+ */
+public final class CborWriter implements StructuredWriter {
+
+    private static final int MAJOR_TYPE_UNSIGNED_INT = 0;
+    private static final int MAJOR_TYPE_NEGATIVE_INT = 1;
+    private static final int MAJOR_TYPE_BYTE_STRING = 2;
+    private static final int MAJOR_TYPE_TEXT_STRING = 3;
+
+    private static final int INDEFINITE_ARRAY = 0x9F;
+    private static final int INDEFINITE_MAP = 0xBF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int BREAK = 0xFF;
+
+    private final OutputStream out;
+    private int depth = 0;
+
+    /**
+     * @param out should be buffered, since most items are written a byte at a time
+     */
+    public CborWriter(OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Param 'out' cannot be null");
+        }
+        this.out = out;
+    }
+
+    @Override
+    public StructuredWriter beginObject() throws IOException {
+        out.write(INDEFINITE_MAP);
+        depth++;
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endObject() throws IOException {
+        return end();
+    }
+
+    @Override
+    public StructuredWriter beginArray() throws IOException {
+        out.write(INDEFINITE_ARRAY);
+        depth++;
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endArray() throws IOException {
+        return end();
+    }
+
+    @Override
+    public StructuredWriter name(String name) throws IOException {
+        return value(name);
+    }
+
+    @Override
+    public StructuredWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeTypeAndLength(MAJOR_TYPE_TEXT_STRING, getUTF8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >>> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | (codePoint >>> 18));
+                out.write(0x80 | ((codePoint >>> 12) & 0x3F));
+                out.write(0x80 | ((codePoint >>> 6) & 0x3F));
+                out.write(0x80 | (codePoint & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '?'; //Unpaired surrogate
+                }
+                out.write(0xE0 | (c >>> 12));
+                out.write(0x80 | ((c >>> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(long value) throws IOException {
+        if (value >= 0) {
+            writeTypeAndLength(MAJOR_TYPE_UNSIGNED_INT, value);
+        } else {
+            writeTypeAndLength(MAJOR_TYPE_NEGATIVE_INT, -1 - value);
+        }
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(boolean value) throws IOException {
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(byte[] value, int offset, int length) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        writeTypeAndLength(MAJOR_TYPE_BYTE_STRING, length);
+        out.write(value, offset, length);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter nullValue() throws IOException {
+        out.write(NULL);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endRecord() throws IOException {
+        if (depth != 0) {
+            throw new IllegalStateException("Record not complete. Open objects/arrays: " + depth);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private StructuredWriter end() throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to end");
+        }
+        depth--;
+        out.write(BREAK);
+        return this;
+    }
+
+    //Argument 'value' is an unsigned 64 bit value
+    private void writeTypeAndLength(int majorType, long value) throws IOException {
+        int type = majorType << 5;
+        if (value >= 0 && value < 24) {
+            out.write(type | (int) value);
+        } else if (value >= 0 && value <= 0xFF) {
+            out.write(type | 24);
+            out.write((int) value);
+        } else if (value >= 0 && value <= 0xFFFF) {
+            out.write(type | 25);
+            writeBigEndian(value, 2);
+        } else if (value >= 0 && value <= 0xFFFFFFFFL) {
+            out.write(type | 26);
+            writeBigEndian(value, 4);
+        } else {
+            out.write(type | 27);
+            writeBigEndian(value, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int numBytes) throws IOException {
+        for (int i = numBytes - 1; i >= 0; i--) {
+            out.write((int) (value >>> (8 * i)));
+        }
+    }
+
+    private static int getUTF8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import sasc.util.Hex;
+
+/**
+ * Writes JSON Lines (http://jsonlines.org): one JSON object per line.
+ * Binary values are written as lower case hex strings.
+ *
+ * @author sasc
+ */
+public final class JsonLinesWriter implements StructuredWriter {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int MAX_NESTING_DEPTH = 32;
+
+    private final Writer out;
+    //Whether a value has been written in each open container (to insert commas)
+    private final boolean[] hasValue = new boolean[MAX_NESTING_DEPTH];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    public JsonLinesWriter(Writer out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Param 'out' cannot be null");
+        }
+        this.out = out;
+    }
+
+    @Override
+    public StructuredWriter beginObject() throws IOException {
+        beforeValue();
+        out.write('{');
+        push();
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endObject() throws IOException {
+        pop();
+        out.write('}');
+        return this;
+    }
+
+    @Override
+    public StructuredWriter beginArray() throws IOException {
+        beforeValue();
+        out.write('[');
+        push();
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endArray() throws IOException {
+        pop();
+        out.write(']');
+        return this;
+    }
+
+    @Override
+    public StructuredWriter name(String name) throws IOException {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Unexpected name: " + name);
+        }
+        separate();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(byte[] value, int offset, int length) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        out.write('"');
+        Hex.Format.PLAIN.appendTo(out, value, offset, length);
+        out.write('"');
+        return this;
+    }
+
+    @Override
+    public StructuredWriter nullValue() throws IOException {
+        beforeValue();
+        out.write("null");
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endRecord() throws IOException {
+        if (depth != 0) {
+            throw new IllegalStateException("Record not complete. Open objects/arrays: " + depth);
+        }
+        out.write('\n');
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void push() {
+        if (depth == MAX_NESTING_DEPTH) {
+            throw new IllegalStateException("Nested too deep (max " + MAX_NESTING_DEPTH + ")");
+        }
+        hasValue[depth++] = false;
+    }
+
+    private void pop() {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Nothing to end");
+        }
+        depth--;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException {
+        if (depth > 0) {
+            if (hasValue[depth - 1]) {
+                out.write(',');
+            }
+            hasValue[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(s, start, i - start);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u00");
+                    out.write(HEX_DIGITS[(c >>> 4) & 0x0F]);
+                    out.write(HEX_DIGITS[c & 0x0F]);
+            }
+            start = i + 1;
+        }
+        out.write(s, start, s.length() - start);
+        out.write('"');
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.export;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Streaming writer for structured (JSON like) data.
+ *
+ * Values are written as they are produced; nothing is buffered apart from
+ * the nesting of the open objects/arrays. Each top level object is a record,
+ * and is terminated by endRecord().
+ *
+ * Inside an object, every value must be preceded by name().
+ *
+ * @author sasc
+ */
+public interface StructuredWriter extends Flushable, Closeable {
+
+    StructuredWriter beginObject() throws IOException;
+
+    StructuredWriter endObject() throws IOException;
+
+    StructuredWriter beginArray() throws IOException;
+
+    StructuredWriter endArray() throws IOException;
+
+    StructuredWriter name(String name) throws IOException;
+
+    StructuredWriter value(String value) throws IOException;
+
+    StructuredWriter value(long value) throws IOException;
+
+    StructuredWriter value(boolean value) throws IOException;
+
+    /**
+     * Binary data. Written as a byte string (CBOR) or a hex string (JSON)
+     */
+    StructuredWriter value(byte[] value, int offset, int length) throws IOException;
+
+    StructuredWriter nullValue() throws IOException;
+
+    /**
+     * Terminates the current top level record
+     */
+    StructuredWriter endRecord() throws IOException;
+}
@@ -20,6 +20,7 @@ import java.io.StringWriter;
 import java.util.Arrays;
 import sasc.lookup.RID_DB;
 import sasc.terminal.KnownAIDList;
+import sasc.util.ByteArrayInterner;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -46,8 +47,8 @@ public class AID {
         if (pix.length > 11) {
             throw new IllegalArgumentException("PIX length > 11. Length=" + pix.length);
         }
-        this.rid = rid;
-        this.pix = pix;
+        this.rid = ByteArrayInterner.intern(rid);
+        this.pix = ByteArrayInterner.intern(pix);
     }
 
     public AID(byte[] aid) {
@@ -60,10 +61,8 @@ public class AID {
         if (aid.length > 16) {
             throw new IllegalArgumentException("Invalid AID length: must be 5-16 bytes. Length=" + aid.length);
         }
-        rid = new byte[5];
-        System.arraycopy(aid, 0, rid, 0, rid.length);
-        pix = new byte[aid.length-rid.length];
-        System.arraycopy(aid, rid.length, pix, 0, pix.length);
+        rid = ByteArrayInterner.intern(aid, 0, 5);
+        pix = ByteArrayInterner.intern(aid, 5, aid.length - 5);
 
     }
 
@@ -20,6 +20,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.List;
 import sasc.lookup.ATR_DB;
+import sasc.util.ByteArrayInterner;
 import sasc.util.Log;
 import sasc.util.Util;
 
@@ -53,10 +54,10 @@ public class ATR {
     private String errorMsg = "";
 
     public ATR(byte[] atrBytes){
-        this.atrBytes = atrBytes;
+        this.atrBytes = ByteArrayInterner.intern(atrBytes);
 
         try{
-            isoATR = IsoATR.parse(atrBytes);
+            isoATR = IsoATR.parse(this.atrBytes);
             isIsoCompliant = true;
         }catch(IsoATR.ParseException ex){
             errorMsg = ex.getMessage();
@@ -78,7 +79,7 @@ public class ATR {
     }
     
     public byte[] getBytes(){
-        return atrBytes;
+        return Util.copyByteArray(atrBytes);
     }
 
     @Override
@@ -16,7 +16,6 @@
 package sasc.iso7816;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import sasc.emv.EMVTags;
 import sasc.util.Util;
 
@@ -56,9 +55,14 @@ public class BERTLV {
         this.length = valueBytes.length;
     }
     
+    /**
+     * Encodes the length using the definite form
+     * (short form for lengths up to 127, long form otherwise)
+     */
     public static byte[] encodeLength(int length){
-        //TODO
-        throw new UnsupportedOperationException("Not implemented yet");
+        byte[] lengthBytes = new byte[TLVWriter.getEncodedLengthSize(length)];
+        new TLVWriter(lengthBytes).writeLength(length);
+        return lengthBytes;
     }
 
     public byte[] getTagBytes() {
@@ -79,11 +83,18 @@ public class BERTLV {
 
     public byte[] toBERTLVByteArray() {
         byte[] tagBytes = tag.getTagBytes();
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(tagBytes.length+rawEncodedLengthBytes.length+valueBytes.length);
-        stream.write(tagBytes, 0, tagBytes.length);
-        stream.write(rawEncodedLengthBytes, 0, rawEncodedLengthBytes.length);
-        stream.write(valueBytes, 0, valueBytes.length);
-        return stream.toByteArray();
+        byte[] tlvBytes = new byte[tagBytes.length+rawEncodedLengthBytes.length+valueBytes.length];
+        writeTo(new TLVWriter(tlvBytes));
+        return tlvBytes;
+    }
+
+    /**
+     * Writes the tag, the raw encoded length bytes and the value
+     */
+    public void writeTo(TLVWriter writer) {
+        writer.writeTag(tag);
+        writer.writeBytes(rawEncodedLengthBytes);
+        writer.writeBytes(valueBytes);
     }
 
     @Override
@@ -111,9 +122,20 @@ public class BERTLV {
 //>                            87 01 -- Application Priority Indicator
 //>                                  01 (BINARY)
         
-//        BERTLV fciTemplate = new BERTLV(EMVTags.FCI_TEMPLATE, )
-                
-        //TODO create PPSE.toBytes(byte[] outBuf, short len)
+        byte[] outBuf = new byte[64];
+        TLVWriter writer = new TLVWriter(outBuf);
+        writer.startTemplate(EMVTags.FCI_TEMPLATE);
+        writer.write(EMVTags.DEDICATED_FILE_NAME, Util.fromHexString("32 50 41 59 2e 53 59 53 2e 44 44 46 30 31"));
+        writer.startTemplate(EMVTags.FCI_PROPRIETARY_TEMPLATE);
+        writer.startTemplate(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA);
+        writer.startTemplate(EMVTags.APPLICATION_TEMPLATE);
+        writer.write(EMVTags.AID_CARD, Util.fromHexString("a0 00 00 00 04 10 10"));
+        writer.writeByte(EMVTags.APPLICATION_PRIORITY_INDICATOR, 0x01);
+        writer.endTemplate();
+        writer.endTemplate();
+        writer.endTemplate();
+        writer.endTemplate();
+        System.out.println(Util.prettyPrintHexNoWrap(outBuf, 0, writer.size()));
 
     }
 }
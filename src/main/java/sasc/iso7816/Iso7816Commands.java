@@ -33,6 +33,10 @@ public class Iso7816Commands {
     public static final byte ISO_EXTERNAL_AUTH = (byte)0x82;
     public static final byte ISO_GET_DATA      = (byte)0xca;
     
+    public static final int MAX_SHORT_COMMAND_DATA_LENGTH = 255;
+    //CLA INS P1 P2 Lc Data Le
+    public static final int MAX_SHORT_COMMAND_APDU_LENGTH = 5 + MAX_SHORT_COMMAND_DATA_LENGTH + 1;
+    
     /**
      * Select Master File.
      * Standard iso7816 command
@@ -159,6 +163,38 @@ public class Iso7816Commands {
         return stream.toByteArray();
     }
     
+    /**
+     * Writes the header of a case 3 or case 4 command, and reserves room for Lc.
+     * The command data is then written directly to the writer, followed by a call to endCommand()
+     *
+     * @return the position of the Lc byte, to be passed to endCommand()
+     */
+    public static int startCommand(TLVWriter out, byte cla, byte ins, byte p1, byte p2) {
+        out.writeByte(cla);
+        out.writeByte(ins);
+        out.writeByte(p1);
+        out.writeByte(p2);
+        int lcPosition = out.position();
+        out.writeByte(0x00); //Lc placeholder
+        return lcPosition;
+    }
+
+    /**
+     * Back-patches Lc with the length of the command data written since startCommand()
+     *
+     * @param lePresent true for case 4 commands (Le = '00')
+     */
+    public static void endCommand(TLVWriter out, int lcPosition, boolean lePresent) {
+        int lc = out.position() - lcPosition - 1;
+        if (lc < 1 || lc > MAX_SHORT_COMMAND_DATA_LENGTH) {
+            throw new SmartCardException("Command data length must be in the range 1 to " + MAX_SHORT_COMMAND_DATA_LENGTH + ". Length=" + lc);
+        }
+        out.patchByte(lcPosition, lc);
+        if (lePresent) {
+            out.writeByte(0x00);
+        }
+    }
+
     public static byte[] getData(byte p1, byte p2, byte le) {
         byte[] cmd = new byte[5];
         cmd[0] = ISO_CLA;
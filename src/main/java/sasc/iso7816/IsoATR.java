@@ -138,7 +138,7 @@ public class IsoATR {
         pw.println(indentStr+"Protocol - "+protocol);
 
         if(numHistoricalBytes > 0){
-            pw.println(indentStr+"Historical bytes - "+Util.prettyPrintHex(Util.byteArrayToHexString(getHistoricalBytes())));
+            pw.println(indentStr+"Historical bytes - "+Util.prettyPrintHex(getHistoricalBytes()));
         }
 
     }
@@ -53,7 +53,7 @@ public class MasterFile implements File {
     public void dump(PrintWriter pw, int indent) {
         pw.println(Util.getSpaces(indent) + "Master File");
 
-        pw.println(Util.getSpaces(indent+Log.INDENT_SIZE) + Util.prettyPrintHex(Util.byteArrayToHexString(data), indent+Log.INDENT_SIZE));
+        pw.println(Util.getSpaces(indent+Log.INDENT_SIZE) + Util.prettyPrintHex(data, indent+Log.INDENT_SIZE));
         
         pw.println("");
         
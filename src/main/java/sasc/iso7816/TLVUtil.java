@@ -323,7 +323,7 @@ public class TLVUtil {
                     buf.append(TLVUtil.getFormattedTagAndLength(valueBytes, indentLength + extraIndent));
                 } else {
                     buf.append(Util.getSpaces(indentLength + extraIndent));
-                    buf.append(Util.prettyPrintHex(Util.byteArrayToHexString(valueBytes), indentLength + extraIndent));
+                    buf.append(Util.prettyPrintHex(valueBytes, indentLength + extraIndent));
                     buf.append(" (");
                     buf.append(TLVUtil.getTagValueAsString(tag, valueBytes));
                     buf.append(")");
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes BER-TLV encoded data (and raw bytes, such as APDU headers)
+ * into a caller owned buffer.
+ *
+ * Constructed data objects (templates) may be nested. The length of a template
+ * is not known until all its children have been written, so a single length byte
+ * is reserved by startTemplate() and patched by endTemplate(). If the content
+ * turns out to be longer than 127 bytes, the content is moved to make room for the
+ * long form length bytes.
+ *
+ * The writer itself does not allocate (except for toByteArray()), and may be reset
+ * and reused for any number of commands/responses.
+ *
+ * Usage:
+ *   TLVWriter writer = new TLVWriter(new byte[261]);
+ *   writer.startTemplate(EMVTags.FCI_TEMPLATE);
+ *   writer.write(EMVTags.DEDICATED_FILE_NAME, dfName);
+ *   writer.endTemplate();
+ *
+ * @author sasc
+ */
+public final class TLVWriter {
+
+    private static final int MAX_NESTING_DEPTH = 16;
+
+    private final ByteBuffer buffer;
+    private final int startPosition;
+    private final int[] templateStack = new int[MAX_NESTING_DEPTH];
+    private int depth = 0;
+
+    /**
+     * Writes into the given array, starting at index 0
+     */
+    public TLVWriter(byte[] buffer) {
+        this(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Writes into the given buffer, starting at its current position
+     */
+    public TLVWriter(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Param 'buffer' cannot be null");
+        }
+        this.buffer = buffer;
+        this.startPosition = buffer.position();
+    }
+
+    /**
+     * Discards everything written, so that the writer (and the buffer) can be reused
+     */
+    public TLVWriter reset() {
+        buffer.position(startPosition);
+        depth = 0;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes written since the writer was created or reset
+     */
+    public int size() {
+        return buffer.position() - startPosition;
+    }
+
+    /**
+     * @return the absolute position in the underlying buffer of the next byte to be written
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public TLVWriter writeByte(int b) {
+        buffer.put((byte) b);
+        return this;
+    }
+
+    public TLVWriter writeBytes(byte[] bytes) {
+        buffer.put(bytes);
+        return this;
+    }
+
+    public TLVWriter writeBytes(byte[] bytes, int offset, int length) {
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Overwrites a single byte previously written (for example the Lc byte of an APDU)
+     *
+     * @param position absolute position in the underlying buffer
+     */
+    public TLVWriter patchByte(int position, int b) {
+        if (position < startPosition || position >= buffer.position()) {
+            throw new IllegalArgumentException("Position " + position + " has not been written");
+        }
+        buffer.put(position, (byte) b);
+        return this;
+    }
+
+    public TLVWriter writeTag(Tag tag) {
+        return writeBytes(tag.getTagBytes());
+    }
+
+    public TLVWriter writeLength(int length) {
+        if (length < 0) {
+            throw new TLVException("Negative length: " + length);
+        }
+        int numLengthBytes = getEncodedLengthSize(length);
+        if (numLengthBytes == 1) {
+            buffer.put((byte) length);
+        } else {
+            buffer.put((byte) (0x80 | (numLengthBytes - 1)));
+            for (int i = numLengthBytes - 2; i >= 0; i--) {
+                buffer.put((byte) (length >>> (8 * i)));
+            }
+        }
+        return this;
+    }
+
+    public TLVWriter write(Tag tag, byte[] value) {
+        return write(tag, value, 0, value.length);
+    }
+
+    public TLVWriter write(Tag tag, byte[] value, int offset, int length) {
+        writeTag(tag);
+        writeLength(length);
+        return writeBytes(value, offset, length);
+    }
+
+    /**
+     * Writes a primitive data object with a 1 byte value
+     */
+    public TLVWriter writeByte(Tag tag, int value) {
+        writeTag(tag);
+        writeLength(1);
+        return writeByte(value);
+    }
+
+    /**
+     * Writes a primitive data object with a 2 byte (big endian) value
+     */
+    public TLVWriter writeShort(Tag tag, int value) {
+        writeTag(tag);
+        writeLength(2);
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
+        return this;
+    }
+
+    public TLVWriter write(BERTLV tlv) {
+        return write(tlv.getTag(), tlv.getValueBytes());
+    }
+
+    /**
+     * Writes the tag of a constructed data object, and reserves room for the length.
+     * Every call must be matched by a call to endTemplate()
+     */
+    public TLVWriter startTemplate(Tag tag) {
+        if (depth == MAX_NESTING_DEPTH) {
+            throw new IllegalStateException("Templates nested too deep (max " + MAX_NESTING_DEPTH + ")");
+        }
+        writeTag(tag);
+        templateStack[depth++] = buffer.position();
+        buffer.put((byte) 0x00); //Placeholder for the length
+        return this;
+    }
+
+    /**
+     * Back-patches the length of the innermost template
+     */
+    public TLVWriter endTemplate() {
+        if (depth == 0) {
+            throw new IllegalStateException("endTemplate() called without a matching startTemplate()");
+        }
+        int lengthPosition = templateStack[--depth];
+        int contentStart = lengthPosition + 1;
+        int contentLength = buffer.position() - contentStart;
+        int numLengthBytes = getEncodedLengthSize(contentLength);
+        if (numLengthBytes > 1) {
+            //Make room for the additional length bytes
+            int shift = numLengthBytes - 1;
+            if (buffer.remaining() < shift) {
+                throw new BufferOverflowException();
+            }
+            if (buffer.hasArray()) {
+                int offset = buffer.arrayOffset();
+                System.arraycopy(buffer.array(), offset + contentStart, buffer.array(), offset + contentStart + shift, contentLength);
+            } else {
+                for (int i = buffer.position() - 1; i >= contentStart; i--) {
+                    buffer.put(i + shift, buffer.get(i));
+                }
+            }
+            buffer.position(buffer.position() + shift);
+        }
+        int end = buffer.position();
+        buffer.position(lengthPosition);
+        writeLength(contentLength);
+        buffer.position(end);
+        return this;
+    }
+
+    /**
+     * Copies the bytes written into a new array
+     */
+    public byte[] toByteArray() {
+        if (depth != 0) {
+            throw new IllegalStateException("Unterminated template(s): " + depth);
+        }
+        byte[] bytes = new byte[size()];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Copies the bytes written into the given array
+     *
+     * @return the number of bytes copied
+     */
+    public int copyTo(byte[] dest, int destOffset) {
+        int size = size();
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + startPosition, dest, destOffset, size);
+        } else {
+            for (int i = 0; i < size; i++) {
+                dest[destOffset + i] = buffer.get(startPosition + i);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes needed to encode the length (definite form)
+     */
+    public static int getEncodedLengthSize(int length) {
+        if (length < 0) {
+            throw new TLVException("Negative length: " + length);
+        }
+        if (length <= 0x7F) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        } else if (length <= 0xFFFFFF) {
+            return 4;
+        }
+        return 5;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one command sent to the card, including the
+ * procedure byte handling (re-sending on SW1=6C, GET RESPONSE on SW1=61).
+ *
+ * The bundled settings file /sasc/jfr/emv-reader.jfc enables all the events in this package.
+ * Start a recording with:
+ *   java -XX:StartFlightRecording=settings=src/main/resources/sasc/jfr/emv-reader.jfc,filename=emv.jfr ...
+ *
+ * When no recording is running, begin() and shouldCommit() are the only calls made,
+ * and the event object does not escape (so it is not allocated).
+ *
+ * @author sasc
+ */
+@Name("sasc.Apdu")
+@Label("APDU")
+@Category({"EMV Reader", "Card"})
+@Description("A command sent to the card and the response")
+@StackTrace(false)
+public final class ApduEvent extends Event {
+
+    @Label("CLA")
+    private int cla;
+
+    @Label("INS")
+    private int ins;
+
+    @Label("P1")
+    private int p1;
+
+    @Label("P2")
+    private int p2;
+
+    @Label("SW")
+    @Description("The final status word (hex)")
+    private String sw;
+
+    @Label("Command Length")
+    @DataAmount(DataAmount.BYTES)
+    private int commandLength;
+
+    @Label("Response Length")
+    @DataAmount(DataAmount.BYTES)
+    private int responseLength;
+
+    @Label("Transmissions")
+    @Description("The number of commands transmitted, including GET RESPONSE and re-sent commands")
+    private int transmissions;
+
+    /**
+     * Commits the event, if it is enabled and the duration exceeds the threshold
+     *
+     * @param command the command as sent (at least CLA INS P1 P2)
+     */
+    public void end(byte[] command, int sw, int responseLength, int transmissions) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.cla = command[0] & 0xFF;
+        this.ins = command[1] & 0xFF;
+        this.p1 = command[2] & 0xFF;
+        this.p2 = command[3] & 0xFF;
+        this.sw = String.format("%04X", sw & 0xFFFF);
+        this.commandLength = command.length;
+        this.responseLength = responseLength;
+        this.transmissions = transmissions;
+        commit();
+    }
+}
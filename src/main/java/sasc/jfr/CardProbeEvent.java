@@ -0,0 +1,64 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import sasc.util.Hex;
+
+/**
+ * Java Flight Recorder event for the probing of a card for one known AID or RID
+ * (selection by DF name, including the selection of the next occurrences)
+ *
+ * @author sasc
+ */
+@Name("sasc.CardProbe")
+@Label("Card Probe")
+@Category({"EMV Reader", "Card"})
+@StackTrace(false)
+public final class CardProbeEvent extends Event {
+
+    @Label("Name")
+    private String name;
+
+    @Label("DF Name")
+    @Description("The AID or RID selected")
+    private String dfName;
+
+    @Label("SW")
+    @Description("The status word of the first SELECT command (hex)")
+    private String sw;
+
+    public static CardProbeEvent start() {
+        CardProbeEvent event = new CardProbeEvent();
+        event.begin();
+        return event;
+    }
+
+    public void end(String name, byte[] dfName, int sw) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.name = name;
+        this.dfName = Hex.encodeUpperCase(dfName);
+        this.sw = String.format("%04X", sw & 0xFFFF);
+        commit();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for the validation of a certificate or signed data
+ * (offline data authentication). Includes the validation of the certificates it depends on,
+ * which are also recorded as separate events.
+ *
+ * @author sasc
+ */
+@Name("sasc.CertificateValidation")
+@Label("Certificate Validation")
+@Category({"EMV Reader", "Crypto"})
+@StackTrace(false)
+public final class CertificateValidationEvent extends Event {
+
+    public static final String ISSUER_PUBLIC_KEY_CERTIFICATE = "Issuer Public Key Certificate";
+    public static final String ICC_PUBLIC_KEY_CERTIFICATE = "ICC Public Key Certificate";
+    public static final String SIGNED_STATIC_APPLICATION_DATA = "Signed Static Application Data";
+    public static final String SIGNED_DYNAMIC_APPLICATION_DATA = "Signed Dynamic Application Data";
+
+    @Label("Type")
+    private String type;
+
+    @Label("Valid")
+    private boolean valid;
+
+    public static CertificateValidationEvent start(String type) {
+        CertificateValidationEvent event = new CertificateValidationEvent();
+        event.type = type;
+        event.begin();
+        return event;
+    }
+
+    public void end(boolean valid) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.valid = valid;
+        commit();
+    }
+}
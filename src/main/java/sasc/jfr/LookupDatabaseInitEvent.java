@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder event for the loading of a lookup database (IIN, ATR, RID)
+ *
+ * @author sasc
+ */
+@Name("sasc.LookupDatabaseInit")
+@Label("Lookup Database Initialization")
+@Category({"EMV Reader", "Startup"})
+public final class LookupDatabaseInitEvent extends Event {
+
+    @Label("Database")
+    private String database;
+
+    @Label("Entries")
+    private int entries;
+
+    public static LookupDatabaseInitEvent start(String database) {
+        LookupDatabaseInitEvent event = new LookupDatabaseInitEvent();
+        event.database = database;
+        event.begin();
+        return event;
+    }
+
+    public void end(int entries) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.entries = entries;
+        commit();
+    }
+}
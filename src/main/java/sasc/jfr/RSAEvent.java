@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event for one RSA operation (certificate and signature recovery).
+ * A short exponent is a public key operation
+ *
+ * @author sasc
+ */
+@Name("sasc.RSA")
+@Label("RSA")
+@Category({"EMV Reader", "Crypto"})
+@StackTrace(false)
+public final class RSAEvent extends Event {
+
+    @Label("Modulus Length")
+    @DataAmount(DataAmount.BITS)
+    private int modulusBits;
+
+    @Label("Exponent Length")
+    @DataAmount(DataAmount.BITS)
+    private int exponentBits;
+
+    public void end(int modulusBits, int exponentBits) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.modulusBits = modulusBits;
+        this.exponentBits = exponentBits;
+        commit();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import sasc.iso7816.AID;
+import sasc.util.Hex;
+
+/**
+ * Java Flight Recorder event for one phase of an EMV session
+ * (Initiate Application Processing, Read Application Data etc)
+ *
+ * @author sasc
+ */
+@Name("sasc.SessionPhase")
+@Label("EMV Session Phase")
+@Category({"EMV Reader", "Session"})
+@StackTrace(false)
+public final class SessionPhaseEvent extends Event {
+
+    public static final String INIT_CONTEXT = "Init Context";
+    public static final String SELECT_APPLICATION = "Select Application";
+    public static final String INITIATE_APPLICATION_PROCESSING = "Initiate Application Processing";
+    public static final String COMPLETE_QVSDC_TRANSACTION = "Complete qVSDC Transaction";
+    public static final String PREPARE_TRANSACTION_PROCESSING = "Prepare Transaction Processing";
+    public static final String PERFORM_TRANSACTION = "Perform Transaction";
+    public static final String GENERATE_AC = "Generate AC";
+
+    @Label("Phase")
+    private String phase;
+
+    @Label("AID")
+    @Description("The selected application, if any")
+    private String aid;
+
+    @Label("Completed")
+    @Description("False if the phase ended with an exception")
+    private boolean completed;
+
+    public static SessionPhaseEvent start(String phase) {
+        SessionPhaseEvent event = new SessionPhaseEvent();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param aid the AID of the selected application, or null
+     */
+    public void end(AID aid, boolean completed) {
+        if (!shouldCommit()) {
+            return;
+        }
+        this.aid = aid == null ? null : Hex.encodeUpperCase(aid.getAIDBytes());
+        this.completed = completed;
+        commit();
+    }
+}
@@ -21,6 +21,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.util.Log;
+import sasc.util.Hex;
+import sasc.jfr.LookupDatabaseInitEvent;
 import sasc.util.Util;
 
 /**
@@ -45,6 +47,7 @@ public class ATR_DB {
 		new Thread(new Runnable(){
 				@Override
 				public void run() {
+                    LookupDatabaseInitEvent event = LookupDatabaseInitEvent.start("ATR");
 
                     InputStream is1 = null;
                     InputStream is2 = null;
@@ -102,6 +105,7 @@ public class ATR_DB {
                                 //Ignore
                             }
                         }
+                        event.end(atrMap.size());
                         initLatch.countDown();
 					}
 				}
@@ -156,7 +160,7 @@ public class ATR_DB {
 
     public static List<String> searchATR(byte[] atr){
         awaitInit();
-        String atrStr = Util.prettyPrintHexNoWrap(atr).toUpperCase();
+        String atrStr = Hex.Format.SPACED_UPPER_CASE.format(atr);
         for(String atrPatternStr : atrMap.keySet()){
             if(atrStr.matches("^"+atrPatternStr+"$")){
                 PublicATR publicATR = atrMap.get(atrPatternStr);
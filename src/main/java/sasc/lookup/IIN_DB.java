@@ -27,6 +27,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import sasc.jfr.LookupDatabaseInitEvent;
 import sasc.util.Util;
 
 /**
@@ -50,6 +51,7 @@ public class IIN_DB {
 		new Thread(new Runnable(){
 				@Override
 				public void run() {
+                    LookupDatabaseInitEvent event = LookupDatabaseInitEvent.start("IIN");
 
                     InputStream is1 = null;
                     BufferedReader br = null;
@@ -113,6 +115,7 @@ public class IIN_DB {
                                 //Ignore
                             }
                         }
+						event.end(iinMap.size());
 						initLatch.countDown();
 					}
 				}
@@ -25,6 +25,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import sasc.iso7816.RID;
+import sasc.util.Hex;
+import sasc.jfr.LookupDatabaseInitEvent;
 import sasc.util.Util;
 
 /**
@@ -46,6 +48,7 @@ public class RID_DB {
 		new Thread(new Runnable(){
 				@Override
 				public void run() {
+                    LookupDatabaseInitEvent event = LookupDatabaseInitEvent.start("RID");
 
                     InputStream is1 = null;
                     InputStream is2 = null;
@@ -112,6 +115,7 @@ public class RID_DB {
                                 //Ignore
                             }
                         }
+                        event.end(ridMap.size());
                         initLatch.countDown();
 					}
 				}
@@ -147,7 +151,7 @@ public class RID_DB {
 	}
     public static RID searchRID(byte[] rid) {
         awaitInit();
-        return ridMap.get(Util.byteArrayToHexString(rid).toUpperCase());
+        return ridMap.get(Hex.encodeUpperCase(rid));
     }
 
     public static void main(String[] args) {
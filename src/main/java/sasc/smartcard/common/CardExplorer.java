@@ -105,7 +105,10 @@ public class CardExplorer {
                     //Must be combined with a PIN callback handler
                     EMVTerminal.setDoVerifyPinIfRequired(false);
                     
-                    session.prepareTransactionProcessing();
+                    //Visa qVSDC: the transaction was completed by the card during GET PROCESSING OPTIONS
+                    if (session.completeQVSDCTransaction() == null) {
+                        session.prepareTransactionProcessing();
+                    }
 
 //                    session.performTransaction();
 
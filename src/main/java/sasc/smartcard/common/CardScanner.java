@@ -33,6 +33,7 @@ import sasc.iso7816.RID;
 import sasc.iso7816.SmartCardException;
 import sasc.iso7816.TLVException;
 import sasc.iso7816.TLVUtil;
+import sasc.jfr.CardProbeEvent;
 import sasc.lookup.RID_DB;
 import sasc.smartcard.app.globalplatform.GlobalPlatformDriver;
 import sasc.smartcard.app.globalplatform.SecurityDomainFCI;
@@ -561,6 +562,7 @@ public class CardScanner {
             Map<String, RID> ridMap = RID_DB.getAll();
             for(String ridString : ridMap.keySet()) {
                 RID rid = ridMap.get(ridString);
+                CardProbeEvent probeEvent = CardProbeEvent.start();
                 
                 Log.commandHeader("Send SELECT RID " + rid.getApplicant() + " ("+rid.getCountry()+")");
 
@@ -574,6 +576,7 @@ public class CardScanner {
                 if (SW1 == (byte) 0x90 && SW2 == (byte) 0x00) {
                     smartCard.addAID(new AID(rid.getRIDBytes()));
                 }
+                probeEvent.end(rid.getApplicant(), rid.getRIDBytes(), response.getSW());
             }
         }
         
@@ -626,9 +629,11 @@ public class CardScanner {
             //shall respond with SW1 SW2 = '6A82' (file not found).
 
 
+            CardProbeEvent probeEvent = CardProbeEvent.start();
             Log.commandHeader("Direct selection of Application to generate candidate list - "+terminalAIDCandidate.getName());
             command = EMVAPDUCommands.selectByDFName(terminalAIDCandidate.getAID().getAIDBytes());
             CardResponse selectAppResponse = EMVUtil.sendCmd(terminal, command);
+            short probeSW = selectAppResponse.getSW();
 
             //TODO merge data if AID already found (to prevent PARTIAL AID being listed as app in EMV card dump)
 
@@ -730,6 +735,7 @@ public class CardScanner {
                     }
                 }
             }
+            probeEvent.end(terminalAIDCandidate.getName(), terminalAIDCandidate.getAID().getAIDBytes(), probeSW);
         }   
     }
 }
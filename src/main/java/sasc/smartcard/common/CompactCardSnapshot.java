@@ -0,0 +1,303 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.smartcard.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import sasc.emv.ApplicationElementaryFile;
+import sasc.emv.ApplicationFileLocator;
+import sasc.emv.ApplicationInterchangeProfile;
+import sasc.emv.DOL;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVUtil;
+import sasc.emv.LogFormat;
+import sasc.emv.Record;
+import sasc.emv.TransactionLog;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.iso7816.Application;
+import sasc.iso7816.TagAndLength;
+import sasc.util.ByteSlabStore;
+
+/**
+ * A compact, read only copy of the data read from a card, for keeping many cards in memory.
+ *
+ * All the byte strings (ATRs, AIDs, records, ...) are kept in a ByteSlabStore,
+ * usually shared by all the snapshots, so the content common to many cards
+ * (such as the records with the issuer certificates) is stored once.
+ * The snapshot itself only holds the handles.
+ *
+ * The snapshot keeps what is needed to rebuild the EMV applications: the data returned
+ * by SELECT and GET PROCESSING OPTIONS, the records indicated by the AFL, the counters read
+ * with GET DATA and the transaction log. The data objects are decoded again when the card
+ * is rebuilt with toSmartCard(). Of the other applications, only the AIDs are kept.
+ *
+ * release() must be called when the snapshot is no longer needed, to release the content
+ * in the store.
+ *
+ * @author sasc
+ */
+public final class CompactCardSnapshot {
+
+    private static final int NONE = -1;
+
+    //Layout of the application arrays
+    private static final int AID = 0;
+    private static final int LABEL = 1;
+    private static final int PREFERRED_NAME = 2;
+    private static final int AIP = 3;
+    private static final int AFL = 4;
+    private static final int PDOL = 5;
+    private static final int LOG_FORMAT = 6;
+    private static final int ATC = 7;
+    private static final int LAST_ONLINE_ATC = 8;
+    private static final int PIN_TRY_COUNTER = 9;
+    private static final int NUM_RECORDS = 10;
+    //Followed by NUM_RECORDS * (record info, record handle), then the number of log records and the log record handles
+
+    private final ByteSlabStore store;
+    private final SmartCard.Type type;
+    private final int[] atrs;
+    private final int[] otherAIDs;
+    private final int[][] applications;
+    private boolean released = false;
+
+    private CompactCardSnapshot(ByteSlabStore store, SmartCard.Type type, int[] atrs, int[] otherAIDs, int[][] applications) {
+        this.store = store;
+        this.type = type;
+        this.atrs = atrs;
+        this.otherAIDs = otherAIDs;
+        this.applications = applications;
+    }
+
+    public static CompactCardSnapshot create(SmartCard card, ByteSlabStore store) {
+        if (card == null || store == null) {
+            throw new IllegalArgumentException("Arguments 'card' and 'store' cannot be null");
+        }
+        int[] atrs = new int[card.getATRs().size()];
+        int i = 0;
+        for (ATR atr : card.getATRs()) {
+            atrs[i++] = store.put(atr.getBytes());
+        }
+        Collection<Application> otherApplications = card.getOtherApplications();
+        int[] otherAIDs = new int[otherApplications.size()];
+        i = 0;
+        for (Application app : otherApplications) {
+            otherAIDs[i++] = store.put(app.getAID().getAIDBytes());
+        }
+        int[][] applications = new int[card.getEmvApplications().size()][];
+        i = 0;
+        for (EMVApplication app : card.getEmvApplications()) {
+            applications[i++] = createApplication(app, store);
+        }
+        return new CompactCardSnapshot(store, card.getType(), atrs, otherAIDs, applications);
+    }
+
+    private static int[] createApplication(EMVApplication app, ByteSlabStore store) {
+        List<Integer> records = new ArrayList<Integer>();
+        for (ApplicationElementaryFile aef : app.getApplicationFileLocator().getApplicationElementaryFiles()) {
+            for (Record record : aef.getRecords()) {
+                records.add(aef.getSFI().getValue() << 16 | record.getRecordNumber() << 1 | (record.isInvolvedInOfflineDataAuthentication() ? 1 : 0));
+                records.add(store.put(record.getRawData()));
+            }
+        }
+        TransactionLog log = app.getTransactionLog();
+        int numLogRecords = log == null ? 0 : log.getRecords().size();
+
+        int[] data = new int[NUM_RECORDS + 1 + records.size() + 1 + numLogRecords];
+        data[AID] = store.put(app.getAID().getAIDBytes());
+        data[LABEL] = putString(app.getLabel(), store);
+        data[PREFERRED_NAME] = putString(app.getPreferredName(), store);
+        data[AIP] = app.getApplicationInterchangeProfile() == null ? NONE : store.put(app.getApplicationInterchangeProfile().getBytes());
+        data[AFL] = store.put(getAFLBytes(app.getApplicationFileLocator()));
+        data[PDOL] = app.getPDOL() == null ? NONE : store.put(app.getPDOL().getBytes());
+        data[LOG_FORMAT] = log == null ? NONE : store.put(getLogFormatBytes(log.getLogFormat()));
+        data[ATC] = app.getATC();
+        data[LAST_ONLINE_ATC] = app.getLastOnlineATC();
+        data[PIN_TRY_COUNTER] = app.getPINTryCounter();
+        data[NUM_RECORDS] = records.size() / 2;
+        int pos = NUM_RECORDS + 1;
+        for (int value : records) {
+            data[pos++] = value;
+        }
+        data[pos++] = numLogRecords;
+        if (log != null) {
+            for (TransactionLog.Record logRecord : log.getRecords()) {
+                data[pos++] = store.put(logRecord.getRawData());
+            }
+        }
+        return data;
+    }
+
+    private static int putString(String value, ByteSlabStore store) {
+        return value == null ? NONE : store.put(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] getAFLBytes(ApplicationFileLocator afl) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ApplicationElementaryFile aef : afl.getApplicationElementaryFiles()) {
+            stream.write(aef.getSFI().getValue() << 3);
+            stream.write(aef.getStartRecordNumber());
+            stream.write(aef.getEndRecordNumber());
+            stream.write(aef.getNumRecordsInvolvedInOfflineDataAuthentication());
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] getLogFormatBytes(LogFormat logFormat) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (TagAndLength tagAndLength : logFormat.getTagAndLengthList()) {
+            byte[] bytes = tagAndLength.getBytes();
+            stream.write(bytes, 0, bytes.length);
+        }
+        return stream.toByteArray();
+    }
+
+    public SmartCard.Type getType() {
+        return type;
+    }
+
+    public synchronized int getNumApplications() {
+        checkNotReleased();
+        return applications.length;
+    }
+
+    public synchronized AID getAID(int application) {
+        checkNotReleased();
+        return new AID(store.get(applications[application][AID]));
+    }
+
+    public synchronized String getLabel(int application) {
+        checkNotReleased();
+        return getString(applications[application][LABEL]);
+    }
+
+    public synchronized List<AID> getOtherAIDs() {
+        checkNotReleased();
+        List<AID> aids = new ArrayList<AID>();
+        for (int handle : otherAIDs) {
+            aids.add(new AID(store.get(handle)));
+        }
+        return aids;
+    }
+
+    /**
+     * Rebuilds the card. The data objects of the application records are decoded
+     * again (when they are used, see EMVApplication)
+     */
+    public synchronized SmartCard toSmartCard() {
+        checkNotReleased();
+        SmartCard card = new SmartCard(new ATR(store.get(atrs[0])));
+        for (int i = 1; i < atrs.length; i++) {
+            card.addATR(new ATR(store.get(atrs[i])));
+        }
+        card.setType(type);
+        for (int[] data : applications) {
+            card.addEMVApplication(toApplication(data));
+        }
+        return card;
+    }
+
+    private EMVApplication toApplication(int[] data) {
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID(store.get(data[AID])));
+        if (data[LABEL] != NONE) {
+            app.setLabel(getString(data[LABEL]));
+        }
+        if (data[PREFERRED_NAME] != NONE) {
+            app.setPreferredName(getString(data[PREFERRED_NAME]));
+        }
+        if (data[AIP] != NONE) {
+            byte[] aip = store.get(data[AIP]);
+            app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile(aip[0], aip[1]));
+        }
+        ApplicationFileLocator afl = new ApplicationFileLocator(store.get(data[AFL]));
+        app.setApplicationFileLocator(afl);
+        if (data[PDOL] != NONE) {
+            app.setPDOL(new DOL(DOL.Type.PDOL, store.get(data[PDOL])));
+        }
+        app.setATC(data[ATC]);
+        app.setLastOnlineATC(data[LAST_ONLINE_ATC]);
+        app.setPINTryCounter(data[PIN_TRY_COUNTER]);
+        int pos = NUM_RECORDS + 1;
+        for (int i = 0; i < data[NUM_RECORDS]; i++) {
+            int info = data[pos++];
+            byte[] recordData = store.get(data[pos++]);
+            int sfi = info >>> 16;
+            int recordNumber = (info >>> 1) & 0x7FFF;
+            EMVUtil.parseAppRecord(recordData, app);
+            for (ApplicationElementaryFile aef : afl.getApplicationElementaryFiles()) {
+                if (aef.getSFI().getValue() == sfi && recordNumber >= aef.getStartRecordNumber() && recordNumber <= aef.getEndRecordNumber()) {
+                    aef.setRecord(recordNumber, new Record(recordData, recordNumber, (info & 1) != 0));
+                    break;
+                }
+            }
+        }
+        if (data[LOG_FORMAT] != NONE) {
+            app.setLogFormat(new LogFormat(store.get(data[LOG_FORMAT])));
+            int numLogRecords = data[pos++];
+            for (int i = 0; i < numLogRecords; i++) {
+                app.addTransactionLogRecord(store.get(data[pos++]));
+            }
+        }
+        return app;
+    }
+
+    private String getString(int handle) {
+        return handle == NONE ? null : new String(store.get(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Releases the content of this snapshot in the store. The snapshot can not be used afterwards
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (int handle : atrs) {
+            store.release(handle);
+        }
+        for (int handle : otherAIDs) {
+            store.release(handle);
+        }
+        for (int[] data : applications) {
+            for (int field : new int[]{AID, LABEL, PREFERRED_NAME, AIP, AFL, PDOL, LOG_FORMAT}) {
+                if (data[field] != NONE) {
+                    store.release(data[field]);
+                }
+            }
+            int pos = NUM_RECORDS + 1;
+            for (int i = 0; i < data[NUM_RECORDS]; i++) {
+                pos++;
+                store.release(data[pos++]);
+            }
+            int numLogRecords = data[pos++];
+            for (int i = 0; i < numLogRecords; i++) {
+                store.release(data[pos++]);
+            }
+        }
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("Snapshot has been released");
+        }
+    }
+}
@@ -20,7 +20,9 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import sasc.iso7816.AID;
+import sasc.util.Hex;
 import sasc.util.Util;
 
 /**
@@ -37,27 +39,37 @@ import sasc.util.Util;
 public class Registry {
     private static final Registry INSTANCE = new Registry();
     
-    private Map<String, AtrHandler> atrHandlers = Collections.synchronizedMap(new LinkedHashMap<String, AtrHandler>());
-    private Map<String, ApplicationHandler> aidHandlers = Collections.synchronizedMap(new LinkedHashMap<String, ApplicationHandler>());
+    //Handlers are looked up for every card and AID (and re-registered for every card).
+    //Registration clears the published list, and the next lookup publishes an immutable
+    //copy of the handlers, so lookups neither lock nor copy once the handlers are in place.
+    //Each pattern is compiled only once
+    private final Map<String, Handler<AtrHandler>> atrHandlers = new LinkedHashMap<String, Handler<AtrHandler>>();
+    private final Map<String, Handler<ApplicationHandler>> aidHandlers = new LinkedHashMap<String, Handler<ApplicationHandler>>();
+    private volatile List<Handler<AtrHandler>> atrHandlerList = null;
+    private volatile List<Handler<ApplicationHandler>> aidHandlerList = null;
 //    private Map<AID, ApplicationHandler> aidHandlers = Collections.synchronizedMap(new LinkedHashMap<AID, ApplicationHandler>());
     
     public static Registry getInstance() {
         return INSTANCE;
     }
     
-    public void registerAtrHandler(AtrHandler atrHandler, String atrPattern) {
-        atrHandlers.put(atrPattern, atrHandler);
+    public synchronized void registerAtrHandler(AtrHandler atrHandler, String atrPattern) {
+        atrHandlers.put(atrPattern, new Handler<AtrHandler>(atrPattern, atrHandler));
+        atrHandlerList = null;
     }
     
-    public void registerAtrHandler(AtrHandler atrHandler, List<String> atrPatterns) {
+    public synchronized void registerAtrHandler(AtrHandler atrHandler, List<String> atrPatterns) {
         for(String pattern : atrPatterns) {
-            atrHandlers.put(pattern, atrHandler);
+            atrHandlers.put(pattern, new Handler<AtrHandler>(pattern, atrHandler));
         }
+        atrHandlerList = null;
     }
     
-    public void registerAidHandler(ApplicationHandler aidHandler, String aidPattern) {
+    public synchronized void registerAidHandler(ApplicationHandler aidHandler, String aidPattern) {
         byte[] aidPatternBytes = Util.fromHexString(aidPattern); //Sanitize
-        aidHandlers.put(Util.prettyPrintHexNoWrap(aidPatternBytes).toUpperCase(), aidHandler);
+        String pattern = Hex.Format.SPACED_UPPER_CASE.format(aidPatternBytes);
+        aidHandlers.put(pattern, new Handler<ApplicationHandler>(pattern, aidHandler));
+        aidHandlerList = null;
     }
     
     public void registerAidHandler(ApplicationHandler aidHandler, AID aid) {
@@ -69,30 +81,66 @@ public class Registry {
     }
 
     public List<ApplicationHandler> getHandlersForAid(byte[] aid) {
-        List<ApplicationHandler> handlers = new ArrayList<ApplicationHandler>();
-        String aidStr = Util.prettyPrintHexNoWrap(aid).toUpperCase();
-        for(String aidPatternStr : aidHandlers.keySet()) {
-            if(aidStr.matches("^"+aidPatternStr+"$")){
-                ApplicationHandler handler = aidHandlers.get(aidPatternStr);
-                if(handler != null){
-                    handlers.add(handler);
-                }
-            }
+        List<Handler<ApplicationHandler>> handlerList = aidHandlerList;
+        if(handlerList == null) {
+            handlerList = publishAidHandlers();
         }
-        return handlers;
+        return getHandlers(handlerList, Hex.Format.SPACED_UPPER_CASE.format(aid));
     }
     
     public List<AtrHandler> getHandlersForAtr(byte[] atr) {
-        List<AtrHandler> handlers = new ArrayList<AtrHandler>();
-        String atrStr = Util.prettyPrintHexNoWrap(atr).toUpperCase();
-        for(String atrPatternStr : atrHandlers.keySet()){
-            if(atrStr.matches("^"+atrPatternStr+"$")){
-                AtrHandler handler = atrHandlers.get(atrPatternStr);
-                if(handler != null){
-                    handlers.add(handler);
-                }
+        List<Handler<AtrHandler>> handlerList = atrHandlerList;
+        if(handlerList == null) {
+            handlerList = publishAtrHandlers();
+        }
+        return getHandlers(handlerList, Hex.Format.SPACED_UPPER_CASE.format(atr));
+    }
+
+    private synchronized List<Handler<ApplicationHandler>> publishAidHandlers() {
+        if(aidHandlerList == null) {
+            aidHandlerList = Collections.unmodifiableList(new ArrayList<Handler<ApplicationHandler>>(aidHandlers.values()));
+        }
+        return aidHandlerList;
+    }
+
+    private synchronized List<Handler<AtrHandler>> publishAtrHandlers() {
+        if(atrHandlerList == null) {
+            atrHandlerList = Collections.unmodifiableList(new ArrayList<Handler<AtrHandler>>(atrHandlers.values()));
+        }
+        return atrHandlerList;
+    }
+
+    private static <T> List<T> getHandlers(List<Handler<T>> handlerList, String str) {
+        List<T> handlers = new ArrayList<T>();
+        for(Handler<T> handler : handlerList) {
+            if(handler.matches(str)){
+                handlers.add(handler.handler);
             }
         }
         return handlers;
     }
+
+    private static class Handler<T> {
+        private static final Pattern LITERAL = Pattern.compile("[0-9A-Fa-f ]*");
+
+        private final String literal;
+        private final Pattern pattern;
+        private final T handler;
+
+        Handler(String pattern, T handler) {
+            //AID patterns (and most ATR patterns) contain no regular expression
+            if(LITERAL.matcher(pattern).matches()) {
+                this.literal = pattern;
+                this.pattern = null;
+            } else {
+                this.literal = null;
+                this.pattern = Pattern.compile("^"+pattern+"$");
+            }
+            this.handler = handler;
+        }
+
+        boolean matches(String str) {
+            return literal != null ? literal.equals(str) : pattern.matcher(str).matches();
+        }
+    }
 }
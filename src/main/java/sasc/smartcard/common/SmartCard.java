@@ -109,6 +109,10 @@ public class SmartCard {
     public Set<ATR> getATRs(){
         return Collections.unmodifiableSet(atrSet);
     }
+
+    void addATR(ATR atr){
+        atrSet.add(atr);
+    }
     
     public void setMasterFile(MasterFile mf) {
         this.mf = mf;
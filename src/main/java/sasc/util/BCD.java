@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+
+/**
+ * Decoder/encoder for the EMV numeric data element formats (EMV Book 3, section 4.3),
+ * working directly on the bytes, without creating intermediate Strings.
+ *
+ * n  - Numeric: two decimal digits per byte, right justified and padded with leading zeros
+ * cn - Compressed Numeric: two decimal digits per byte, left justified and padded with trailing 'F's
+ * Dates are encoded as n 6 (YYMMDD) or n 4 (YYMM), with YY in the range 00-99 for the years 2000-2099.
+ * Months and days out of range are rolled over when decoding, as some cards have such dates
+ * (eg day 00 is the last day of the previous month, and month 00 is December of the previous year),
+ * so a decoded date may be outside that range: 00 00 00 is 1999-11-30.
+ *
+ * All methods are static and thread safe.
+ *
+ * @author sasc
+ */
+public final class BCD {
+
+    private static final int PAD_NIBBLE = 0x0F;
+    //Max significant digits that always fit in a long
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private BCD() {
+        throw new UnsupportedOperationException("Not allowed to instantiate");
+    }
+
+    /**
+     * Decodes one byte (two digits), eg 0x70 = 70
+     */
+    public static int decode(byte b) {
+        return digit(b >>> 4) * 10 + digit(b);
+    }
+
+    /**
+     * Decodes format n, eg 0x09 0x78 = 978
+     * The value should not be larger than Integer.MAX_VALUE
+     */
+    public static int decodeInt(byte[] data, int offset, int length) {
+        return toInt(decodeLong(data, offset, length));
+    }
+
+    /**
+     * Decodes format n, eg an Amount, Authorised (n 12)
+     */
+    public static long decodeLong(byte[] data, int offset, int length) {
+        checkBounds(data, offset, length);
+        return decodeNibblesLong(data, 2 * offset, 2 * length);
+    }
+
+    /**
+     * Decodes 'numDigits' digits starting at nibble 'nibbleOffset' (2 nibbles per byte,
+     * the high nibble first). Used for data that is not byte aligned, such as Track 2
+     */
+    public static int decodeNibbles(byte[] data, int nibbleOffset, int numDigits) {
+        return toInt(decodeNibblesLong(data, nibbleOffset, numDigits));
+    }
+
+    private static long decodeNibblesLong(byte[] data, int nibbleOffset, int numDigits) {
+        if (nibbleOffset < 0 || numDigits < 0 || nibbleOffset + numDigits > 2 * data.length) {
+            throw new IllegalArgumentException("Invalid nibble offset/number of digits: " + nibbleOffset + "/" + numDigits + " (length=" + data.length + ")");
+        }
+        long value = 0;
+        int significantDigits = 0;
+        for (int i = nibbleOffset; i < nibbleOffset + numDigits; i++) {
+            int d = digit(nibble(data, i));
+            if (value == 0 && d == 0) {
+                continue;
+            }
+            if (++significantDigits > MAX_LONG_DIGITS) {
+                throw new IllegalArgumentException("Value does not fit in a long");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes format cn, eg 0x45 0x67 0x8F 0xFF = 45678
+     */
+    public static long decodeCompressedNumeric(byte[] data, int offset, int length) {
+        checkBounds(data, offset, length);
+        return decodeNibblesLong(data, 2 * offset, countCompressedNumericDigits(data, offset, length));
+    }
+
+    /**
+     * @return the number of digits before the trailing 'F' padding
+     */
+    public static int countCompressedNumericDigits(byte[] data, int offset, int length) {
+        checkBounds(data, offset, length);
+        for (int i = 2 * offset; i < 2 * (offset + length); i++) {
+            if (nibble(data, i) == PAD_NIBBLE) {
+                return i - 2 * offset;
+            }
+        }
+        return 2 * length;
+    }
+
+    /**
+     * Decodes a date in format n 6 (YYMMDD), eg 0x25 0x03 0x00 = 2025-02-28
+     */
+    public static LocalDate decodeDate(byte[] data, int offset) {
+        checkBounds(data, offset, 3);
+        return yearMonth(decode(data[offset]), decode(data[offset + 1])).atDay(1).plusDays(decode(data[offset + 2]) - 1);
+    }
+
+    /**
+     * Decodes a date in format n 4 (YYMM)
+     */
+    public static YearMonth decodeYearMonth(byte[] data, int offset) {
+        checkBounds(data, offset, 2);
+        return yearMonth(decode(data[offset]), decode(data[offset + 1]));
+    }
+
+    /**
+     * Decodes a date in format n 4 (YYMM) starting at nibble 'nibbleOffset'
+     */
+    public static YearMonth decodeYearMonthNibbles(byte[] data, int nibbleOffset) {
+        return yearMonth(decodeNibbles(data, nibbleOffset, 2), decodeNibbles(data, nibbleOffset + 2, 2));
+    }
+
+    private static YearMonth yearMonth(int yy, int mm) {
+        return YearMonth.of(2000 + yy, 1).plusMonths(mm - 1);
+    }
+
+    /**
+     * Encodes the date in format n 6 (YYMMDD)
+     */
+    public static byte[] encodeDate(LocalDate date) {
+        byte[] data = new byte[3];
+        encodeDate(date, data, 0);
+        return data;
+    }
+
+    public static void encodeDate(LocalDate date, byte[] dest, int offset) {
+        checkBounds(dest, offset, 3);
+        dest[offset] = encode(date.getYear() % 100);
+        dest[offset + 1] = encode(date.getMonthValue());
+        dest[offset + 2] = encode(date.getDayOfMonth());
+    }
+
+    /**
+     * Encodes 0-99 into one byte, eg 70 = 0x70
+     */
+    public static byte encode(int value) {
+        if (value < 0 || value > 99) {
+            throw new IllegalArgumentException("Value must be between 0 and 99: " + value);
+        }
+        return (byte) (((value / 10) << 4) | (value % 10));
+    }
+
+    private static int toInt(long value) {
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Value does not fit in an int: " + value);
+        }
+        return (int) value;
+    }
+
+    private static int nibble(byte[] data, int nibbleIndex) {
+        int b = data[nibbleIndex >> 1];
+        return (nibbleIndex & 1) == 0 ? (b >>> 4) & 0x0F : b & 0x0F;
+    }
+
+    private static int digit(int nibble) {
+        int d = nibble & 0x0F;
+        if (d > 9) {
+            throw new IllegalArgumentException("Not a decimal digit: " + Integer.toHexString(d));
+        }
+        return d;
+    }
+
+    private static void checkBounds(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid offset/length: " + offset + "/" + length + " (length=" + data.length + ")");
+        }
+    }
+}
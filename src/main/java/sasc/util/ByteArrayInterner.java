@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Returns a canonical instance for each distinct byte array content.
+ *
+ * Cards of the same product share most of their data: the Issuer Public Key Certificate
+ * and the records holding it, the CDOLs, the ATR, the AIDs. When many cards are kept in
+ * memory, the objects holding this data use the canonical instances, so each distinct
+ * content is kept only once.
+ *
+ * The canonical instances are weakly referenced: an instance is removed when
+ * no object uses it any longer. The canonical instances are shared, and
+ * must NEVER be modified (the holders copy them before handing them out).
+ *
+ * The table is split into segments, each with its own lock, so that the
+ * threads reading cards in parallel seldom wait for each other.
+ *
+ * @author sasc
+ */
+public final class ByteArrayInterner {
+
+    //Must be a power of 2. The segment is selected by the high bits of the hash
+    private static final int NUM_SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(NUM_SEGMENTS);
+
+    private static final ByteArrayInterner SHARED = new ByteArrayInterner();
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    private static final class Entry extends WeakReference<byte[]> {
+
+        private final int hash;
+        private Entry next;
+
+        private Entry(byte[] data, int hash, Entry next, ReferenceQueue<byte[]> queue) {
+            super(data, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    public ByteArrayInterner() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * The instance used by the card objects
+     */
+    public static ByteArrayInterner getShared() {
+        return SHARED;
+    }
+
+    public static byte[] intern(byte[] data) {
+        return data == null ? null : SHARED.get(data, 0, data.length);
+    }
+
+    public static byte[] intern(byte[] data, int offset, int length) {
+        return SHARED.get(data, offset, length);
+    }
+
+    /**
+     * Like intern(data), but 'data' itself becomes the canonical instance if there is none yet.
+     * For arrays that have just been allocated (eg a response from the card): the caller
+     * must not keep or modify 'data'
+     */
+    public static byte[] internNoCopy(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        int hash = hash(data, 0, data.length);
+        return SHARED.segmentFor(hash).get(data, 0, data.length, hash, false);
+    }
+
+    /**
+     * @return the canonical instance with the same content as the range.
+     *         The range is copied if there is no canonical instance yet
+     */
+    public byte[] get(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid range: offset=" + offset + " length=" + length + " data.length=" + data.length);
+        }
+        int hash = hash(data, offset, length);
+        return segmentFor(hash).get(data, offset, length, hash, true);
+    }
+
+    /**
+     * @return the number of canonical instances (some may not have been removed yet)
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of calls that returned an existing canonical instance
+     */
+    public long getNumShared() {
+        long numShared = 0;
+        for (Segment segment : segments) {
+            numShared += segment.getNumShared();
+        }
+        return numShared;
+    }
+
+    public long getNumInterned() {
+        long numInterned = 0;
+        for (Segment segment : segments) {
+            numInterned += segment.getNumInterned();
+        }
+        return numInterned;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        //Spread the higher bits, as the table index uses the lower bits
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A hash table of canonical instances, guarded by its own lock
+     */
+    private static final class Segment {
+
+        private final ReferenceQueue<byte[]> queue = new ReferenceQueue<byte[]>();
+        private Entry[] table = new Entry[16];
+        private int size = 0;
+        private long numInterned = 0;
+        private long numShared = 0;
+
+        synchronized byte[] get(byte[] data, int offset, int length, int hash, boolean copy) {
+            expungeStaleEntries();
+            numInterned++;
+            int index = hash & (table.length - 1);
+            for (Entry entry = table[index]; entry != null; entry = entry.next) {
+                if (entry.hash == hash) {
+                    byte[] canonical = entry.get();
+                    if (canonical != null && Arrays.equals(canonical, 0, canonical.length, data, offset, offset + length)) {
+                        numShared++;
+                        return canonical;
+                    }
+                }
+            }
+            byte[] canonical = copy ? Arrays.copyOfRange(data, offset, offset + length) : data;
+            table[index] = new Entry(canonical, hash, table[index], queue);
+            if (++size > table.length * 3 / 4) {
+                resize();
+            }
+            return canonical;
+        }
+
+        synchronized int size() {
+            expungeStaleEntries();
+            return size;
+        }
+
+        synchronized long getNumShared() {
+            return numShared;
+        }
+
+        synchronized long getNumInterned() {
+            return numInterned;
+        }
+
+        private void resize() {
+            Entry[] newTable = new Entry[table.length * 2];
+            for (Entry head : table) {
+                Entry entry = head;
+                while (entry != null) {
+                    Entry next = entry.next;
+                    int index = entry.hash & (newTable.length - 1);
+                    entry.next = newTable[index];
+                    newTable[index] = entry;
+                    entry = next;
+                }
+            }
+            table = newTable;
+        }
+
+        private void expungeStaleEntries() {
+            Object stale;
+            while ((stale = queue.poll()) != null) {
+                Entry staleEntry = (Entry) stale;
+                int index = staleEntry.hash & (table.length - 1);
+                Entry previous = null;
+                for (Entry entry = table[index]; entry != null; entry = entry.next) {
+                    if (entry == staleEntry) {
+                        if (previous == null) {
+                            table[index] = entry.next;
+                        } else {
+                            previous.next = entry.next;
+                        }
+                        size--;
+                        break;
+                    }
+                    previous = entry;
+                }
+            }
+        }
+    }
+}
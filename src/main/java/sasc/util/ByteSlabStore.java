@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Content addressed storage of byte strings, packed into large byte arrays (slabs).
+ *
+ * Each distinct content is stored once, and is identified by an int handle.
+ * Storing a content that is already stored returns the existing handle,
+ * and increments its reference count. The space of a content is reclaimed when
+ * its reference count drops to 0, by compacting the slabs once more than half of
+ * the stored bytes are unused. Handles do not change when the slabs are compacted.
+ *
+ * Compared to one byte array per value, there is no per value object header
+ * or padding, and no references to be traced by the garbage collector.
+ *
+ * This class is thread safe.
+ *
+ * @author sasc
+ */
+public final class ByteSlabStore {
+
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+
+    private final int slabSize;
+    private final List<byte[]> slabs = new ArrayList<byte[]>();
+    //The slab being filled
+    private byte[] currentSlab = null;
+    private int currentSlabIndex = -1;
+    private int slabPosition = 0;
+
+    //Entries, indexed by handle
+    private int[] slabIndexes = new int[256];
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    private int[] hashes = new int[256];
+    private int[] refCounts = new int[256];
+    private int[] next = new int[256]; //Hash chain, or free list for unused handles
+    private int numHandles = 0;
+    private int freeHandle = -1;
+
+    //Hash table: the first handle in each chain, or -1
+    private int[] buckets = newBuckets(512);
+
+    private int numEntries = 0;
+    private long storedBytes = 0;
+    private long unusedBytes = 0;
+
+    public ByteSlabStore() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public ByteSlabStore(int slabSize) {
+        if (slabSize < 256) {
+            throw new IllegalArgumentException("Slab size must be >= 256: " + slabSize);
+        }
+        this.slabSize = slabSize;
+    }
+
+    public int put(byte[] data) {
+        return put(data, 0, data.length);
+    }
+
+    /**
+     * Stores the content, or increments the reference count if it is already stored
+     *
+     * @return the handle of the content
+     */
+    public synchronized int put(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Invalid range: offset=" + offset + " length=" + length + " data.length=" + data.length);
+        }
+        int hash = hash(data, offset, length);
+        for (int handle = buckets[hash & (buckets.length - 1)]; handle != -1; handle = next[handle]) {
+            if (hashes[handle] == hash && lengths[handle] == length) {
+                byte[] slab = slabs.get(slabIndexes[handle]);
+                if (Arrays.equals(slab, offsets[handle], offsets[handle] + length, data, offset, offset + length)) {
+                    refCounts[handle]++;
+                    return handle;
+                }
+            }
+        }
+        int handle = allocateHandle();
+        store(handle, data, offset, length);
+        hashes[handle] = hash;
+        lengths[handle] = length;
+        refCounts[handle] = 1;
+        int bucket = hash & (buckets.length - 1);
+        next[handle] = buckets[bucket];
+        buckets[bucket] = handle;
+        numEntries++;
+        storedBytes += length;
+        if (numEntries > buckets.length * 3 / 4) {
+            rehash(buckets.length * 2);
+        }
+        return handle;
+    }
+
+    /**
+     * Increments the reference count
+     */
+    public synchronized void retain(int handle) {
+        checkHandle(handle);
+        refCounts[handle]++;
+    }
+
+    /**
+     * Decrements the reference count. The handle must not be used after its last reference has been released
+     */
+    public synchronized void release(int handle) {
+        checkHandle(handle);
+        if (--refCounts[handle] > 0) {
+            return;
+        }
+        int bucket = hashes[handle] & (buckets.length - 1);
+        if (buckets[bucket] == handle) {
+            buckets[bucket] = next[handle];
+        } else {
+            int previous = buckets[bucket];
+            while (next[previous] != handle) {
+                previous = next[previous];
+            }
+            next[previous] = next[handle];
+        }
+        numEntries--;
+        storedBytes -= lengths[handle];
+        unusedBytes += lengths[handle];
+        lengths[handle] = -1;
+        next[handle] = freeHandle;
+        freeHandle = handle;
+        if (unusedBytes > slabSize && unusedBytes > storedBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * @return a copy of the content
+     */
+    public synchronized byte[] get(int handle) {
+        checkHandle(handle);
+        byte[] slab = slabs.get(slabIndexes[handle]);
+        return Arrays.copyOfRange(slab, offsets[handle], offsets[handle] + lengths[handle]);
+    }
+
+    public synchronized int getLength(int handle) {
+        checkHandle(handle);
+        return lengths[handle];
+    }
+
+    public synchronized int getRefCount(int handle) {
+        checkHandle(handle);
+        return refCounts[handle];
+    }
+
+    /**
+     * @return the number of distinct contents stored
+     */
+    public synchronized int size() {
+        return numEntries;
+    }
+
+    /**
+     * @return the number of bytes of the distinct contents stored
+     */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * @return the number of bytes allocated for the slabs and the entry tables
+     */
+    public synchronized long getAllocatedBytes() {
+        long allocated = 0;
+        for (byte[] slab : slabs) {
+            allocated += slab.length;
+        }
+        return allocated + 4L * (6 * slabIndexes.length + buckets.length);
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= numHandles || lengths[handle] < 0) {
+            throw new IllegalArgumentException("Invalid handle: " + handle);
+        }
+    }
+
+    private int allocateHandle() {
+        if (freeHandle != -1) {
+            int handle = freeHandle;
+            freeHandle = next[handle];
+            return handle;
+        }
+        if (numHandles == slabIndexes.length) {
+            int capacity = numHandles * 2;
+            slabIndexes = Arrays.copyOf(slabIndexes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            refCounts = Arrays.copyOf(refCounts, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+        return numHandles++;
+    }
+
+    private void store(int handle, byte[] data, int offset, int length) {
+        if (length > slabSize / 4) {
+            //Large contents get a slab of their own
+            slabs.add(Arrays.copyOfRange(data, offset, offset + length));
+            slabIndexes[handle] = slabs.size() - 1;
+            offsets[handle] = 0;
+            return;
+        }
+        if (currentSlab == null || slabPosition + length > slabSize) {
+            currentSlab = new byte[slabSize];
+            slabs.add(currentSlab);
+            currentSlabIndex = slabs.size() - 1;
+            slabPosition = 0;
+        }
+        System.arraycopy(data, offset, currentSlab, slabPosition, length);
+        slabIndexes[handle] = currentSlabIndex;
+        offsets[handle] = slabPosition;
+        slabPosition += length;
+    }
+
+    /**
+     * Copies the contents still referenced to new slabs
+     */
+    private void compact() {
+        List<byte[]> oldSlabs = new ArrayList<byte[]>(slabs);
+        slabs.clear();
+        currentSlab = null;
+        for (int handle = 0; handle < numHandles; handle++) {
+            if (lengths[handle] >= 0) {
+                store(handle, oldSlabs.get(slabIndexes[handle]), offsets[handle], lengths[handle]);
+            }
+        }
+        unusedBytes = 0;
+    }
+
+    private void rehash(int numBuckets) {
+        buckets = newBuckets(numBuckets);
+        for (int handle = 0; handle < numHandles; handle++) {
+            if (lengths[handle] >= 0) {
+                int bucket = hashes[handle] & (numBuckets - 1);
+                next[handle] = buckets[bucket];
+                buckets[bucket] = handle;
+            }
+        }
+    }
+
+    private static int[] newBuckets(int numBuckets) {
+        int[] buckets = new int[numBuckets];
+        Arrays.fill(buckets, -1);
+        return buckets;
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -25,30 +25,34 @@ import java.util.Arrays;
  */
 public class GenerateIssuerAndICCCertsMain {
 
+    /**
+     * The TEST CA (RID A1 23 45 67 89, index 7) in certificationauthorities_mock.xml
+     */
+    public static final String TEST_CA_RID = "a1 23 45 67 89";
+    public static final int TEST_CA_PUBLIC_KEY_INDEX = 7;
+    public static final String TEST_CA_MODULUS = "a7 aa 21 90 d8 fd 7c 23 f8 9c 76 d1 35 38 ed a4"
+            + "f5 08 ed 4a c5 1a 23 46 22 44 42 5d 08 de 5d 2e"
+            + "3c e4 9f 5f 45 36 79 6b 19 66 7e 00 80 a6 ae e6"
+            + "72 1f 6f 38 fb a9 a5 38 84 c4 86 74 cb 11 c0 c9"
+            + "3e 3a 88 11 38 22 72 a4 4a 09 b8 86 7b 9d ad 4c"
+            + "f5 cc 7e 39 d5 d8 cf 51 85 58 2d 65 be bc c3 e5"
+            + "54 fc de bb d5 51 05 b1 ba ff 05 fd 5a 9a 88 3a"
+            + "0e 67 d8 ee 15 cc 92 2a 8d e0 b6 13 e2 44 56 8a"
+            + "fe 1f 4f fd 31 15 16 dd 87 e3 4e b5 53 4d 7c 3d";
+    public static final String TEST_CA_PRIVATE_EXPONENT = "6f c6 c1 0b 3b 53 a8 17 fb 12 f9 e0 ce 25 f3 c3"
+            + "4e 05 f3 87 2e 11 6c d9 6c 2d 81 93 5b 3e e8 c9"
+            + "7d ed bf 94 d8 ce fb 9c bb 99 a9 55 ab 19 c9 ee"
+            + "f6 bf 9f 7b 52 71 18 d0 58 83 04 4d dc b6 80 86"
+            + "29 7c 5a b6 25 6c 4c 6c 70 e2 72 de b3 36 b5 e4"
+            + "f9 61 7f e7 17 5c b7 06 8c 70 a3 b4 95 61 b6 ed"
+            + "83 c4 48 d5 40 bd cc 12 7b 53 b7 82 44 19 fa 29"
+            + "6c ba d3 98 c8 d2 1d 49 ef 3a 68 32 ef 36 57 d2"
+            + "8a 24 88 39 6a 66 a2 31 c0 b0 ec 87 e0 d4 57 d3";
+
     public static void main(String[] args) {
 
-        //TEST CA
-        String caModStr = "a7 aa 21 90 d8 fd 7c 23 f8 9c 76 d1 35 38 ed a4"
-                + "f5 08 ed 4a c5 1a 23 46 22 44 42 5d 08 de 5d 2e"
-                + "3c e4 9f 5f 45 36 79 6b 19 66 7e 00 80 a6 ae e6"
-                + "72 1f 6f 38 fb a9 a5 38 84 c4 86 74 cb 11 c0 c9"
-                + "3e 3a 88 11 38 22 72 a4 4a 09 b8 86 7b 9d ad 4c"
-                + "f5 cc 7e 39 d5 d8 cf 51 85 58 2d 65 be bc c3 e5"
-                + "54 fc de bb d5 51 05 b1 ba ff 05 fd 5a 9a 88 3a"
-                + "0e 67 d8 ee 15 cc 92 2a 8d e0 b6 13 e2 44 56 8a"
-                + "fe 1f 4f fd 31 15 16 dd 87 e3 4e b5 53 4d 7c 3d";
-        String caPrivExpStr = "6f c6 c1 0b 3b 53 a8 17 fb 12 f9 e0 ce 25 f3 c3"
-                + "4e 05 f3 87 2e 11 6c d9 6c 2d 81 93 5b 3e e8 c9"
-                + "7d ed bf 94 d8 ce fb 9c bb 99 a9 55 ab 19 c9 ee"
-                + "f6 bf 9f 7b 52 71 18 d0 58 83 04 4d dc b6 80 86"
-                + "29 7c 5a b6 25 6c 4c 6c 70 e2 72 de b3 36 b5 e4"
-                + "f9 61 7f e7 17 5c b7 06 8c 70 a3 b4 95 61 b6 ed"
-                + "83 c4 48 d5 40 bd cc 12 7b 53 b7 82 44 19 fa 29"
-                + "6c ba d3 98 c8 d2 1d 49 ef 3a 68 32 ef 36 57 d2"
-                + "8a 24 88 39 6a 66 a2 31 c0 b0 ec 87 e0 d4 57 d3";
-
-        byte[] caModBytes = Util.fromHexString(Util.removeCRLFTab(caModStr));
-        byte[] caPrivExpBytes = Util.fromHexString(Util.removeCRLFTab(caPrivExpStr));
+        byte[] caModBytes = Util.fromHexString(Util.removeCRLFTab(TEST_CA_MODULUS));
+        byte[] caPrivExpBytes = Util.fromHexString(Util.removeCRLFTab(TEST_CA_PRIVATE_EXPONENT));
 
 
         byte header = (byte) 0x6a;
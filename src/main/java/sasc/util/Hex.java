@@ -0,0 +1,306 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven hex encoder/decoder.
+ *
+ * Encodes directly into an Appendable (StringBuilder, PrintWriter etc) and
+ * decodes directly from a CharSequence, without creating intermediate Strings.
+ *
+ * The pretty printing layouts used throughout the code (bytes separated by spaces,
+ * optionally wrapped at 16 bytes per line) are provided by Hex.Format.
+ *
+ * @author sasc
+ */
+public final class Hex {
+
+    private static final char[] LOWER_CASE_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] UPPER_CASE_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    //Nibble value for each ASCII char, or -1
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        Arrays.fill(NIBBLES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            NIBBLES[LOWER_CASE_DIGITS[i]] = (byte) i;
+            NIBBLES[UPPER_CASE_DIGITS[i]] = (byte) i;
+        }
+    }
+
+    private Hex() {
+        throw new UnsupportedOperationException("Not allowed to instantiate");
+    }
+
+    /**
+     * Layout of the hex encoded bytes. Instances are immutable
+     */
+    public static final class Format {
+
+        /**
+         * "0a1b2c"
+         */
+        public static final Format PLAIN = new Format(false, false, 0, 0);
+        /**
+         * "0A1B2C"
+         */
+        public static final Format PLAIN_UPPER_CASE = new Format(true, false, 0, 0);
+        /**
+         * "0a 1b 2c"
+         */
+        public static final Format SPACED = new Format(false, true, 0, 0);
+        /**
+         * "0A 1B 2C"
+         */
+        public static final Format SPACED_UPPER_CASE = new Format(true, true, 0, 0);
+
+        private static final int WRAPPED_BYTES_PER_LINE = 16;
+
+        private final char[] digits;
+        private final boolean spaced;
+        private final int bytesPerLine;
+        private final int indent;
+
+        private Format(boolean upperCase, boolean spaced, int bytesPerLine, int indent) {
+            this.digits = upperCase ? UPPER_CASE_DIGITS : LOWER_CASE_DIGITS;
+            this.spaced = spaced;
+            this.bytesPerLine = bytesPerLine;
+            this.indent = indent;
+        }
+
+        /**
+         * Bytes separated by spaces, 16 bytes per line.
+         * Continuation lines are indented by 'indent' spaces
+         */
+        public static Format wrapped(int indent) {
+            if (indent < 0) {
+                throw new IllegalArgumentException("Negative indent: " + indent);
+            }
+            return new Format(false, true, WRAPPED_BYTES_PER_LINE, indent);
+        }
+
+        /**
+         * @return the number of chars needed to format 'length' bytes
+         */
+        public int getFormattedLength(int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int numChars = 2 * length;
+            if (spaced) {
+                numChars += length - 1;
+            }
+            if (bytesPerLine > 0) {
+                //Each line break replaces a space
+                numChars += ((length - 1) / bytesPerLine) * indent;
+            }
+            return numChars;
+        }
+
+        public String format(byte[] data) {
+            return format(data, 0, data.length);
+        }
+
+        public String format(byte[] data, int offset, int length) {
+            checkBounds(data, offset, length);
+            char[] chars = new char[getFormattedLength(length)];
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    if (bytesPerLine > 0 && i % bytesPerLine == 0) {
+                        chars[pos++] = '\n';
+                        for (int j = 0; j < indent; j++) {
+                            chars[pos++] = ' ';
+                        }
+                    } else if (spaced) {
+                        chars[pos++] = ' ';
+                    }
+                }
+                int b = data[offset + i];
+                chars[pos++] = digits[(b >>> 4) & 0x0F];
+                chars[pos++] = digits[b & 0x0F];
+            }
+            return new String(chars);
+        }
+
+        public StringBuilder appendTo(StringBuilder sb, byte[] data) {
+            return appendTo(sb, data, 0, data.length);
+        }
+
+        public StringBuilder appendTo(StringBuilder sb, byte[] data, int offset, int length) {
+            checkBounds(data, offset, length);
+            sb.ensureCapacity(sb.length() + getFormattedLength(length));
+            try {
+                appendInternal(sb, data, offset, length);
+            } catch (IOException ex) {
+                //StringBuilder does not throw IOException
+                throw new IllegalStateException(ex);
+            }
+            return sb;
+        }
+
+        public <A extends Appendable> A appendTo(A out, byte[] data, int offset, int length) throws IOException {
+            checkBounds(data, offset, length);
+            appendInternal(out, data, offset, length);
+            return out;
+        }
+
+        /**
+         * Appends the remaining bytes of the buffer. The position of the buffer is not changed
+         */
+        public <A extends Appendable> A appendTo(A out, ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            int length = buffer.remaining();
+            for (int i = 0; i < length; i++) {
+                appendSeparator(out, i);
+                int b = buffer.get(start + i);
+                out.append(digits[(b >>> 4) & 0x0F]).append(digits[b & 0x0F]);
+            }
+            return out;
+        }
+
+        private void appendInternal(Appendable out, byte[] data, int offset, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                appendSeparator(out, i);
+                int b = data[offset + i];
+                out.append(digits[(b >>> 4) & 0x0F]).append(digits[b & 0x0F]);
+            }
+        }
+
+        private void appendSeparator(Appendable out, int i) throws IOException {
+            if (i == 0) {
+                return;
+            }
+            if (bytesPerLine > 0 && i % bytesPerLine == 0) {
+                out.append('\n');
+                for (int j = 0; j < indent; j++) {
+                    out.append(' ');
+                }
+            } else if (spaced) {
+                out.append(' ');
+            }
+        }
+    }
+
+    /**
+     * @return lower case hex, without spaces
+     */
+    public static String encode(byte[] data) {
+        return Format.PLAIN.format(data, 0, data.length);
+    }
+
+    public static String encode(byte[] data, int offset, int length) {
+        return Format.PLAIN.format(data, offset, length);
+    }
+
+    public static String encodeUpperCase(byte[] data) {
+        return Format.PLAIN_UPPER_CASE.format(data, 0, data.length);
+    }
+
+    public static StringBuilder encode(byte[] data, int offset, int length, StringBuilder out) {
+        return Format.PLAIN.appendTo(out, data, offset, length);
+    }
+
+    public static <A extends Appendable> A encode(byte[] data, int offset, int length, A out) throws IOException {
+        return Format.PLAIN.appendTo(out, data, offset, length);
+    }
+
+    public static StringBuilder encode(int b, StringBuilder out) {
+        return out.append(LOWER_CASE_DIGITS[(b >>> 4) & 0x0F]).append(LOWER_CASE_DIGITS[b & 0x0F]);
+    }
+
+    /**
+     * Decodes hex digits (upper or lower case). Spaces are ignored
+     *
+     * @throws IllegalArgumentException if the input contains other chars, or an odd number of digits
+     */
+    public static byte[] decode(CharSequence hex) {
+        byte[] result = new byte[getDecodedLength(hex)];
+        decodeInternal(hex, result, 0);
+        return result;
+    }
+
+    /**
+     * Decodes into the buffer, starting at its current position
+     *
+     * @return the number of bytes decoded
+     */
+    public static int decode(CharSequence hex, ByteBuffer out) {
+        int numBytes = getDecodedLength(hex);
+        if (out.hasArray()) {
+            decodeInternal(hex, out.array(), out.arrayOffset() + out.position());
+            out.position(out.position() + numBytes);
+        } else {
+            byte[] tmp = new byte[numBytes];
+            decodeInternal(hex, tmp, 0);
+            out.put(tmp);
+        }
+        return numBytes;
+    }
+
+    /**
+     * @return the number of bytes encoded by the hex string (validating the chars)
+     */
+    public static int getDecodedLength(CharSequence hex) {
+        int numDigits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            if (c >= 128 || NIBBLES[c] < 0) {
+                throw new IllegalArgumentException("Invalid hex char '" + c + "' at index " + i + ": " + hex);
+            }
+            numDigits++;
+        }
+        if ((numDigits % 2) != 0) {
+            throw new IllegalArgumentException("Input string must contain an even number of characters: " + hex);
+        }
+        return numDigits / 2;
+    }
+
+    //The input has been validated by getDecodedLength()
+    private static void decodeInternal(CharSequence hex, byte[] dest, int destOffset) {
+        int pos = destOffset;
+        int high = -1;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            if (high < 0) {
+                high = NIBBLES[c];
+            } else {
+                dest[pos++] = (byte) ((high << 4) | NIBBLES[c]);
+                high = -1;
+            }
+        }
+    }
+
+    private static void checkBounds(byte[] data, int offset, int length) {
+        if (data == null) {
+            throw new IllegalArgumentException("Param 'data' cannot be null");
+        }
+        if (offset < 0 || length < 0 || data.length < offset + length) {
+            throw new IllegalArgumentException("startPos(" + offset + ")+length(" + length + ") > byteArray.length(" + data.length + ")");
+        }
+    }
+}
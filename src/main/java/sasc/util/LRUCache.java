@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread safe cache that evicts the least recently used entry
+ *
+ * @author sasc
+ */
+public final class LRUCache<K, V> {
+
+    private final int maxEntries;
+    private final LinkedHashMap<K, V> map;
+
+    public LRUCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be > 0: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) { //access order
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LRUCache.this.maxEntries;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
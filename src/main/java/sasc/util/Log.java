@@ -29,8 +29,8 @@ public class Log {
     public static final int INDENT_SIZE = 2;
     
     private static AtomicInteger stepNo = new AtomicInteger(1);
-    private static PrintWriter printWriter = null;
-    private static Level level = Level.INFO;
+    private static volatile PrintWriter printWriter = null;
+    private static volatile Level level = Level.INFO;
 
     public enum Level {
 
@@ -85,9 +85,11 @@ public class Log {
 
     private static void logInternal(String msg, Level level) {
         if (level.getValue() >= Log.level.getValue()) {
-            if (printWriter != null) {
-                printWriter.println(msg);
-                printWriter.flush();
+            PrintWriter pw = printWriter;
+            if (pw != null) {
+                //One println per message, so that messages from concurrent sessions are not interleaved
+                pw.println(msg);
+                pw.flush();
             } else {
                 System.out.println(msg);
             }
@@ -102,9 +104,10 @@ public class Log {
     }
 
     public static PrintWriter getPrintWriter() {
-        if (printWriter == null) {
+        PrintWriter pw = printWriter;
+        if (pw == null) {
             return new PrintWriter(System.out);
         }
-        return printWriter;
+        return pw;
     }
 }
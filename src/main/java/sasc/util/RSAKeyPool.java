@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of RSA key pairs, generated on background threads.
+ *
+ * Generating a key pair takes tens of milliseconds (more for the larger key sizes),
+ * which dominates the time to create test cards. The pool keeps poolSize
+ * key pairs ready for each key size that has been requested, and generates a
+ * replacement each time a key pair is taken. Each key pair is handed out once.
+ *
+ * The pooled keys can be saved to a file and loaded on the next run.
+ * The file contains the private keys in the clear: only use it for test keys.
+ *
+ * @author sasc
+ */
+public final class RSAKeyPool implements Closeable {
+
+    private final int exponent;
+    private final int poolSize;
+    private final ExecutorService executor;
+    private final Map<Integer, BlockingQueue<RSAKeyGenerator.RSAKeyPair>> pools = new ConcurrentHashMap<Integer, BlockingQueue<RSAKeyGenerator.RSAKeyPair>>();
+    private final AtomicInteger numGenerated = new AtomicInteger();
+    //Queued in place of a key pair that could not be generated, so that take() does not wait forever
+    private static final RSAKeyGenerator.RSAKeyPair GENERATION_FAILED = new RSAKeyGenerator.RSAKeyPair(null, null);
+    private final Map<Integer, Exception> failures = new ConcurrentHashMap<Integer, Exception>();
+
+    /**
+     * @param exponent the public exponent (3 or 65537 for EMV)
+     * @param poolSize the number of key pairs to keep ready for each key size
+     * @param threads the number of key generator threads
+     */
+    public RSAKeyPool(int exponent, int poolSize, int threads) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be >= 1: " + poolSize);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be >= 1: " + threads);
+        }
+        this.exponent = exponent;
+        this.poolSize = poolSize;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RSA Key Generator " + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public int getExponent() {
+        return exponent;
+    }
+
+    /**
+     * Starts filling the pool for the key size, without waiting
+     */
+    public void prepare(int numBits) {
+        getPool(numBits);
+    }
+
+    /**
+     * Takes a key pair from the pool, waiting for one to be generated if necessary
+     *
+     * @throws IllegalStateException if key pairs of this size cannot be generated
+     */
+    public RSAKeyGenerator.RSAKeyPair take(int numBits) throws InterruptedException {
+        BlockingQueue<RSAKeyGenerator.RSAKeyPair> pool = getPool(numBits);
+        RSAKeyGenerator.RSAKeyPair keyPair = pool.take();
+        if (keyPair == GENERATION_FAILED) {
+            pool.add(GENERATION_FAILED); //For the other threads waiting
+            throw new IllegalStateException("Unable to generate " + numBits + " bit RSA key pair", failures.get(numBits));
+        }
+        generate(numBits);
+        return keyPair;
+    }
+
+    /**
+     * @return the number of key pairs ready for the key size
+     */
+    public int available(int numBits) {
+        BlockingQueue<RSAKeyGenerator.RSAKeyPair> pool = pools.get(numBits);
+        return pool == null || failures.containsKey(numBits) ? 0 : pool.size();
+    }
+
+    /**
+     * @return the number of key pairs generated by this pool (not loaded)
+     */
+    public int getNumGenerated() {
+        return numGenerated.get();
+    }
+
+    private BlockingQueue<RSAKeyGenerator.RSAKeyPair> getPool(int numBits) {
+        BlockingQueue<RSAKeyGenerator.RSAKeyPair> pool = pools.get(numBits);
+        if (pool == null) {
+            BlockingQueue<RSAKeyGenerator.RSAKeyPair> newPool = new LinkedBlockingQueue<RSAKeyGenerator.RSAKeyPair>();
+            synchronized (pools) {
+                pool = pools.get(numBits);
+                if (pool == null) {
+                    pool = newPool;
+                    pools.put(numBits, pool);
+                    for (int i = 0; i < poolSize; i++) {
+                        generate(numBits);
+                    }
+                }
+            }
+        }
+        return pool;
+    }
+
+    private void generate(final int numBits) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    RSAKeyGenerator.RSAKeyPair keyPair = RSAKeyGenerator.generateRSAKeys(numBits, exponent);
+                    numGenerated.incrementAndGet();
+                    pools.get(numBits).add(keyPair);
+                } catch (GeneralSecurityException ex) {
+                    failed(numBits, ex);
+                } catch (RuntimeException ex) {
+                    failed(numBits, ex);
+                }
+            }
+        });
+    }
+
+    private void failed(int numBits, Exception ex) {
+        //Only the first failure is queued
+        if (failures.putIfAbsent(numBits, ex) == null) {
+            pools.get(numBits).add(GENERATION_FAILED);
+        }
+    }
+
+    /**
+     * Adds the key pairs found in the file to the pool.
+     * Key pairs with a different public exponent are ignored.
+     *
+     * @return the number of key pairs added
+     */
+    public int load(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            int numLoaded = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                //bits modulus publicExponent privateExponent p q dp dq qInv
+                String[] fields = line.split(" ");
+                if (fields.length != 9) {
+                    throw new IOException("Invalid key pair in " + file + ": " + fields.length + " fields");
+                }
+                BigInteger[] values = new BigInteger[8];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = new BigInteger(fields[i + 1], 16);
+                }
+                if (values[1].intValue() != exponent) {
+                    continue;
+                }
+                RSAPublicKey publicKey = (RSAPublicKey) keyFactory.generatePublic(new RSAPublicKeySpec(values[0], values[1]));
+                RSAPrivateKey privateKey = (RSAPrivateKey) keyFactory.generatePrivate(new RSAPrivateCrtKeySpec(
+                        values[0], values[1], values[2], values[3], values[4], values[5], values[6], values[7]));
+                int numBits = Integer.parseInt(fields[0]);
+                BlockingQueue<RSAKeyGenerator.RSAKeyPair> pool = pools.get(numBits);
+                if (pool == null) {
+                    synchronized (pools) {
+                        pool = pools.get(numBits);
+                        if (pool == null) {
+                            pool = new LinkedBlockingQueue<RSAKeyGenerator.RSAKeyPair>();
+                            pools.put(numBits, pool);
+                        }
+                    }
+                }
+                pool.add(new RSAKeyGenerator.RSAKeyPair(publicKey, privateKey));
+                numLoaded++;
+            }
+            return numLoaded;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Invalid key pair in " + file, ex);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid key pair in " + file, ex);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the key pairs currently in the pool to the file.
+     * The key pairs stay in the pool.
+     *
+     * @return the number of key pairs saved
+     */
+    public int save(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<Integer, BlockingQueue<RSAKeyGenerator.RSAKeyPair>> entry : pools.entrySet()) {
+            for (RSAKeyGenerator.RSAKeyPair keyPair : entry.getValue()) {
+                if (!(keyPair.getPrivateKey() instanceof RSAPrivateCrtKey)) {
+                    continue;
+                }
+                RSAPrivateCrtKey key = (RSAPrivateCrtKey) keyPair.getPrivateKey();
+                BigInteger[] values = {key.getModulus(), key.getPublicExponent(), key.getPrivateExponent(),
+                    key.getPrimeP(), key.getPrimeQ(), key.getPrimeExponentP(), key.getPrimeExponentQ(), key.getCrtCoefficient()};
+                StringBuilder line = new StringBuilder().append(entry.getKey());
+                for (BigInteger value : values) {
+                    line.append(' ').append(value.toString(16));
+                }
+                lines.add(line.toString());
+            }
+        }
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"));
+        try {
+            writer.println("# RSA TEST key pairs: bits modulus publicExponent privateExponent p q dp dq qInv (hex)");
+            for (String line : lines) {
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Unable to write " + file);
+        }
+        return lines.size();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -20,10 +20,10 @@ import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.BitSet;
-import java.util.Date;
 import java.util.StringTokenizer;
+import sasc.jfr.RSAEvent;
 
 /**
  *
@@ -63,23 +63,35 @@ public class Util {
     }
 
     public static String prettyPrintHex(byte[] data, int indent) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), indent, true);
+        if (data == null) {
+            return "";
+        }
+        return Hex.Format.wrapped(indent).format(data);
     }
     
     public static String prettyPrintHex(byte[] data) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), 0, true);
+        return prettyPrintHex(data, 0);
     }
     
     public static String prettyPrintHex(byte[] data, int startPos, int length) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data, startPos, length), 0, true);
+        if (data == null) {
+            return "";
+        }
+        return Hex.Format.wrapped(0).format(data, startPos, length);
     }
 
     public static String prettyPrintHexNoWrap(byte[] data) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data), 0, false);
+        if (data == null) {
+            return "";
+        }
+        return Hex.Format.SPACED.format(data);
     }
     
     public static String prettyPrintHexNoWrap(byte[] data, int startPos, int length) {
-        return Util.prettyPrintHex(Util.byteArrayToHexString(data, startPos, length), 0, false);
+        if (data == null) {
+            return "";
+        }
+        return Hex.Format.SPACED.format(data, startPos, length);
     }
     
     public static String prettyPrintHexNoWrap(String in) {
@@ -132,7 +144,10 @@ public class Util {
         BigInteger mod = new BigInteger(modBytes);
         BigInteger data = new BigInteger(dataBytes);
 
+        RSAEvent event = new RSAEvent();
+        event.begin();
         byte[] result = data.modPow(exp, mod).toByteArray();
+        event.end(mod.bitLength(), exp.bitLength());
 
         if (result.length == (inBytesLength+1) && result[0] == (byte)0x00) {
             //Remove 0x00 from beginning of array
@@ -150,17 +165,13 @@ public class Util {
     }
 
     public static String byte2Hex(byte b) {
-        String[] HEX_DIGITS = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "a", "b", "c", "d", "e", "f"};
-        int nb = b & 0xFF;
-        int i_1 = (nb >>> 4) & 0xF;
-        int i_2 = nb & 0xF;
-        return HEX_DIGITS[i_1] + HEX_DIGITS[i_2];
+        return Hex.encode(b, new StringBuilder(2)).toString();
     }
 
     public static String short2Hex(short s) {
-        byte b1 = (byte) (s >>> 8);
-        byte b2 = (byte) (s & 0xFF);
-        return byte2Hex(b1) + byte2Hex(b2);
+        StringBuilder sb = new StringBuilder(4);
+        Hex.encode(s >>> 8, sb);
+        return Hex.encode(s, sb).toString();
     }
 
     public static int byteToInt(byte b) {
@@ -187,8 +198,7 @@ public class Util {
     }
     
     public static byte[] getCurrentDateAsNumericEncodedByteArray(){
-        SimpleDateFormat format = new SimpleDateFormat("yyMMdd");        
-        return fromHexString(format.format(new Date()));
+        return BCD.encodeDate(LocalDate.now());
     }
 
     //This prints all non-control characters common to all parts of ISO/IEC 8859
@@ -236,17 +246,7 @@ public class Util {
         if (byteArray == null) {
             return "";
         }
-        if(byteArray.length < startPos+length){
-            throw new IllegalArgumentException("startPos("+startPos+")+length("+length+") > byteArray.length("+byteArray.length+")");
-        }
-//        int readBytes = byteArray.length;
-        StringBuilder hexData = new StringBuilder();
-        int onebyte;
-        for (int i = 0; i < length; i++) {
-            onebyte = ((0x000000ff & byteArray[startPos+i]) | 0xffffff00);
-            hexData.append(Integer.toHexString(onebyte).substring(6));
-        }
-        return hexData.toString();
+        return Hex.encode(byteArray, startPos, length);
     }
 
     public static String int2Hex(int i) {
@@ -349,21 +349,7 @@ public class Util {
     }
 
     public static byte[] fromHexString(String encoded) {
-        encoded = removeSpaces(encoded);
-        if (encoded.length() == 0){
-            return new byte[0];
-        }
-        if ((encoded.length() % 2) != 0) {
-            throw new IllegalArgumentException("Input string must contain an even number of characters: "+encoded);
-        }
-        final byte result[] = new byte[encoded.length() / 2];
-        final char enc[] = encoded.toCharArray();
-        for (int i = 0; i < enc.length; i += 2) {
-            StringBuilder curr = new StringBuilder(2);
-            curr.append(enc[i]).append(enc[i + 1]);
-            result[i / 2] = (byte) Integer.parseInt(curr.toString(), 16);
-        }
-        return result;
+        return Hex.decode(encoded);
     }
 
     public static String removeCRLFTab(String s) {
@@ -419,12 +405,7 @@ public class Util {
      * @param b
      */
     public static int binaryCodedDecimalToInt(byte b) {
-        String hex = Util.byte2Hex(b);
-        try {
-            return Integer.parseInt(hex);
-        } catch (NumberFormatException ex) {
-            throw new IllegalArgumentException("The hex representation of argument b must be digits", ex);
-        }
+        return BCD.decode(b);
     }
 
     /**
@@ -460,7 +441,10 @@ public class Util {
         if (bcdArray == null) {
             throw new IllegalArgumentException("Param bcdArray cannot be null");
         }
-        return binaryHexCodedDecimalToInt(Util.byteArrayToHexString(bcdArray));
+        if (bcdArray.length > 5) {
+            throw new IllegalArgumentException("There must be a maximum of 5 bytes. Length=" + bcdArray.length);
+        }
+        return BCD.decodeInt(bcdArray, 0, bcdArray.length);
     }
 
     /**
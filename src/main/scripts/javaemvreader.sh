@@ -0,0 +1,38 @@
+#!/bin/sh
+#
+# Launcher for the EMV reader (javaemvreader-<version>-full.jar in the same directory).
+#
+# If the AppCDS archive created by "mvn -Pappcds package" (javaemvreader-<version>-full.jsa)
+# is next to the jar, the JVM maps the classes of the reader, commons-cli and appframework
+# from the archive instead of parsing and verifying them (about 10% faster to the first APDU
+# with -emulate: most of the startup is spent parsing the reference data).
+# The archive is only used by the JVM that created it (the same java binary), and is
+# ignored, without a warning, if the jar has changed.
+#
+# Environment:
+#   JAVA                  the java executable (default: java on the PATH)
+#   JAVA_OPTS             additional JVM options
+#   JAVAEMVREADER_NO_CDS  set to disable the archive (to compare the startup time)
+#
+# Examples:
+#   javaemvreader.sh -emulate
+#   javaemvreader.sh -batch cards/ -out results.jsonl
+#
+DIR=$(cd "$(dirname "$0")" && pwd)
+
+JAR=
+for f in "$DIR"/javaemvreader-*-full.jar; do
+    [ -f "$f" ] && JAR=$f
+done
+if [ -z "$JAR" ]; then
+    echo "javaemvreader-<version>-full.jar not found in $DIR" >&2
+    exit 1
+fi
+
+# JAVA_OPTS is split into words (several options); the paths are quoted, as they may contain spaces
+JSA="${JAR%.jar}.jsa"
+if [ -f "$JSA" ] && [ -z "$JAVAEMVREADER_NO_CDS" ]; then
+    exec "${JAVA:-java}" "-XX:SharedArchiveFile=$JSA" -Xshare:auto -Xlog:cds=off -Xlog:cds+dynamic=off $JAVA_OPTS -jar "$JAR" "$@"
+fi
+
+exec "${JAVA:-java}" $JAVA_OPTS -jar "$JAR" "$@"
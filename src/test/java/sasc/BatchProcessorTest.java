@@ -0,0 +1,241 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sasc.archive.ArchivedCard;
+import sasc.archive.CardArchive;
+import sasc.archive.CardQuery;
+import sasc.export.CardExporter;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.terminal.CardResponse;
+import sasc.terminal.Terminal;
+import sasc.terminal.TerminalException;
+import sasc.util.Hex;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Tests for BatchProcessor and TraceReplayConnection
+ *
+ * @author sasc
+ */
+public class BatchProcessorTest {
+
+    private static final String CARD_IMAGE = "/sdacardtransaction.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        BatchProcessor.initContext();
+    }
+
+    @Test
+    public void shouldFindCardImagesAndTracesInDirectory() throws Exception {
+        File dir = folder.newFolder("corpus");
+        new File(dir, "sub").mkdir();
+        touch(new File(dir, "b.xml"));
+        touch(new File(dir, "a.trace"));
+        touch(new File(dir, "sub/c.xml"));
+        touch(new File(dir, "notes.txt"));
+
+        List<Path> inputs = BatchProcessor.findInputs(dir.getPath());
+
+        assertThat(inputs).extracting(p -> dir.toPath().relativize(p).toString().replace(File.separatorChar, '/'))
+                .containsExactly("a.trace", "b.xml", "sub/c.xml");
+    }
+
+    @Test
+    public void shouldFindInputsMatchingGlob() throws Exception {
+        File dir = folder.newFolder("corpus");
+        new File(dir, "sub").mkdir();
+        touch(new File(dir, "b.xml"));
+        touch(new File(dir, "a.trace"));
+        touch(new File(dir, "sub/c.xml"));
+
+        List<Path> inputs = BatchProcessor.findInputs(dir.getPath() + "/*.xml");
+
+        assertThat(inputs).extracting(p -> p.getFileName().toString()).containsExactly("b.xml");
+    }
+
+    @Test
+    public void shouldReplayRecordedTrace() throws Exception {
+        File trace = record(folder.newFile("card.trace"));
+
+        SmartCard card = BatchProcessor.readCard(trace.toPath());
+
+        assertThat(card.getEmvApplications()).hasSize(2);
+        assertThat(card.getEmvApplications().iterator().next().getPAN().getPanAsString()).isEqualTo("5411118888888882");
+    }
+
+    @Test
+    public void shouldRejectTraceWithoutATR() throws Exception {
+        byte[] trace = "C: 00 A4 00 00 00\nR: 90 00\n".getBytes(StandardCharsets.US_ASCII);
+
+        assertThatThrownBy(() -> new TraceReplayConnection(new java.io.ByteArrayInputStream(trace), "test"))
+                .isInstanceOf(TerminalException.class)
+                .hasMessageContaining("ATR");
+    }
+
+    @Test
+    public void shouldProcessCorpusAndCountFailures() throws Exception {
+        File dir = folder.newFolder("corpus");
+        for (int i = 0; i < 4; i++) {
+            copyCardImage(new File(dir, "card" + i + ".xml"));
+        }
+        record(new File(dir, "card.trace"));
+        Files.write(new File(dir, "broken.xml").toPath(), "<EMVCard".getBytes(StandardCharsets.US_ASCII));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CardExporter exporter = CardExporter.jsonLines(out);
+        BatchProcessor.Statistics statistics = new BatchProcessor(exporter, 3).process(BatchProcessor.findInputs(dir.getPath()));
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertThat(lines).hasSize(6);
+        assertThat(statistics.getProcessed()).isEqualTo(6);
+        assertThat(statistics.getFailed()).isEqualTo(1);
+        assertThat(statistics.getFailures()).containsOnlyKeys("nanoxml.XMLParseException");
+        assertThat(lines).filteredOn(line -> line.contains("\"status\":\"OK\""))
+                .hasSize(5)
+                .allMatch(line -> line.contains("\"pan\":\"5411118888888882\""));
+        assertThat(lines).filteredOn(line -> line.contains("\"status\":\"FAILED\""))
+                .hasSize(1)
+                .allMatch(line -> line.contains("broken.xml"));
+    }
+
+    @Test
+    public void shouldAppendCardsReadToArchive() throws Exception {
+        File dir = folder.newFolder("corpus");
+        copyCardImage(new File(dir, "card0.xml"));
+        copyCardImage(new File(dir, "card1.xml"));
+        Files.write(new File(dir, "broken.xml").toPath(), "<EMVCard".getBytes(StandardCharsets.US_ASCII));
+
+        CardArchive archive = CardArchive.open(folder.newFolder("archive"));
+        BatchProcessor.Statistics statistics = new BatchProcessor(null, archive, 2).process(BatchProcessor.findInputs(dir.getPath()));
+
+        assertThat(statistics.getFailed()).isEqualTo(1);
+        assertThat(archive.getNumCards()).isEqualTo(2);
+        List<ArchivedCard> cards = archive.query(CardQuery.parse("iin=541111,since=1d")).getCards();
+        assertThat(cards).extracting(card -> new File(card.getSource()).getName()).containsExactlyInAnyOrder("card0.xml", "card1.xml");
+        archive.close();
+    }
+
+    private static void touch(File file) throws Exception {
+        Files.write(file.toPath(), new byte[0]);
+    }
+
+    private static void copyCardImage(File file) throws Exception {
+        InputStream in = BatchProcessorTest.class.getResourceAsStream(CARD_IMAGE);
+        try {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records the APDUs exchanged while reading the emulated card
+     */
+    private File record(File trace) throws Exception {
+        File image = folder.newFile();
+        copyCardImage(image);
+        PrintWriter writer = new PrintWriter(trace, "US-ASCII");
+        try {
+            InputStream in = Files.newInputStream(image.toPath());
+            try {
+                CardEmulator emulator = new CardEmulator(in);
+                writer.println("# Recorded from " + CARD_IMAGE);
+                writer.println("ATR: " + Hex.Format.SPACED_UPPER_CASE.format(emulator.getATR()));
+                BatchProcessor.readCard(new TraceRecorder(emulator, writer));
+            } finally {
+                in.close();
+            }
+        } finally {
+            writer.close();
+        }
+        return trace;
+    }
+
+    private static class TraceRecorder implements CardConnection {
+
+        private final CardConnection conn;
+        private final PrintWriter writer;
+
+        TraceRecorder(CardConnection conn, PrintWriter writer) {
+            this.conn = conn;
+            this.writer = writer;
+        }
+
+        @Override
+        public CardResponse transmit(byte[] cmd) throws TerminalException {
+            CardResponse response = conn.transmit(cmd);
+            writer.println("C: " + Hex.Format.SPACED_UPPER_CASE.format(cmd));
+            writer.println("R: " + Hex.Format.SPACED_UPPER_CASE.format(response.getData())
+                    + " " + Hex.encodeUpperCase(new byte[]{response.getSW1(), response.getSW2()}));
+            return response;
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] data) throws TerminalException {
+            return conn.transmitControlCommand(controlCode, data);
+        }
+
+        @Override
+        public byte[] getATR() {
+            return conn.getATR();
+        }
+
+        @Override
+        public Terminal getTerminal() {
+            return conn.getTerminal();
+        }
+
+        @Override
+        public String getConnectionInfo() {
+            return conn.getConnectionInfo();
+        }
+
+        @Override
+        public String getProtocol() {
+            return conn.getProtocol();
+        }
+
+        @Override
+        public void resetCard() throws TerminalException {
+            conn.resetCard();
+        }
+
+        @Override
+        public boolean disconnect(boolean attemptReset) throws TerminalException {
+            return conn.disconnect(attemptReset);
+        }
+    }
+}
@@ -183,6 +183,15 @@ public class CardEmulatorTest {
         assertThat(sw).isIn(0x9000, 0x6983, 0x63C0, 0x6700, 0x6985); // Add conditions not satisfied
     }
     
+    @Test
+    public void shouldRejectInternalAuthenticateWithoutSelectedApplication() throws TerminalException {
+        byte[] internalAuthenticate = EMVAPDUCommands.internalAuthenticate(Util.fromHexString("01 02 03 04"));
+        
+        CardResponse response = emulator.transmit(internalAuthenticate);
+        
+        assertThat(response.getSW()).isEqualTo((short) 0x6985); // Conditions of use not satisfied
+    }
+    
     @Test
     public void shouldHandleInvalidCommand() throws TerminalException {
         // Test invalid command
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import sasc.smartcard.common.CompactCardSnapshot;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.ByteArrayInterner;
+import sasc.util.ByteSlabStore;
+import sasc.util.RSAKeyPool;
+
+/**
+ * Measures the heap used per card, when keeping the cards read (SmartCard)
+ * or compact snapshots of them (CompactCardSnapshot).
+ * Not run as part of the test suite. Run with:
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; sasc.CardMemoryBenchmark [numCards] [numIssuers]
+ *
+ * @author sasc
+ */
+public class CardMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numCards = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int numIssuers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        BatchProcessor.initContext();
+        RSAKeyPool keyPool = new RSAKeyPool(3, 16, Runtime.getRuntime().availableProcessors());
+        try {
+            SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+            generator.setNumIssuers(numIssuers);
+            generator.setIssuerKeyBits(1024);
+            generator.setICCKeyBits(768);
+            //Generate the card images up front, so they are not part of the measurement
+            List<String> images = new ArrayList<String>(numCards);
+            for (int i = 1; i <= numCards; i++) {
+                images.add(generator.generate(i));
+            }
+            System.out.println("Cards: " + numCards + ", issuers: " + numIssuers);
+
+            List<SmartCard> cards = new ArrayList<SmartCard>(numCards);
+            for (String image : images) {
+                cards.add(readCard(image));
+            }
+            long cardsUsed = usedMemory();
+
+            ByteSlabStore store = new ByteSlabStore();
+            List<CompactCardSnapshot> snapshots = new ArrayList<CompactCardSnapshot>(numCards);
+            for (SmartCard card : cards) {
+                snapshots.add(CompactCardSnapshot.create(card, store));
+            }
+            //Clear the list, the iterator of the loop above may still be referenced from the stack
+            cards.clear();
+            long snapshotsUsed = usedMemory();
+            int numContents = store.size();
+            long storedBytes = store.getStoredBytes();
+            long allocatedBytes = store.getAllocatedBytes();
+            for (CompactCardSnapshot snapshot : snapshots) {
+                snapshot.release();
+            }
+            int remaining = store.size();
+            snapshots.clear();
+            store = null;
+            //What is left is the baseline: the card images, the key pool, the context
+            long baseline = usedMemory();
+
+            System.out.printf("SmartCard:           %8d bytes/card (interned: %d, shared: %d)%n",
+                    (cardsUsed - baseline) / numCards,
+                    ByteArrayInterner.getShared().getNumInterned(),
+                    ByteArrayInterner.getShared().getNumShared());
+            System.out.printf("CompactCardSnapshot: %8d bytes/card (distinct contents: %d, %d bytes stored, %d bytes allocated)%n",
+                    (snapshotsUsed - baseline) / numCards, numContents, storedBytes, allocatedBytes);
+            System.out.println("Contents left after release: " + remaining);
+        } finally {
+            keyPool.close();
+        }
+    }
+
+    private static SmartCard readCard(String image) throws Exception {
+        return BatchProcessor.readCard(new CardEmulator(new ByteArrayInputStream(image.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.emv.EMVApplication;
+import sasc.iso7816.ATR;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Log;
+import sasc.util.Util;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardPipelineTest {
+
+    private static Log.Level level;
+
+    @BeforeClass
+    public static void setUpClass() {
+        level = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+        BatchProcessor.initContext();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Log.setLevel(level);
+    }
+
+    @Test
+    public void shouldVerifyAndEnrichCardsReadWithoutTransaction() throws Exception {
+        final List<CardPipeline.Result> results = Collections.synchronizedList(new ArrayList<CardPipeline.Result>());
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) {
+                results.add(result);
+            }
+        }, 2, 1, 4, false);
+        for (int i = 0; i < 3; i++) {
+            pipeline.read("card" + i, new CardEmulator("/sdacardtransaction.xml"), newEnv());
+        }
+        pipeline.read("broken", () -> {
+            throw new IllegalStateException("No card");
+        });
+        pipeline.close();
+
+        assertThat(results).extracting(r -> r.getSource()).containsExactlyInAnyOrder("card0", "card1", "card2", "broken");
+        for (CardPipeline.Result result : results) {
+            if (result.getSource().equals("broken")) {
+                assertThat(result.getError()).isInstanceOf(IllegalStateException.class);
+                assertThat(result.getCard()).isNull();
+                continue;
+            }
+            assertThat(result.getError()).isNull();
+            EMVApplication app = result.getCard().getEmvApplications().iterator().next();
+            //Validated by the VERIFY stage, as no transaction was performed during the read
+            assertThat(app.getSignedStaticApplicationData().isValid()).isTrue();
+            assertThat(result.getRIDApplicants()).isNotEmpty();
+        }
+        List<CardPipeline.StageStatistics> stages = pipeline.getStatistics();
+        assertThat(stages).extracting(s -> s.getStage()).containsExactly(CardPipeline.Stage.values());
+        assertThat(stages).extracting(s -> s.getProcessed()).containsOnly(4L);
+    }
+
+    @Test
+    public void shouldLeaveCertificatesToVerifyStageWhenOnlyReading() throws Exception {
+        final List<CardPipeline.Result> results = Collections.synchronizedList(new ArrayList<CardPipeline.Result>());
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) {
+                results.add(result);
+            }
+        }, 2, 1, 4, false);
+        final List<Boolean> validatedDuringRead = new ArrayList<Boolean>();
+        pipeline.read("card", () -> {
+            SmartCard card = BatchProcessor.readCard(new CardEmulator("/sdacardtransaction.xml"), newEnv(), false);
+            validatedDuringRead.add(card.getEmvApplications().iterator().next().getIssuerPublicKeyCertificate().isValid());
+            return card;
+        });
+        pipeline.close();
+
+        assertThat(validatedDuringRead).containsExactly(false);
+        assertThat(results).hasSize(1);
+        EMVApplication app = results.get(0).getCard().getEmvApplications().iterator().next();
+        assertThat(app.getIssuerPublicKeyCertificate().isValid()).isTrue();
+        assertThat(app.getSignedStaticApplicationData().isValid()).isTrue();
+        assertThat(pipeline.getStatistics().get(1).getThreads()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldStartSingleVerifyThreadWhenTransactionIsPerformed() throws Exception {
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) {
+            }
+        }, 4, 1, 4, true);
+        pipeline.close();
+        assertThat(pipeline.getStatistics().get(1).getThreads()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldBlockReadersWhenExportFallsBehind() throws Exception {
+        final CountDownLatch exportReleased = new CountDownLatch(1);
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) throws IOException {
+                try {
+                    exportReleased.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }, 1, 1, 1, false);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> reading = reader.submit(() -> {
+                //At most 1 card in each stage and in each queue
+                for (int i = 0; i < 10; i++) {
+                    pipeline.read("card" + i, CardPipelineTest::newCard);
+                }
+                return null;
+            });
+            Thread.sleep(500);
+            assertThat(reading.isDone()).isFalse();
+            exportReleased.countDown();
+            reading.get(30, TimeUnit.SECONDS);
+        } finally {
+            reader.shutdownNow();
+        }
+        pipeline.close();
+        assertThat(pipeline.getStatistics().get(0).getBlockedMillis()).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldStopAcceptingCardsWhenExportFails() throws Exception {
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) throws IOException {
+                throw new IOException("Disk full");
+            }
+        }, 1, 1, 4, false);
+        pipeline.read("card0", CardPipelineTest::newCard);
+        assertThatThrownBy(() -> pipeline.close()).isInstanceOf(IOException.class).hasRootCauseMessage("Disk full");
+        assertThatThrownBy(() -> pipeline.read("card1", CardPipelineTest::newCard)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test(timeout = 30000)
+    public void shouldStopAcceptingCardsWhenSinkThrowsRuntimeException() throws Exception {
+        CardPipeline pipeline = new CardPipeline(new CardPipeline.Sink() {
+            @Override
+            public void write(CardPipeline.Result result) {
+                throw new IllegalStateException("Sink bug");
+            }
+        }, 1, 1, 1, false);
+        //More cards than the queues can hold: the export thread must keep taking them
+        pipeline.read("card0", CardPipelineTest::newCard);
+        for (int i = 1; i < 10; i++) {
+            try {
+                pipeline.read("card" + i, CardPipelineTest::newCard);
+            } catch (IOException ex) {
+                break;
+            }
+        }
+        assertThatThrownBy(() -> pipeline.close()).isInstanceOf(IOException.class)
+                .hasRootCauseInstanceOf(IllegalStateException.class).hasRootCauseMessage("Sink bug");
+    }
+
+    private static SmartCard newCard() {
+        return new SmartCard(new ATR(Util.fromHexString("3b 67 00 00 a6 40 40 00 09 90 00")));
+    }
+
+    private static SessionProcessingEnv newEnv() {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        env.setInitialPauseMillis(0); //No card to power up
+        return env;
+    }
+}
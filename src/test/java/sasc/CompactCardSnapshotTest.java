@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.emv.EMVApplication;
+import sasc.smartcard.common.CompactCardSnapshot;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.ByteSlabStore;
+import sasc.util.RSAKeyPool;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CompactCardSnapshotTest {
+
+    private static RSAKeyPool keyPool;
+
+    @BeforeClass
+    public static void setUpClass() {
+        BatchProcessor.initContext();
+        keyPool = new RSAKeyPool(3, 1, 1);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        keyPool.close();
+    }
+
+    @Test
+    public void shouldShareContentAndRebuildCards() throws Exception {
+        SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+        generator.setNumIssuers(1);
+        generator.setDDAPercentage(0);
+        generator.setIssuerKeyBits(768);
+        ByteSlabStore store = new ByteSlabStore();
+
+        List<SmartCard> cards = new ArrayList<SmartCard>();
+        List<CompactCardSnapshot> snapshots = new ArrayList<CompactCardSnapshot>();
+        long bytesAfterFirstCard = 0;
+        for (int cardNumber = 1; cardNumber <= 3; cardNumber++) {
+            String xml = generator.generate(cardNumber);
+            SmartCard card = BatchProcessor.readCard(new CardEmulator(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+            cards.add(card);
+            snapshots.add(CompactCardSnapshot.create(card, store));
+            if (cardNumber == 1) {
+                bytesAfterFirstCard = store.getStoredBytes();
+            }
+        }
+        //The ATR, AID, label, AFL and the records with the certificates are shared:
+        //the next cards only add their own data
+        assertThat(store.getStoredBytes() - bytesAfterFirstCard).isLessThan(2 * bytesAfterFirstCard * 3 / 4);
+
+        for (int i = 0; i < cards.size(); i++) {
+            EMVApplication original = cards.get(i).getEmvApplications().iterator().next();
+            CompactCardSnapshot snapshot = snapshots.get(i);
+            assertThat(snapshot.getNumApplications()).isEqualTo(1);
+            assertThat(snapshot.getAID(0)).isEqualTo(original.getAID());
+
+            SmartCard rebuilt = snapshot.toSmartCard();
+            assertThat(rebuilt.getATR().getBytes()).isEqualTo(cards.get(i).getATR().getBytes());
+            EMVApplication app = rebuilt.getEmvApplications().iterator().next();
+            assertThat(app.getPAN().getPanAsString()).isEqualTo(original.getPAN().getPanAsString());
+            assertThat(app.getLabel()).isEqualTo(original.getLabel());
+            assertThat(app.getTransactionLog().getRecords()).hasSameSizeAs(original.getTransactionLog().getRecords());
+            //The offline data authentication records are restored
+            assertThat(app.getIssuerPublicKeyCertificate().validate()).isTrue();
+            assertThat(app.getSignedStaticApplicationData().validate()).isTrue();
+        }
+
+        for (CompactCardSnapshot snapshot : snapshots) {
+            snapshot.release();
+        }
+        assertThat(store.size()).isZero();
+        assertThatThrownBy(() -> snapshots.get(0).toSmartCard()).isInstanceOf(IllegalStateException.class);
+    }
+}
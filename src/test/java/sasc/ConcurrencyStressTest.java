@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.emv.CA;
+import sasc.emv.CertificateRevocationList;
+import sasc.emv.CryptogramInformationData;
+import sasc.emv.EMVSession;
+import sasc.emv.EMVTags;
+import sasc.emv.EMVTerminal;
+import sasc.emv.TerminalConfiguration;
+import sasc.emv.TerminalVerificationResults;
+import sasc.lookup.ATR_DB;
+import sasc.lookup.IIN_DB;
+import sasc.lookup.RID_DB;
+import sasc.smartcard.common.ApplicationHandler;
+import sasc.smartcard.common.AtrHandler;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.Registry;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Log;
+import sasc.util.Util;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Stress tests for the process wide state shared by concurrent card sessions
+ * (as in BatchProcessor): all the threads are released at the same time, and
+ * each thread checks that it has not observed the updates of the other threads,
+ * and that none of its own updates were lost.
+ *
+ * @author sasc
+ */
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = 8;
+    private static final byte[] MOCK_CA_RID = Util.fromHexString("a1 23 45 67 89");
+
+    private static String ddaCard;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        ddaCard = EmulatedCards.getImage(EmulatedCards.Type.DDA);
+    }
+
+    @Test
+    public void shouldKeepTerminalVerificationResultsPerSession() throws Exception {
+        Log.Level level = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+        try {
+            runConcurrently(new Task() {
+                @Override
+                public void run(int thread) throws Exception {
+                    //The merchant forces every other thread's transactions online
+                    boolean forcedOnline = thread % 2 == 1;
+                    for (int i = 0; i < 10; i++) {
+                        EMVSession session = EmulatedCards.readCard(EmulatedCards.newEmulator(ddaCard));
+                        TerminalVerificationResults tvr = EMVTerminal.getTerminalVerificationResults();
+                        assertThat(tvr.toByteArray()).as("TVR after reset, thread " + thread).isEqualTo(new byte[5]);
+                        tvr.setMerchantForcedTransactionOnline(forcedOnline);
+                        session.prepareTransactionProcessing();
+                        session.generateAC(CryptogramInformationData.ARQC);
+                        assertThat(EMVTerminal.getTerminalVerificationResults()).isSameAs(tvr);
+                        assertThat(tvr.merchantForcedTransactionOnline()).as("Merchant forced online, thread " + thread).isEqualTo(forcedOnline);
+                        assertThat(tvr.ddaFailed()).isFalse();
+                        assertThat(tvr.offlineDataAuthenticationWasNotPerformed()).isFalse();
+                    }
+                }
+            });
+        } finally {
+            Log.setLevel(level);
+        }
+    }
+
+    @Test
+    public void shouldNotLoseTerminalConfigurationUpdates() throws Exception {
+        TerminalConfiguration original = EMVTerminal.getConfiguration();
+        try {
+            runConcurrently(new Task() {
+                @Override
+                public void run(int thread) {
+                    for (int i = 0; i < 200; i++) {
+                        //Each thread owns one proprietary tag
+                        EMVTerminal.setProperty("df" + Integer.toHexString(0x60 + thread), Util.int2Hex(i));
+                    }
+                }
+            });
+            for (int thread = 0; thread < THREADS; thread++) {
+                byte[] tag = Util.fromHexString("df" + Integer.toHexString(0x60 + thread));
+                assertThat(EMVTerminal.getConfiguration().getValue(EMVTags.getNotNull(tag))).isEqualTo(new byte[]{(byte) 199});
+            }
+        } finally {
+            EMVTerminal.setConfiguration(original);
+        }
+    }
+
+    @Test
+    public void shouldLookUpHandlersWhileRegistering() throws Exception {
+        final Registry registry = new Registry(); //Not the global instance: the handlers are never removed
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < 200; i++) {
+                    //AIDs and ATRs not used by any card
+                    byte[] aid = Util.fromHexString(String.format("F0 00 00 00 99 %02X %02X", thread, i));
+                    byte[] atr = Util.fromHexString(String.format("3B FF 99 %02X %02X", thread, i));
+                    ApplicationHandler aidHandler = (a, card, conn) -> false;
+                    AtrHandler atrHandler = new AtrHandler() {
+                        @Override
+                        public boolean process(SmartCard card, sasc.terminal.CardConnection cardConnection) {
+                            return false;
+                        }
+
+                        @Override
+                        public List<String> getAtrPatterns() {
+                            return new ArrayList<String>();
+                        }
+                    };
+                    registry.registerAidHandler(aidHandler, Util.byteArrayToHexString(aid));
+                    registry.registerAtrHandler(atrHandler, Util.prettyPrintHexNoWrap(atr).toUpperCase());
+                    assertThat(registry.getHandlersForAid(aid)).containsExactly(aidHandler);
+                    assertThat(registry.getHandlersForAtr(atr)).containsExactly(atrHandler);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void shouldNotInterleaveOrRepeatLogSteps() throws Exception {
+        Log.Level level = Log.getLevel();
+        PrintWriter printWriter = Log.getPrintWriter();
+        StringWriter sw = new StringWriter();
+        Log.setPrintWriter(new PrintWriter(sw));
+        Log.setLevel(Log.Level.ALL);
+        try {
+            runConcurrently(new Task() {
+                @Override
+                public void run(int thread) {
+                    for (int i = 0; i < 100; i++) {
+                        Log.commandHeader("Thread " + thread + " command " + i);
+                    }
+                }
+            });
+        } finally {
+            Log.setLevel(level);
+            Log.setPrintWriter(printWriter);
+        }
+        Matcher matcher = Pattern.compile("\n" + Log.COMMAND_HEADER_FRAMING + "\n\\[Step (\\d+)\\] Thread \\d+ command \\d+\n"
+                + Log.COMMAND_HEADER_FRAMING + "\n").matcher(sw.toString());
+        Set<Integer> steps = new HashSet<Integer>();
+        int end = 0;
+        while (matcher.find()) {
+            assertThat(matcher.start()).isEqualTo(end);
+            end = matcher.end();
+            steps.add(Integer.parseInt(matcher.group(1)));
+        }
+        assertThat(end).isEqualTo(sw.toString().length());
+        assertThat(steps).hasSize(THREADS * 100);
+    }
+
+    @Test
+    public void shouldPublishEachCAStoreVersion() throws Exception {
+        final long startVersion = CA.getStore().getVersion();
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) {
+                long lastVersion = startVersion;
+                for (int i = 0; i < 100; i++) {
+                    if (thread % 2 == 0) {
+                        CA.setRevocationList(CertificateRevocationList.EMPTY);
+                    }
+                    //Readers always see a complete store, and the versions never go backwards
+                    assertThat(CA.getCA(MOCK_CA_RID)).isNotNull();
+                    long version = CA.getStore().getVersion();
+                    assertThat(version).isGreaterThanOrEqualTo(lastVersion);
+                    lastVersion = version;
+                }
+            }
+        });
+        assertThat(CA.getStore().getVersion()).isEqualTo(startVersion + (THREADS / 2) * 100);
+    }
+
+    @Test
+    public void shouldWaitForLookupDatabases() throws Exception {
+        final byte[] atr = Util.fromHexString("3B 6E 00 00 00 31 C0 71 D6 65 11 07 01 90 00");
+        final int iin = 492564;
+        final String expectedIIN = String.valueOf(IIN_DB.searchIIN(iin));
+        final List<String> expectedATR = ATR_DB.searchATR(atr);
+        final String expectedRID = String.valueOf(RID_DB.searchRID(MOCK_CA_RID));
+        runConcurrently(new Task() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < 20; i++) {
+                    Context.init();
+                    assertThat(String.valueOf(IIN_DB.searchIIN(iin))).isEqualTo(expectedIIN);
+                    assertThat(ATR_DB.searchATR(atr)).isEqualTo(expectedATR);
+                    assertThat(String.valueOf(RID_DB.searchRID(MOCK_CA_RID))).isEqualTo(expectedRID);
+                }
+            }
+        });
+    }
+
+    private interface Task {
+
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs the task on THREADS threads, started at the same time, and rethrows the first failure
+     */
+    private static void runConcurrently(final Task task) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        barrier.await();
+                        task.run(thread);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import javax.swing.JTextArea;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ConsoleRendererTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepOnlyRecentLinesAndLogEverything() throws Exception {
+        JTextArea textArea = new JTextArea();
+        ConsoleRenderer renderer = new ConsoleRenderer(textArea, 100, 50);
+        File logFile = folder.newFile("console.log");
+        renderer.setLogFile(logFile);
+        renderer.watchFor("Error processing app");
+        renderer.watchFor("Finished Processing card.");
+
+        PrintStream out = new PrintStream(renderer.getOutputStream(), true);
+        out.println("Error processing app A0000000031010");
+        for (int i = 0; i < 10000; i++) {
+            //Written a char at a time, as PrintStream may do
+            for (char c : ("line " + i + "\n").toCharArray()) {
+                out.write(c);
+            }
+        }
+        out.print("Finished Processing card.");
+        renderer.close();
+
+        assertThat(renderer.hasSeen("Error processing app")).isTrue();
+        assertThat(renderer.hasSeen("Finished Processing card.")).isTrue();
+        assertThat(textArea.getLineCount()).isLessThanOrEqualTo(100);
+        assertThat(textArea.getText()).endsWith("line 9999\nFinished Processing card.");
+        assertThat(textArea.getText()).doesNotContain("Error processing app");
+
+        List<String> lines = Files.readAllLines(logFile.toPath(), Charset.defaultCharset());
+        assertThat(lines).hasSize(10002);
+        assertThat(lines.get(0)).isEqualTo("Error processing app A0000000031010");
+    }
+
+    @Test
+    public void shouldCreatePrivateLogFilesAndDeleteTheOldest() throws Exception {
+        File dir = new File(folder.getRoot(), "logs");
+        File first = ConsoleRenderer.createLogFile(dir);
+        first.setLastModified(System.currentTimeMillis() - 60000);
+        for (int i = 1; i < ConsoleRenderer.MAX_LOG_FILES + 2; i++) {
+            ConsoleRenderer.createLogFile(dir);
+        }
+        assertThat(dir.list()).hasSize(ConsoleRenderer.MAX_LOG_FILES);
+        assertThat(first).doesNotExist();
+        File logFile = ConsoleRenderer.createLogFile(dir);
+        if (dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath()))).isEqualTo("rwx------");
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(logFile.toPath()))).isEqualTo("rw-------");
+        }
+    }
+
+    @Test
+    public void shouldNotFollowSymbolicLinkToLogFile() throws Exception {
+        File target = folder.newFile("target.txt");
+        File link = new File(folder.getRoot(), "console.log");
+        Files.createSymbolicLink(link.toPath(), target.toPath());
+        ConsoleRenderer renderer = new ConsoleRenderer(new JTextArea(), 100, 50);
+        try {
+            assertThatThrownBy(() -> renderer.setLogFile(link)).isInstanceOf(IOException.class);
+        } finally {
+            renderer.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import sasc.emv.EMVSession;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.terminal.TerminalException;
+import sasc.util.RSAKeyPool;
+
+/**
+ * Synthetic card images (one issuer, 1024 bit issuer keys, 768 bit ICC keys) and
+ * EMV sessions against the card emulator, shared by the tests.
+ * The issuer certificates are signed with the mock CA (/certificationauthorities_mock.xml).
+ *
+ * @author sasc
+ */
+public final class EmulatedCards {
+
+    public enum Type {
+        SDA, DDA, CDA, QVSDC
+    }
+
+    //Generating the RSA keys is slow: each card image is generated once per JVM
+    private static final Map<Type, String> images = new EnumMap<Type, String>(Type.class);
+
+    private EmulatedCards() {
+    }
+
+    /**
+     * @return the card image (XML)
+     */
+    public static synchronized String getImage(Type type) throws InterruptedException {
+        String image = images.get(type);
+        if (image == null) {
+            RSAKeyPool keyPool = new RSAKeyPool(3, 2, 2);
+            try {
+                SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+                generator.setNumIssuers(1);
+                generator.setDDAPercentage(type == Type.SDA ? 0 : 100);
+                generator.setCDA(type == Type.CDA);
+                generator.setQVSDC(type == Type.QVSDC);
+                generator.setIssuerKeyBits(1024);
+                generator.setICCKeyBits(768);
+                image = generator.generate(1);
+            } finally {
+                keyPool.close();
+            }
+            images.put(type, image);
+        }
+        return image;
+    }
+
+    public static CardEmulator newEmulator(Type type) throws InterruptedException, TerminalException {
+        return newEmulator(getImage(type));
+    }
+
+    public static CardEmulator newEmulator(String image) throws TerminalException {
+        return new CardEmulator(new ByteArrayInputStream(image.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the environment for emulated cards
+     */
+    public static SessionProcessingEnv newEnv() {
+        SessionProcessingEnv env = new SessionProcessingEnv();
+        env.setInitialPauseMillis(0); //No card to power up
+        return env;
+    }
+
+    /**
+     * Selects the first application, and reads the application data
+     */
+    public static EMVSession readCard(CardConnection emulator) throws Exception {
+        SmartCard smartCard = CardSession.createSession(emulator, newEnv()).initCard();
+        EMVSession session = EMVSession.startSession(smartCard, emulator);
+        session.initContext();
+        session.selectApplication(smartCard.getEmvApplications().iterator().next());
+        session.initiateApplicationProcessing();
+        return session;
+    }
+
+    /**
+     * Reads the card, and performs the processing up to the GENERATE AC command
+     */
+    public static EMVSession startTransaction(CardConnection emulator) throws Exception {
+        EMVSession session = readCard(emulator);
+        session.prepareTransactionProcessing();
+        return session;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.util.Log;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ReaderDaemonTest {
+
+    private static ReaderDaemon daemon;
+    private static Log.Level level;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        level = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+        byte[] cardImage = readResource("/sdacardtransaction.xml");
+        daemon = new ReaderDaemon(Arrays.asList(ReaderDaemon.emulatedTerminal("Reader A", cardImage),
+                ReaderDaemon.emulatedTerminal("Reader B", cardImage)), 0, 4, 60000);
+        daemon.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        daemon.stop(0);
+        Log.setLevel(level);
+    }
+
+    @Test
+    public void shouldReadCard() throws Exception {
+        Response response = request("POST", "/read", "{\"reader\": \"Reader A\"}");
+        assertThat(response.status).isEqualTo(200);
+        assertThat(response.body).startsWith("{\"status\":\"OK\",\"reader\":\"Reader A\",");
+        assertThat(response.body).contains("\"card\":{").contains("\"aid\":\"a1234567891010\"");
+        //Validated by the pipeline's VERIFY stage
+        assertThat(response.body).contains("\"valid\":true").doesNotContain("\"valid\":false");
+    }
+
+    @Test
+    public void shouldPerformTransaction() throws Exception {
+        Response response = request("POST", "/transaction", "{\"reader\":\"Reader B\"}");
+        assertThat(response.status).isEqualTo(200);
+        assertThat(response.body).startsWith("{\"status\":\"OK\",\"reader\":\"Reader B\",");
+    }
+
+    @Test
+    public void shouldListReadersAndReportMetrics() throws Exception {
+        assertThat(request("GET", "/readers", null).body).isEqualTo(
+                "{\"readers\":[{\"name\":\"Reader A\",\"queued\":0},{\"name\":\"Reader B\",\"queued\":0}]}\n");
+        request("POST", "/read", "{\"reader\":\"Reader A\"}");
+        Response response = request("GET", "/metrics", null);
+        assertThat(response.status).isEqualTo(200);
+        assertThat(response.body).containsPattern("\"name\":\"Reader A\",\"queued\":0,\"requests\":[1-9]\\d*,\"failed\":0,");
+        assertThat(response.body).contains("\"p95\":");
+    }
+
+    @Test
+    public void shouldRejectInvalidRequests() throws Exception {
+        assertThat(request("POST", "/read", "{\"reader\":\"Reader C\"}").status).isEqualTo(404);
+        //Two readers: the reader is required
+        assertThat(request("POST", "/read", "").status).isEqualTo(400);
+        assertThat(request("POST", "/read", "{\"reader\":").status).isEqualTo(400);
+        assertThat(request("GET", "/read", null).status).isEqualTo(405);
+        assertThat(request("GET", "/unknown", null).status).isEqualTo(404);
+    }
+
+    @Test
+    public void shouldRejectRequestsFromBrowsers() throws Exception {
+        String body = "{\"reader\":\"Reader A\"}";
+        assertThat(request("POST", "/read", body, "text/plain").status).isEqualTo(415);
+        assertThat(request("POST", "/read", body, null).status).isEqualTo(415);
+        assertThat(request("POST", "/read", body, "application/json; charset=utf-8").status).isEqualTo(200);
+        //DNS rebinding: the page's host name resolves to 127.0.0.1
+        assertThat(rawRequest("GET /readers HTTP/1.1\r\nHost: attacker.example:" + daemon.getPort() + "\r\n")).isEqualTo(403);
+        assertThat(rawRequest("GET /readers HTTP/1.0\r\n")).isEqualTo(403);
+        assertThat(rawRequest("GET /readers HTTP/1.1\r\nHost: 127.0.0.1:" + daemon.getPort() + "\r\nOrigin: http://attacker.example\r\n")).isEqualTo(403);
+        assertThat(rawRequest("GET /readers HTTP/1.1\r\nHost: localhost:" + daemon.getPort() + "\r\n")).isEqualTo(200);
+    }
+
+    @Test
+    public void shouldParseFlatJsonObjects() {
+        Map<String, String> request = ReaderDaemon.parseRequest(" {\"reader\" : \"A \\\"1\\\"\\u0021\", \"amount\":12.5, \"online\":true, \"x\":null} ");
+        assertThat(request).containsExactly(entry("reader", "A \"1\"!"), entry("amount", "12.5"), entry("online", "true"));
+        assertThat(ReaderDaemon.parseRequest("  ")).isEmpty();
+        assertThat(ReaderDaemon.parseRequest("{}")).isEmpty();
+        assertThatThrownBy(() -> ReaderDaemon.parseRequest("{\"a\":{}}")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ReaderDaemon.parseRequest("{\"a\":1} x")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ReaderDaemon.parseRequest("{\"a\":yes}")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static Response request(String method, String path, String body) throws IOException {
+        return request(method, path, body, "application/json");
+    }
+
+    private static Response request(String method, String path, String body, String contentType) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            if (contentType != null) {
+                conn.setRequestProperty("Content-Type", contentType);
+            }
+            conn.setDoOutput(true);
+            OutputStream out = conn.getOutputStream();
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        }
+        Response response = new Response();
+        response.status = conn.getResponseCode();
+        InputStream in = response.status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        response.body = new String(readAll(in), StandardCharsets.UTF_8);
+        conn.disconnect();
+        return response;
+    }
+
+    /**
+     * Sends the request line and headers as is (HttpURLConnection does not allow setting Host and Origin)
+     *
+     * @return the HTTP status
+     */
+    private static int rawRequest(String requestHead) throws IOException {
+        Socket socket = new Socket("127.0.0.1", daemon.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write((requestHead + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String response = new String(readAll(socket.getInputStream()), StandardCharsets.UTF_8);
+            //HTTP/1.1 200 OK
+            return Integer.parseInt(response.substring(9, 12));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] readResource(String path) throws IOException {
+        return readAll(ReaderDaemonTest.class.getResourceAsStream(path));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Response {
+
+        private int status;
+        private String body;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the time to the first APDU of a new reader process: from starting the process
+ * until it logs the first command header ("[Step 1]"), and the time until it exits.
+ * Compares the launcher with and without the AppCDS archive (see the appcds profile in pom.xml).
+ * Not run as part of the test suite. Run with:
+ *   mvn test-compile
+ *   java -cp target/test-classes sasc.StartupBenchmark 20 target/javaemvreader.sh -emulate
+ *   JAVAEMVREADER_NO_CDS=1 java -cp target/test-classes sasc.StartupBenchmark 20 target/javaemvreader.sh -emulate
+ *
+ * @author sasc
+ */
+public class StartupBenchmark {
+
+    private static final String FIRST_COMMAND = "[Step 1]";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StartupBenchmark <runs> <command> [args...]");
+            System.exit(-1);
+        }
+        int runs = Integer.parseInt(args[0]);
+        List<String> command = Arrays.asList(args).subList(1, args.length);
+
+        run(command); //Warm up the file system cache
+        long[] firstCommandNanos = new long[runs];
+        long[] exitNanos = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] result = run(command);
+            firstCommandNanos[i] = result[0];
+            exitNanos[i] = result[1];
+        }
+        Arrays.sort(firstCommandNanos);
+        Arrays.sort(exitNanos);
+        System.out.printf("%s%n", String.join(" ", command));
+        System.out.printf("Time to first APDU: median %.1f ms, min %.1f ms%n", firstCommandNanos[runs / 2] / 1e6, firstCommandNanos[0] / 1e6);
+        System.out.printf("Time to exit:       median %.1f ms, min %.1f ms%n", exitNanos[runs / 2] / 1e6, exitNanos[0] / 1e6);
+    }
+
+    /**
+     * @return the nanos until the first command was logged, and until the process exited
+     */
+    private static long[] run(List<String> command) throws Exception {
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long firstCommand = -1;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (firstCommand < 0 && line.startsWith(FIRST_COMMAND)) {
+                firstCommand = System.nanoTime() - start;
+            }
+        }
+        int exitCode = process.waitFor();
+        long exit = System.nanoTime() - start;
+        if (exitCode != 0 || firstCommand < 0) {
+            throw new IllegalStateException("No command sent, or exit code " + exitCode + ": " + command);
+        }
+        return new long[]{firstCommand, exit};
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sasc.emv.EMVApplication;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.RSAKeyPool;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Reads the generated cards through the emulator, and validates the signed data
+ *
+ * @author sasc
+ */
+public class SyntheticCardGeneratorTest {
+
+    private static RSAKeyPool keyPool;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        BatchProcessor.initContext();
+        keyPool = new RSAKeyPool(3, 2, 2);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        keyPool.close();
+    }
+
+    @Test
+    public void shouldCreateValidSDACards() throws Exception {
+        SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+        generator.setNumIssuers(2);
+        generator.setDDAPercentage(0);
+
+        Set<String> pans = new HashSet<String>();
+        for (int cardNumber = 1; cardNumber <= 3; cardNumber++) {
+            EMVApplication app = readApplication(generator.generate(cardNumber));
+
+            assertThat(app.getIssuerPublicKeyCertificate().validate()).isTrue();
+            assertThat(app.getSignedStaticApplicationData().validate()).isTrue();
+            assertThat(app.getICCPublicKeyCertificate()).isNull();
+            assertThat(app.getPAN().isValid()).isTrue();
+            pans.add(app.getPAN().getPanAsString());
+        }
+        assertThat(pans).hasSize(3);
+    }
+
+    @Test
+    public void shouldCreateValidDDACardsWithPaddedIssuerKey() throws Exception {
+        SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+        generator.setNumIssuers(1);
+        generator.setDDAPercentage(100);
+        //Shorter than the certificate field (1152 - 288 bits): padded with 'BB'
+        generator.setIssuerKeyBits(768);
+        generator.setICCKeyBits(512);
+
+        EMVApplication app = readApplication(generator.generate(1));
+
+        assertThat(app.getIssuerPublicKeyCertificate().validate()).isTrue();
+        assertThat(app.getICCPublicKeyCertificate().validate()).isTrue();
+        assertThat(app.getSignedDynamicApplicationData()).isNotNull();
+        assertThat(app.getSignedDynamicApplicationData().validate()).isTrue();
+    }
+
+    @Test
+    public void shouldWriteCardImagesForBatchMode() throws Exception {
+        File dir = folder.newFolder("cards");
+        SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+        generator.setIssuerKeyBits(1024);
+        generator.setICCKeyBits(768);
+
+        generator.generate(dir, 4, 2);
+
+        assertThat(dir.list()).containsOnly("card-000001.xml", "card-000002.xml", "card-000003.xml", "card-000004.xml");
+        assertThat(BatchProcessor.readCard(new File(dir, "card-000004.xml").toPath()).getEmvApplications()).hasSize(1);
+    }
+
+    @Test
+    public void shouldCreateSameCardsForSameSeed() throws Exception {
+        SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+        generator.setDDAPercentage(0);
+        generator.setSeed(42);
+
+        String card = generator.generate(7);
+
+        assertThat(generator.generate(7)).isEqualTo(card);
+        assertThat(generator.generate(8)).isNotEqualTo(card);
+        assertThatThrownBy(() -> generator.setSeed(43)).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static EMVApplication readApplication(String xml) throws Exception {
+        CardEmulator emulator = new CardEmulator(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        SmartCard card = BatchProcessor.readCard(emulator);
+        assertThat(card.getEmvApplications()).hasSize(1);
+        return card.getEmvApplications().iterator().next();
+    }
+}
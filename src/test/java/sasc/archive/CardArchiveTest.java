@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.archive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sasc.archive.CardQuery.Field;
+import sasc.archive.CardQuery.OdaOutcome;
+import sasc.emv.ApplicationInterchangeProfile;
+import sasc.emv.EMVApplication;
+import sasc.emv.PAN;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Util;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardArchiveTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldQueryOnlyMatchingSegments() throws Exception {
+        File dir = folder.newFolder("archive");
+        CardArchive archive = CardArchive.open(dir);
+        archive.setMaxSegmentEntries(2);
+        archive.append(createCard("4761739001010010", true), "a", 10 * DAY);
+        archive.append(createCard("4761739001010028", false), "b", 10 * DAY);
+        archive.append(createCard("5413330089010434", true), "c", 11 * DAY);
+        archive.append(createCard("5413330089010442", true), "d", 11 * DAY);
+        archive.append(createCard("4761739001010036", true), "e", 12 * DAY);
+
+        CardQuery query = new CardQuery().where(Field.IIN, "476173").where(Field.ODA, OdaOutcome.SDA_FAILED.name());
+        CardArchive.QueryResult result = archive.query(query);
+        assertThat(result.getCards()).extracting(ArchivedCard::getSource).containsExactly("a", "e");
+        assertThat(result.getNumSegments()).isEqualTo(3);
+        assertThat(result.getNumSegmentsScanned()).isEqualTo(2);
+        assertThat(result.getCards().get(0).getJson())
+                .startsWith("{\"source\":\"a\",\"readAt\":\"1970-01-11T00:00:00Z\",\"card\":{")
+                .contains("\"pan\":\"4761739001010010\"");
+        archive.close();
+
+        //Read back from the segment footers
+        archive = CardArchive.open(dir);
+        assertThat(archive.getNumCards()).isEqualTo(5);
+        assertThat(archive.query(query).getCards()).extracting(ArchivedCard::getSource).containsExactly("a", "e");
+        assertThat(archive.query(query.readAfter(11 * DAY)).getCards()).extracting(ArchivedCard::getSource).containsExactly("e");
+        assertThat(archive.query(CardQuery.parse("rid=a0 00 00 00 04,expirymonth=2025-12")).getCards())
+                .extracting(ArchivedCard::getSource).containsExactly("c", "d");
+        assertThat(archive.query(CardQuery.parse("iin=999999")).getNumSegmentsScanned()).isZero();
+        archive.close();
+    }
+
+    @Test
+    public void shouldRecoverUnsealedSegment() throws Exception {
+        File dir = folder.newFolder("archive");
+        CardArchive archive = CardArchive.open(dir);
+        for (int i = 0; i < 3; i++) {
+            archive.append(createCard("4761739001010010", true), "card" + i, i * DAY);
+        }
+        //The process is killed while writing an entry: only the segment file is left
+        archive.flush();
+        File crashed = folder.newFolder("crashed");
+        Files.copy(new File(dir, "segment-00000001.seg").toPath(), new File(crashed, "segment-00000001.seg").toPath());
+        archive.close();
+        dir = crashed;
+        FileOutputStream out = new FileOutputStream(new File(dir, "segment-00000001.seg"), true);
+        out.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        out.close();
+
+        archive = CardArchive.open(dir);
+        assertThat(archive.getNumCards()).isEqualTo(3);
+        assertThat(archive.query(new CardQuery()).getCards()).extracting(ArchivedCard::getSource).containsExactly("card0", "card1", "card2");
+        archive.append(createCard("4761739001010010", true), "card3", 3 * DAY);
+        archive.close();
+        assertThat(dir.list()).containsExactlyInAnyOrder("segment-00000001.seg", "segment-00000002.seg", "archive.lock");
+    }
+
+    @Test
+    public void shouldQueryArchiveWhileItIsWritten() throws Exception {
+        File dir = folder.newFolder("archive");
+        CardArchive writer = CardArchive.open(dir);
+        for (int i = 0; i < 2; i++) {
+            writer.append(createCard("4761739001010010", true), "card" + i, i * DAY);
+        }
+        writer.flush();
+        File segment = new File(dir, "segment-00000001.seg");
+        //An entry being written
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        out.close();
+        long length = segment.length();
+
+        assertThatThrownBy(() -> CardArchive.open(dir)).isInstanceOf(IOException.class).hasMessageStartingWith("Archive is already open for writing");
+        CardArchive reader = CardArchive.openReadOnly(dir);
+        assertThat(reader.getNumCards()).isEqualTo(2);
+        assertThat(reader.query(new CardQuery()).getCards()).extracting(ArchivedCard::getSource).containsExactly("card0", "card1");
+        assertThatThrownBy(() -> reader.append(createCard("4761739001010010", true), "card2", 2 * DAY)).isInstanceOf(IOException.class);
+        reader.close();
+        //The live segment is not truncated or sealed
+        assertThat(segment.length()).isEqualTo(length);
+
+        writer.close();
+        CardArchive.open(dir).close();
+    }
+
+    private static SmartCard createCard(String pan, boolean sda) {
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3B 67 00 00 A6 40 40 00 09 90 00")));
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID(pan.startsWith("4") ? "a0000000031010" : "a0000000041010"));
+        app.setPAN(new PAN(pan));
+        app.setExpirationDate(Util.fromHexString("25 12 31"));
+        if (sda) {
+            //SDA supported, but no Signed Static Application Data
+            app.setApplicationInterchangeProfile(new ApplicationInterchangeProfile((byte) 0x40, (byte) 0x00));
+        }
+        card.addEMVApplication(app);
+        return card;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.CardEmulator;
+import sasc.EmulatedCards;
+import sasc.iso7816.BERTLV;
+import sasc.iso7816.TLVUtil;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Log;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Allocation budgets for the steady state transaction path: full EMV sessions are run
+ * against the card emulator in a loop (after a warm up), and the bytes allocated by the
+ * current thread are measured per phase with com.sun.management.ThreadMXBean.
+ *
+ * The budgets are in /sasc/emv/allocation-budgets.properties (bytes per operation),
+ * and can be overridden with -Dallocation.budget.&lt;key&gt;=&lt;bytes&gt;.
+ * The report (printed, and included in the failure message) shows what each phase allocated.
+ *
+ * @author sasc
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 200;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = threadMXBean();
+
+    private static String ddaCard;
+    private static Properties budgets;
+    private static Log.Level level;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Assume.assumeTrue("Thread allocation measurement not supported", THREAD_MX_BEAN != null);
+        level = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        ddaCard = EmulatedCards.getImage(EmulatedCards.Type.DDA);
+        budgets = new Properties();
+        InputStream is = AllocationBudgetTest.class.getResourceAsStream("/sasc/emv/allocation-budgets.properties");
+        try {
+            budgets.load(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        if (level != null) {
+            Log.setLevel(level);
+        }
+    }
+
+    @Test
+    public void shouldStayWithinTransactionBudgets() throws Exception {
+        Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        long apdus = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            runTransaction(new LinkedHashMap<String, Long>());
+        }
+        for (int i = 0; i < ITERATIONS; i++) {
+            apdus += runTransaction(phases);
+        }
+        long total = 0;
+        Report report = new Report("bytes/transaction");
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            long perTransaction = phase.getValue() / ITERATIONS;
+            total += perTransaction;
+            report.add(phase.getKey(), perTransaction);
+        }
+        report.add("transaction", total);
+        report.add("apdu", total * ITERATIONS / apdus);
+        report.check();
+    }
+
+    @Test
+    public void shouldStayWithinCommandAndParsingBudgets() throws Exception {
+        final CardEmulator emulator = newEmulator();
+        EMVSession session = readCard(emulator, new LinkedHashMap<String, Long>());
+        final EMVApplication app = session.getCard().getSelectedApplication();
+        ApplicationElementaryFile aef = app.getApplicationFileLocator().getApplicationElementaryFiles().get(0);
+        final byte[] readRecord = EMVAPDUCommands.readRecord(aef.getStartRecordNumber(), aef.getSFI().getValue());
+        final byte[] record = emulator.transmit(readRecord).getData();
+
+        Report report = new Report("bytes/operation");
+        long transmit = measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                emulator.transmit(readRecord);
+            }
+        });
+        report.add("emulator.transmit", transmit);
+        //The command/response handling only, without the emulator
+        report.add("EMVUtil.sendCmd", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                EMVUtil.sendCmd(emulator, readRecord);
+            }
+        }) - transmit);
+        report.add("TLVUtil.getNextTLV", measure(new Operation() {
+            @Override
+            public void run() {
+                BERTLV template = TLVUtil.getNextTLV(new ByteArrayInputStream(record));
+                ByteArrayInputStream stream = template.getValueStream();
+                while (stream.available() > 0) {
+                    TLVUtil.getNextTLV(stream);
+                }
+            }
+        }));
+        report.add("DOL.DDOL", measure(new Operation() {
+            @Override
+            public void run() {
+                EMVTerminal.constructDOLResponse(app.getDDOL(), app);
+            }
+        }));
+        report.add("DOL.CDOL1", measure(new Operation() {
+            @Override
+            public void run() {
+                EMVTerminal.constructDOLResponse(app.getCDOL1(), app);
+            }
+        }));
+        report.check();
+    }
+
+    /**
+     * @return the number of commands sent
+     */
+    private static int runTransaction(Map<String, Long> phases) throws Exception {
+        CountingEmulator emulator = newEmulator();
+        EMVSession session = readCard(emulator, phases);
+        long start = allocatedBytes();
+        session.prepareTransactionProcessing();
+        start = record(phases, "prepareTransactionProcessing", start);
+        session.generateAC(CryptogramInformationData.ARQC);
+        record(phases, "generateAC", start);
+        return emulator.commands;
+    }
+
+    private static EMVSession readCard(CardEmulator emulator, Map<String, Long> phases) throws Exception {
+        EMVTerminal.resetTVR();
+        long start = allocatedBytes();
+        SmartCard card = CardSession.createSession(emulator, EmulatedCards.newEnv()).initCard();
+        start = record(phases, "initCard", start);
+        EMVSession session = EMVSession.startSession(card, emulator);
+        session.initContext();
+        start = record(phases, "initContext", start);
+        session.selectApplication(card.getEmvApplications().iterator().next());
+        start = record(phases, "selectApplication", start);
+        session.initiateApplicationProcessing();
+        record(phases, "initiateApplicationProcessing", start);
+        return session;
+    }
+
+    private static long record(Map<String, Long> phases, String phase, long start) {
+        long now = allocatedBytes();
+        Long allocated = phases.get(phase);
+        phases.put(phase, (allocated == null ? 0 : allocated) + now - start);
+        //Exclude the bookkeeping
+        return allocatedBytes();
+    }
+
+    private interface Operation {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * @return bytes allocated per operation, after a warm up
+     */
+    private static long measure(Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP * 10; i++) {
+            operation.run();
+        }
+        long start = allocatedBytes();
+        for (int i = 0; i < ITERATIONS * 10; i++) {
+            operation.run();
+        }
+        return (allocatedBytes() - start) / (ITERATIONS * 10);
+    }
+
+    private static CountingEmulator newEmulator() throws TerminalException {
+        return new CountingEmulator(ddaCard);
+    }
+
+    private static long allocatedBytes() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    /**
+     * Measured values against the budgets
+     */
+    private static class Report {
+
+        private final StringBuilder sb = new StringBuilder();
+        private final StringBuilder exceeded = new StringBuilder();
+
+        Report(String unit) {
+            sb.append(String.format("%n%-32s %12s %12s%n", "Allocations (" + unit + ")", "measured", "budget"));
+        }
+
+        void add(String key, long measured) {
+            String budgetString = System.getProperty("allocation.budget." + key, budgets.getProperty(key));
+            if (budgetString == null) {
+                sb.append(String.format("%-32s %12d %12s%n", key, measured, "-"));
+                return;
+            }
+            long budget = Long.parseLong(budgetString.trim());
+            boolean over = measured > budget;
+            sb.append(String.format("%-32s %12d %12d%s%n", key, measured, budget, over ? "  OVER BUDGET" : ""));
+            if (over) {
+                exceeded.append(" ").append(key);
+            }
+        }
+
+        void check() {
+            System.out.print(sb);
+            assertThat(exceeded.length()).as("Over budget:" + exceeded + sb).isZero();
+        }
+    }
+
+    private static class CountingEmulator extends CardEmulator {
+
+        private int commands;
+
+        CountingEmulator(String image) throws TerminalException {
+            super(new ByteArrayInputStream(image.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public CardResponse transmit(byte[] cmd) throws TerminalException {
+            commands++;
+            return super.transmit(cmd);
+        }
+    }
+}
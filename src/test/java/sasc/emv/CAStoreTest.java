@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sasc.CardEmulator;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+import sasc.util.Util;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class CAStoreTest {
+
+    private static final byte[] TEST_RID = Util.fromHexString("A1 23 45 67 89");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+    }
+
+    @After
+    public void tearDown() {
+        CA.setRevocationList(CertificateRevocationList.EMPTY);
+    }
+
+    @Test
+    public void shouldReplaceKeysAtomically() throws Exception {
+        CAStore before = CA.getStore();
+        CA testCA = CA.getCA(TEST_RID);
+        assertThat(testCA.getPublicKey(7)).isNotNull();
+
+        File mock = writeResource("/certificationauthorities_mock.xml", "mock.xml");
+        File test = writeResource("/certificationauthorities_test.xml", "test.xml");
+        CAStore after = CA.reload(mock, test);
+
+        assertThat(after.getVersion()).isEqualTo(before.getVersion() + 1);
+        assertThat(CA.getStore()).isSameAs(after);
+        assertThat(CA.getCA(Util.fromHexString("A0 00 00 00 03"))).isNotNull();
+        //The previous version is not modified
+        assertThat(before.getCA(Util.fromHexString("A0 00 00 00 03"))).isNull();
+        assertThat(testCA.getPublicKey(7)).isNotNull();
+
+        //An invalid file does not replace the keys
+        String xml = new String(Files.readAllBytes(mock.toPath()), StandardCharsets.UTF_8);
+        Files.write(mock.toPath(), xml.replace("ba f8 97 44", "00 00 00 00").getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> CA.reload(mock))
+                .hasMessageContaining("Checksum not correct");
+        assertThat(CA.getStore()).isSameAs(after);
+    }
+
+    @Test
+    public void shouldNotReplaceKeysWithEmptyStore() throws Exception {
+        CAStore before = CA.getStore();
+        assertThatThrownBy(() -> CA.reload()).isInstanceOf(IllegalArgumentException.class);
+
+        File empty = folder.newFile("empty.xml");
+        Files.write(empty.toPath(), "<CertificationAuthorities>\n</CertificationAuthorities>\n".getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> CA.reload(empty))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("No CA Public Keys found");
+        assertThat(CA.getStore()).isSameAs(before);
+    }
+
+    @Test
+    public void shouldRejectRevokedIssuerCertificate() throws Exception {
+        EMVApplication app = readApplication();
+        IssuerPublicKeyCertificate issuerCert = app.getIssuerPublicKeyCertificate();
+        assertThat(issuerCert.isValid()).isTrue();
+        assertThat(app.getSignedStaticApplicationData().validate()).isTrue();
+
+        File crlFile = folder.newFile("crl.txt");
+        Files.write(crlFile.toPath(), ("# RID,CA Public Key Index,Certificate Serial Number\n"
+                + "A123456789,07," + Util.byteArrayToHexString(issuerCert.getCertSerialNumber()) + "\n"
+                + "A123456789,07,FFFFFF\n").getBytes(StandardCharsets.US_ASCII));
+        CertificateRevocationList crl = CertificateRevocationList.fromFile(crlFile);
+        assertThat(crl.size()).isEqualTo(2);
+        assertThat(crl.isRevoked(TEST_RID, 6, issuerCert.getCertSerialNumber())).isFalse();
+        CA.setRevocationList(crl);
+
+        app = readApplication();
+        assertThat(app.getIssuerPublicKeyCertificate().isValid()).isFalse();
+        assertThat(app.getIssuerPublicKeyCertificate().isRevoked()).isTrue();
+        assertThat(app.getSignedStaticApplicationData().validate()).isFalse();
+    }
+
+    private EMVApplication readApplication() throws Exception {
+        CardConnection conn = new CardEmulator("/sdacardtransaction.xml");
+        SmartCard smartCard = CardSession.createSession(conn, new SessionProcessingEnv()).initCard();
+        EMVSession session = EMVSession.startSession(smartCard, conn);
+        session.initContext();
+        EMVApplication app = smartCard.getEmvApplications().iterator().next();
+        session.selectApplication(app);
+        session.initiateApplicationProcessing();
+        session.prepareTransactionProcessing();
+        return app;
+    }
+
+    private File writeResource(String resource, String name) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        InputStream is = CAStoreTest.class.getResourceAsStream(resource);
+        try {
+            Files.copy(is, file.toPath());
+        } finally {
+            is.close();
+        }
+        return file;
+    }
+}
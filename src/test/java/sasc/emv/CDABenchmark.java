@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import sasc.CardEmulator;
+import sasc.SyntheticCardGenerator;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Log;
+import sasc.util.RSAKeyPool;
+
+/**
+ * Measures the time per transaction (application selection to the first GENERATE AC)
+ * with DDA (INTERNAL AUTHENTICATE, then GENERATE AC) and with CDA (signature in the
+ * GENERATE AC response), against the card emulator.
+ * Not run as part of the test suite. Run with:
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt; sasc.emv.CDABenchmark [transactions]
+ *
+ * @author sasc
+ */
+public class CDABenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        Log.setLevel(Log.Level.OFF);
+        String image;
+        RSAKeyPool keyPool = new RSAKeyPool(3, 2, 2);
+        try {
+            SyntheticCardGenerator generator = new SyntheticCardGenerator(keyPool);
+            generator.setNumIssuers(1);
+            generator.setDDAPercentage(100);
+            generator.setCDA(true);
+            image = generator.generate(1);
+        } finally {
+            keyPool.close();
+        }
+
+        TerminalConfiguration defaults = EMVTerminal.getConfiguration();
+        for (int round = 0; round < 3; round++) {
+            EMVTerminal.setConfiguration(defaults);
+            System.out.printf("DDA: %.2f ms/transaction%n", run(image, transactions));
+            EMVTerminal.setProperty("9f33", "60 c0 08");
+            System.out.printf("CDA: %.2f ms/transaction%n", run(image, transactions));
+        }
+        EMVTerminal.setConfiguration(defaults);
+    }
+
+    private static double run(String image, int transactions) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            EMVTerminal.resetTVR();
+            CardEmulator emulator = new CardEmulator(new ByteArrayInputStream(image.getBytes(StandardCharsets.UTF_8)));
+            SessionProcessingEnv env = new SessionProcessingEnv();
+            env.setInitialPauseMillis(0); //No card to power up
+            SmartCard card = CardSession.createSession(emulator, env).initCard();
+            EMVSession session = EMVSession.startSession(card, emulator);
+            session.initContext();
+            session.selectApplication(card.getEmvApplications().iterator().next());
+            session.initiateApplicationProcessing();
+            session.prepareTransactionProcessing();
+            session.generateAC(CryptogramInformationData.TC);
+            if (EMVTerminal.getTerminalVerificationResults().cdaFailed()
+                    || EMVTerminal.getTerminalVerificationResults().ddaFailed()) {
+                throw new IllegalStateException("Offline data authentication failed");
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / transactions;
+    }
+}
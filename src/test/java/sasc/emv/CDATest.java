@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.CardEmulator;
+import sasc.EmulatedCards;
+import sasc.smartcard.common.Context;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Combined DDA/Application Cryptogram Generation, using the GENERATE AC emulation
+ *
+ * @author sasc
+ */
+public class CDATest {
+
+    private static String cdaCard;
+
+    private TerminalConfiguration originalConfiguration;
+    private int internalAuthenticateCount;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        cdaCard = EmulatedCards.getImage(EmulatedCards.Type.CDA);
+    }
+
+    @Before
+    public void setUp() {
+        originalConfiguration = EMVTerminal.getConfiguration();
+        EMVTerminal.resetTVR();
+        internalAuthenticateCount = 0;
+    }
+
+    @After
+    public void tearDown() {
+        EMVTerminal.setConfiguration(originalConfiguration);
+        EMVTerminal.resetTVR();
+    }
+
+    @Test
+    public void shouldVerifyCDASignatureInGenerateAC() throws Exception {
+        EMVTerminal.setProperty("9f33", "60 c0 08");
+        EMVSession session = EmulatedCards.startTransaction(new CountingEmulator(false));
+        EMVApplication app = session.getCard().getSelectedApplication();
+
+        assertThat(internalAuthenticateCount).isZero();
+        assertThat(app.getSignedDynamicApplicationData()).isNull();
+        assertThat(EMVTerminal.getTerminalVerificationResults().cdaFailed()).isFalse();
+
+        ApplicationCryptogramDataElements ac = session.generateAC(CryptogramInformationData.TC);
+
+        assertThat(ac.getCryptogramInformationData().getCryptogramType()).isEqualTo(CryptogramInformationData.TC);
+        assertThat(ac.getApplicationCryptogram()).hasSize(8);
+        assertThat(ac.getIssuerApplicationData()).isNotNull();
+        assertThat(ac.getSignedDynamicApplicationData()).isNotNull();
+        assertThat(ac.getSignedDynamicApplicationData().validate()).isTrue();
+        assertThat(ac.getSignedDynamicApplicationData().isCombinedDDAAC()).isTrue();
+        assertThat(app.getSignedDynamicApplicationData()).isSameAs(ac.getSignedDynamicApplicationData());
+        assertThat(EMVTerminal.getTerminalVerificationResults().cdaFailed()).isFalse();
+    }
+
+    @Test
+    public void shouldFailCDAIfTransactionDataIsModified() throws Exception {
+        EMVTerminal.setProperty("9f33", "60 c0 08");
+        EMVSession session = EmulatedCards.startTransaction(new CountingEmulator(true));
+
+        ApplicationCryptogramDataElements ac = session.generateAC(CryptogramInformationData.ARQC);
+
+        assertThat(ac.getSignedDynamicApplicationData()).isNull();
+        assertThat(EMVTerminal.getTerminalVerificationResults().cdaFailed()).isTrue();
+    }
+
+    @Test
+    public void shouldNotRequestCDAForAAC() throws Exception {
+        EMVTerminal.setProperty("9f33", "60 c0 08");
+        EMVSession session = EmulatedCards.startTransaction(new CountingEmulator(false));
+
+        ApplicationCryptogramDataElements ac = session.generateAC(CryptogramInformationData.AAC);
+
+        assertThat(ac.getCryptogramInformationData().getCryptogramType()).isEqualTo(CryptogramInformationData.AAC);
+        assertThat(ac.getApplicationCryptogram()).hasSize(8);
+        assertThat(ac.getSignedDynamicApplicationData()).isNull();
+        assertThat(EMVTerminal.getTerminalVerificationResults().cdaFailed()).isFalse();
+    }
+
+    @Test
+    public void shouldPerformDDAIfTerminalDoesNotSupportCDA() throws Exception {
+        //Default Terminal Capabilities: CDA not supported
+        EMVSession session = EmulatedCards.startTransaction(new CountingEmulator(false));
+        EMVApplication app = session.getCard().getSelectedApplication();
+
+        assertThat(internalAuthenticateCount).isEqualTo(1);
+        assertThat(app.getSignedDynamicApplicationData().validate()).isTrue();
+
+        ApplicationCryptogramDataElements ac = session.generateAC(CryptogramInformationData.TC);
+
+        assertThat(ac.getApplicationCryptogram()).hasSize(8);
+        assertThat(ac.getSignedDynamicApplicationData()).isNull();
+    }
+
+    /**
+     * Counts the INTERNAL AUTHENTICATE commands, and optionally modifies the
+     * Issuer Application Data in the GENERATE AC response
+     */
+    private class CountingEmulator extends CardEmulator {
+
+        private final boolean modifyResponse;
+
+        CountingEmulator(boolean modifyResponse) throws TerminalException {
+            super(new ByteArrayInputStream(cdaCard.getBytes(StandardCharsets.UTF_8)));
+            this.modifyResponse = modifyResponse;
+        }
+
+        @Override
+        public CardResponse transmit(byte[] cmd) throws TerminalException {
+            if (cmd[0] == (byte) 0x00 && cmd[1] == (byte) 0x88) {
+                internalAuthenticateCount++;
+            }
+            final CardResponse response = super.transmit(cmd);
+            if (!modifyResponse || cmd[1] != (byte) 0xAE) {
+                return response;
+            }
+            //The Issuer Application Data is the last data object in the response
+            final byte[] data = response.getData();
+            data[data.length - 1] ^= 0x01;
+            return new CardResponse() {
+                @Override
+                public byte[] getData() {
+                    return data;
+                }
+
+                @Override
+                public byte getSW1() {
+                    return response.getSW1();
+                }
+
+                @Override
+                public byte getSW2() {
+                    return response.getSW2();
+                }
+
+                @Override
+                public short getSW() {
+                    return response.getSW();
+                }
+            };
+        }
+    }
+}
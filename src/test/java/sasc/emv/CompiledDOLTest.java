@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class CompiledDOLTest {
+
+    //Amount Authorised, Terminal Country Code, TVR, Transaction Date, Transaction Type, Unpredictable Number
+    private static final String CDOL1 = "9f 02 06 9f 1a 02 95 05 9a 03 9c 01 9f 37 04";
+
+    @Test
+    public void shouldShareCompiledDOLBetweenEqualDOLs() {
+        DOL dol1 = new DOL(DOL.Type.CDOL1, Util.fromHexString(CDOL1));
+        DOL dol2 = new DOL(DOL.Type.CDOL1, Util.fromHexString(CDOL1));
+
+        CompiledDOL compiledDOL = EMVTerminal.getCompiledDOL(dol1);
+        assertThat(EMVTerminal.getCompiledDOL(dol2)).isSameAs(compiledDOL);
+        assertThat(compiledDOL.getResponseLength()).isEqualTo(dol1.getResponseLength());
+        assertThat(compiledDOL.getNumDynamicFields()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldComputeDynamicFieldsForEachResponse() {
+        DOL dol = new DOL(DOL.Type.CDOL1, Util.fromHexString(CDOL1));
+
+        byte[] response1 = EMVTerminal.constructDOLResponse(dol, null);
+        byte[] response2 = EMVTerminal.constructDOLResponse(dol, null);
+
+        assertThat(response1.length).isEqualTo(21);
+        //Amount Authorised, from terminal.properties
+        assertThat(Arrays.copyOfRange(response1, 0, 6)).isEqualTo(Util.fromHexString("00 00 00 00 00 00"));
+        assertThat(Arrays.copyOfRange(response1, 13, 16)).isEqualTo(Util.getCurrentDateAsNumericEncodedByteArray());
+        assertThat(Arrays.copyOfRange(response1, 17, 21)).isNotEqualTo(Arrays.copyOfRange(response2, 17, 21));
+    }
+
+    @Test
+    public void shouldRecompileWhenTerminalPropertyChanges() {
+        DOL dol = new DOL(DOL.Type.CDOL1, Util.fromHexString(CDOL1));
+        CompiledDOL compiledDOL = EMVTerminal.getCompiledDOL(dol);
+        try {
+            EMVTerminal.setProperty(EMVTags.AMOUNT_AUTHORISED_NUMERIC, Util.fromHexString("00 00 00 00 12 34"));
+            assertThat(EMVTerminal.getCompiledDOL(dol)).isNotSameAs(compiledDOL);
+            byte[] response = EMVTerminal.constructDOLResponse(dol, null);
+            assertThat(Arrays.copyOfRange(response, 0, 6)).isEqualTo(Util.fromHexString("00 00 00 00 12 34"));
+        } finally {
+            EMVTerminal.setProperty(EMVTags.AMOUNT_AUTHORISED_NUMERIC, Util.fromHexString("00 00 00 00 00 00"));
+        }
+    }
+}
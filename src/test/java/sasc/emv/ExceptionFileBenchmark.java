@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+
+/**
+ * Measures the TerminalExceptionFile lookup time, with a list of a few million PANs.
+ * Not run as part of the test suite. Run with:
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes sasc.emv.ExceptionFileBenchmark [numPANs]
+ *
+ * @author sasc
+ */
+public class ExceptionFileBenchmark {
+
+    private static final int LOOKUPS = 5000000;
+
+    public static void main(String[] args) throws Exception {
+        int numPANs = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        File list = File.createTempFile("hotlist", ".txt");
+        File compiled = File.createTempFile("hotlist", ".bin");
+        list.deleteOnExit();
+        compiled.deleteOnExit();
+        Random random = new Random(1);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(list));
+        for (int i = 0; i < numPANs; i++) {
+            writer.write(String.format("4%015d", (random.nextLong() & Long.MAX_VALUE) % 1000000000000000L));
+            writer.newLine();
+        }
+        writer.close();
+
+        long start = System.nanoTime();
+        TerminalExceptionFile.compile(list, compiled, 1);
+        System.out.printf("Compiled %d PANs in %d ms (%d bytes)%n", numPANs, (System.nanoTime() - start) / 1000000, compiled.length());
+        TerminalExceptionFile exceptionFile = TerminalExceptionFile.open(compiled);
+
+        //Mostly PANs not on the list, as at a terminal: 1 in 16 replays the list's generator
+        String[] pans = new String[1024];
+        Random listedRandom = new Random(1);
+        for (int i = 0; i < pans.length; i++) {
+            long number = (i % 16 == 0 ? listedRandom : random).nextLong() & Long.MAX_VALUE;
+            pans[i] = String.format("4%015d", number % 1000000000000000L);
+        }
+        for (int round = 0; round < 3; round++) {
+            int hits = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (exceptionFile.contains(pans[i & 1023], 1)) {
+                    hits++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%.1f ns/lookup (%d hits)%n", (double) elapsed / LOOKUPS, hits);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import sasc.CardEmulator;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+
+/**
+ * Runs the emulated SDA card through application processing, so that
+ * the offline data authentication is performed by the pipeline
+ *
+ * @author sasc
+ */
+public class OfflineDataAuthenticationPipelineTest {
+
+    private SmartCard smartCard;
+    private EMVSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        CardConnection conn = new CardEmulator("/sdacardtransaction.xml");
+        smartCard = CardSession.createSession(conn, new SessionProcessingEnv()).initCard();
+        session = EMVSession.startSession(smartCard, conn);
+        session.initContext();
+    }
+
+    @Test
+    public void shouldAuthenticateStaticDataReadByPipeline() throws Exception {
+        EMVApplication app = smartCard.getEmvApplications().iterator().next();
+        session.selectApplication(app);
+        session.initiateApplicationProcessing();
+        session.prepareTransactionProcessing();
+
+        assertThat(app.getIssuerPublicKeyCertificate().isValid()).isTrue();
+        assertThat(app.getSignedStaticApplicationData().isValid()).isTrue();
+        assertThat(EMVTerminal.getTerminalVerificationResults().sdaFailed()).isFalse();
+        assertThat(EMVTerminal.getTerminalVerificationResults().ddaFailed()).isFalse();
+    }
+
+    @Test(timeout = 10000)
+    public void shouldDiscardWorkWhenCancelled() throws Exception {
+        EMVApplication app = smartCard.getEmvApplications().iterator().next();
+        session.selectApplication(app);
+        session.initiateApplicationProcessing();
+
+        OfflineDataAuthenticationPipeline pipeline = new OfflineDataAuthenticationPipeline(app);
+        pipeline.cancel();
+        pipeline.allRecordsRead();
+        //Nothing to wait for
+        pipeline.awaitCompletion();
+    }
+
+    @Test
+    public void shouldShareWorkerThreadsBetweenSessions() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            setUp();
+            shouldAuthenticateStaticDataReadByPipeline();
+        }
+        int workers = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Offline Data Authentication")) {
+                workers++;
+            }
+        }
+        assertThat(workers).isLessThanOrEqualTo(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void shouldValidateWhileRecoveryIsStillRunning() throws Exception {
+        EMVApplication app = smartCard.getEmvApplications().iterator().next();
+        session.selectApplication(app);
+        session.initiateApplicationProcessing();
+
+        //Not waiting for the pipeline: the hash is then computed over all the records read
+        assertThat(app.getSignedStaticApplicationData().validate()).isTrue();
+        assertThat(app.getIssuerPublicKeyCertificate().isValid()).isTrue();
+
+        session.prepareTransactionProcessing();
+        assertThat(app.getSignedStaticApplicationData().isValid()).isTrue();
+    }
+}
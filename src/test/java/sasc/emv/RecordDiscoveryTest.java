@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import sasc.CardEmulator;
+import sasc.smartcard.common.CardSession;
+import sasc.smartcard.common.Context;
+import sasc.smartcard.common.SessionProcessingEnv;
+import sasc.smartcard.common.SmartCard;
+import sasc.terminal.CardConnection;
+
+/**
+ * Runs record discovery against the emulated SDA card. The selected
+ * application has one file (SFI 1) with records 1-5
+ *
+ * @author sasc
+ */
+public class RecordDiscoveryTest {
+
+    private SmartCard smartCard;
+    private EMVSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        CardConnection conn = new CardEmulator("/sdacardtransaction.xml");
+        smartCard = CardSession.createSession(conn, new SessionProcessingEnv()).initCard();
+        session = EMVSession.startSession(smartCard, conn);
+        session.initContext();
+        session.selectApplication(smartCard.getEmvApplications().iterator().next());
+        session.initiateApplicationProcessing();
+    }
+
+    @Test
+    public void shouldSkipMissingFilesAndStopAfterRecordGap() throws Exception {
+        RecordDiscovery discovery = new RecordDiscovery();
+        discovery.setMaxRecordGap(4);
+
+        RecordDiscovery.Result result = session.discoverRecords(discovery);
+
+        assertThat(result.getFile(1).getStatus()).isEqualTo(RecordDiscovery.Status.SCANNED);
+        assertThat(result.getFile(1).getRecords()).containsOnlyKeys(1, 2, 3, 4, 5);
+        assertThat(result.getFile(1).getLastRecordRead()).isEqualTo(9);
+        assertThat(result.getFile(2).getStatus()).isEqualTo(RecordDiscovery.Status.NOT_FOUND);
+        assertThat(result.getNumFilesCovered()).isEqualTo(RecordDiscovery.MAX_SFI);
+        assertThat(result.isBudgetExhausted()).isFalse();
+        //SFI 1: 5 records + 4 not found. The other 29 SFIs: 6A82
+        assertThat(result.getNumCommands()).isEqualTo(9 + 29);
+    }
+
+    @Test
+    public void shouldStopWhenCommandBudgetIsUsedUp() throws Exception {
+        RecordDiscovery discovery = new RecordDiscovery();
+        discovery.setMaxCommands(3);
+
+        RecordDiscovery.Result result = session.discoverRecords(discovery);
+
+        assertThat(result.isBudgetExhausted()).isTrue();
+        assertThat(result.getNumCommands()).isEqualTo(3);
+        //The file from the AFL is read first
+        assertThat(result.getFile(1).getStatus()).isEqualTo(RecordDiscovery.Status.PARTIALLY_SCANNED);
+        assertThat(result.getFile(1).getRecords()).containsOnlyKeys(1, 2, 3);
+        assertThat(result.getFile(2).getStatus()).isEqualTo(RecordDiscovery.Status.NOT_SCANNED);
+        assertThat(result.getFiles()).hasSize(RecordDiscovery.MAX_SFI);
+        assertThat(result.getNumFilesCovered()).isZero();
+        assertThat(result.toString()).contains("Files covered: 0/30 (budget exhausted)");
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.util.Calendar;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import sasc.iso7816.SmartCardException;
+import sasc.iso7816.TLVException;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class RecordTagIndexTest {
+
+    //PAN, Expiration Date, padding, CVM List, proprietary data object
+    private static final String RECORD = "70 22 5a 08 41 11 11 11 11 11 11 11 5f 24 03 25 12 31 00 00"
+            + " 8e 0a 00 00 00 00 00 00 00 00 1e 03 df 7e 01 00";
+
+    @Test
+    public void shouldIndexRecordWithoutDecoding() {
+        RecordTagIndex index = new RecordTagIndex();
+
+        assertThat(index.add(Util.fromHexString(RECORD))).isZero();
+        assertThat(index.size()).isEqualTo(4);
+        assertThat(index.getTag(0)).isEqualTo(0x5a);
+        assertThat(index.getTag(1)).isEqualTo(0x5f24);
+        assertThat(index.getTag(3)).isEqualTo(0xdf7e);
+        assertThat(index.getValue(EMVTags.APP_EXPIRATION_DATE)).isEqualTo(Util.fromHexString("25 12 31"));
+        assertThat(index.getValue(EMVTags.CDOL1)).isNull();
+        assertThat(index.getTLV(2).getValueBytes()).hasSize(10);
+
+        //The last occurrence of a tag is used
+        assertThat(index.add(Util.fromHexString("70 06 5f 24 03 26 01 31"))).isEqualTo(4);
+        assertThat(index.getValue(EMVTags.APP_EXPIRATION_DATE)).isEqualTo(Util.fromHexString("26 01 31"));
+    }
+
+    @Test
+    public void shouldRejectInvalidRecords() {
+        RecordTagIndex index = new RecordTagIndex();
+
+        assertThatThrownBy(() -> index.add(Util.fromHexString("77 03 5a 01 41"))).isInstanceOf(SmartCardException.class);
+        assertThatThrownBy(() -> index.add(Util.fromHexString("70 04 5a 08 41 11"))).isInstanceOf(TLVException.class);
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void shouldDecodeApplicationDataLazily() {
+        EMVApplication app = new EMVApplication();
+
+        EMVUtil.parseAppRecord(Util.fromHexString(RECORD), app);
+
+        assertThat(app.getUnknownRecords().size() + app.getUnprocessedRecords().size()).isEqualTo(1);
+        assertThat(app.getPAN().getPanAsString()).isEqualTo("4111111111111111");
+        assertThat(app.getPAN()).isSameAs(app.getPAN());
+        assertThat(app.getCVMList().getRules()).hasSize(1);
+        Calendar expirationDate = Calendar.getInstance();
+        expirationDate.setTime(app.getExpirationDate());
+        assertThat(expirationDate.get(Calendar.YEAR)).isEqualTo(2025);
+        assertThat(app.getEffectiveDate()).isNull();
+        assertThat(app.getTrack1DiscretionaryData()).isNull();
+
+        //An explicitly set value is not replaced by the record data
+        app.setPAN(new PAN("5555555555554444"));
+        assertThat(app.getPAN().getPanAsString()).isEqualTo("5555555555554444");
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.assertj.core.api.Assertions.*;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TerminalConfigurationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Properties properties(String... keysAndValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            properties.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    @Test
+    public void shouldPreferOverriddenValues() {
+        TerminalConfiguration config = TerminalConfiguration.create(
+                properties("9f1a", "08 26", "9F02", "00 00 00 00 00 00"),
+                properties("9f02", "00 00 00 00 01 00"));
+
+        assertThat(config.getValue(EMVTags.TERMINAL_COUNTRY_CODE)).isEqualTo(Util.fromHexString("08 26"));
+        assertThat(config.getValue(EMVTags.AMOUNT_AUTHORISED_NUMERIC)).isEqualTo(Util.fromHexString("00 00 00 00 01 00"));
+        assertThat(config.getDefaultValue(EMVTags.AMOUNT_AUTHORISED_NUMERIC)).isEqualTo(Util.fromHexString("00 00 00 00 00 00"));
+        assertThat(config.getValue(EMVTags.TERMINAL_FLOOR_LIMIT)).isNull();
+    }
+
+    @Test
+    public void shouldRejectOverrideWithDifferentLength() {
+        assertThatThrownBy(() -> TerminalConfiguration.create(properties("9f1a", "08 26"), properties("9f1a", "08")))
+                .isInstanceOf(IllegalArgumentException.class);
+        TerminalConfiguration config = TerminalConfiguration.create(properties("9f1a", "08 26"), null);
+        assertThatThrownBy(() -> config.withOverride(EMVTags.TERMINAL_COUNTRY_CODE, new byte[]{0x08}))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldRejectSetPropertyWithDifferentLength() {
+        TerminalConfiguration original = EMVTerminal.getConfiguration();
+        //The default Terminal Country Code (9f1a) is 2 bytes
+        assertThatThrownBy(() -> EMVTerminal.setProperty("9f1a", "08"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> EMVTerminal.setProperty("9f1a", "00 08 26"))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(EMVTerminal.getConfiguration()).isSameAs(original);
+        try {
+            EMVTerminal.setProperty("9f1a", "05 78");
+            assertThat(EMVTerminal.getConfiguration().getValue(EMVTags.TERMINAL_COUNTRY_CODE)).isEqualTo(Util.fromHexString("05 78"));
+        } finally {
+            EMVTerminal.setProperty("9f1a", Util.byteArrayToHexString(original.getValue(EMVTags.TERMINAL_COUNTRY_CODE)));
+        }
+    }
+
+    @Test
+    public void shouldNotModifySnapshot() {
+        TerminalConfiguration config = TerminalConfiguration.create(properties("9c", "00"), null);
+        TerminalConfiguration updated = config.withOverride(EMVTags.TRANSACTION_TYPE, new byte[]{0x01});
+
+        assertThat(config.getValue(EMVTags.TRANSACTION_TYPE)).isEqualTo(new byte[]{0x00});
+        assertThat(updated.getValue(EMVTags.TRANSACTION_TYPE)).isEqualTo(new byte[]{0x01});
+        assertThat(updated.getGeneration()).isNotEqualTo(config.getGeneration());
+    }
+
+    private static void write(File file, String content) throws Exception {
+        //Replace the file atomically, as a deployment tool would
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(content.getBytes("US-ASCII"));
+        } finally {
+            os.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Test
+    public void shouldReloadOverriddenValuesWhenFileChanges() throws Exception {
+        File file = folder.newFile("terminal.properties");
+        TerminalConfiguration original = EMVTerminal.getConfiguration();
+        TerminalConfigurationWatcher watcher = EMVTerminal.watchConfiguration(file);
+        try {
+            write(file, "9f1b=00 00 27 10\n");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (EMVTerminal.getConfiguration().getValue(EMVTags.TERMINAL_FLOOR_LIMIT) == null
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertThat(EMVTerminal.getConfiguration().getValue(EMVTags.TERMINAL_FLOOR_LIMIT)).isEqualTo(Util.fromHexString("00 00 27 10"));
+            assertThat(EMVTerminal.getConfiguration().getValue(EMVTags.TERMINAL_COUNTRY_CODE)).isEqualTo(original.getValue(EMVTags.TERMINAL_COUNTRY_CODE));
+
+            watcher.close();
+            //An invalid file is ignored
+            write(file, "9f1a=08\n");
+            assertThat(watcher.reload()).isFalse();
+            assertThat(EMVTerminal.getConfiguration().getValue(EMVTags.TERMINAL_FLOOR_LIMIT)).isEqualTo(Util.fromHexString("00 00 27 10"));
+        } finally {
+            watcher.close();
+            EMVTerminal.setConfiguration(original);
+        }
+    }
+}
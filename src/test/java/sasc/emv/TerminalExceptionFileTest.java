@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.io.PrintWriter;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TerminalExceptionFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        EMVTerminal.setExceptionFile(null);
+    }
+
+    @Test
+    public void shouldFindListedPANs() throws Exception {
+        File list = folder.newFile("hotlist.txt");
+        PrintWriter writer = new PrintWriter(list, "US-ASCII");
+        writer.println("# Version 1");
+        for (int i = 0; i < 20000; i += 2) {
+            writer.println(String.format("541111%010d", i));
+        }
+        writer.println("4761739001010010,01");
+        writer.println("5411110000000000"); //Duplicate
+        writer.close();
+        File compiled = new File(folder.getRoot(), "hotlist.bin");
+
+        assertThat(TerminalExceptionFile.compile(list, compiled, 1)).isEqualTo(10001);
+
+        TerminalExceptionFile exceptionFile = TerminalExceptionFile.open(compiled);
+        assertThat(exceptionFile.getVersion()).isEqualTo(1);
+        assertThat(exceptionFile.size()).isEqualTo(10001);
+        for (int i = 0; i < 20000; i++) {
+            String pan = String.format("541111%010d", i);
+            assertThat(exceptionFile.contains(pan, -1)).as(pan).isEqualTo(i % 2 == 0);
+            assertThat(exceptionFile.contains(pan, 1)).as(pan).isEqualTo(i % 2 == 0);
+        }
+        assertThat(exceptionFile.contains("4761739001010010", 1)).isTrue();
+        assertThat(exceptionFile.contains("4761739001010010", 2)).isFalse();
+        assertThat(exceptionFile.contains("4761739001010010", -1)).isFalse();
+        assertThat(exceptionFile.contains("47617390010100100", 1)).isFalse();
+        assertThat(exceptionFile.contains("4761A39001010010", 1)).isFalse();
+    }
+
+    @Test
+    public void shouldInstallNewVersion() throws Exception {
+        File list = folder.newFile("hotlist.txt");
+        File compiled = new File(folder.getRoot(), "hotlist.bin");
+        write(list, "5411118888888882");
+        TerminalExceptionFile.compile(list, compiled, 1);
+        assertThat(EMVTerminal.loadExceptionFile(compiled)).isNull();
+        TerminalExceptionFile version1 = EMVTerminal.getExceptionFile();
+
+        write(list, "4761739001010010");
+        TerminalExceptionFile.compile(list, compiled, 2);
+        assertThat(EMVTerminal.loadExceptionFile(compiled)).isSameAs(version1);
+
+        //The previous version is still usable by the sessions holding it
+        assertThat(version1.contains("5411118888888882", -1)).isTrue();
+        assertThat(EMVTerminal.getExceptionFile().getVersion()).isEqualTo(2);
+        assertThat(EMVTerminal.getExceptionFile().contains("5411118888888882", -1)).isFalse();
+        assertThat(EMVTerminal.getExceptionFile().contains("4761739001010010", -1)).isTrue();
+    }
+
+    @Test
+    public void shouldRejectInvalidEntries() throws Exception {
+        File list = folder.newFile("hotlist.txt");
+        write(list, "5411118888888882\n54111188888X8882");
+
+        assertThatThrownBy(() -> TerminalExceptionFile.compile(list, new File(folder.getRoot(), "hotlist.bin"), 1))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 2");
+    }
+
+    private static void write(File file, String content) throws Exception {
+        PrintWriter writer = new PrintWriter(file, "US-ASCII");
+        writer.println(content);
+        writer.close();
+    }
+}
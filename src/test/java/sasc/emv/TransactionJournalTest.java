@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sasc.EmulatedCards;
+import sasc.smartcard.common.Context;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class TransactionJournalTest {
+
+    private static final String PAN_1 = "5411118888888882";
+    private static final String PAN_2 = "4761739001010010";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFindMostRecentEntryAfterReopening() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TransactionJournal journal = TransactionJournal.open(file, 16);
+        assertThat(journal.findLatest(PAN_1)).isNull();
+        journal.record(PAN_1, 1, 1000, 10);
+        journal.record(PAN_2, -1, 2500, 11);
+        journal.record(PAN_1, 1, 700, 12);
+        assertThat(journal.findLatest(PAN_1).getAmount()).isEqualTo(700);
+        assertThat(journal.findLatest(PAN_2).getPANSequenceNumber()).isEqualTo(-1);
+        assertThat(journal.getNumPANs()).isEqualTo(2);
+        journal.close();
+
+        //The PANs are not stored in the clear
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1)).doesNotContain(PAN_1);
+
+        journal = TransactionJournal.open(file, 1024);
+        assertThat(journal.getCapacity()).isEqualTo(16);
+        TransactionJournal.Entry entry = journal.findLatest(PAN_1);
+        assertThat(entry.getAmount()).isEqualTo(700);
+        assertThat(entry.getTimestamp()).isEqualTo(12);
+        assertThat(entry.getPANSequenceNumber()).isEqualTo(1);
+        journal.record(PAN_2, -1, 300, 13);
+        assertThat(journal.findLatest(PAN_2).getAmount()).isEqualTo(300);
+        journal.close();
+    }
+
+    @Test
+    public void shouldDropOverwrittenEntriesFromIndex() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TransactionJournal journal = TransactionJournal.open(file, 8);
+        List<String> pans = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            pans.add(String.format("54111188%08d", i));
+            journal.record(pans.get(i), -1, i, i);
+        }
+        //Only the last 8 transactions are kept
+        assertThat(journal.getNumPANs()).isEqualTo(8);
+        for (int i = 0; i < 20; i++) {
+            if (i < 12) {
+                assertThat(journal.findLatest(pans.get(i))).isNull();
+            } else {
+                assertThat(journal.findLatest(pans.get(i)).getAmount()).isEqualTo(i);
+            }
+        }
+        journal.close();
+
+        journal = TransactionJournal.open(file);
+        assertThat(journal.getNumPANs()).isEqualTo(8);
+        assertThat(journal.findLatest(pans.get(11))).isNull();
+        assertThat(journal.findLatest(pans.get(12)).getAmount()).isEqualTo(12);
+        journal.close();
+    }
+
+    @Test
+    public void shouldRecordFromConcurrentSessions() throws Exception {
+        final TransactionJournal journal = TransactionJournal.open(new File(folder.getRoot(), "journal"), 4096);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        String pan = String.format("4761%04d%08d", thread, i % 100);
+                        journal.record(pan, -1, i, i);
+                        assertThat(journal.findLatest(pan).getAmount()).isEqualTo(i);
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failure.get()).isNull();
+        assertThat(journal.getNumPANs()).isEqualTo(400);
+        assertThat(journal.findLatest("4761000300000099").getAmount()).isEqualTo(499);
+        journal.close();
+    }
+
+    @Test
+    public void shouldAddEarlierApprovedAmountWhenCheckingFloorLimit() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        String sdaCard = EmulatedCards.getImage(EmulatedCards.Type.SDA);
+        TerminalConfiguration originalConfiguration = EMVTerminal.getConfiguration();
+        TransactionJournal journal = TransactionJournal.open(new File(folder.getRoot(), "journal"), 16);
+        EMVTerminal.setTransactionJournal(journal);
+        try {
+            //Floor limit 100.00, Amount, Authorised 60.00
+            EMVTerminal.setProperty("9f1b", "00 00 27 10");
+            EMVTerminal.setProperty("9f02", "00 00 00 00 60 00");
+
+            //Below the floor limit: approved offline, and recorded in the journal
+            EMVTerminal.resetTVR();
+            EMVSession session = EmulatedCards.startTransaction(EmulatedCards.newEmulator(sdaCard));
+            assertThat(EMVTerminal.getTerminalVerificationResults().transactionExceedsFloorLimit()).isFalse();
+            session.generateAC(CryptogramInformationData.TC);
+            String pan = session.getCard().getSelectedApplication().getPAN().getPanAsString();
+            assertThat(journal.findLatest(pan).getAmount()).isEqualTo(6000);
+
+            //Split sale: 60.00 + 60.00 >= 100.00
+            EMVTerminal.resetTVR();
+            EmulatedCards.startTransaction(EmulatedCards.newEmulator(sdaCard));
+            assertThat(EMVTerminal.getTerminalVerificationResults().transactionExceedsFloorLimit()).isTrue();
+        } finally {
+            EMVTerminal.setTransactionJournal(null);
+            EMVTerminal.setConfiguration(originalConfiguration);
+            EMVTerminal.resetTVR();
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.emv.system.visa;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import sasc.CardEmulator;
+import sasc.EmulatedCards;
+import sasc.emv.CA;
+import sasc.emv.CryptogramInformationData;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVSession;
+import sasc.emv.EMVTerminal;
+import sasc.smartcard.common.Context;
+import sasc.terminal.CardResponse;
+import sasc.terminal.TerminalException;
+import sasc.util.Util;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Visa qVSDC transactions against the card emulator
+ *
+ * @author sasc
+ */
+public class QVSDCKernelTest {
+
+    private static String qVSDCCard;
+    private static String sdaCard;
+
+    private int commandCount;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        qVSDCCard = EmulatedCards.getImage(EmulatedCards.Type.QVSDC);
+        sdaCard = EmulatedCards.getImage(EmulatedCards.Type.SDA);
+    }
+
+    @Before
+    public void setUp() {
+        commandCount = 0;
+    }
+
+    @Test
+    public void shouldApproveOfflineWithoutCommandsAfterLastReadRecord() throws Exception {
+        EMVSession session = EmulatedCards.readCard(new CountingEmulator(qVSDCCard, false));
+        EMVApplication app = session.getCard().getSelectedApplication();
+        int commandsSent = commandCount;
+
+        QVSDCTransaction transaction = session.completeQVSDCTransaction();
+
+        assertThat(commandCount).isEqualTo(commandsSent);
+        assertThat(transaction.getOutcome()).isEqualTo(QVSDCTransaction.Outcome.APPROVED);
+        assertThat(transaction.getCryptogramInformationData().getCryptogramType()).isEqualTo(CryptogramInformationData.TC);
+        assertThat(transaction.getApplicationCryptogram()).hasSize(8).isNotEqualTo(new byte[8]);
+        assertThat(transaction.isFDDAPerformed()).isTrue();
+        assertThat(transaction.isFDDAFailed()).isFalse();
+        assertThat(transaction.getResultTimeMillis()).isGreaterThanOrEqualTo(transaction.getTapTimeMillis());
+        assertThat(app.getSignedDynamicApplicationData().isValid()).isTrue();
+        assertThat(EMVTerminal.getTerminalVerificationResults().ddaFailed()).isFalse();
+    }
+
+    @Test
+    public void shouldDeclineIfFDDAFails() throws Exception {
+        EMVSession session = EmulatedCards.readCard(new CountingEmulator(qVSDCCard, true));
+
+        QVSDCTransaction transaction = session.completeQVSDCTransaction();
+
+        assertThat(transaction.isFDDAPerformed()).isTrue();
+        assertThat(transaction.isFDDAFailed()).isTrue();
+        //The default Terminal Transaction Qualifiers: the reader is offline only
+        assertThat(transaction.getOutcome()).isEqualTo(QVSDCTransaction.Outcome.DECLINED);
+        assertThat(EMVTerminal.getTerminalVerificationResults().ddaFailed()).isTrue();
+    }
+
+    @Test
+    public void shouldContinueWithContactFlowForOtherCards() throws Exception {
+        EMVSession session = EmulatedCards.readCard(new CountingEmulator(sdaCard, false));
+
+        assertThat(session.completeQVSDCTransaction()).isNull();
+        session.prepareTransactionProcessing();
+    }
+
+    @Test
+    public void shouldTakeCryptogramTypeFromIssuerApplicationData() {
+        assertThat(QVSDCKernel.getCryptogramInformationData(new byte[]{(byte) 0x80}, null)).isEqualTo(CryptogramInformationData.ARQC);
+        assertThat(QVSDCKernel.getCryptogramInformationData(null, Util.fromHexString("06 01 12 03 10 00 00"))).isEqualTo(CryptogramInformationData.TC);
+        assertThat(QVSDCKernel.getCryptogramInformationData(null, Util.fromHexString("06 01 0A 03 A0 00 00"))).isEqualTo(CryptogramInformationData.ARQC);
+        assertThat(QVSDCKernel.getCryptogramInformationData(null, Util.fromHexString("06 01 12 03 00 00 00"))).isEqualTo(CryptogramInformationData.AAC);
+    }
+
+    /**
+     * Counts the commands, and optionally modifies the signature in the GET PROCESSING OPTIONS response
+     */
+    private class CountingEmulator extends CardEmulator {
+
+        private final boolean modifySignature;
+
+        CountingEmulator(String image, boolean modifySignature) throws TerminalException {
+            super(new ByteArrayInputStream(image.getBytes(StandardCharsets.UTF_8)));
+            this.modifySignature = modifySignature;
+        }
+
+        @Override
+        public CardResponse transmit(byte[] cmd) throws TerminalException {
+            commandCount++;
+            final CardResponse response = super.transmit(cmd);
+            if (!modifySignature || cmd[1] != (byte) 0xA8) {
+                return response;
+            }
+            final byte[] data = response.getData();
+            for (int i = 0; i < data.length - 1; i++) {
+                if (data[i] == (byte) 0x9F && data[i + 1] == (byte) 0x4B) {
+                    data[i + 10] ^= 0x01;
+                    break;
+                }
+            }
+            return new CardResponse() {
+                @Override
+                public byte[] getData() {
+                    return data;
+                }
+
+                @Override
+                public byte getSW1() {
+                    return response.getSW1();
+                }
+
+                @Override
+                public byte getSW2() {
+                    return response.getSW2();
+                }
+
+                @Override
+                public short getSW() {
+                    return response.getSW();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+import sasc.emv.EMVApplication;
+import sasc.emv.EMVTags;
+import sasc.emv.LogFormat;
+import sasc.emv.PAN;
+import sasc.emv.TransactionLog;
+import sasc.iso7816.AID;
+import sasc.iso7816.ATR;
+import sasc.iso7816.BERTLV;
+import sasc.smartcard.common.SmartCard;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class CardExporterTest {
+
+    private static SmartCard createCard() {
+        SmartCard card = new SmartCard(new ATR(Util.fromHexString("3b 02 14 50")));
+        EMVApplication app = new EMVApplication();
+        app.setAID(new AID("a0000000031010"));
+        app.setLabel("VISA \"Debit\"");
+        app.setPAN(new PAN("4111111111111111"));
+        app.setExpirationDate(Util.fromHexString("25 12 31"));
+        card.addEMVApplication(app);
+        card.addUnhandledRecord(new BERTLV(EMVTags.ISSUER_COUNTRY_CODE, Util.fromHexString("08 26")));
+        return card;
+    }
+
+    @Test
+    public void shouldWriteOneJsonLinePerCard() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CardExporter exporter = CardExporter.jsonLines(out);
+        exporter.writeCard(createCard());
+        exporter.writeCard(createCard());
+        exporter.flush();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(lines[0]).isEqualTo(lines[1]);
+        assertThat(lines[0]).isEqualTo("{\"type\":\"UNKNOWN\",\"atrs\":[\"3b021450\"],"
+                + "\"applications\":[{\"aid\":\"a0000000031010\",\"label\":\"VISA \\\"Debit\\\"\",\"pan\":\"4111111111111111\","
+                + "\"expirationDate\":\"2025-12-31\"}],"
+                + "\"unhandledRecords\":[{\"tag\":\"5f28\",\"value\":\"0826\"}]}");
+    }
+
+    @Test
+    public void shouldEncodeCbor() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out);
+        writer.beginObject();
+        writer.name("a").value(1);
+        writer.name("b").value(-500);
+        writer.name("c").value(new byte[]{0x08, 0x26}, 0, 2);
+        writer.name("é").value(true);
+        writer.endObject();
+        writer.endRecord();
+
+        assertThat(out.toByteArray()).isEqualTo(Util.fromHexString(
+                "bf 61 61 01 61 62 39 01 f3 61 63 42 08 26 62 c3 a9 f5 ff"));
+    }
+
+    @Test
+    public void shouldEscapeJsonStrings() throws Exception {
+        StringWriter out = new StringWriter();
+        JsonLinesWriter writer = new JsonLinesWriter(out);
+        writer.beginArray().value("a\\b\n\u0001").nullValue().value(false).endArray().endRecord();
+        assertThat(out.toString()).isEqualTo("[\"a\\\\b\\n\\u0001\",null,false]\n");
+    }
+
+    @Test
+    public void shouldRejectIncompleteRecord() throws Exception {
+        JsonLinesWriter writer = new JsonLinesWriter(new StringWriter());
+        writer.beginObject();
+        assertThatThrownBy(() -> writer.endRecord()).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> writer.endArray().name("x").name("y")).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldWriteShortTransactionLogRecordAsRaw() throws Exception {
+        //Amount (9F02, 6 bytes) and Transaction Date (9A, 3 bytes)
+        LogFormat logFormat = new LogFormat(Util.fromHexString("9f 02 06 9a 03"));
+        TransactionLog.Record record = mock(TransactionLog.Record.class);
+        when(record.getRawData()).thenReturn(Util.fromHexString("00 00 00 00 12 34 25 12"));
+        TransactionLog log = mock(TransactionLog.class);
+        when(log.getLogFormat()).thenReturn(logFormat);
+        when(log.getRecords()).thenReturn(Arrays.asList(record));
+
+        StringWriter out = new StringWriter();
+        CardExporter exporter = new CardExporter(new JsonLinesWriter(out));
+        exporter.writeTransactionLog(log);
+        exporter.getWriter().endRecord();
+        exporter.flush();
+
+        assertThat(out.toString()).isEqualTo("{\"records\":[{\"9f02\":\"000000001234\",\"raw\":\"2512\"}]}\n");
+    }
+}
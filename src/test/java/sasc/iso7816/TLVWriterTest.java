@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.iso7816;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+import sasc.emv.DOL;
+import sasc.emv.EMVAPDUCommands;
+import sasc.emv.EMVTags;
+import sasc.util.Util;
+
+/**
+ *
+ * @author sasc
+ */
+public class TLVWriterTest {
+
+    @Test
+    public void shouldEncodeShortAndLongFormLengths() {
+        assertThat(BERTLV.encodeLength(0)).isEqualTo(Util.fromHexString("00"));
+        assertThat(BERTLV.encodeLength(127)).isEqualTo(Util.fromHexString("7f"));
+        assertThat(BERTLV.encodeLength(128)).isEqualTo(Util.fromHexString("81 80"));
+        assertThat(BERTLV.encodeLength(255)).isEqualTo(Util.fromHexString("81 ff"));
+        assertThat(BERTLV.encodeLength(256)).isEqualTo(Util.fromHexString("82 01 00"));
+        assertThat(BERTLV.encodeLength(0x10000)).isEqualTo(Util.fromHexString("83 01 00 00"));
+    }
+
+    @Test
+    public void shouldWriteNestedTemplates() {
+        TLVWriter writer = new TLVWriter(new byte[64]);
+        writer.startTemplate(EMVTags.FCI_TEMPLATE);
+        writer.write(EMVTags.DEDICATED_FILE_NAME, Util.fromHexString("32 50 41 59 2e 53 59 53 2e 44 44 46 30 31"));
+        writer.startTemplate(EMVTags.FCI_PROPRIETARY_TEMPLATE);
+        writer.startTemplate(EMVTags.FCI_ISSUER_DISCRETIONARY_DATA);
+        writer.startTemplate(EMVTags.APPLICATION_TEMPLATE);
+        writer.write(EMVTags.AID_CARD, Util.fromHexString("a0 00 00 00 04 10 10"));
+        writer.writeByte(EMVTags.APPLICATION_PRIORITY_INDICATOR, 0x01);
+        writer.endTemplate();
+        writer.endTemplate();
+        writer.endTemplate();
+        writer.endTemplate();
+
+        assertThat(writer.toByteArray()).isEqualTo(Util.fromHexString(
+                "6f 23 84 0e 32 50 41 59 2e 53 59 53 2e 44 44 46 30 31 a5 11 bf 0c 0e 61 0c 4f 07 a0 00 00 00 04 10 10 87 01 01"));
+    }
+
+    @Test
+    public void shouldMoveContentWhenTemplateNeedsLongFormLength() {
+        byte[] value = new byte[200];
+        value[199] = 0x42;
+        TLVWriter writer = new TLVWriter(new byte[256]);
+        writer.startTemplate(EMVTags.RECORD_TEMPLATE);
+        writer.write(EMVTags.ISSUER_PUBLIC_KEY_CERT, value);
+        writer.endTemplate();
+
+        byte[] encoded = writer.toByteArray();
+        assertThat(encoded.length).isEqualTo(1 + 2 + 1 + 2 + 200);
+        BERTLV template = TLVUtil.getNextTLV(new ByteArrayInputStream(encoded));
+        assertThat(template.getLength()).isEqualTo(203);
+        BERTLV cert = TLVUtil.getNextTLV(template.getValueStream());
+        assertThat(cert.getValueBytes()).isEqualTo(value);
+    }
+
+    @Test
+    public void shouldBeReusableAfterReset() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) 0x99); //Data owned by the caller, before the writer's start position
+        TLVWriter writer = new TLVWriter(buffer);
+        writer.writeShort(EMVTags.APP_TRANSACTION_COUNTER, 0x1234);
+        assertThat(writer.toByteArray()).isEqualTo(Util.fromHexString("9f 36 02 12 34"));
+        writer.reset();
+        writer.writeByte(EMVTags.PIN_TRY_COUNTER, 3);
+        assertThat(writer.toByteArray()).isEqualTo(Util.fromHexString("9f 17 01 03"));
+        assertThat(buffer.get(0)).isEqualTo((byte) 0x99);
+    }
+
+    @Test
+    public void shouldRejectUnbalancedTemplates() {
+        TLVWriter writer = new TLVWriter(new byte[16]);
+        assertThatThrownBy(() -> writer.endTemplate()).isInstanceOf(IllegalStateException.class);
+        writer.startTemplate(EMVTags.FCI_TEMPLATE);
+        assertThatThrownBy(() -> writer.toByteArray()).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void shouldBuildGetProcessingOptionsCommand() {
+        assertThat(EMVAPDUCommands.getProcessingOpts(null, null)).isEqualTo(Util.fromHexString("80 A8 00 00 02 83 00 00"));
+
+        DOL pdol = new DOL(DOL.Type.PDOL, Util.fromHexString("9f 1a 02 5f 2a 02"));
+        byte[] command = EMVAPDUCommands.getProcessingOpts(pdol, null);
+        assertThat(command.length).isEqualTo(5 + 2 + 4 + 1);
+        assertThat(command[4]).isEqualTo((byte) 0x06);
+        assertThat(command[5]).isEqualTo((byte) 0x83);
+        assertThat(command[6]).isEqualTo((byte) 0x04);
+    }
+
+    @Test
+    public void shouldBuildGenerateACCommand() {
+        assertThat(EMVAPDUCommands.generateAC((byte) 0x80, Util.fromHexString("01 02 03")))
+                .isEqualTo(Util.fromHexString("80 AE 80 00 03 01 02 03 00"));
+    }
+}
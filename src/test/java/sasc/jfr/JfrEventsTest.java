@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.jfr;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+import sasc.EmulatedCards;
+import sasc.emv.CA;
+import sasc.emv.CryptogramInformationData;
+import sasc.emv.EMVSession;
+import sasc.emv.EMVTerminal;
+import sasc.smartcard.common.Context;
+import sasc.util.Log;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Records a DDA transaction against the card emulator with the bundled settings file
+ *
+ * @author sasc
+ */
+public class JfrEventsTest {
+
+    @Test
+    public void shouldRecordEventsWithBundledSettings() throws Exception {
+        Configuration configuration;
+        try (Reader reader = new InputStreamReader(JfrEventsTest.class.getResourceAsStream("/sasc/jfr/emv-reader.jfc"), StandardCharsets.UTF_8)) {
+            configuration = Configuration.create(reader);
+        }
+        assertThat(configuration.getSettings()).containsEntry("sasc.Apdu#enabled", "true");
+
+        Context.init();
+        CA.initFromFile("/certificationauthorities_mock.xml");
+        String image = EmulatedCards.getImage(EmulatedCards.Type.DDA);
+
+        Path file = Files.createTempFile("emv", ".jfr");
+        Log.Level level = Log.getLevel();
+        Log.setLevel(Log.Level.OFF);
+        try (Recording recording = new Recording(configuration)) {
+            recording.start();
+            EMVTerminal.resetTVR();
+            EMVSession session = EmulatedCards.startTransaction(EmulatedCards.newEmulator(image));
+            session.generateAC(CryptogramInformationData.ARQC);
+            recording.stop();
+            recording.dump(file);
+
+            List<String> phases = new ArrayList<String>();
+            List<String> validations = new ArrayList<String>();
+            int apdus = 0;
+            int rsa = 0;
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                if (name.equals("sasc.Apdu")) {
+                    apdus++;
+                } else if (name.equals("sasc.RSA")) {
+                    rsa++;
+                } else if (name.equals("sasc.SessionPhase")) {
+                    assertThat(event.getBoolean("completed")).isTrue();
+                    phases.add(event.getString("phase"));
+                } else if (name.equals("sasc.CertificateValidation")) {
+                    assertThat(event.getBoolean("valid")).isTrue();
+                    validations.add(event.getString("type"));
+                }
+            }
+            assertThat(apdus).isGreaterThan(5);
+            assertThat(rsa).isGreaterThanOrEqualTo(2);
+            assertThat(phases).containsExactly(SessionPhaseEvent.INIT_CONTEXT, SessionPhaseEvent.SELECT_APPLICATION,
+                    SessionPhaseEvent.INITIATE_APPLICATION_PROCESSING, SessionPhaseEvent.PREPARE_TRANSACTION_PROCESSING,
+                    SessionPhaseEvent.GENERATE_AC);
+            assertThat(validations).contains(CertificateValidationEvent.ISSUER_PUBLIC_KEY_CERTIFICATE,
+                    CertificateValidationEvent.ICC_PUBLIC_KEY_CERTIFICATE);
+        } finally {
+            Log.setLevel(level);
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class BCDTest {
+
+    @Test
+    public void shouldDecodeNumeric() {
+        assertThat(BCD.decode((byte) 0x70)).isEqualTo(70);
+        assertThat(BCD.decodeInt(Util.fromHexString("09 78"), 0, 2)).isEqualTo(978);
+        assertThat(BCD.decodeInt(Util.fromHexString("21 47 48 36 47"), 0, 5)).isEqualTo(Integer.MAX_VALUE);
+        assertThat(BCD.decodeLong(Util.fromHexString("00 00 00 01 23 45"), 0, 6)).isEqualTo(12345L);
+        assertThat(BCD.decodeLong(Util.fromHexString("99 99 99 99 99 99 99 99 99"), 0, 9)).isEqualTo(999999999999999999L);
+        assertThat(BCD.decodeNibbles(Util.fromHexString("d1 20 36"), 1, 4)).isEqualTo(1203);
+        for (int i = 0; i < 100; i++) {
+            assertThat(BCD.decode(BCD.encode(i))).isEqualTo(i);
+            assertThat(BCD.decode(BCD.encode(i))).isEqualTo(Integer.parseInt(Util.byte2Hex(BCD.encode(i))));
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidNumeric() {
+        assertThatThrownBy(() -> BCD.decode((byte) 0x1A)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BCD.decodeInt(Util.fromHexString("21 47 48 36 48"), 0, 5)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BCD.decodeInt(new byte[2], 1, 2)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> BCD.encode(100)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldDecodeCompressedNumeric() {
+        byte[] data = Util.fromHexString("45 67 8F FF");
+        assertThat(BCD.countCompressedNumericDigits(data, 0, 4)).isEqualTo(5);
+        assertThat(BCD.decodeCompressedNumeric(data, 0, 4)).isEqualTo(45678L);
+        assertThat(BCD.decodeCompressedNumeric(Util.fromHexString("12 34 56 78"), 0, 4)).isEqualTo(12345678L);
+        assertThat(BCD.decodeCompressedNumeric(Util.fromHexString("FF"), 0, 1)).isZero();
+    }
+
+    @Test
+    public void shouldDecodeAndEncodeDates() {
+        byte[] data = Util.fromHexString("00 25 12 31");
+        assertThat(BCD.decodeDate(data, 1)).isEqualTo(LocalDate.of(2025, 12, 31));
+        assertThat(BCD.decodeYearMonth(data, 1)).isEqualTo(YearMonth.of(2025, 12));
+        assertThat(BCD.decodeYearMonthNibbles(Util.fromHexString("d1 20 36"), 1)).isEqualTo(YearMonth.of(2012, 3));
+        assertThat(BCD.encodeDate(LocalDate.of(2024, 2, 29))).isEqualTo(Util.fromHexString("24 02 29"));
+    }
+
+    @Test
+    public void shouldRollOverOutOfRangeDates() {
+        assertThat(BCD.decodeDate(Util.fromHexString("25 03 00"), 0)).isEqualTo(LocalDate.of(2025, 2, 28));
+        assertThat(BCD.decodeDate(Util.fromHexString("25 00 00"), 0)).isEqualTo(LocalDate.of(2024, 11, 30));
+        assertThat(BCD.decodeDate(Util.fromHexString("25 02 30"), 0)).isEqualTo(LocalDate.of(2025, 3, 2));
+        assertThat(BCD.decodeDate(Util.fromHexString("00 00 00"), 0)).isEqualTo(LocalDate.of(1999, 11, 30));
+        assertThat(BCD.decodeYearMonth(Util.fromHexString("25 13"), 0)).isEqualTo(YearMonth.of(2026, 1));
+        assertThatThrownBy(() -> BCD.decodeDate(Util.fromHexString("25 0A 01"), 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ByteArrayInternerTest {
+
+    @Test
+    public void shouldReturnCanonicalInstance() {
+        ByteArrayInterner interner = new ByteArrayInterner();
+        byte[] data = Util.fromHexString("70 05 5a 03 12 34 56");
+
+        byte[] canonical = interner.get(data, 0, data.length);
+        assertThat(canonical).isEqualTo(data).isNotSameAs(data);
+        assertThat(interner.get(new byte[]{0x12, 0x70, 0x05, 0x5a, 0x03, 0x12, 0x34, 0x56}, 1, 7)).isSameAs(canonical);
+        assertThat(interner.get(new byte[0], 0, 0)).isNotSameAs(canonical);
+        assertThat(interner.getNumInterned()).isEqualTo(3);
+        assertThat(interner.getNumShared()).isEqualTo(1);
+        assertThat(interner.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCopyOwnedArray() {
+        byte[] data = Util.fromHexString("70 03 9f 4a 01 82 c7 d1 0a");
+        byte[] canonical = ByteArrayInterner.internNoCopy(data);
+        assertThat(canonical).isSameAs(data);
+        assertThat(ByteArrayInterner.internNoCopy(data.clone())).isSameAs(canonical);
+        assertThat(ByteArrayInterner.intern(data.clone())).isSameAs(canonical);
+    }
+
+    @Test
+    public void shouldReturnSameInstanceToAllThreads() throws Exception {
+        final ByteArrayInterner interner = new ByteArrayInterner();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[][]>> futures = new ArrayList<Future<byte[][]>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<byte[][]>() {
+                    @Override
+                    public byte[][] call() {
+                        byte[][] canonical = new byte[1000][];
+                        for (int i = 0; i < canonical.length; i++) {
+                            byte[] data = {(byte) (i >>> 8), (byte) i, 0x70};
+                            canonical[i] = interner.get(data, 0, data.length);
+                        }
+                        return canonical;
+                    }
+                }));
+            }
+            byte[][] first = futures.get(0).get();
+            for (Future<byte[][]> future : futures) {
+                byte[][] canonical = future.get();
+                for (int i = 0; i < canonical.length; i++) {
+                    assertThat(canonical[i]).isSameAs(first[i]);
+                }
+            }
+            assertThat(interner.size()).isEqualTo(1000);
+            assertThat(interner.getNumShared()).isEqualTo(3000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class ByteSlabStoreTest {
+
+    @Test
+    public void shouldStoreEachContentOnce() {
+        ByteSlabStore store = new ByteSlabStore();
+        byte[] data = Util.fromHexString("70 05 5a 03 12 34 56");
+
+        int handle = store.put(data);
+        assertThat(store.put(new byte[]{0x12, 0x70, 0x05, 0x5a, 0x03, 0x12, 0x34, 0x56}, 1, 7)).isEqualTo(handle);
+        assertThat(store.put(new byte[0])).isNotEqualTo(handle);
+
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(store.getStoredBytes()).isEqualTo(7);
+        assertThat(store.getRefCount(handle)).isEqualTo(2);
+        assertThat(store.get(handle)).isEqualTo(data);
+        assertThat(store.get(handle)).isNotSameAs(store.get(handle));
+
+        store.release(handle);
+        assertThat(store.get(handle)).isEqualTo(data);
+        store.release(handle);
+        assertThat(store.size()).isEqualTo(1);
+        assertThatThrownBy(() -> store.get(handle)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldKeepHandlesWhenCompacting() {
+        ByteSlabStore store = new ByteSlabStore(1024);
+        Random random = new Random(1);
+        byte[][] contents = new byte[2000][];
+        int[] handles = new int[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            //Some contents are larger than a quarter of a slab
+            contents[i] = new byte[i % 100 == 0 ? 600 : 1 + random.nextInt(64)];
+            random.nextBytes(contents[i]);
+            handles[i] = store.put(contents[i]);
+        }
+        long allocated = store.getAllocatedBytes();
+        for (int i = 0; i < contents.length; i++) {
+            if (i % 4 != 0) {
+                store.release(handles[i]);
+            }
+        }
+        assertThat(store.size()).isEqualTo(contents.length / 4);
+        assertThat(store.getAllocatedBytes()).isLessThan(allocated);
+        for (int i = 0; i < contents.length; i += 4) {
+            assertThat(store.get(handles[i])).isEqualTo(contents[i]);
+        }
+        //Released handles are reused
+        assertThat(store.put(new byte[]{1, 2, 3})).isLessThan(contents.length);
+    }
+}
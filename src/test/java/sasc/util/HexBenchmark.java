@@ -0,0 +1,123 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.util.Random;
+
+/**
+ * Compares the Hex codec with the previous String based Util helpers.
+ * Not run as part of the test suite. Run with:
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes sasc.util.HexBenchmark
+ *
+ * @author sasc
+ */
+public class HexBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    //The previous implementations, kept here for comparison
+    static String legacyByteArrayToHexString(byte[] byteArray) {
+        StringBuilder hexData = new StringBuilder();
+        int onebyte;
+        for (int i = 0; i < byteArray.length; i++) {
+            onebyte = ((0x000000ff & byteArray[i]) | 0xffffff00);
+            hexData.append(Integer.toHexString(onebyte).substring(6));
+        }
+        return hexData.toString();
+    }
+
+    static byte[] legacyFromHexString(String encoded) {
+        encoded = Util.removeSpaces(encoded);
+        final byte result[] = new byte[encoded.length() / 2];
+        final char enc[] = encoded.toCharArray();
+        for (int i = 0; i < enc.length; i += 2) {
+            StringBuilder curr = new StringBuilder(2);
+            curr.append(enc[i]).append(enc[i + 1]);
+            result[i / 2] = (byte) Integer.parseInt(curr.toString(), 16);
+        }
+        return result;
+    }
+
+    static String legacyPrettyPrintHex(byte[] data, int indent) {
+        return Util.prettyPrintHex(legacyByteArrayToHexString(data), indent, true);
+    }
+
+    private interface Operation {
+        Object run(byte[] data, String hex);
+    }
+
+    private static volatile Object sink;
+
+    private static void measure(String name, byte[] data, String hex, Operation op) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink = op.run(data, hex);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = op.run(data, hex);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-28s %8.1f ns/op%n", name, (double) elapsed / ITERATIONS);
+    }
+
+    public static void main(String[] args) {
+        //Typical sizes: a short APDU, a READ RECORD response, and a 1984 bit certificate
+        for (int size : new int[]{8, 64, 248}) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            String spacedHex = Util.prettyPrintHexNoWrap(data);
+            System.out.println("Data length: " + size);
+            measure("encode (legacy)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return legacyByteArrayToHexString(data);
+                }
+            });
+            measure("encode (Hex)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return Hex.encode(data);
+                }
+            });
+            measure("decode (legacy)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return legacyFromHexString(hex);
+                }
+            });
+            measure("decode (Hex)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return Hex.decode(hex);
+                }
+            });
+            measure("prettyPrintHex (legacy)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return legacyPrettyPrintHex(data, 4);
+                }
+            });
+            measure("prettyPrintHex (Hex)", data, spacedHex, new Operation() {
+                @Override
+                public Object run(byte[] data, String hex) {
+                    return Util.prettyPrintHex(data, 4);
+                }
+            });
+        }
+    }
+}
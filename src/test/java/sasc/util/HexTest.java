@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class HexTest {
+
+    private static byte[] allByteValues() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeAllByteValues() {
+        byte[] data = allByteValues();
+        String hex = Hex.encode(data);
+        assertThat(hex).startsWith("000102").endsWith("fdfeff").hasSize(512);
+        assertThat(Hex.decode(hex)).isEqualTo(data);
+        assertThat(Hex.decode(hex.toUpperCase())).isEqualTo(data);
+        assertThat(Util.byte2Hex((byte) 0xA5)).isEqualTo("a5");
+        assertThat(Util.short2Hex((short) 0x9F38)).isEqualTo("9f38");
+    }
+
+    @Test
+    public void shouldFormatLikeStringPrettyPrinter() {
+        byte[] data = allByteValues();
+        for (int length : new int[]{0, 1, 15, 16, 17, 32, 33, 256}) {
+            String hex = Hex.encode(data, 0, length);
+            assertThat(Util.prettyPrintHex(data, 0, length)).isEqualTo(Util.prettyPrintHex(hex, 0, true));
+            assertThat(Util.prettyPrintHex(java.util.Arrays.copyOf(data, length), 4)).isEqualTo(Util.prettyPrintHex(hex, 4, true));
+            assertThat(Util.prettyPrintHexNoWrap(data, 0, length)).isEqualTo(Util.prettyPrintHex(hex, 0, false));
+            assertThat(Hex.Format.wrapped(4).getFormattedLength(length)).isEqualTo(Util.prettyPrintHex(hex, 4, true).length());
+        }
+    }
+
+    @Test
+    public void shouldEncodeToAppendableAndByteBuffer() throws Exception {
+        byte[] data = Util.fromHexString("6f 1a 84 0e");
+        StringWriter writer = new StringWriter();
+        Hex.Format.SPACED_UPPER_CASE.appendTo(writer, data, 1, 3);
+        assertThat(writer.toString()).isEqualTo("1A 84 0E");
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(2);
+        assertThat(Hex.Format.PLAIN.appendTo(new StringBuilder("x"), buffer).toString()).isEqualTo("x840e");
+        assertThat(buffer.position()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDecodeIntoByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.put((byte) 0x01);
+        assertThat(Hex.decode("9f 36 02", buffer)).isEqualTo(3);
+        assertThat(buffer.position()).isEqualTo(4);
+        assertThat(buffer.get(1)).isEqualTo((byte) 0x9f);
+    }
+
+    @Test
+    public void shouldRejectInvalidInput() {
+        assertThatThrownBy(() -> Hex.decode("abc")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Hex.decode("0g")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Hex.decode("-1")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Hex.encode(new byte[2], 1, 2)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010 sasc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sasc.util;
+
+import java.io.File;
+import java.math.BigInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ *
+ * @author sasc
+ */
+public class RSAKeyPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFailTakeWhenKeysCannotBeGenerated() throws Exception {
+        RSAKeyPool pool = new RSAKeyPool(3, 2, 1);
+        try {
+            //Below the minimum RSA key size
+            assertThatThrownBy(() -> pool.take(128)).isInstanceOf(IllegalStateException.class)
+                    .hasCauseInstanceOf(java.security.GeneralSecurityException.class);
+            assertThatThrownBy(() -> pool.take(128)).isInstanceOf(IllegalStateException.class);
+            assertThat(pool.available(128)).isZero();
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void shouldSaveAndLoadPooledKeys() throws Exception {
+        File file = folder.newFile("keys.txt");
+        RSAKeyPool pool = new RSAKeyPool(3, 2, 1);
+        RSAKeyGenerator.RSAKeyPair keyPair;
+        try {
+            keyPair = pool.take(512);
+            while (pool.available(512) < 2) {
+                Thread.sleep(10);
+            }
+            assertThat(pool.save(file)).isEqualTo(2);
+        } finally {
+            pool.close();
+        }
+
+        RSAKeyPool loadedPool = new RSAKeyPool(3, 2, 1);
+        try {
+            assertThat(loadedPool.load(file)).isEqualTo(2);
+            assertThat(loadedPool.available(512)).isEqualTo(2);
+            RSAKeyGenerator.RSAKeyPair loaded = loadedPool.take(512);
+            assertThat(loaded.getPublicKey().getModulus()).isNotEqualTo(keyPair.getPublicKey().getModulus());
+            assertThat(loaded.getPublicKey().getPublicExponent()).isEqualTo(BigInteger.valueOf(3));
+            assertThat(loaded.getPrivateKey().getModulus()).isEqualTo(loaded.getPublicKey().getModulus());
+        } finally {
+            loadedPool.close();
+        }
+        //Keys with a different public exponent are ignored
+        RSAKeyPool otherPool = new RSAKeyPool(65537, 1, 1);
+        try {
+            assertThat(otherPool.load(file)).isZero();
+        } finally {
+            otherPool.close();
+        }
+    }
+}